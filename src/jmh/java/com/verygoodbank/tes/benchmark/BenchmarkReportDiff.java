@@ -0,0 +1,50 @@
+package com.verygoodbank.tes.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Compares two JMH JSON reports (-rf json), e.g. of the previous and the current release.
+ * Prints change of every benchmark present in both, positive change means slower (AverageTime mode).
+ *   BenchmarkReportDiff baseline.json current.json
+ */
+public class BenchmarkReportDiff {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length!=2) {
+            System.err.println("Usage: BenchmarkReportDiff baseline.json current.json");
+            System.exit(2);
+        }
+        Map<String,JsonNode> baseline = read(new File(args[0]));
+        Map<String,JsonNode> current = read(new File(args[1]));
+        System.out.printf("%-100s %14s %14s %9s%n", "Benchmark", "Baseline", "Current", "Change");
+        for (Map.Entry<String,JsonNode> entry : current.entrySet()) {
+            JsonNode before = baseline.get(entry.getKey());
+            double score = entry.getValue().path("primaryMetric").path("score").asDouble();
+            String unit = entry.getValue().path("primaryMetric").path("scoreUnit").asText();
+            if (before==null) {
+                System.out.printf("%-100s %14s %14.3f %9s %s%n", entry.getKey(), "-", score, "new", unit);
+                continue;
+            }
+            double baseScore = before.path("primaryMetric").path("score").asDouble();
+            System.out.printf("%-100s %14.3f %14.3f %+8.1f%% %s%n", entry.getKey(), baseScore, score,
+                baseScore==0 ? 0.0 : 100.0*(score - baseScore)/baseScore, unit);
+        }
+    }
+
+    private static Map<String,JsonNode> read(File report) throws IOException {
+        Map<String,JsonNode> results = new LinkedHashMap<>();
+        for (JsonNode result : new ObjectMapper().readTree(report)) {
+            StringBuilder key = new StringBuilder(result.path("benchmark").asText());
+            result.path("params").fields().forEachRemaining(param ->
+                key.append(' ').append(param.getKey()).append('=').append(param.getValue().asText()));
+            results.put(key.toString(), result);
+        }
+        return results;
+    }
+}
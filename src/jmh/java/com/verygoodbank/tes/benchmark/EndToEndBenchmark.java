@@ -0,0 +1,91 @@
+package com.verygoodbank.tes.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.verygoodbank.tes.TradeEnrichmentServiceApplication;
+
+/**
+ * Whole request through Undertow, controller, pipeline and response delivery, service runs in the benchmark JVM.
+ * Score is time of one request with the generated file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgs = { "-Xmx2g" })
+public class EndToEndBenchmark {
+
+    @Param({ "100000" })
+    public int rows;
+
+    @Param({ "0.0", "0.05" })
+    public double invalidRatio;
+
+    @Param({ "10000" })
+    public int catalogSize;
+
+    @Param({ "enrich?parallelism=1", "enrich?parallelism=4", "enrich-bidi" })
+    public String endpoint;
+
+    private ConfigurableApplicationContext context;
+    private HttpClient client;
+    private HttpRequest request;
+    private Path catalogFile;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        catalogFile = Files.createTempFile("benchmark-catalog-", ".csv");
+        Files.write(catalogFile, TradeDataset.catalog(catalogSize));
+        context = SpringApplication.run(TradeEnrichmentServiceApplication.class, "--server.port=0",
+            "--tes.catalog.path="+catalogFile, "--tes.catalog.watch=false");
+        String port = context.getEnvironment().getProperty("local.server.port");
+        client = HttpClient.newHttpClient();
+        request = HttpRequest.newBuilder(URI.create("http://localhost:"+port+"/api/v1/"+endpoint))
+            .header("Content-Type", "text/csv")
+            .POST(HttpRequest.BodyPublishers.ofByteArray(TradeDataset.trades(rows, invalidRatio, catalogSize, 42)))
+            .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        context.close();
+        Files.deleteIfExists(catalogFile);
+    }
+
+    @Benchmark
+    public long enrich() throws Exception {
+        HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+        try (InputStream body = response.body()) {
+            if (response.statusCode()!=200) {
+                throw new IllegalStateException("Unexpected status "+response.statusCode());
+            }
+            return body.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+}
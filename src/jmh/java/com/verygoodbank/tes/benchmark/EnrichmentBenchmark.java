@@ -0,0 +1,116 @@
+package com.verygoodbank.tes.benchmark;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.verygoodbank.tes.model.Trade;
+import com.verygoodbank.tes.service.ProductDictionary;
+import com.verygoodbank.tes.service.TradeEnrichmentService;
+import com.verygoodbank.tes.store.ResultCache;
+
+/**
+ * Product lookup: TradeEnrichmentService.enrichTrade, raw ProductDictionary lookup by id bytes
+ * and, as a baseline, the ConcurrentHashMap previously used by the service. 10% of lookups miss.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = { "-Xmx4g" })
+public class EnrichmentBenchmark {
+
+    private final static int IDS = 1 << 16;
+
+    @Param({ "10", "10000", "1000000" })
+    public int catalogSize;
+
+    private TradeEnrichmentService service;
+    private ProductDictionary dictionary;
+    private ConcurrentHashMap<String,String> map;
+    private Trade[] trades;
+    private byte[][] ids;
+    private byte[] scratch;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        byte[] catalog = TradeDataset.catalog(catalogSize);
+        Path catalogFile = Files.createTempFile("benchmark-catalog-", ".csv");
+        Files.write(catalogFile, catalog);
+        service = new TradeEnrichmentService();
+        ReflectionTestUtils.setField(service, "catalogPath", catalogFile.toString());
+        ReflectionTestUtils.setField(service, "resultCache", new ResultCache());
+        service.init();
+        Files.delete(catalogFile);
+        dictionary = ProductDictionary.parse(ByteBuffer.wrap(catalog), 1, problem -> {});
+        map = new ConcurrentHashMap<>();
+        for (int i=1; i <= catalogSize; i++) {
+            map.put(Integer.toString(i), dictionary.name(dictionary.indexOf(Integer.toString(i))));
+        }
+        Random random = new Random(catalogSize);
+        trades = new Trade[IDS];
+        ids = new byte[IDS][];
+        for (int i=0; i < IDS; i++) {
+            String id = Integer.toString(1 + random.nextInt(catalogSize + Math.max(1, catalogSize/10)));
+            ids[i] = id.getBytes(StandardCharsets.UTF_8);
+            trades[i] = new Trade();
+            trades[i].setProductId(id);
+        }
+        scratch = new byte[256];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        service.shutdown();
+    }
+
+    private int next() {
+        return next = (next + 1) & (IDS - 1);
+    }
+
+    @Benchmark
+    public Trade enrichTrade() {
+        return service.enrichTrade(trades[next()]);
+    }
+
+    @Benchmark
+    public int dictionaryLookup() {
+        byte[] id = ids[next()];
+        int index = dictionary.indexOf(id, 0, id.length);
+        if (index!=ProductDictionary.NOT_FOUND) {
+            dictionary.copyName(index, scratch, 0);
+            return dictionary.nameLength(index);
+        }
+        return TradeEnrichmentService.TXT_ON_MISSING_UTF8.length + id.length;
+    }
+
+    @Benchmark
+    public int mapLookupBaseline() {
+        String productId = new String(ids[next()], StandardCharsets.UTF_8);
+        String name = Optional.ofNullable(map.get(productId))
+            .orElseGet( () -> TradeEnrichmentService.TXT_ON_MISSING+productId );
+        return name.getBytes().length;
+    }
+}
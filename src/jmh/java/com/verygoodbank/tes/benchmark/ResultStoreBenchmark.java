@@ -0,0 +1,82 @@
+package com.verygoodbank.tes.benchmark;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.verygoodbank.tes.store.GzipResultStore;
+import com.verygoodbank.tes.store.HybridResultStore;
+import com.verygoodbank.tes.store.ResultStore;
+import com.verygoodbank.tes.store.ResultStoreFactory;
+import com.verygoodbank.tes.web.ResponseTransfer;
+
+/**
+ * Write/read cycle of the result store: enriched content is written in pipeline-sized chunks,
+ * then delivered with ResponseTransfer to a discarding stream (mapped regions, as outside Undertow).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResultStoreBenchmark {
+
+    private final static int CHUNK_SIZE = 64*1024;
+
+    @Param({ "1048576", "67108864" })
+    public int contentSize;
+
+    // content bigger than threshold is spilled
+    @Param({ "1048576" })
+    public int memoryThreshold;
+
+    @Param({ "false", "true" })
+    public boolean gzip;
+
+    private byte[] chunk;
+    private ResponseTransfer responseTransfer;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        byte[] rows = TradeDataset.trades(CHUNK_SIZE/20, 0.0, 1000, 42);
+        chunk = new byte[CHUNK_SIZE];
+        for (int i=0; i < CHUNK_SIZE; i += rows.length) {
+            System.arraycopy(rows, 0, chunk, i, Math.min(rows.length, CHUNK_SIZE - i));
+        }
+        responseTransfer = new ResponseTransfer();
+    }
+
+    @Benchmark
+    public long writeAndTransfer() throws Exception {
+        ResultStore store = new HybridResultStore(() -> Files.createTempFile(ResultStoreFactory.SPILL_FILE_PREFIX,
+            ResultStoreFactory.SPILL_FILE_SUFFIX), memoryThreshold, false);
+        if (gzip) {
+            store = new GzipResultStore(store, 1);
+        }
+        try (ResultStore autoClosable = store) {
+            for (long written=0; written < contentSize; written += CHUNK_SIZE) {
+                ByteBuffer bb = ByteBuffer.wrap(chunk, 0, (int)Math.min(CHUNK_SIZE, contentSize - written));
+                while (bb.hasRemaining()) {
+                    store.write(bb);
+                }
+            }
+            store.finish();
+            return responseTransfer.transfer(store, OutputStream.nullOutputStream());
+        }
+    }
+}
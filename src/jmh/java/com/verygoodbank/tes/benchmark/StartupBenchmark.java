@@ -0,0 +1,124 @@
+package com.verygoodbank.tes.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Time from the process start to the first enriched record and resident memory at that moment, of every variant
+ * started in a fresh process for the number of runs (-Druns, 5 by default). JMH isn't used as it measures within
+ * a JVM which is already started. A variant is name=command, the server port is appended to the command, commands
+ * run in -Ddir. Without arguments the jar of the cds profile (mvn -Pcds -DskipTests package) is compared with and
+ * without its archive, which is usable only from target/cds where it was recorded:
+ *   StartupBenchmark [name=command ...]
+ *   StartupBenchmark jar="java -jar target/cds/trade-enrichment-service-cds.jar" native=target/trade-enrichment-service
+ */
+public class StartupBenchmark {
+
+    private final static String CDS_JAR = "trade-enrichment-service-cds.jar";
+    private final static String BODY = "date,product_id,currency,price\n20160101,1,EUR,10.0\n";
+    private final static String ENRICHED = "20160101,Treasury Bills Domestic,EUR,10.0";
+    private final static long TIMEOUT_NANOS = 120_000_000_000L;
+
+    public static void main(String[] args) throws Exception {
+        Map<String,String> variants = new LinkedHashMap<>();
+        if (args.length==0) {
+            variants.put("jar", "java -jar "+CDS_JAR);
+            variants.put("jar-fast-start", "java -jar "+CDS_JAR+" --spring.profiles.active=fast-start");
+            variants.put("cds", "java -XX:SharedArchiveFile=application.jsa -jar "+CDS_JAR);
+            variants.put("cds-fast-start", "java -XX:SharedArchiveFile=application.jsa -jar "+CDS_JAR+
+                " --spring.profiles.active=fast-start");
+        }
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator <= 0) {
+                System.err.println("Usage: StartupBenchmark [name=command ...]");
+                System.exit(2);
+            }
+            variants.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+        int runs = Integer.getInteger("runs", 5);
+        File dir = new File(System.getProperty("dir", args.length==0 ? "target/cds" : "."));
+        HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(1)).build();
+        System.out.printf("%-30s %12s %12s %12s %12s%n", "Variant", "Median ms", "Min ms", "Max ms", "RSS MB");
+        for (Map.Entry<String,String> variant : variants.entrySet()) {
+            long[] millis = new long[runs];
+            long rssKb = 0;
+            for (int i = 0; i < runs; i++) {
+                long[] result = run(client, dir, variant.getValue());
+                millis[i] = result[0];
+                rssKb = Math.max(rssKb, result[1]);
+            }
+            Arrays.sort(millis);
+            System.out.printf("%-30s %12d %12d %12d %12s%n", variant.getKey(), millis[runs/2], millis[0],
+                millis[runs - 1], rssKb > 0 ? String.format("%.1f", rssKb/1024.0) : "-");
+        }
+    }
+
+    /**
+     * Starts the command and returns milliseconds to the first enriched record and resident memory in kB.
+     */
+    private static long[] run(HttpClient client, File dir, String command) throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        List<String> commandLine = new ArrayList<>(Arrays.asList(command.trim().split("\\s+")));
+        commandLine.add("--server.port="+port);
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:"+port+"/api/v1/enrich"))
+            .header("Content-Type", "text/csv").timeout(Duration.ofSeconds(10))
+            .POST(HttpRequest.BodyPublishers.ofString(BODY)).build();
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(commandLine).directory(dir).redirectErrorStream(true)
+            .redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        try {
+            while (true) {
+                if (!process.isAlive()) {
+                    throw new IllegalStateException("'"+command+"' exited with "+process.exitValue());
+                }
+                if (System.nanoTime() - start > TIMEOUT_NANOS) {
+                    throw new IllegalStateException("'"+command+"' didn't enrich a record in time");
+                }
+                try {
+                    HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+                    if (response.statusCode()==200 && response.body().contains(ENRICHED)) {
+                        return new long[] { (System.nanoTime() - start)/1_000_000, rssKb(process.pid()) };
+                    }
+                }
+                catch (IOException e) {
+                    // not listening yet
+                }
+                Thread.sleep(5);
+            }
+        }
+        finally {
+            process.destroy();
+            process.waitFor();
+        }
+    }
+
+    private static long rssKb(long pid) throws IOException {
+        Path status = Path.of("/proc", pid+"", "status");
+        if (!Files.exists(status)) {
+            return 0;
+        }
+        for (String line : Files.readAllLines(status)) {
+            if (line.startsWith("VmRSS:")) {
+                return Long.parseLong(line.replaceAll("[^0-9]", ""));
+            }
+        }
+        return 0;
+    }
+}
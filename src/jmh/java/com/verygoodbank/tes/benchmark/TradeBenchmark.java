@@ -0,0 +1,128 @@
+package com.verygoodbank.tes.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.verygoodbank.tes.model.Trade;
+import com.verygoodbank.tes.model.ValidationException;
+import com.verygoodbank.tes.output.BufferPool;
+import com.verygoodbank.tes.output.CsvTradeEncoder;
+import com.verygoodbank.tes.service.ProductDictionary;
+
+/**
+ * Per-record stages: parsing, validation and serialization of enriched line.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TradeBenchmark {
+
+    private final static int ROWS = 1024;
+
+    @Param({ "0.0", "0.1" })
+    public double invalidRatio;
+
+    private String[] lines;
+    private String[] dates;
+    private String[] prices;
+    private byte[][] dateBytes;
+    private byte[][] priceBytes;
+    private Trade[] trades;
+    private StringBuilder sb;
+    private CsvTradeEncoder encoder;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws ValidationException {
+        lines = TradeDataset.rows(ROWS, invalidRatio, 1000, 42);
+        dates = new String[ROWS];
+        prices = new String[ROWS];
+        dateBytes = new byte[ROWS][];
+        priceBytes = new byte[ROWS][];
+        trades = new Trade[ROWS];
+        for (int i=0; i < ROWS; i++) {
+            String[] fields = lines[i].split(",");
+            dates[i] = fields[0];
+            prices[i] = fields[fields.length - 1];
+            dateBytes[i] = dates[i].getBytes(StandardCharsets.UTF_8);
+            priceBytes[i] = prices[i].getBytes(StandardCharsets.UTF_8);
+            Trade trade = new Trade();
+            trade.setDate(fields[0]);
+            trade.setProductName("Product "+fields[1]+" Bond Fund Series 1");
+            trade.setCurrency(fields[2]);
+            trade.setPrice(prices[i]);
+            trades[i] = trade;
+        }
+        sb = new StringBuilder(4096);
+        encoder = new CsvTradeEncoder(Channels.newChannel(OutputStream.nullOutputStream()), ProductDictionary.empty(),
+            new BufferPool(256*1024, 1));
+    }
+
+    private int next() {
+        return next = (next + 1) & (ROWS - 1);
+    }
+
+    @Benchmark
+    public Object parse() {
+        try {
+            return Trade.fromCsvLine(lines[next()], false);
+        }
+        catch (ValidationException e) {
+            return e;
+        }
+    }
+
+    @Benchmark
+    public boolean validateDate() {
+        return Trade.validateDate(dates[next()]);
+    }
+
+    @Benchmark
+    public boolean validatePrice() {
+        return Trade.validatePrice(prices[next()]);
+    }
+
+    @Benchmark
+    public boolean validateDateBytes() {
+        byte[] date = dateBytes[next()];
+        return Trade.validateDate(date, 0, date.length);
+    }
+
+    @Benchmark
+    public boolean validatePriceBytes() {
+        byte[] price = priceBytes[next()];
+        return Trade.validatePrice(price, 0, price.length);
+    }
+
+    @Benchmark
+    public void serialize(Blackhole bh) {
+        // same encoding as the controller uses for the response
+        bh.consume(trades[next()].toCsvEnrichedLine(sb).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public void encode() throws IOException {
+        // appended to the pooled buffer, written out to a discarding channel when full
+        encoder.write(trades[next()]);
+    }
+}
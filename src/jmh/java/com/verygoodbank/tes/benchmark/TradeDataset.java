@@ -0,0 +1,74 @@
+package com.verygoodbank.tes.benchmark;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Generates trade files and product catalogs for benchmarks.
+ * Invalid rows are spread evenly between wrong dates, wrong prices and wrong number of fields,
+ * every 20th valid row refers to a product missing in the catalog.
+ * Run as main to write files for manual or load testing:
+ *   TradeDataset outputDir rows invalidRatio catalogSize
+ */
+public class TradeDataset {
+
+    private final static String[] CURRENCIES = { "EUR", "USD", "GBP", "PLN", "CHF", "JPY" };
+
+    private TradeDataset() {
+    }
+
+    public static byte[] catalog(int catalogSize) {
+        StringBuilder sb = new StringBuilder(catalogSize*32 + 32);
+        sb.append("product_id,product_name\n");
+        for (int i=1; i <= catalogSize; i++) {
+            sb.append(i).append(",Product ").append(i).append(" Bond Fund Series ").append(i % 97).append('\n');
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static byte[] trades(int rows, double invalidRatio, int catalogSize, long seed) {
+        StringBuilder sb = new StringBuilder(rows*24 + 32);
+        sb.append("date,product_id,currency,price\n");
+        for (String row : rows(rows, invalidRatio, catalogSize, seed)) {
+            sb.append(row).append('\n');
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Rows without line terminators and without header.
+     */
+    public static String[] rows(int rows, double invalidRatio, int catalogSize, long seed) {
+        Random random = new Random(seed);
+        String[] result = new String[rows];
+        for (int i=0; i < rows; i++) {
+            String date = String.format("%04d%02d%02d", 2015 + random.nextInt(10), 1 + random.nextInt(12),
+                1 + random.nextInt(28));
+            int productId = i % 20==19 ? catalogSize + 1 + random.nextInt(100) : 1 + random.nextInt(catalogSize);
+            String currency = CURRENCIES[random.nextInt(CURRENCIES.length)];
+            String price = random.nextInt(100_000)/100.0 + "";
+            if (random.nextDouble() < invalidRatio) {
+                switch (random.nextInt(3)) {
+                    case 0: date = date.substring(0, 4) + "1332"; break;
+                    case 1: price = price + "x"; break;
+                    default: currency = currency + ",extra,fields"; break;
+                }
+            }
+            result[i] = date + "," + productId + "," + currency + "," + price;
+        }
+        return result;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path dir = Path.of(args.length > 0 ? args[0] : ".");
+        int rows = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        double invalidRatio = args.length > 2 ? Double.parseDouble(args[2]) : 0.01;
+        int catalogSize = args.length > 3 ? Integer.parseInt(args[3]) : 10_000;
+        Files.createDirectories(dir);
+        Files.write(dir.resolve("trades-"+rows+".csv"), trades(rows, invalidRatio, catalogSize, 42));
+        Files.write(dir.resolve("products-"+catalogSize+".csv"), catalog(catalogSize));
+    }
+}
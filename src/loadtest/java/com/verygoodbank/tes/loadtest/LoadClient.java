@@ -0,0 +1,126 @@
+package com.verygoodbank.tes.loadtest;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Posts a file over a plain HTTP/1.1 connection, so the order of writing the request and reading the response is
+ * under control: WRITE_THEN_READ sends the whole body before it reads anything, FULL_DUPLEX reads the response while
+ * the body is being sent. A request that doesn't finish in the timeout is aborted by closing the connection.
+ */
+public class LoadClient implements AutoCloseable {
+
+    public enum Mode { WRITE_THEN_READ, FULL_DUPLEX }
+
+    public record Result(int status, long bytesReceived, long firstByteNanos, long totalNanos, String error) {
+        public boolean isOk() {
+            return status==200 && error==null;
+        }
+    }
+
+    private final static int BUFFER_SIZE = 64*1024;
+
+    private final String host;
+    private final int port;
+    private final long timeoutMillis;
+    private final ExecutorService writers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "load-writer");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "load-watchdog");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public LoadClient(String host, int port, long timeoutMillis) {
+        this.host = host;
+        this.port = port;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public Result post(String path, Path body, Mode mode) {
+        long start = System.nanoTime();
+        long firstByte = -1;
+        long received = 0;
+        int status = -1;
+        try (Socket socket = new Socket(host, port)) {
+            ScheduledFuture<?> abort = watchdog.schedule(() -> closeQuietly(socket), timeoutMillis,
+                TimeUnit.MILLISECONDS);
+            try {
+                OutputStream out = socket.getOutputStream();
+                out.write(("POST "+path+" HTTP/1.1\r\nHost: "+host+":"+port+"\r\nContent-Type: text/csv\r\n"+
+                    "Content-Length: "+Files.size(body)+"\r\nConnection: close\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+                Future<?> writer = null;
+                if (mode==Mode.FULL_DUPLEX) {
+                    writer = writers.submit(() -> {
+                        Files.copy(body, out);
+                        out.flush();
+                        return null;
+                    });
+                }
+                else {
+                    Files.copy(body, out);
+                    out.flush();
+                }
+                InputStream in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+                int first = in.read();
+                if (first >= 0) {
+                    firstByte = System.nanoTime() - start;
+                    status = status(first, in);
+                    received = in.transferTo(OutputStream.nullOutputStream());
+                }
+                if (writer!=null) {
+                    writer.get();
+                }
+            }
+            finally {
+                abort.cancel(false);
+            }
+        }
+        catch (Exception e) {
+            String error = System.nanoTime() - start >= timeoutMillis*1_000_000 ? "timeout" : e.toString();
+            return new Result(status, received, firstByte, System.nanoTime() - start, error);
+        }
+        return new Result(status, received, firstByte, System.nanoTime() - start, null);
+    }
+
+    private static int status(int first, InputStream in) throws IOException {
+        // HTTP/1.1 200 OK
+        StringBuilder line = new StringBuilder().append((char)first);
+        for (int c; (c = in.read()) >= 0 && c!='\n'; ) {
+            line.append((char)c);
+        }
+        String[] parts = line.toString().split(" ");
+        return parts.length > 1 ? Integer.parseInt(parts[1]) : -1;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        }
+        catch (IOException e) {
+            // aborted anyway
+        }
+    }
+
+    @Override
+    public void close() {
+        writers.shutdownNow();
+        watchdog.shutdownNow();
+    }
+}
@@ -0,0 +1,348 @@
+package com.verygoodbank.tes.loadtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.verygoodbank.tes.TradeEnrichmentServiceApplication;
+
+/**
+ * Drives endpoints of the service with generated trade files at several concurrency levels and client modes, and
+ * writes throughput, latency percentiles, peak heap, RSS and spill file usage of every scenario as JSON. Exits
+ * with 1 when a configured budget is exceeded, so it fails the build of the loadtest profile.
+ * The service is started in this JVM unless url is given. Arguments are key=value, see DEFAULTS, app.* are passed
+ * to the service started in this JVM (app.tes.store.memory-threshold=0 gives --tes.store.memory-threshold=0).
+ * Budgets apply to every scenario, budget.ENDPOINT.NAME overrides budget.NAME for one endpoint:
+ *   budget.p50-ms, budget.p99-ms, budget.min-records-per-second, budget.max-errors, budget.max-heap-mb,
+ *   budget.max-rss-mb, budget.max-spill-mb
+ */
+public class LoadTest {
+
+    private final static Map<String,String> DEFAULTS = new LinkedHashMap<>();
+    static {
+        DEFAULTS.put("rows", "200000");
+        DEFAULTS.put("invalidRatio", "0.01");
+        DEFAULTS.put("invalidMix", "date:1,price:1,fields:1,empty:1");
+        DEFAULTS.put("missingRatio", "0.05");
+        DEFAULTS.put("distribution", "uniform");
+        DEFAULTS.put("zipfExponent", "1.0");
+        DEFAULTS.put("catalogSize", "10000");
+        DEFAULTS.put("seed", "42");
+        DEFAULTS.put("endpoints", "enrich,enrich-bidi");
+        DEFAULTS.put("modes", "write-then-read,full-duplex");
+        DEFAULTS.put("concurrency", "1,2,4,8");
+        DEFAULTS.put("requests", "16");
+        DEFAULTS.put("warmup", "2");
+        DEFAULTS.put("timeoutMs", "120000");
+        DEFAULTS.put("sampleMs", "100");
+        // base url of a running instance, empty starts the service in this JVM
+        DEFAULTS.put("url", "");
+        // pid of the running instance for RSS, 0 when unknown
+        DEFAULTS.put("pid", "0");
+        DEFAULTS.put("dir", "target/loadtest");
+        DEFAULTS.put("output", "target/loadtest-result.json");
+    }
+    // throughput growth below this share over the previous concurrency level means saturation
+    private final static double SATURATION_GROWTH = 0.1;
+
+    private final Map<String,String> config;
+    private final HttpClient metricsClient = HttpClient.newHttpClient();
+    private final ObjectMapper mapper = new ObjectMapper();
+    private String baseUrl;
+    private long rssPid;
+
+    private LoadTest(Map<String,String> config) {
+        this.config = config;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String,String> config = new LinkedHashMap<>(DEFAULTS);
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator <= 0) {
+                System.err.println("Usage: LoadTest [key=value ...], keys: "+DEFAULTS.keySet()+", app.*, budget.*");
+                System.exit(2);
+            }
+            config.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+        System.exit(new LoadTest(config).run() ? 0 : 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean run() throws Exception {
+        Path dir = Path.of(config.get("dir"));
+        Files.createDirectories(dir);
+        int catalogSize = Integer.parseInt(config.get("catalogSize"));
+        long rows = Long.parseLong(config.get("rows"));
+        TradeFileGenerator generator = new TradeFileGenerator(catalogSize,
+            Double.parseDouble(config.get("invalidRatio")), config.get("invalidMix"),
+            Double.parseDouble(config.get("missingRatio")), config.get("distribution"),
+            Double.parseDouble(config.get("zipfExponent")));
+        Path catalog = dir.resolve("products-"+catalogSize+".csv");
+        Path trades = dir.resolve("trades-"+rows+"-"+config.get("distribution")+"-"+config.get("seed")+".csv");
+        generator.writeCatalog(catalog);
+        generator.writeTrades(trades, rows, Long.parseLong(config.get("seed")));
+
+        ConfigurableApplicationContext context = null;
+        if (config.get("url").isBlank()) {
+            List<String> appArgs = new ArrayList<>(List.of("--server.port=0", "--tes.catalog.path="+catalog,
+                "--tes.catalog.watch=false"));
+            config.forEach((key, value) -> {
+                if (key.startsWith("app.")) {
+                    appArgs.add("--"+key.substring(4)+"="+value);
+                }
+            });
+            context = SpringApplication.run(TradeEnrichmentServiceApplication.class, appArgs.toArray(new String[0]));
+            baseUrl = "http://localhost:"+context.getEnvironment().getProperty("local.server.port");
+            rssPid = ProcessHandle.current().pid();
+        }
+        else {
+            baseUrl = config.get("url").replaceAll("/+$", "");
+            rssPid = Long.parseLong(config.get("pid"));
+        }
+        URI base = URI.create(baseUrl);
+        List<Map<String,Object>> scenarios = new ArrayList<>();
+        Map<String,Object> saturation = new LinkedHashMap<>();
+        List<String> violations = new ArrayList<>();
+        try (LoadClient client = new LoadClient(base.getHost(), base.getPort(),
+            Long.parseLong(config.get("timeoutMs"))))
+        {
+            for (String endpoint : list("endpoints")) {
+                for (String mode : list("modes")) {
+                    Map<String,Object> previous = null;
+                    for (String concurrency : list("concurrency")) {
+                        Map<String,Object> scenario = scenario(client, trades, rows, endpoint,
+                            LoadClient.Mode.valueOf(mode.toUpperCase(Locale.ROOT).replace('-', '_')),
+                            Integer.parseInt(concurrency));
+                        scenario.put("budgetViolations", checkBudgets(endpoint, scenario));
+                        violations.addAll((List<String>)scenario.get("budgetViolations"));
+                        scenarios.add(scenario);
+                        System.out.println(scenario);
+                        if (previous!=null && !saturation.containsKey(endpoint+"/"+mode) &&
+                            throughput(scenario) < throughput(previous)*(1 + SATURATION_GROWTH))
+                        {
+                            saturation.put(endpoint+"/"+mode, previous.get("concurrency"));
+                        }
+                        previous = scenario;
+                    }
+                }
+            }
+        }
+        finally {
+            if (context!=null) {
+                context.close();
+            }
+        }
+        Map<String,Object> report = new LinkedHashMap<>();
+        report.put("config", config);
+        report.put("inputBytes", Files.size(trades));
+        report.put("scenarios", scenarios);
+        // lowest concurrency level after which throughput grows less than SATURATION_GROWTH
+        report.put("saturatedAtConcurrency", saturation);
+        report.put("budgetViolations", violations);
+        report.put("passed", violations.isEmpty());
+        File output = new File(config.get("output"));
+        mapper.enable(SerializationFeature.INDENT_OUTPUT).writeValue(output, report);
+        System.out.println("Load test report: "+output+(violations.isEmpty() ? "" : ", budgets exceeded: "+violations));
+        return violations.isEmpty();
+    }
+
+    private List<String> list(String key) {
+        return Arrays.stream(config.get(key).split(",")).map(String::trim).filter(s -> !s.isEmpty()).toList();
+    }
+
+    private static double throughput(Map<String,Object> scenario) {
+        return (Double)scenario.get("recordsPerSecond");
+    }
+
+    private Map<String,Object> scenario(LoadClient client, Path trades, long rows, String endpoint,
+        LoadClient.Mode mode, int concurrency) throws Exception
+    {
+        String path = "/api/v1/"+endpoint;
+        for (int i = 0; i < Integer.parseInt(config.get("warmup")); i++) {
+            client.post(path, trades, mode);
+        }
+        int requests = Integer.parseInt(config.get("requests"));
+        AtomicInteger remaining = new AtomicInteger(requests);
+        List<LoadClient.Result> results = new ArrayList<>();
+        Sampler sampler = new Sampler();
+        Thread samplerThread = new Thread(sampler, "load-sampler");
+        samplerThread.setDaemon(true);
+        samplerThread.start();
+        ExecutorService callers = Executors.newFixedThreadPool(concurrency);
+        long start = System.nanoTime();
+        try {
+            List<Future<List<LoadClient.Result>>> futures = new ArrayList<>();
+            for (int i = 0; i < concurrency; i++) {
+                futures.add(callers.submit(() -> {
+                    List<LoadClient.Result> own = new ArrayList<>();
+                    while (remaining.getAndDecrement() > 0) {
+                        own.add(client.post(path, trades, mode));
+                    }
+                    return own;
+                }));
+            }
+            for (Future<List<LoadClient.Result>> future : futures) {
+                results.addAll(future.get());
+            }
+        }
+        finally {
+            callers.shutdownNow();
+            sampler.stop();
+            samplerThread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long ok = results.stream().filter(LoadClient.Result::isOk).count();
+        long received = results.stream().mapToLong(LoadClient.Result::bytesReceived).sum();
+        long[] latencies = results.stream().filter(LoadClient.Result::isOk).mapToLong(LoadClient.Result::totalNanos)
+            .sorted().toArray();
+        long[] firstBytes = results.stream().filter(LoadClient.Result::isOk)
+            .mapToLong(LoadClient.Result::firstByteNanos).sorted().toArray();
+        Map<String,Object> scenario = new LinkedHashMap<>();
+        scenario.put("endpoint", endpoint);
+        scenario.put("mode", mode.name().toLowerCase(Locale.ROOT).replace('_', '-'));
+        scenario.put("concurrency", concurrency);
+        scenario.put("requests", results.size());
+        scenario.put("errors", results.size() - ok);
+        scenario.put("firstErrors", results.stream().filter(r -> !r.isOk()).limit(3)
+            .map(r -> r.error()!=null ? r.error() : "status "+r.status()).toList());
+        scenario.put("durationMs", elapsed/1_000_000);
+        scenario.put("recordsPerSecond", ok*rows*1e9/elapsed);
+        scenario.put("inputMBPerSecond", ok*Files.size(trades)*1e9/elapsed/(1024*1024));
+        scenario.put("outputMBPerSecond", received*1e9/elapsed/(1024*1024));
+        scenario.put("latencyMs", percentiles(latencies));
+        scenario.put("firstByteMs", percentiles(firstBytes));
+        scenario.put("peakHeapMB", sampler.peakHeapBytes/(1024.0*1024));
+        scenario.put("peakRssMB", sampler.peakRssKb > 0 ? sampler.peakRssKb/1024.0 : null);
+        scenario.put("peakSpillMB", sampler.peakSpillBytes/(1024.0*1024));
+        return scenario;
+    }
+
+    private static Map<String,Object> percentiles(long[] sortedNanos) {
+        Map<String,Object> percentiles = new LinkedHashMap<>();
+        if (sortedNanos.length==0) {
+            return percentiles;
+        }
+        for (double p : new double[] { 50, 90, 99 }) {
+            int index = (int)Math.ceil(p/100*sortedNanos.length) - 1;
+            percentiles.put("p"+(int)p, sortedNanos[Math.max(index, 0)]/1e6);
+        }
+        percentiles.put("max", sortedNanos[sortedNanos.length - 1]/1e6);
+        return percentiles;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<String> checkBudgets(String endpoint, Map<String,Object> scenario) {
+        List<String> violations = new ArrayList<>();
+        Map<String,Object> latency = (Map<String,Object>)scenario.get("latencyMs");
+        String name = scenario.get("endpoint")+"/"+scenario.get("mode")+"/"+scenario.get("concurrency");
+        checkMax(violations, name, "p50-ms", budget(endpoint, "p50-ms"), (Double)latency.get("p50"));
+        checkMax(violations, name, "p99-ms", budget(endpoint, "p99-ms"), (Double)latency.get("p99"));
+        checkMax(violations, name, "max-errors", budget(endpoint, "max-errors"), ((Long)scenario.get("errors")).doubleValue());
+        checkMax(violations, name, "max-heap-mb", budget(endpoint, "max-heap-mb"), (Double)scenario.get("peakHeapMB"));
+        checkMax(violations, name, "max-rss-mb", budget(endpoint, "max-rss-mb"), (Double)scenario.get("peakRssMB"));
+        checkMax(violations, name, "max-spill-mb", budget(endpoint, "max-spill-mb"), (Double)scenario.get("peakSpillMB"));
+        String minThroughput = budget(endpoint, "min-records-per-second");
+        if (minThroughput!=null && throughput(scenario) < Double.parseDouble(minThroughput)) {
+            violations.add(name+" min-records-per-second "+minThroughput+": "+throughput(scenario));
+        }
+        return violations;
+    }
+
+    private String budget(String endpoint, String name) {
+        return config.getOrDefault("budget."+endpoint+"."+name, config.get("budget."+name));
+    }
+
+    private static void checkMax(List<String> violations, String scenario, String name, String budget,
+        Double value)
+    {
+        // missing latency means no request succeeded, which is reported by errors
+        if (budget!=null && value!=null && value > Double.parseDouble(budget)) {
+            violations.add(scenario+" "+name+" "+budget+": "+value);
+        }
+    }
+
+    private double metric(String name, String tag) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl+"/actuator/metrics/"+name+
+            (tag!=null ? "?tag="+tag : ""))).GET().build();
+        HttpResponse<String> response = metricsClient.send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode()!=200) {
+            return 0;
+        }
+        for (JsonNode measurement : mapper.readTree(response.body()).path("measurements")) {
+            if (measurement.path("statistic").asText().equals("VALUE")) {
+                return measurement.path("value").asDouble();
+            }
+        }
+        return 0;
+    }
+
+    private long rssKb() throws IOException {
+        Path status = Path.of("/proc", rssPid+"", "status");
+        if (rssPid==0 || !Files.exists(status)) {
+            return 0;
+        }
+        for (String line : Files.readAllLines(status)) {
+            if (line.startsWith("VmRSS:")) {
+                return Long.parseLong(line.replaceAll("[^0-9]", ""));
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Peaks of heap and spill files from the service metrics and of RSS, while a scenario runs.
+     */
+    private class Sampler implements Runnable {
+        private volatile boolean running = true;
+        double peakHeapBytes;
+        double peakSpillBytes;
+        long peakRssKb;
+
+        @Override
+        public void run() {
+            long sampleMillis = Long.parseLong(config.get("sampleMs"));
+            do {
+                try {
+                    peakHeapBytes = Math.max(peakHeapBytes, metric("jvm.memory.used", "area:heap"));
+                    peakSpillBytes = Math.max(peakSpillBytes, metric("tes.store.spill-bytes", null));
+                    peakRssKb = Math.max(peakRssKb, rssKb());
+                    Thread.sleep(sampleMillis);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                catch (Exception e) {
+                    System.err.println("Sampling failed: "+e);
+                }
+            }
+            while (running);
+        }
+
+        void stop() {
+            running = false;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.verygoodbank.tes.loadtest;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Writes trade files of any size without keeping them in memory, and matching product catalogs.
+ * Product ids are uniform or Zipf distributed over the catalog, missingRatio of valid rows refer to products missing
+ * in the catalog. invalidRatio of rows are invalid, kinds of invalid rows are picked by weights of invalidMix
+ * (date, price, fields, empty), e.g. "date:2,price:1". The same arguments and seed give the same file.
+ */
+public class TradeFileGenerator {
+
+    private final static String[] CURRENCIES = { "EUR", "USD", "GBP", "PLN", "CHF", "JPY" };
+    private final static String[] INVALID_KINDS = { "date", "price", "fields", "empty" };
+
+    private final int catalogSize;
+    private final double invalidRatio;
+    private final double[] invalidWeights;
+    private final double missingRatio;
+    // cumulative probabilities of product ids for Zipf distribution, null for uniform
+    private final double[] zipfCumulative;
+
+    public TradeFileGenerator(int catalogSize, double invalidRatio, String invalidMix, double missingRatio,
+        String distribution, double zipfExponent)
+    {
+        this.catalogSize = catalogSize;
+        this.invalidRatio = invalidRatio;
+        this.invalidWeights = invalidWeights(invalidMix);
+        this.missingRatio = missingRatio;
+        if (distribution.equals("uniform")) {
+            zipfCumulative = null;
+        }
+        else if (distribution.equals("zipf")) {
+            zipfCumulative = new double[catalogSize];
+            double sum = 0;
+            for (int i = 0; i < catalogSize; i++) {
+                sum += 1/Math.pow(i + 1, zipfExponent);
+                zipfCumulative[i] = sum;
+            }
+            for (int i = 0; i < catalogSize; i++) {
+                zipfCumulative[i] /= sum;
+            }
+        }
+        else {
+            throw new IllegalArgumentException("Unknown distribution "+distribution+", expected uniform or zipf");
+        }
+    }
+
+    private static double[] invalidWeights(String invalidMix) {
+        double[] weights = new double[INVALID_KINDS.length];
+        double sum = 0;
+        for (String part : invalidMix.split(",")) {
+            String[] kindWeight = part.trim().split(":");
+            int kind = Arrays.asList(INVALID_KINDS).indexOf(kindWeight[0]);
+            if (kind < 0 || kindWeight.length!=2) {
+                throw new IllegalArgumentException("Invalid mix "+invalidMix+", expected e.g. date:1,price:1,"+
+                    "fields:1,empty:1");
+            }
+            weights[kind] = Double.parseDouble(kindWeight[1]);
+            sum += weights[kind];
+        }
+        double cumulative = 0;
+        for (int i = 0; i < weights.length; i++) {
+            cumulative += weights[i]/sum;
+            weights[i] = cumulative;
+        }
+        return weights;
+    }
+
+    public void writeCatalog(Path file) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write("product_id,product_name\n");
+            for (int i = 1; i <= catalogSize; i++) {
+                writer.write(i+",Product "+i+" Bond Fund Series "+(i % 97)+"\n");
+            }
+        }
+    }
+
+    public void writeTrades(Path file, long rows, long seed) throws IOException {
+        Random random = new Random(seed);
+        StringBuilder row = new StringBuilder(64);
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write("date,product_id,currency,price\n");
+            for (long i = 0; i < rows; i++) {
+                row.setLength(0);
+                appendRow(row, random);
+                writer.append(row).append('\n');
+            }
+        }
+    }
+
+    private void appendRow(StringBuilder row, Random random) {
+        int year = 2015 + random.nextInt(10);
+        int month = 1 + random.nextInt(12);
+        int day = 1 + random.nextInt(28);
+        int productId = random.nextDouble() < missingRatio ? catalogSize + 1 + random.nextInt(100) : productId(random);
+        String currency = CURRENCIES[random.nextInt(CURRENCIES.length)];
+        String price = random.nextInt(100_000)/100.0 + "";
+        String kind = random.nextDouble() < invalidRatio ? invalidKind(random) : "";
+        switch (kind) {
+            case "empty":
+                return;
+            case "date":
+                month = 13;
+                break;
+            case "price":
+                price = price+"x";
+                break;
+            case "fields":
+                currency = currency+",extra,fields";
+                break;
+            default:
+                break;
+        }
+        row.append(year);
+        if (month < 10) {
+            row.append('0');
+        }
+        row.append(month);
+        if (day < 10) {
+            row.append('0');
+        }
+        row.append(day).append(',').append(productId).append(',').append(currency).append(',').append(price);
+    }
+
+    private int productId(Random random) {
+        if (zipfCumulative==null) {
+            return 1 + random.nextInt(catalogSize);
+        }
+        int index = Arrays.binarySearch(zipfCumulative, random.nextDouble());
+        return 1 + Math.min(index < 0 ? -index - 1 : index, catalogSize - 1);
+    }
+
+    private String invalidKind(Random random) {
+        double r = random.nextDouble();
+        for (int i = 0; i < invalidWeights.length; i++) {
+            if (r < invalidWeights[i]) {
+                return INVALID_KINDS[i];
+            }
+        }
+        return INVALID_KINDS[INVALID_KINDS.length - 1];
+    }
+}
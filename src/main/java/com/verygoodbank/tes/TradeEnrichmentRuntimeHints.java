@@ -0,0 +1,23 @@
+package com.verygoodbank.tes;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+
+import org.springframework.aot.hint.ExecutableMode;
+import org.springframework.aot.hint.RuntimeHints;
+import org.springframework.aot.hint.RuntimeHintsRegistrar;
+
+/**
+ * Resources and reflection of the service that AOT processing can't discover, for the GraalVM native image.
+ */
+public class TradeEnrichmentRuntimeHints implements RuntimeHintsRegistrar {
+
+    @Override
+    public void registerHints(RuntimeHints hints, ClassLoader classLoader) {
+        // bundled catalog, read by TradeEnrichmentService when tes.catalog.path is empty
+        hints.resources().registerPattern("products.csv");
+        // looked up by ExecutionConfig when tes.exec.virtual-threads is enabled (Java 21+)
+        hints.reflection().registerType(Executors.class, type -> type.withMethod("newVirtualThreadPerTaskExecutor",
+            List.of(), ExecutableMode.INVOKE));
+    }
+}
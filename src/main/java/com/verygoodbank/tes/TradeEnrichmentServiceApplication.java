@@ -2,8 +2,10 @@ package com.verygoodbank.tes;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.annotation.ImportRuntimeHints;
 
 @SpringBootApplication
+@ImportRuntimeHints(TradeEnrichmentRuntimeHints.class)
 public class TradeEnrichmentServiceApplication {
 
 	public static void main(String[] args) {
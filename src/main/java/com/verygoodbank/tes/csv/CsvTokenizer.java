@@ -0,0 +1,290 @@
+package com.verygoodbank.tes.csv;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Streaming CSV tokenizer working directly on bytes.
+ * Input is read into a reusable buffer, line and field boundaries are found in a single pass
+ * and exposed as slices of that buffer. Slices are valid only until the next call to nextLine().
+ * Lines are terminated by LF, CR or CRLF, like in Scanner.nextLine(). Field count follows
+ * String.split() semantics, so trailing empty fields are not counted.
+ * A line longer than maxLineBytes is skipped up to its end and reported as an empty line with isTooLong(),
+ * so a single upload without line ends can't grow the buffer without a bound.
+ */
+public class CsvTokenizer {
+
+    public final static int DEFAULT_BUFFER_SIZE = 64*1024;
+    public final static int MAX_TRACKED_FIELDS = 8;
+    public final static int DEFAULT_MAX_LINE_BYTES = 1024*1024;
+
+    private final InputStream in;
+    private byte[] buf;
+    private int pos = 0;
+    private int limit = 0;
+    private boolean eof = false;
+    private boolean skipLf = false;
+    private int maxLineBytes = DEFAULT_MAX_LINE_BYTES;
+    private boolean tooLong = false;
+
+    private int lineStart = 0;
+    private int lineEnd = 0;
+    private long lineNumber = 0;
+    private long bytesRead = 0;
+    private final int[] fieldStarts = new int[MAX_TRACKED_FIELDS];
+    private final int[] fieldEnds = new int[MAX_TRACKED_FIELDS];
+    private int fields = 0;
+    private int lastNonEmptyField = -1;
+    private int currentFieldStart = 0;
+    private boolean hasDigit = false;
+    private boolean isBlank = true;
+
+    public CsvTokenizer(InputStream in) {
+        this(in, DEFAULT_BUFFER_SIZE);
+    }
+
+    public CsvTokenizer(InputStream in, int bufferSize) {
+        this.in = in;
+        this.buf = new byte[Math.max(bufferSize, 16)];
+    }
+
+    /**
+     * Reads the input into the buffer (e.g. a pooled one), a line longer than the buffer is read into a bigger copy.
+     */
+    public CsvTokenizer(InputStream in, byte[] buffer) {
+        this.in = in;
+        this.buf = buffer;
+    }
+
+    /**
+     * Same as above, lines longer than maxLineBytes are rejected.
+     */
+    public CsvTokenizer(InputStream in, byte[] buffer, int maxLineBytes) {
+        this(in, buffer);
+        this.maxLineBytes = Math.max(maxLineBytes, 16);
+    }
+
+    /**
+     * Tokenizes already collected bytes, the array is used in place and is not modified.
+     */
+    public CsvTokenizer(byte[] data, int offset, int length) {
+        this.in = null;
+        this.buf = data;
+        this.pos = offset;
+        this.limit = offset + length;
+        this.eof = true;
+        this.bytesRead = length;
+    }
+
+    /**
+     * Advances to the next line. Returns false when the stream is exhausted.
+     */
+    public boolean nextLine() throws IOException {
+        tooLong = false;
+        for (;;) {
+            if (skipLf) {
+                // CR was the last terminator, swallow LF of CRLF pair
+                if (pos==limit && fill()) {
+                    continue;
+                }
+                if (pos < limit && buf[pos]=='\n') {
+                    pos++;
+                }
+                skipLf = false;
+            }
+            int terminator = scan(pos, limit);
+            if (terminator >= 0) {
+                skipLf = buf[terminator]=='\r';
+                pos = terminator + 1;
+                lineNumber++;
+                return true;
+            }
+            if (!eof && limit - pos >= maxLineBytes) {
+                skipLine();
+                lineNumber++;
+                return true;
+            }
+            if (!fill()) {
+                if (pos < limit) {
+                    // last line without terminator, buffer might have been compacted so scan again
+                    scan(pos, limit);
+                    endField(limit);
+                    lineEnd = limit;
+                    pos = limit;
+                    lineNumber++;
+                    return true;
+                }
+                return false;
+            }
+        }
+    }
+
+    private int scan(int from, int to) {
+        final byte[] b = buf;
+        lineStart = from;
+        currentFieldStart = from;
+        fields = 0;
+        lastNonEmptyField = -1;
+        hasDigit = false;
+        isBlank = true;
+        for (int i=from; i < to; i++) {
+            byte ch = b[i];
+            if (ch==',') {
+                endField(i);
+                currentFieldStart = i + 1;
+                isBlank = false;
+            }
+            else if (ch=='\n' || ch=='\r') {
+                endField(i);
+                lineEnd = i;
+                return i;
+            }
+            else {
+                if (ch >= '0' && ch <= '9') {
+                    hasDigit = true;
+                }
+                if (isBlank && !isWhitespace(ch)) {
+                    isBlank = false;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Drops the buffered part of the current line and reads the input up to the line end.
+     */
+    private void skipLine() throws IOException {
+        tooLong = true;
+        pos = limit;
+        while (fill()) {
+            int terminator = -1;
+            for (int i=pos; i < limit && terminator < 0; i++) {
+                if (buf[i]=='\n' || buf[i]=='\r') {
+                    terminator = i;
+                }
+            }
+            if (terminator >= 0) {
+                skipLf = buf[terminator]=='\r';
+                pos = terminator + 1;
+                break;
+            }
+            pos = limit;
+        }
+        lineStart = pos;
+        lineEnd = pos;
+        fields = 0;
+        lastNonEmptyField = -1;
+        hasDigit = false;
+        isBlank = false;
+    }
+
+    private void endField(int end) {
+        if (fields < MAX_TRACKED_FIELDS) {
+            fieldStarts[fields] = currentFieldStart;
+            fieldEnds[fields] = end;
+        }
+        if (end > currentFieldStart) {
+            lastNonEmptyField = fields;
+        }
+        fields++;
+    }
+
+    private static boolean isWhitespace(byte ch) {
+        // ASCII subset of Character.isWhitespace()
+        return ch==' ' || (ch >= 0x09 && ch <= 0x0D) || (ch >= 0x1C && ch <= 0x1F);
+    }
+
+    private boolean fill() throws IOException {
+        if (eof) {
+            return false;
+        }
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        if (limit==buf.length) {
+            buf = Arrays.copyOf(buf, buf.length*2);
+        }
+        int n = in.read(buf, limit, buf.length - limit);
+        if (n < 0) {
+            eof = true;
+            return false;
+        }
+        limit += n;
+        bytesRead += n;
+        return true;
+    }
+
+    public byte[] buffer() {
+        return buf;
+    }
+
+    /**
+     * Number of bytes taken from the input so far.
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Current line was longer than maxLineBytes, its content is not available.
+     */
+    public boolean isTooLong() {
+        return tooLong;
+    }
+
+    public int getMaxLineBytes() {
+        return maxLineBytes;
+    }
+
+    public long getLineNumber() {
+        return lineNumber;
+    }
+
+    public int lineStart() {
+        return lineStart;
+    }
+
+    public int lineEnd() {
+        return lineEnd;
+    }
+
+    /**
+     * Number of fields in current line as String.split(",") would report it.
+     */
+    public int fieldCount() {
+        return lastNonEmptyField + 1;
+    }
+
+    public int fieldStart(int idx) {
+        return fieldStarts[idx];
+    }
+
+    public int fieldEnd(int idx) {
+        return fieldEnds[idx];
+    }
+
+    public int fieldLength(int idx) {
+        return fieldEnds[idx] - fieldStarts[idx];
+    }
+
+    public boolean hasDigit() {
+        return hasDigit;
+    }
+
+    public boolean isBlank() {
+        return isBlank;
+    }
+
+    public String field(int idx) {
+        return new String(buf, fieldStarts[idx], fieldLength(idx), StandardCharsets.UTF_8);
+    }
+
+    public String line() {
+        return new String(buf, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+    }
+}
@@ -1,51 +1,131 @@
 package com.verygoodbank.tes.model;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.time.DateTimeException;
 import java.time.LocalDate;
 
+import com.verygoodbank.tes.csv.CsvTokenizer;
+
 import io.swagger.v3.oas.annotations.media.Schema;
 
 @Schema
 public class Trade {
+    // Please note that this text is not compliant with requirements, but more sane
+    // when trying to reconcile product definitions between consumer and provider
+    public final static String TXT_ON_MISSING = "Missing Product Name for ID=";
     String sDate;
     String sProductId;
     String sProductName;
     String sCurrency;
     String sPrice;
+    transient int productIndex = -1;
+    transient boolean isProductMissing = false;
     transient boolean isLikelyHeader = false;
+    private final static int[] DAYS_IN_MONTH = { 0, 31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31 };
 
     public static Trade fromCsvLine(String line, boolean mightBeHeader) throws ValidationException {
         if (line!=null && !line.isBlank()) {
+            CsvTokenizer tokenizer = new CsvTokenizer(new ByteArrayInputStream(line.getBytes(StandardCharsets.UTF_8)));
+            try {
+                if (tokenizer.nextLine()) {
+                    return fromCsvRecord(tokenizer, mightBeHeader);
+                }
+            }
+            catch (IOException e) {
+                // not possible for in-memory stream
+                throw new ValidationException("Unreadable trade record: "+e.getMessage(), line);
+            }
+        }
+        return null;
+    }
+
+    public static Trade fromCsvRecord(CsvTokenizer tokenizer, boolean mightBeHeader) throws ValidationException {
+        if (tokenizer.isTooLong()) {
+            throw new ValidationException("Trade record longer than "+tokenizer.getMaxLineBytes()+" bytes", "",
+                ValidationException.Reason.UNREADABLE);
+        }
+        if (!tokenizer.isBlank()) {
             // We give flexibility to the caller to include or skip csv header.
             // As a result we must have some heuristics here to detect its presence.
             // This detection is needed because we validate date and price.
-            boolean isLikelyHeader = line.chars().map( ch -> Character.isDigit(ch) ? 1 : 0).sum() == 0 &&
-                mightBeHeader;
-            String values[] = line.split("\\,");
-            if (values.length!=4) {
+            boolean isLikelyHeader = !tokenizer.hasDigit() && mightBeHeader;
+            int fieldCount = tokenizer.fieldCount();
+            if (fieldCount!=4) {
                 throw new ValidationException("Unexpected number of fields in trade record: "+
-                    values.length+" vs 4", line);
+                    fieldCount+" vs 4", tokenizer.line(), ValidationException.Reason.FIELD_COUNT);
             }
-            Trade t = new Trade();
-            t.sDate = values[0];
-            if (!validateDate(t.sDate)) {
+            // validation works on bytes, strings are created only for the values that are kept
+            byte[] buf = tokenizer.buffer();
+            if (!validateDate(buf, tokenizer.fieldStart(0), tokenizer.fieldLength(0))) {
                 if (!isLikelyHeader)
-                    throw new ValidationException("Invalid date format: "+t.sDate, line);
+                    throw new ValidationException("Invalid date format: "+tokenizer.field(0), tokenizer.line(),
+                        ValidationException.Reason.DATE);
             }
-            t.sProductId = values[1];
-            t.sCurrency = values[2];
-            t.sPrice = values[3];
-            if (!validatePrice(t.sPrice)) {
+            if (!validatePrice(buf, tokenizer.fieldStart(3), tokenizer.fieldLength(3))) {
                 if (!isLikelyHeader)
-                    throw new ValidationException("Invalid price format: "+t.sPrice, line);
+                    throw new ValidationException("Invalid price format: "+tokenizer.field(3), tokenizer.line(),
+                        ValidationException.Reason.PRICE);
             }
+            Trade t = new Trade();
+            t.sDate = tokenizer.field(0);
+            t.sProductId = tokenizer.field(1);
+            t.sCurrency = tokenizer.field(2);
+            t.sPrice = tokenizer.field(3);
             t.isLikelyHeader = isLikelyHeader;
             return t;
         }
         return null;
     }
 
-    private static boolean validateDate(String dt) {
+    /**
+     * yyyyMMdd date, same rules as parsing the parts with Integer.parseInt and LocalDate.of.
+     */
+    public static boolean validateDate(String dt) {
+        byte[] bytes = dt.getBytes(StandardCharsets.UTF_8);
+        return validateDate(bytes, 0, bytes.length);
+    }
+
+    public static boolean validateDate(byte[] buf, int offset, int length) {
+        if (length==8) {
+            int year = 0, month = 0, day = 0;
+            boolean digits = true;
+            for (int i=0; i < 8 && digits; i++) {
+                int digit = buf[offset + i] - '0';
+                digits = digit >= 0 && digit <= 9;
+                if (i < 4) {
+                    year = year*10 + digit;
+                }
+                else if (i < 6) {
+                    month = month*10 + digit;
+                }
+                else {
+                    day = day*10 + digit;
+                }
+            }
+            if (digits) {
+                return month >= 1 && month <= 12 && day >= 1 && day <= daysInMonth(year, month);
+            }
+        }
+        // Integer.parseInt also accepts signs and non-ASCII digits
+        for (int i=offset; i < offset + length; i++) {
+            if (buf[i] < 0 || buf[i]=='+' || buf[i]=='-') {
+                return validateDateSlow(new String(buf, offset, length, StandardCharsets.UTF_8));
+            }
+        }
+        return false;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        if (month==2) {
+            // proleptic Gregorian, as LocalDate
+            return (year & 3)==0 && (year % 100!=0 || year % 400==0) ? 29 : 28;
+        }
+        return DAYS_IN_MONTH[month];
+    }
+
+    private static boolean validateDateSlow(String dt) {
         if (dt.length()!=8) {
             return false;
         }
@@ -61,7 +141,58 @@ public class Trade {
         return true;
     }
 
-    private static boolean validatePrice(String number) {
+    /**
+     * Number accepted by Double.parseDouble.
+     */
+    public static boolean validatePrice(String number) {
+        byte[] bytes = number.getBytes(StandardCharsets.UTF_8);
+        return validatePrice(bytes, 0, bytes.length);
+    }
+
+    public static boolean validatePrice(byte[] buf, int offset, int length) {
+        // plain decimal: [+-]digits[.digits][(e|E)[+-]digits][fFdD], at least one mantissa digit
+        int i = offset, end = offset + length;
+        if (i < end && (buf[i]=='+' || buf[i]=='-')) {
+            i++;
+        }
+        int digits = 0;
+        for (; i < end && isDigit(buf[i]); i++, digits++);
+        if (i < end && buf[i]=='.') {
+            for (i++; i < end && isDigit(buf[i]); i++, digits++);
+        }
+        if (digits > 0) {
+            boolean exponentValid = true;
+            if (i < end && (buf[i]=='e' || buf[i]=='E')) {
+                i++;
+                if (i < end && (buf[i]=='+' || buf[i]=='-')) {
+                    i++;
+                }
+                int exponentDigits = 0;
+                for (; i < end && isDigit(buf[i]); i++, exponentDigits++);
+                exponentValid = exponentDigits > 0;
+            }
+            if (exponentValid && i < end && (buf[i]=='f' || buf[i]=='F' || buf[i]=='d' || buf[i]=='D')) {
+                i++;
+            }
+            if (exponentValid && i==end) {
+                return true;
+            }
+        }
+        // Double.parseDouble also accepts surrounding whitespace, NaN, Infinity and hexadecimal notation
+        for (i=offset; i < end; i++) {
+            byte ch = buf[i];
+            if (ch < 0 || ch <= ' ' || ch=='N' || ch=='I' || ch=='x' || ch=='X') {
+                return validatePriceSlow(new String(buf, offset, length, StandardCharsets.UTF_8));
+            }
+        }
+        return false;
+    }
+
+    private static boolean isDigit(byte ch) {
+        return ch >= '0' && ch <= '9';
+    }
+
+    private static boolean validatePriceSlow(String number) {
         try {
             Double.parseDouble(number);
             return true;
@@ -87,12 +218,39 @@ public class Trade {
         this.sProductId = sProductId;
     }
 
+    /**
+     * Name of a product missing in the catalog is built on each call, encoders write TXT_ON_MISSING and the id instead.
+     */
     public String getProductName() {
-        return sProductName;
+        return isProductMissing ? TXT_ON_MISSING+sProductId : sProductName;
     }
 
     public void setProductName(String sProductName) {
         this.sProductName = sProductName;
+        this.isProductMissing = false;
+    }
+
+    public boolean isProductMissing() {
+        return isProductMissing;
+    }
+
+    /**
+     * Marks the product as missing in the catalog, see getProductName.
+     */
+    public void setProductMissing() {
+        this.sProductName = null;
+        this.isProductMissing = true;
+    }
+
+    /**
+     * Position of the product in the dictionary used for enrichment, -1 when product is missing.
+     */
+    public int getProductIndex() {
+        return productIndex;
+    }
+
+    public void setProductIndex(int productIndex) {
+        this.productIndex = productIndex;
     }
 
     public String getCurrency() {
@@ -113,7 +271,14 @@ public class Trade {
 
     public String toCsvEnrichedLine(StringBuilder sb) {
         sb.setLength(0);
-        sb.append(sDate).append(",").append(sProductName).append(",")
+        sb.append(sDate).append(",");
+        if (isProductMissing) {
+            sb.append(TXT_ON_MISSING).append(sProductId);
+        }
+        else {
+            sb.append(sProductName);
+        }
+        sb.append(",")
             .append(sCurrency).append(",").append(sPrice).append("\r\n");
         return sb.toString();
     }
@@ -1,17 +1,38 @@
 package com.verygoodbank.tes.model;
 
+/**
+ * Invalid record, thrown for every bad row, so it doesn't capture stack trace.
+ */
 public class ValidationException extends java.lang.Exception {
+
+    /**
+     * Category of invalid record, EMPTY is not thrown, it's used for blank and header-like records.
+     */
+    public enum Reason { FIELD_COUNT, DATE, PRICE, UNREADABLE, EMPTY }
+
     String content;
+    Reason reason = Reason.UNREADABLE;
+
     public ValidationException(String message) {
-        super(message);
+        super(message, null, false, false);
     }
 
     public ValidationException(String message, String content) {
-        super(message);
+        super(message, null, false, false);
+        this.content = content;
+    }
+
+    public ValidationException(String message, String content, Reason reason) {
+        super(message, null, false, false);
         this.content = content;
+        this.reason = reason;
     }
 
     public String getContent() {
         return content;
     }
-}
\ No newline at end of file
+
+    public Reason getReason() {
+        return reason;
+    }
+}
@@ -0,0 +1,250 @@
+package com.verygoodbank.tes.output;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+
+import com.verygoodbank.tes.model.Trade;
+import com.verygoodbank.tes.service.ProductDictionary;
+
+/**
+ * Instead of rows writes CSV of aggregates computed in a single pass: count, sum, min and max price
+ * of trades grouped by any of product name, currency and date (a single total row without grouping).
+ * Only the groups are kept, at most maxGroups of them. Min and max are written as they came in the input.
+ * Groups are written in order of product name, currency and date when the input ends.
+ */
+public class AggregatingTradeEncoder implements TradeEncoder {
+
+    public enum GroupBy {
+        PRODUCT("product_name"), CURRENCY("currency"), DATE("date");
+
+        private final String column;
+
+        GroupBy(String column) {
+            this.column = column;
+        }
+
+        /**
+         * Comma separated names (product, currency, date), blank means no grouping.
+         * Throws IllegalArgumentException for unknown names.
+         */
+        public static Set<GroupBy> parse(String list) {
+            Set<GroupBy> groupBy = EnumSet.noneOf(GroupBy.class);
+            for (String name : list.split(",")) {
+                if (!name.isBlank()) {
+                    try {
+                        groupBy.add(valueOf(name.trim().toUpperCase(Locale.ROOT)));
+                    }
+                    catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException("Unknown aggregate group: "+name.trim());
+                    }
+                }
+            }
+            return groupBy;
+        }
+    }
+
+    /**
+     * Thrown when the input has more groups than allowed.
+     */
+    public static class GroupLimitException extends IOException {
+        public GroupLimitException(int maxGroups) {
+            super("More than "+maxGroups+" aggregate groups");
+        }
+    }
+
+    private final static int FLUSH_BYTES = 64*1024;
+
+    private final WritableByteChannel out;
+    private final ProductDictionary catalog;
+    private final boolean byProduct;
+    private final boolean byCurrency;
+    private final boolean byDate;
+    private final int maxGroups;
+    private final HashMap<Key,Stats> groups = new HashMap<>();
+    // looked up for every trade, copied only when a new group starts
+    private final Key probe = new Key();
+    private boolean started = false;
+
+    public AggregatingTradeEncoder(WritableByteChannel out, ProductDictionary catalog, Set<GroupBy> groupBy,
+        int maxGroups)
+    {
+        this.out = out;
+        this.catalog = catalog;
+        this.byProduct = groupBy.contains(GroupBy.PRODUCT);
+        this.byCurrency = groupBy.contains(GroupBy.CURRENCY);
+        this.byDate = groupBy.contains(GroupBy.DATE);
+        this.maxGroups = maxGroups;
+    }
+
+    @Override
+    public void header() throws IOException {
+        started = true;
+    }
+
+    @Override
+    public void write(Trade trade) throws IOException {
+        if (byProduct) {
+            probe.productIndex = trade.getProductIndex();
+            probe.missingId = trade.isProductMissing() ? trade.getProductId() : null;
+        }
+        if (byCurrency) {
+            probe.currency = trade.getCurrency();
+        }
+        if (byDate) {
+            probe.date = TradeEncoder.yyyymmdd(trade.getDate());
+        }
+        probe.hash = 31*(31*(31*probe.productIndex + Objects.hashCode(probe.missingId))
+            + Objects.hashCode(probe.currency)) + probe.date;
+        Stats stats = groups.get(probe);
+        if (stats==null) {
+            if (groups.size() >= maxGroups) {
+                throw new GroupLimitException(maxGroups);
+            }
+            stats = new Stats();
+            groups.put(probe.copy(), stats);
+        }
+        stats.add(trade.getPrice());
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (!started) {
+            // empty input, like CSV output
+            return;
+        }
+        StringBuilder sb = new StringBuilder(FLUSH_BYTES + 1024);
+        List<String> columns = new ArrayList<>();
+        for (GroupBy groupBy : GroupBy.values()) {
+            if ((groupBy==GroupBy.PRODUCT && byProduct) || (groupBy==GroupBy.CURRENCY && byCurrency)
+                || (groupBy==GroupBy.DATE && byDate))
+            {
+                columns.add(groupBy.column);
+            }
+        }
+        columns.addAll(List.of("count", "sum_price", "min_price", "max_price"));
+        sb.append(String.join(",", columns)).append("\r\n");
+        List<Key> keys = new ArrayList<>(groups.keySet());
+        for (Key key : keys) {
+            key.outputName = !byProduct ? null : key.productIndex!=ProductDictionary.NOT_FOUND
+                ? catalog.name(key.productIndex) : key.missingId!=null ? Trade.TXT_ON_MISSING+key.missingId : null;
+        }
+        keys.sort(Comparator.comparing((Key k) -> k.outputName, Comparator.nullsFirst(Comparator.naturalOrder()))
+            .thenComparing(k -> k.currency, Comparator.nullsFirst(Comparator.naturalOrder()))
+            .thenComparingInt(k -> k.date));
+        if (keys.isEmpty() && !byProduct && !byCurrency && !byDate) {
+            // total of no trades
+            sb.append("0,0,,\r\n");
+        }
+        for (Key key : keys) {
+            Stats stats = groups.get(key);
+            if (byProduct) {
+                sb.append(quote(key.outputName)).append(',');
+            }
+            if (byCurrency) {
+                sb.append(quote(key.currency)).append(',');
+            }
+            if (byDate) {
+                sb.append(String.format("%08d", key.date)).append(',');
+            }
+            sb.append(stats.count).append(',').append(Double.isFinite(stats.sum)
+                ? BigDecimal.valueOf(stats.sum).toPlainString() : Double.toString(stats.sum)).append(',')
+                .append(stats.minPrice).append(',').append(stats.maxPrice).append("\r\n");
+            if (sb.length() >= FLUSH_BYTES) {
+                write(sb);
+            }
+        }
+        write(sb);
+        groups.clear();
+    }
+
+    /**
+     * Product names and ids may contain commas or quotes, such values are quoted like in RFC 4180.
+     */
+    static String quote(String value) {
+        if (value==null) {
+            return "";
+        }
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\r') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return "\""+value.replace("\"", "\"\"")+"\"";
+    }
+
+    private void write(StringBuilder sb) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+        while (bytes.hasRemaining()) {
+            out.write(bytes);
+        }
+        sb.setLength(0);
+    }
+
+    public int getGroupCount() {
+        return groups.size();
+    }
+
+    private static class Key {
+        // missingId is set only for products missing in the catalog, names are built when the output is written
+        int productIndex = ProductDictionary.NOT_FOUND;
+        String missingId;
+        // resolved when the output is written, not a part of the key
+        String outputName;
+        String currency;
+        int date;
+        int hash;
+
+        Key copy() {
+            Key key = new Key();
+            key.productIndex = productIndex;
+            key.missingId = missingId;
+            key.currency = currency;
+            key.date = date;
+            key.hash = hash;
+            return key;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key k && productIndex==k.productIndex && date==k.date
+                && Objects.equals(missingId, k.missingId) && Objects.equals(currency, k.currency);
+        }
+    }
+
+    private static class Stats {
+        long count;
+        double sum;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        String minPrice;
+        String maxPrice;
+
+        void add(String price) {
+            double value = Double.parseDouble(price);
+            count++;
+            sum += value;
+            if (value < min || minPrice==null) {
+                min = value;
+                minPrice = price;
+            }
+            if (value > max || maxPrice==null) {
+                max = value;
+                maxPrice = price;
+            }
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package com.verygoodbank.tes.output;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.arrow.flatbuf.Buffer;
+import org.apache.arrow.flatbuf.Date;
+import org.apache.arrow.flatbuf.DateUnit;
+import org.apache.arrow.flatbuf.DictionaryBatch;
+import org.apache.arrow.flatbuf.DictionaryEncoding;
+import org.apache.arrow.flatbuf.DictionaryKind;
+import org.apache.arrow.flatbuf.Endianness;
+import org.apache.arrow.flatbuf.Field;
+import org.apache.arrow.flatbuf.FieldNode;
+import org.apache.arrow.flatbuf.FloatingPoint;
+import org.apache.arrow.flatbuf.Int;
+import org.apache.arrow.flatbuf.Message;
+import org.apache.arrow.flatbuf.MessageHeader;
+import org.apache.arrow.flatbuf.MetadataVersion;
+import org.apache.arrow.flatbuf.Precision;
+import org.apache.arrow.flatbuf.RecordBatch;
+import org.apache.arrow.flatbuf.Schema;
+import org.apache.arrow.flatbuf.Type;
+import org.apache.arrow.flatbuf.Utf8;
+
+import com.google.flatbuffers.FlatBufferBuilder;
+import com.verygoodbank.tes.model.Trade;
+import com.verygoodbank.tes.service.ProductDictionary;
+
+/**
+ * Apache Arrow IPC stream (application/vnd.apache.arrow.stream) with columns date (date32), product_name and
+ * currency (utf8, dictionary-encoded with int32 indices) and price (float64), none of them nullable.
+ * Rows are written in record batches of batchRows. Dictionaries contain only the values used so far, values first
+ * used in a batch are sent as a delta dictionary batch right before it.
+ */
+public class ArrowTradeEncoder implements TradeEncoder {
+
+    private final static int CONTINUATION = 0xFFFFFFFF;
+    private final static int BUFFER_SIZE = 64*1024;
+    private final static long PRODUCT_NAME_DICTIONARY = 0;
+    private final static long CURRENCY_DICTIONARY = 1;
+    private final static String[] FIELDS = { "date", "product_name", "currency", "price" };
+
+    private final WritableByteChannel out;
+    private final ProductDictionary catalog;
+    private final int batchRows;
+    private final int[] dates;
+    private final int[] productNames;
+    private final int[] currencies;
+    private final double[] prices;
+    private int rows = 0;
+    // catalog index -> dictionary index + 1, 0 means not used yet
+    private final int[] catalogNames;
+    private final HashMap<String,Integer> missingNames = new HashMap<>();
+    private final HashMap<String,Integer> currencyIndexes = new HashMap<>();
+    private final Dictionary productNameDictionary = new Dictionary(PRODUCT_NAME_DICTIONARY);
+    private final Dictionary currencyDictionary = new Dictionary(CURRENCY_DICTIONARY);
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final FlatBufferBuilder builder = new FlatBufferBuilder(1024);
+    private boolean started = false;
+
+    public ArrowTradeEncoder(WritableByteChannel out, ProductDictionary catalog, int batchRows) {
+        this.out = out;
+        this.catalog = catalog;
+        this.batchRows = batchRows;
+        this.dates = new int[batchRows];
+        this.productNames = new int[batchRows];
+        this.currencies = new int[batchRows];
+        this.prices = new double[batchRows];
+        this.catalogNames = new int[catalog.size()];
+    }
+
+    @Override
+    public void write(Trade trade) throws IOException {
+        int date = TradeEncoder.yyyymmdd(trade.getDate());
+        // years before 0 are negative, month and day are not
+        dates[rows] = (int)LocalDate.of(Math.floorDiv(date, 10_000), Math.floorMod(date, 10_000)/100,
+            Math.floorMod(date, 100)).toEpochDay();
+        productNames[rows] = productNameIndex(trade);
+        currencies[rows] = currencyIndexes.computeIfAbsent(trade.getCurrency(), currency ->
+            currencyDictionary.add(currency.getBytes(StandardCharsets.UTF_8)));
+        prices[rows] = Double.parseDouble(trade.getPrice());
+        if (++rows==batchRows) {
+            writeBatch();
+        }
+    }
+
+    private int productNameIndex(Trade trade) {
+        int index = trade.getProductIndex();
+        if (index==ProductDictionary.NOT_FOUND) {
+            // keyed by id, the name is built once per missing product
+            Integer missing = missingNames.get(trade.getProductId());
+            if (missing==null) {
+                missing = productNameDictionary.add(trade.getProductName().getBytes(StandardCharsets.UTF_8));
+                missingNames.put(trade.getProductId(), missing);
+            }
+            return missing;
+        }
+        if (catalogNames[index]==0) {
+            byte[] name = new byte[catalog.nameLength(index)];
+            catalog.copyName(index, name, 0);
+            catalogNames[index] = productNameDictionary.add(name) + 1;
+        }
+        return catalogNames[index] - 1;
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (rows > 0 || !started) {
+            writeBatch();
+        }
+        ensure(8);
+        buffer.putInt(CONTINUATION).putInt(0);
+        flush();
+    }
+
+    private void writeBatch() throws IOException {
+        if (!started) {
+            writeSchema();
+            started = true;
+        }
+        productNameDictionary.write();
+        currencyDictionary.write();
+        if (rows==0) {
+            return;
+        }
+        long[] lengths = { 4L*rows, 4L*rows, 4L*rows, 8L*rows };
+        builder.clear();
+        RecordBatch.startNodesVector(builder, FIELDS.length);
+        for (int i=FIELDS.length - 1; i >= 0; i--) {
+            FieldNode.createFieldNode(builder, rows, 0);
+        }
+        int nodes = builder.endVector();
+        // validity (empty, no nulls) and values of every column
+        RecordBatch.startBuffersVector(builder, 2*FIELDS.length);
+        long bodyLength = 0;
+        for (long length : lengths) {
+            bodyLength += align(length);
+        }
+        long offset = bodyLength;
+        for (int i=FIELDS.length - 1; i >= 0; i--) {
+            offset -= align(lengths[i]);
+            Buffer.createBuffer(builder, offset, lengths[i]);
+            Buffer.createBuffer(builder, offset, 0);
+        }
+        int buffers = builder.endVector();
+        int batch = RecordBatch.createRecordBatch(builder, rows, nodes, buffers, 0, 0);
+        writeMessage(MessageHeader.RecordBatch, batch, bodyLength);
+        ensure((int)bodyLength);
+        buffer.asIntBuffer().put(dates, 0, rows);
+        skip(lengths[0]);
+        buffer.asIntBuffer().put(productNames, 0, rows);
+        skip(lengths[1]);
+        buffer.asIntBuffer().put(currencies, 0, rows);
+        skip(lengths[2]);
+        buffer.asDoubleBuffer().put(prices, 0, rows);
+        skip(lengths[3]);
+        rows = 0;
+    }
+
+    private void writeSchema() throws IOException {
+        builder.clear();
+        int[] fields = new int[FIELDS.length];
+        for (int i=0; i < FIELDS.length; i++) {
+            int name = builder.createString(FIELDS[i]);
+            byte typeType;
+            int type;
+            int dictionary = 0;
+            if (i==0) {
+                typeType = Type.Date;
+                type = Date.createDate(builder, DateUnit.DAY);
+            }
+            else if (i==3) {
+                typeType = Type.FloatingPoint;
+                type = FloatingPoint.createFloatingPoint(builder, Precision.DOUBLE);
+            }
+            else {
+                typeType = Type.Utf8;
+                Utf8.startUtf8(builder);
+                type = Utf8.endUtf8(builder);
+                int indexType = Int.createInt(builder, 32, true);
+                dictionary = DictionaryEncoding.createDictionaryEncoding(builder,
+                    i==1 ? PRODUCT_NAME_DICTIONARY : CURRENCY_DICTIONARY, indexType, false, DictionaryKind.DenseArray);
+            }
+            int children = Field.createChildrenVector(builder, new int[0]);
+            fields[i] = Field.createField(builder, name, false, typeType, type, dictionary, children, 0);
+        }
+        int fieldsVector = Schema.createFieldsVector(builder, fields);
+        int schema = Schema.createSchema(builder, Endianness.Little, fieldsVector, 0, 0);
+        writeMessage(MessageHeader.Schema, schema, 0);
+    }
+
+    private void writeMessage(byte headerType, int header, long bodyLength) throws IOException {
+        int message = Message.createMessage(builder, MetadataVersion.V5, headerType, header, bodyLength, 0);
+        builder.finish(message);
+        ByteBuffer metadata = builder.dataBuffer();
+        int length = metadata.remaining();
+        // continuation and length are followed by metadata padded, so the body starts 8-byte aligned
+        int padded = (int)align(8 + length) - 8;
+        ensure(8 + padded);
+        buffer.putInt(CONTINUATION).putInt(padded).put(metadata);
+        pad(padded - length);
+    }
+
+    private void skip(long length) {
+        buffer.position(buffer.position() + (int)length);
+        pad((int)(align(length) - length));
+    }
+
+    private void pad(int bytes) {
+        for (int i=0; i < bytes; i++) {
+            buffer.put((byte)0);
+        }
+    }
+
+    private static long align(long length) {
+        return (length + 7) & ~7L;
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+            if (buffer.capacity() < bytes) {
+                buffer = ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private class Dictionary {
+        private final long id;
+        private int size = 0;
+        private final List<byte[]> pending = new ArrayList<>();
+        private int pendingBytes = 0;
+        private boolean sent = false;
+
+        Dictionary(long id) {
+            this.id = id;
+        }
+
+        int add(byte[] value) {
+            pending.add(value);
+            pendingBytes += value.length;
+            return size++;
+        }
+
+        // the first batch of a dictionary is sent even when empty, later only deltas with new values
+        void write() throws IOException {
+            if (sent && pending.isEmpty()) {
+                return;
+            }
+            int count = pending.size();
+            long offsetsLength = 4L*(count + 1);
+            long bodyLength = align(offsetsLength) + align(pendingBytes);
+            builder.clear();
+            RecordBatch.startNodesVector(builder, 1);
+            FieldNode.createFieldNode(builder, count, 0);
+            int nodes = builder.endVector();
+            RecordBatch.startBuffersVector(builder, 3);
+            Buffer.createBuffer(builder, align(offsetsLength), pendingBytes);
+            Buffer.createBuffer(builder, 0, offsetsLength);
+            Buffer.createBuffer(builder, 0, 0);
+            int buffers = builder.endVector();
+            int data = RecordBatch.createRecordBatch(builder, count, nodes, buffers, 0, 0);
+            int batch = DictionaryBatch.createDictionaryBatch(builder, id, data, sent);
+            writeMessage(MessageHeader.DictionaryBatch, batch, bodyLength);
+            ensure((int)bodyLength);
+            int offset = 0;
+            buffer.putInt(offset);
+            for (byte[] value : pending) {
+                offset += value.length;
+                buffer.putInt(offset);
+            }
+            pad((int)(align(offsetsLength) - offsetsLength));
+            for (byte[] value : pending) {
+                buffer.put(value);
+            }
+            pad((int)(align(pendingBytes) - pendingBytes));
+            pending.clear();
+            pendingBytes = 0;
+            sent = true;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.verygoodbank.tes.output;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import jakarta.annotation.PostConstruct;
+
+/**
+ * Buffers of the read, encode and response paths come from pools of this arena, all of them within
+ * tes.buffers.budget-bytes (0 = unlimited) counting buffers in use and free pooled ones. When the budget is
+ * exhausted, free buffers of the requesting pool are dropped first, then the caller waits up to tes.buffers.wait-ms
+ * for buffers released by other requests and fails with ExhaustedException. Free buffers of other pools are kept,
+ * they are bounded by the max pooled count of each pool.
+ * Memory of buffers therefore stays flat regardless of the number of concurrent requests.
+ */
+@Component
+public class BufferArena {
+
+    private final static Logger logger = LoggerFactory.getLogger(BufferArena.class);
+
+    /**
+     * Thrown when the budget wasn't available in time, requests answer it with the reject status.
+     */
+    public static class ExhaustedException extends RuntimeException {
+        public ExhaustedException(long budgetBytes) {
+            super("Buffer budget of "+budgetBytes+" bytes exhausted", null, false, false);
+        }
+    }
+
+    @Value("${tes.buffers.budget-bytes:536870912}")
+    private long budgetBytes;
+    @Value("${tes.buffers.wait-ms:5000}")
+    private long waitMillis;
+    // read buffers of the tokenizer and decoding of the response
+    @Value("${tes.buffers.input-bytes:65536}")
+    private int inputBytes;
+    @Value("${tes.buffers.max-pooled-input:64}")
+    private int maxPooledInput;
+    private final List<BufferPool> pools = new CopyOnWriteArrayList<>();
+    private BufferPool inputPool;
+    private long reservedBytes = 0;
+    private long waitCount = 0;
+    private long waitNanos = 0;
+    private long exhaustedCount = 0;
+
+    public BufferArena() {
+    }
+
+    /**
+     * Arena outside of Spring context, e.g. for tests and benchmarks.
+     */
+    public BufferArena(long budgetBytes, long waitMillis) {
+        this.budgetBytes = budgetBytes;
+        this.waitMillis = waitMillis;
+        this.inputBytes = 65536;
+        this.maxPooledInput = 64;
+        init();
+    }
+
+    @PostConstruct
+    public void init() {
+        inputPool = newPool(Math.max(4096, inputBytes), maxPooledInput, false);
+        logger.info("Buffer budget is {} bytes", budgetBytes > 0 ? budgetBytes : "unlimited");
+    }
+
+    /**
+     * Pool of buffers allocated within the budget, heap buffers (direct false) have arrays.
+     */
+    public BufferPool newPool(int bufferBytes, int maxPooled, boolean direct) {
+        BufferPool pool = new BufferPool(bufferBytes, maxPooled, direct, this);
+        pools.add(pool);
+        return pool;
+    }
+
+    /**
+     * Heap buffers of tes.buffers.input-bytes for reading requests and decoding responses.
+     */
+    public BufferPool getInputPool() {
+        return inputPool;
+    }
+
+    void reserve(BufferPool requester, int bytes) {
+        synchronized (this) {
+            if (budgetBytes <= 0 || reservedBytes + bytes <= budgetBytes) {
+                reservedBytes += bytes;
+                return;
+            }
+        }
+        // buffers released to the requesting pool meanwhile and its lost ones; free buffers of other pools
+        // are kept for their next requests, dropping them would only move the allocations there
+        requester.trim();
+        synchronized (this) {
+            long start = System.nanoTime();
+            long deadline = start + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+            boolean waited = false;
+            try {
+                while (reservedBytes + bytes > budgetBytes) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0 || bytes > budgetBytes) {
+                        exhaustedCount++;
+                        throw new ExhaustedException(budgetBytes);
+                    }
+                    waited = true;
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+                reservedBytes += bytes;
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                exhaustedCount++;
+                throw new ExhaustedException(budgetBytes);
+            }
+            finally {
+                if (waited) {
+                    waitCount++;
+                    waitNanos += System.nanoTime() - start;
+                }
+            }
+        }
+    }
+
+    synchronized void unreserve(long bytes) {
+        reservedBytes -= bytes;
+        notifyAll();
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    /**
+     * Bytes of buffers in use and free in the pools.
+     */
+    public synchronized long getReservedBytes() {
+        return reservedBytes;
+    }
+
+    public long getPooledBytes() {
+        long bytes = 0;
+        for (BufferPool pool : pools) {
+            bytes += (long)pool.getPooledCount()*pool.getBufferBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Share of the budget reserved, 0 for unlimited budget.
+     */
+    public double getOccupancy() {
+        return budgetBytes > 0 ? (double)getReservedBytes()/budgetBytes : 0;
+    }
+
+    public synchronized long getWaitCount() {
+        return waitCount;
+    }
+
+    public synchronized double getWaitSeconds() {
+        return waitNanos/1e9;
+    }
+
+    public synchronized long getExhaustedCount() {
+        return exhaustedCount;
+    }
+}
@@ -0,0 +1,147 @@
+package com.verygoodbank.tes.output;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Buffers of the same size, direct or heap (with array), shared by requests. At most maxPooled free buffers are kept.
+ * A pool of BufferArena allocates within the arena budget: acquire may wait for buffers released by other requests
+ * and fails with BufferArena.ExhaustedException when none is released in time. Buffers acquired but never released
+ * (e.g. encoder of a failed request) give their bytes back to the arena when they are garbage collected.
+ */
+public class BufferPool {
+
+    private final int bufferBytes;
+    private final int maxPooled;
+    private final boolean direct;
+    // null for a standalone pool without budget
+    private final BufferArena arena;
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    // acquired buffers, weakly referenced so lost ones are noticed
+    private final Set<Lease> leases = ConcurrentHashMap.newKeySet();
+    private final ReferenceQueue<ByteBuffer> lost = new ReferenceQueue<>();
+
+    public BufferPool(int bufferBytes, int maxPooled) {
+        this(bufferBytes, maxPooled, true, null);
+    }
+
+    BufferPool(int bufferBytes, int maxPooled, boolean direct, BufferArena arena) {
+        this.bufferBytes = bufferBytes;
+        this.maxPooled = maxPooled;
+        this.direct = direct;
+        this.arena = arena;
+    }
+
+    public ByteBuffer acquire() {
+        expungeLost();
+        ByteBuffer buffer = free.poll();
+        if (buffer!=null) {
+            pooled.decrementAndGet();
+            buffer.clear();
+        }
+        else {
+            if (arena!=null) {
+                arena.reserve(this, bufferBytes);
+            }
+            buffer = direct ? ByteBuffer.allocateDirect(bufferBytes) : ByteBuffer.allocate(bufferBytes);
+        }
+        leases.add(new Lease(buffer, lost));
+        return buffer;
+    }
+
+    /**
+     * Buffers not acquired from the pool (e.g. heap buffers of oversized content) are ignored.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity()!=bufferBytes || buffer.isDirect()!=direct || !leases.remove(new Lease(buffer, null))) {
+            return;
+        }
+        if (pooled.incrementAndGet() <= maxPooled) {
+            free.add(buffer);
+        }
+        else {
+            pooled.decrementAndGet();
+            unreserve(1);
+        }
+        expungeLost();
+    }
+
+    /**
+     * Drops free buffers, so their bytes can be reserved again. Returns number of dropped buffers.
+     */
+    int trim() {
+        expungeLost();
+        int dropped = 0;
+        while (free.poll()!=null) {
+            pooled.decrementAndGet();
+            dropped++;
+        }
+        unreserve(dropped);
+        return dropped;
+    }
+
+    private void expungeLost() {
+        int count = 0;
+        for (Reference<? extends ByteBuffer> ref; (ref = lost.poll())!=null; ) {
+            if (leases.remove(ref)) {
+                count++;
+            }
+        }
+        unreserve(count);
+    }
+
+    private void unreserve(int buffers) {
+        if (arena!=null && buffers > 0) {
+            arena.unreserve((long)buffers*bufferBytes);
+        }
+    }
+
+    public int getBufferBytes() {
+        return bufferBytes;
+    }
+
+    public int getPooledCount() {
+        return pooled.get();
+    }
+
+    public int getLeasedCount() {
+        return leases.size();
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * Identity of an acquired buffer, ByteBuffer equality depends on its content.
+     */
+    private static class Lease extends WeakReference<ByteBuffer> {
+        private final int hash;
+
+        Lease(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue) {
+            super(buffer, queue);
+            this.hash = System.identityHashCode(buffer);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o==this) {
+                return true;
+            }
+            ByteBuffer buffer = get();
+            return o instanceof Lease lease && hash==lease.hash && buffer!=null && buffer==lease.get();
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.verygoodbank.tes.output;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import com.verygoodbank.tes.model.Trade;
+import com.verygoodbank.tes.service.ProductDictionary;
+import com.verygoodbank.tes.service.TradeEnrichmentService;
+
+/**
+ * Enriched CSV, byte-identical to Trade.toCsvEnrichedLine in UTF-8. Lines are appended to pooled direct buffers,
+ * catalog names are copied as they are stored in the catalog. Full buffers are written to the channel or,
+ * without a channel, kept until drainTo (parallel chunks), so they are written in input order in one gathering write.
+ */
+public class CsvTradeEncoder implements TradeEncoder {
+
+    private final static byte[] HEADER = TradeEnrichmentService.ENRICHED_CSV_HEADER.getBytes(StandardCharsets.UTF_8);
+    private final static byte[] MISSING = TradeEnrichmentService.TXT_ON_MISSING_UTF8;
+
+    private final WritableByteChannel out;
+    private final ProductDictionary catalog;
+    private final BufferPool pool;
+    private final List<ByteBuffer> filled = new ArrayList<>();
+    // lines longer than a buffer in filled, they are not pooled
+    private final Set<ByteBuffer> unpooled = Collections.newSetFromMap(new IdentityHashMap<>());
+    private ByteBuffer buffer;
+    private long length = 0;
+
+    public CsvTradeEncoder(WritableByteChannel out, ProductDictionary catalog, BufferPool pool) {
+        this.out = out;
+        this.catalog = catalog;
+        this.pool = pool;
+        this.buffer = pool.acquire();
+    }
+
+    @Override
+    public void header() throws IOException {
+        ensure(HEADER.length);
+        buffer.put(HEADER);
+        length += HEADER.length;
+    }
+
+    @Override
+    public void write(Trade trade) throws IOException {
+        int index = trade.getProductIndex();
+        int nameBytes = index!=ProductDictionary.NOT_FOUND ? catalog.nameLength(index)
+            : trade.isProductMissing() ? MISSING.length + maxBytes(trade.getProductId())
+            : maxBytes(trade.getProductName());
+        int max = maxBytes(trade.getDate()) + nameBytes + maxBytes(trade.getCurrency())
+            + maxBytes(trade.getPrice()) + 5;
+        if (max > buffer.capacity()) {
+            // longer than a whole buffer, not worth a special path
+            next();
+            byte[] line = trade.toCsvEnrichedLine(new StringBuilder(max)).getBytes(StandardCharsets.UTF_8);
+            ByteBuffer wrapped = ByteBuffer.wrap(line);
+            if (out==null) {
+                // kept in input order, but not returned to the pool
+                unpooled.add(wrapped);
+            }
+            write(wrapped);
+            length += line.length;
+            return;
+        }
+        ensure(max);
+        int start = buffer.position();
+        putUtf8(trade.getDate());
+        buffer.put((byte)',');
+        if (index!=ProductDictionary.NOT_FOUND) {
+            catalog.copyName(index, buffer);
+        }
+        else if (trade.isProductMissing()) {
+            buffer.put(MISSING);
+            putUtf8(trade.getProductId());
+        }
+        else {
+            putUtf8(trade.getProductName());
+        }
+        buffer.put((byte)',');
+        putUtf8(trade.getCurrency());
+        buffer.put((byte)',');
+        putUtf8(trade.getPrice());
+        buffer.put((byte)'\r').put((byte)'\n');
+        length += buffer.position() - start;
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (out!=null) {
+            try {
+                flush();
+            }
+            finally {
+                pool.release(buffer);
+                buffer = null;
+            }
+        }
+    }
+
+    /**
+     * Writes buffers kept by an encoder without channel and returns them to the pool.
+     */
+    public void drainTo(WritableByteChannel channel) throws IOException {
+        filled.add(buffer.flip());
+        buffer = null;
+        ByteBuffer[] buffers = filled.toArray(new ByteBuffer[0]);
+        try {
+            if (channel instanceof GatheringByteChannel gathering) {
+                int first = 0;
+                while (first < buffers.length) {
+                    gathering.write(buffers, first, buffers.length - first);
+                    while (first < buffers.length && !buffers[first].hasRemaining()) {
+                        first++;
+                    }
+                }
+            }
+            else {
+                for (ByteBuffer bb : buffers) {
+                    while (bb.hasRemaining()) {
+                        channel.write(bb);
+                    }
+                }
+            }
+        }
+        finally {
+            discard();
+        }
+    }
+
+    /**
+     * Returns buffers kept by the encoder to the pool without writing them, e.g. of a failed request.
+     */
+    @Override
+    public void discard() {
+        if (buffer!=null) {
+            filled.add(buffer);
+            buffer = null;
+        }
+        for (ByteBuffer bb : filled) {
+            if (!unpooled.contains(bb)) {
+                pool.release(bb);
+            }
+        }
+        filled.clear();
+        unpooled.clear();
+    }
+
+    /**
+     * Number of bytes encoded so far, including the header.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Writes buffered lines to the channel, without channel they are kept until drainTo.
+     */
+    public void flush() throws IOException {
+        if (out!=null && buffer.position() > 0) {
+            write(buffer.flip());
+            buffer.clear();
+        }
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            next();
+        }
+    }
+
+    private void next() throws IOException {
+        if (out==null) {
+            filled.add(buffer.flip());
+            buffer = pool.acquire();
+        }
+        else {
+            flush();
+        }
+    }
+
+    private void write(ByteBuffer bb) throws IOException {
+        if (out==null) {
+            filled.add(bb);
+            return;
+        }
+        while (bb.hasRemaining()) {
+            out.write(bb);
+        }
+    }
+
+    // String.valueOf semantics of StringBuilder.append
+    private static int maxBytes(String s) {
+        return s==null ? 4 : s.length()*3;
+    }
+
+    private void putUtf8(String s) {
+        if (s==null) {
+            s = "null";
+        }
+        int start = buffer.position();
+        for (int i=0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            if (ch >= 0x80) {
+                buffer.position(start);
+                buffer.put(s.getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            buffer.put((byte)ch);
+        }
+    }
+}
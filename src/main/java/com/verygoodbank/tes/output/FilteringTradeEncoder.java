@@ -0,0 +1,47 @@
+package com.verygoodbank.tes.output;
+
+import java.io.IOException;
+
+import com.verygoodbank.tes.model.Trade;
+
+/**
+ * Passes only trades matching the filter to the encoder, so filtered rows are never serialized.
+ */
+public class FilteringTradeEncoder implements TradeEncoder {
+
+    private final TradeFilter filter;
+    private final TradeEncoder encoder;
+    private long matched = 0;
+
+    public FilteringTradeEncoder(TradeFilter filter, TradeEncoder encoder) {
+        this.filter = filter;
+        this.encoder = encoder;
+    }
+
+    @Override
+    public void header() throws IOException {
+        encoder.header();
+    }
+
+    @Override
+    public void write(Trade trade) throws IOException {
+        if (filter.matches(trade)) {
+            matched++;
+            encoder.write(trade);
+        }
+    }
+
+    @Override
+    public void finish() throws IOException {
+        encoder.finish();
+    }
+
+    @Override
+    public void discard() {
+        encoder.discard();
+    }
+
+    public long getMatched() {
+        return matched;
+    }
+}
@@ -0,0 +1,57 @@
+package com.verygoodbank.tes.output;
+
+import java.util.List;
+
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+
+/**
+ * Encodings of enriched trades offered to callers via Accept header, CSV is the default.
+ */
+public enum OutputFormat {
+    CSV(OutputFormat.CSV_MEDIA_TYPE),
+    ROWS(OutputFormat.ROWS_MEDIA_TYPE),
+    ARROW(OutputFormat.ARROW_MEDIA_TYPE);
+
+    public final static String CSV_MEDIA_TYPE = "text/csv";
+    public final static String ROWS_MEDIA_TYPE = "application/x-tes-rows";
+    public final static String ARROW_MEDIA_TYPE = "application/vnd.apache.arrow.stream";
+
+    private final MediaType mediaType;
+
+    OutputFormat(String mediaType) {
+        this.mediaType = MediaType.parseMediaType(mediaType);
+    }
+
+    public String mediaType() {
+        return mediaType.toString();
+    }
+
+    /**
+     * Format of the highest quality accepted by the caller, the first one in declaration order on ties.
+     * Missing or malformed Accept means CSV, null is returned when no format is acceptable.
+     */
+    public static OutputFormat negotiate(String accept) {
+        if (accept==null || accept.isBlank()) {
+            return CSV;
+        }
+        List<MediaType> accepted;
+        try {
+            accepted = MediaType.parseMediaTypes(accept);
+        }
+        catch (InvalidMediaTypeException e) {
+            return CSV;
+        }
+        OutputFormat best = null;
+        double bestQuality = 0;
+        for (OutputFormat format : values()) {
+            for (MediaType mediaType : accepted) {
+                if (mediaType.includes(format.mediaType) && mediaType.getQualityValue() > bestQuality) {
+                    best = format;
+                    bestQuality = mediaType.getQualityValue();
+                }
+            }
+        }
+        return best;
+    }
+}
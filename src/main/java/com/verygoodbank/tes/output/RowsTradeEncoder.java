@@ -0,0 +1,142 @@
+package com.verygoodbank.tes.output;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+import com.verygoodbank.tes.model.Trade;
+import com.verygoodbank.tes.service.ProductDictionary;
+import com.verygoodbank.tes.service.TradeEnrichmentService;
+
+/**
+ * Compact length-prefixed rows (application/x-tes-rows), numbers are big-endian:
+ * <pre>
+ * stream := "TESR" version:u8 row*
+ * row    := length:varint date:i32(yyyymmdd) price:f64 currencyLength:varint currency productNameLength:varint productName
+ * </pre>
+ * Length is the number of bytes of the row after the length itself, strings are UTF-8, varints are unsigned LEB128.
+ */
+public class RowsTradeEncoder implements TradeEncoder {
+
+    public final static byte[] MAGIC = { 'T', 'E', 'S', 'R' };
+    public final static byte VERSION = 1;
+    private final static int BUFFER_SIZE = 64*1024;
+
+    private final WritableByteChannel out;
+    private final ProductDictionary catalog;
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private byte[] name = new byte[256];
+    private boolean started = false;
+
+    public RowsTradeEncoder(WritableByteChannel out, ProductDictionary catalog) {
+        this.out = out;
+        this.catalog = catalog;
+    }
+
+    @Override
+    public void write(Trade trade) throws IOException {
+        start();
+        byte[] currency = trade.getCurrency().getBytes(StandardCharsets.UTF_8);
+        int nameLength = productName(trade);
+        int length = 4 + 8 + varintSize(currency.length) + currency.length + varintSize(nameLength) + nameLength;
+        ensure(varintSize(length) + length);
+        putVarint(length);
+        buffer.putInt(TradeEncoder.yyyymmdd(trade.getDate()));
+        buffer.putDouble(Double.parseDouble(trade.getPrice()));
+        putVarint(currency.length);
+        buffer.put(currency);
+        putVarint(nameLength);
+        buffer.put(name, 0, nameLength);
+    }
+
+    // UTF-8 of the name in name buffer, catalog names are copied without decoding
+    private int productName(Trade trade) {
+        int index = trade.getProductIndex();
+        if (index!=ProductDictionary.NOT_FOUND) {
+            int length = catalog.nameLength(index);
+            if (name.length < length) {
+                name = new byte[Math.max(length, name.length*2)];
+            }
+            catalog.copyName(index, name, 0);
+            return length;
+        }
+        if (trade.isProductMissing()) {
+            return missingName(trade.getProductId());
+        }
+        byte[] bytes = trade.getProductName().getBytes(StandardCharsets.UTF_8);
+        if (name.length < bytes.length) {
+            name = new byte[Math.max(bytes.length, name.length*2)];
+        }
+        System.arraycopy(bytes, 0, name, 0, bytes.length);
+        return bytes.length;
+    }
+
+    // TXT_ON_MISSING and the id, ASCII ids are copied without encoding
+    private int missingName(String id) {
+        byte[] prefix = TradeEnrichmentService.TXT_ON_MISSING_UTF8;
+        int max = prefix.length + id.length()*3;
+        if (name.length < max) {
+            name = new byte[Math.max(max, name.length*2)];
+        }
+        System.arraycopy(prefix, 0, name, 0, prefix.length);
+        int length = prefix.length;
+        for (int i=0; i < id.length(); i++) {
+            char ch = id.charAt(i);
+            if (ch >= 0x80) {
+                byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+                System.arraycopy(bytes, 0, name, prefix.length, bytes.length);
+                return prefix.length + bytes.length;
+            }
+            name[length++] = (byte)ch;
+        }
+        return length;
+    }
+
+    @Override
+    public void finish() throws IOException {
+        start();
+        flush();
+    }
+
+    private void start() {
+        if (!started) {
+            buffer.put(MAGIC).put(VERSION);
+            started = true;
+        }
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+            if (buffer.capacity() < bytes) {
+                buffer = ByteBuffer.allocate(bytes);
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void putVarint(int value) {
+        while ((value & ~0x7F)!=0) {
+            buffer.put((byte)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte)value);
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F)!=0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
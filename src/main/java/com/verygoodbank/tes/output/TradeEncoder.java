@@ -0,0 +1,47 @@
+package com.verygoodbank.tes.output;
+
+import java.io.IOException;
+
+import com.verygoodbank.tes.model.Trade;
+
+/**
+ * Writes enriched trades in one of the binary output formats. Used by a single thread, trades come in input order.
+ */
+public interface TradeEncoder {
+
+    /**
+     * Called once before the first trade when the input is not empty, CSV writes its header here.
+     */
+    default void header() throws IOException {
+    }
+
+    void write(Trade trade) throws IOException;
+
+    /**
+     * Completes the output, it's called also when there were no trades.
+     */
+    void finish() throws IOException;
+
+    /**
+     * Drops the output of a failed request without writing it, pooled buffers are given back. Does nothing after
+     * finish.
+     */
+    default void discard() {
+    }
+
+    /**
+     * Validated date as yyyymmdd number. Dates in the form accepted by LocalDate (e.g. with sign) are parsed by parts.
+     */
+    static int yyyymmdd(String date) {
+        int value = 0;
+        for (int i=0; i < date.length(); i++) {
+            char ch = date.charAt(i);
+            if (ch < '0' || ch > '9') {
+                return Integer.parseInt(date.substring(0, 4))*10_000 + Integer.parseInt(date.substring(4, 6))*100
+                    + Integer.parseInt(date.substring(6, 8));
+            }
+            value = value*10 + (ch - '0');
+        }
+        return value;
+    }
+}
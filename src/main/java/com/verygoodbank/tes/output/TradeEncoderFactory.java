@@ -0,0 +1,72 @@
+package com.verygoodbank.tes.output;
+
+import java.nio.channels.WritableByteChannel;
+import java.util.Set;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.verygoodbank.tes.service.ProductDictionary;
+
+import jakarta.annotation.PostConstruct;
+
+@Component
+public class TradeEncoderFactory {
+
+    @Autowired
+    private BufferArena bufferArena;
+    @Value("${tes.output.arrow-batch-rows:65536}")
+    private int arrowBatchRows;
+    @Value("${tes.output.buffer-bytes:262144}")
+    private int bufferBytes;
+    @Value("${tes.output.max-pooled-buffers:64}")
+    private int maxPooledBuffers;
+    @Value("${tes.aggregate.max-groups:100000}")
+    private int maxGroups;
+    private BufferPool bufferPool;
+
+    @PostConstruct
+    public void init() {
+        bufferPool = bufferArena.newPool(Math.max(4096, bufferBytes), maxPooledBuffers, true);
+    }
+
+    /**
+     * Encoder of enriched trades in the format.
+     */
+    public TradeEncoder newEncoder(OutputFormat format, WritableByteChannel out, ProductDictionary catalog) {
+        switch (format) {
+            case CSV:
+                return newCsvEncoder(out, catalog);
+            case ROWS:
+                return new RowsTradeEncoder(out, catalog);
+            case ARROW:
+                return new ArrowTradeEncoder(out, catalog, Math.max(1, arrowBatchRows));
+            default:
+                throw new IllegalArgumentException("No encoder for "+format);
+        }
+    }
+
+    /**
+     * Encoder of trades matching the filter, aggregates grouped by groupBy (CSV) are written instead of trades
+     * when groupBy is not null.
+     */
+    public TradeEncoder newEncoder(OutputFormat format, WritableByteChannel out, ProductDictionary catalog,
+        TradeFilter filter, Set<AggregatingTradeEncoder.GroupBy> groupBy)
+    {
+        TradeEncoder encoder = groupBy!=null ? new AggregatingTradeEncoder(out, catalog, groupBy, maxGroups)
+            : newEncoder(format, out, catalog);
+        return filter.isEmpty() ? encoder : new FilteringTradeEncoder(filter.resolve(catalog), encoder);
+    }
+
+    /**
+     * CSV encoder, without out (null) the output is kept until CsvTradeEncoder.drainTo.
+     */
+    public CsvTradeEncoder newCsvEncoder(WritableByteChannel out, ProductDictionary catalog) {
+        return new CsvTradeEncoder(out, catalog, bufferPool);
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+}
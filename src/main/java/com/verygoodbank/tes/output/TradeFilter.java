@@ -0,0 +1,115 @@
+package com.verygoodbank.tes.output;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.verygoodbank.tes.model.Trade;
+import com.verygoodbank.tes.service.ProductDictionary;
+
+/**
+ * Selection of enriched trades by date range (yyyymmdd, inclusive), currencies and product ids.
+ * Missing criteria match any trade. Product ids of a filter resolved against the catalog match trades of the same
+ * product, whatever the form of their ids.
+ */
+public class TradeFilter {
+
+    public final static TradeFilter NONE = new TradeFilter(0, Integer.MAX_VALUE, null, null, null);
+
+    private final int dateFrom;
+    private final int dateTo;
+    // null means any
+    private final Set<String> currencies;
+    private final Set<String> productIds;
+    // sorted catalog indexes of productIds, null when not resolved
+    private final int[] productIndexes;
+
+    private TradeFilter(int dateFrom, int dateTo, Set<String> currencies, Set<String> productIds,
+        int[] productIndexes)
+    {
+        this.dateFrom = dateFrom;
+        this.dateTo = dateTo;
+        this.currencies = currencies;
+        this.productIds = productIds;
+        this.productIndexes = productIndexes;
+    }
+
+    /**
+     * Filter of request parameters, any of them may be null. Currencies and product ids are comma separated.
+     * Throws IllegalArgumentException when a date is not yyyymmdd.
+     */
+    public static TradeFilter of(String dateFrom, String dateTo, String currencies, String productIds) {
+        TradeFilter filter = new TradeFilter(date(dateFrom, 0), date(dateTo, Integer.MAX_VALUE), values(currencies),
+            values(productIds), null);
+        return filter.isEmpty() ? NONE : filter;
+    }
+
+    /**
+     * Filter matching product ids by their index in the catalog trades are enriched with.
+     */
+    public TradeFilter resolve(ProductDictionary catalog) {
+        if (productIds==null) {
+            return this;
+        }
+        int[] indexes = productIds.stream().mapToInt(catalog::indexOf)
+            .filter(index -> index!=ProductDictionary.NOT_FOUND).sorted().distinct().toArray();
+        return new TradeFilter(dateFrom, dateTo, currencies, productIds, indexes);
+    }
+
+    private static int date(String date, int missing) {
+        if (date==null || date.isBlank()) {
+            return missing;
+        }
+        if (!Trade.validateDate(date.trim())) {
+            throw new IllegalArgumentException("Invalid date, expected yyyymmdd: "+date);
+        }
+        return TradeEncoder.yyyymmdd(date.trim());
+    }
+
+    private static Set<String> values(String list) {
+        if (list==null || list.isBlank()) {
+            return null;
+        }
+        // sorted, so the description of equal filters is the same
+        Set<String> values = new TreeSet<>();
+        for (String value : list.split(",")) {
+            if (!value.isBlank()) {
+                values.add(value.trim());
+            }
+        }
+        return values.isEmpty() ? null : values;
+    }
+
+    public boolean isEmpty() {
+        return dateFrom==0 && dateTo==Integer.MAX_VALUE && currencies==null && productIds==null;
+    }
+
+    public boolean matches(Trade trade) {
+        if (dateFrom!=0 || dateTo!=Integer.MAX_VALUE) {
+            int date = TradeEncoder.yyyymmdd(trade.getDate());
+            if (date < dateFrom || date > dateTo) {
+                return false;
+            }
+        }
+        return (currencies==null || currencies.contains(trade.getCurrency()))
+            && (productIds==null || matchesProduct(trade));
+    }
+
+    private boolean matchesProduct(Trade trade) {
+        int index = trade.getProductIndex();
+        if (productIndexes!=null && index!=ProductDictionary.NOT_FOUND) {
+            return Arrays.binarySearch(productIndexes, index) >= 0;
+        }
+        // products missing from the catalog are matched by their ids as they are
+        return productIds.contains(trade.getProductId());
+    }
+
+    /**
+     * Canonical form, e.g. to tell cached results of different filters apart.
+     */
+    @Override
+    public String toString() {
+        return "date="+dateFrom+"-"+dateTo+";currency="+(currencies!=null ? String.join(",", currencies) : "")
+            +";product="+(productIds!=null ? String.join(",", productIds) : "");
+    }
+}
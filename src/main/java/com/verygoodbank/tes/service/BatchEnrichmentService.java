@@ -0,0 +1,336 @@
+package com.verygoodbank.tes.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.stereotype.Service;
+
+import com.verygoodbank.tes.csv.CsvTokenizer;
+import com.verygoodbank.tes.output.BufferArena;
+import com.verygoodbank.tes.output.CsvTradeEncoder;
+import com.verygoodbank.tes.output.TradeEncoderFactory;
+import com.verygoodbank.tes.store.ResultStore;
+import com.verygoodbank.tes.store.ResultStoreFactory;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Batch mode: many files of a single request are enriched concurrently on a shared pool of tes.batch.threads
+ * and written to a ZIP stream in the order they finish, followed by manifest.csv with counts of every file.
+ * At most tes.batch.max-in-flight files of a request are enriched or waiting to be written, each one in
+ * a result store which spills above its memory threshold, so memory doesn't depend on the number of files.
+ * Files are enriched in quanta of the bulk lane of LaneScheduler.
+ */
+@Service
+public class BatchEnrichmentService {
+
+    private final static Logger logger = LoggerFactory.getLogger(BatchEnrichmentService.class);
+    public final static String ENDPOINT_BATCH = "enrich-batch";
+    public final static String MANIFEST_ENTRY = "manifest.csv";
+    public final static String MANIFEST_HEADER = "index,file,entry,records,invalid,rejects_file,error\r\n";
+
+    @Autowired
+    private TradeEnrichmentService tradeEnrichmentService;
+    @Autowired
+    private ResultStoreFactory resultStoreFactory;
+    @Autowired
+    private RejectReporter rejectReporter;
+    @Autowired
+    private TradeEncoderFactory tradeEncoderFactory;
+    @Autowired
+    private EnrichmentMetrics metrics;
+    @Autowired
+    private BufferArena bufferArena;
+    @Autowired
+    private LaneScheduler laneScheduler;
+    @Value("${tes.batch.threads:4}")
+    private int threads;
+    @Value("${tes.batch.max-in-flight:4}")
+    private int maxInFlight;
+    private ExecutorService executor;
+
+    /**
+     * File of the batch, name is the one reported in the manifest.
+     */
+    public record Part(String name, InputStreamSource source) {}
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger sequence = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "enrich-batch-"+sequence.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Enriches the parts and writes them to the ZIP stream as they finish, the manifest is the last entry.
+     * A failed file has no entry, its error is in the manifest. The output is finished, but not closed.
+     */
+    public void enrich(List<Part> parts, OutputStream output, Totals totals) throws IOException {
+        ProductDictionary dictionary = tradeEnrichmentService.snapshot();
+        CompletionService<FileResult> completion = new ExecutorCompletionService<>(executor);
+        FileResult[] results = new FileResult[parts.size()];
+        Set<String> entries = new HashSet<>();
+        Batch batch = new Batch();
+        int submitted = 0;
+        int pending = 0;
+        ZipOutputStream zip = new ZipOutputStream(output);
+        zip.setLevel(resultStoreFactory.getCompressionLevel());
+        try {
+            while (submitted < parts.size() || pending > 0) {
+                while (submitted < parts.size() && pending < Math.max(1, maxInFlight)) {
+                    Part part = parts.get(submitted);
+                    int index = submitted++;
+                    completion.submit(() -> enrichFile(part, index, dictionary, batch));
+                    pending++;
+                }
+                FileResult result = completion.take().get();
+                pending--;
+                results[result.index] = result;
+                write(result, zip, entries);
+                totals.add(result);
+            }
+            zip.putNextEntry(new ZipEntry(MANIFEST_ENTRY));
+            zip.write(manifest(results).getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+            zip.finish();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while files of the batch were enriched");
+        }
+        catch (ExecutionException e) {
+            // enrichFile reports its failures in the result
+            throw new IOException("Batch file failed", e.getCause());
+        }
+        finally {
+            if (pending > 0) {
+                discard(completion, pending, batch);
+            }
+        }
+    }
+
+    private FileResult enrichFile(Part part, int index, ProductDictionary dictionary, Batch batch) {
+        FileResult result = new FileResult(index, part.name());
+        long startTime = System.currentTimeMillis();
+        ResultStore store = resultStoreFactory.newStore(false);
+        ByteBuffer readBuffer = null;
+        try (InputStream in = part.source().getInputStream();
+            RejectReporter.Rejects rejects = rejectReporter.newRejects();
+            EnrichmentMetrics.Recorder recorder = metrics.recorder(ENDPOINT_BATCH))
+        {
+            CsvTradeEncoder encoder = tradeEncoderFactory.newCsvEncoder(store, dictionary);
+            readBuffer = bufferArena.getInputPool().acquire();
+            CsvTokenizer tokenizer;
+            long recordsCount = 0;
+            try (LaneScheduler.Task task = laneScheduler.start(LaneScheduler.Lane.BULK)) {
+                // the slot is given up while the part is awaited
+                tokenizer = new CsvTokenizer(task.reading(in), readBuffer.array(),
+                    tradeEnrichmentService.getMaxLineBytes());
+                while (tokenizer.nextLine()) {
+                    if (batch.aborted) {
+                        throw new IOException("Batch aborted");
+                    }
+                    if (++recordsCount==1) {
+                        // Always output the csv header.
+                        encoder.header();
+                    }
+                    tradeEnrichmentService.processSingleRecord(tokenizer, recordsCount, rejects, encoder, startTime,
+                        dictionary, recorder);
+                    task.checkpoint(tokenizer.getBytesRead());
+                }
+                encoder.finish();
+                store.finish();
+            }
+            finally {
+                // buffers of a failed file, nothing after finish
+                encoder.discard();
+            }
+            rejects.flush();
+            recorder.bytesIn(tokenizer.getBytesRead());
+            recorder.bytesOut(store.length());
+            result.records = recordsCount;
+            result.invalid = rejects.getCount();
+            result.rejectsFile = rejects.getPath();
+            result.store = store;
+        }
+        catch (Exception e) {
+            logger.error("Batch file {} failed: {}", part.name(), e.getMessage());
+            closeQuietly(store);
+            result.error = e.getMessage()!=null ? e.getMessage() : e.getClass().getSimpleName();
+        }
+        finally {
+            if (readBuffer!=null) {
+                bufferArena.getInputPool().release(readBuffer);
+            }
+        }
+        return result;
+    }
+
+    private void write(FileResult result, ZipOutputStream zip, Set<String> entries) throws IOException {
+        if (result.store==null) {
+            return;
+        }
+        try (ResultStore store = result.store) {
+            String entry = baseName(result.name);
+            if (!entries.add(entry)) {
+                entry = result.index+"-"+entry;
+                entries.add(entry);
+            }
+            result.entry = entry;
+            zip.putNextEntry(new ZipEntry(entry));
+            try (InputStream in = store.newInputStream()) {
+                in.transferTo(zip);
+            }
+            zip.closeEntry();
+            // the client receives every file as soon as it's enriched
+            zip.flush();
+        }
+        finally {
+            result.store = null;
+        }
+    }
+
+    /**
+     * Stops running files and discards results not written yet.
+     */
+    private void discard(CompletionService<FileResult> completion, int pending, Batch batch) {
+        batch.aborted = true;
+        try {
+            for (int i=0; i < pending; i++) {
+                FileResult result = completion.take().get();
+                if (result.store!=null) {
+                    closeQuietly(result.store);
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e) {
+            logger.warn("Discarded batch file failed: {}", e.getCause().getMessage());
+        }
+    }
+
+    static String manifest(FileResult[] results) {
+        StringBuilder sb = new StringBuilder(MANIFEST_HEADER);
+        for (FileResult r : results) {
+            sb.append(r.index).append(',')
+                .append(quote(r.name)).append(',')
+                .append(quote(r.entry)).append(',')
+                .append(r.records).append(',')
+                .append(r.invalid).append(',')
+                .append(quote(r.rejectsFile!=null ? r.rejectsFile.getFileName().toString() : null)).append(',')
+                .append(quote(r.error)).append("\r\n");
+        }
+        return sb.toString();
+    }
+
+    static String quote(String value) {
+        if (value==null) {
+            return "";
+        }
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\r') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return "\""+value.replace("\"", "\"\"")+"\"";
+    }
+
+    static String baseName(String name) {
+        String base = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1);
+        return base.isBlank() ? "file.csv" : base;
+    }
+
+    private static void closeQuietly(ResultStore store) {
+        try {
+            store.close();
+        }
+        catch (IOException e) {
+            logger.warn("Can't discard result store: "+e.getMessage());
+        }
+    }
+
+    private static class Batch {
+        volatile boolean aborted;
+    }
+
+    static class FileResult {
+        final int index;
+        final String name;
+        String entry;
+        long records;
+        long invalid;
+        Path rejectsFile;
+        String error;
+        // enriched content until it's written to the ZIP stream
+        ResultStore store;
+
+        FileResult(int index, String name) {
+            this.index = index;
+            this.name = name;
+        }
+    }
+
+    /**
+     * Counts of the whole batch.
+     */
+    public static class Totals {
+        private int files;
+        private int failed;
+        private long records;
+        private long rejected;
+
+        private void add(FileResult result) {
+            files++;
+            if (result.error!=null) {
+                failed++;
+            }
+            records += result.records;
+            rejected += result.invalid;
+        }
+
+        public int getFiles() {
+            return files;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        public long getRecords() {
+            return records;
+        }
+
+        public long getRejected() {
+            return rejected;
+        }
+    }
+}
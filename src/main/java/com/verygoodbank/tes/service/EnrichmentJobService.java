@@ -0,0 +1,371 @@
+package com.verygoodbank.tes.service;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.verygoodbank.tes.store.ResultStore;
+import com.verygoodbank.tes.store.ResultStoreFactory;
+import com.verygoodbank.tes.store.TempStoreManager;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Enrichment jobs: the upload is spooled to a temporary file, enriched in background by
+ * ParallelEnrichmentPipeline and the result is kept for tes.jobs.ttl-seconds after the job ends,
+ * so it can be downloaded (also in ranges) without holding the connection for the whole run.
+ */
+@Service
+public class EnrichmentJobService {
+
+    private final static Logger logger = LoggerFactory.getLogger(EnrichmentJobService.class);
+    public final static String ENDPOINT_JOBS = "jobs";
+
+    public enum State { QUEUED, RUNNING, DONE, FAILED }
+
+    @Autowired
+    private ParallelEnrichmentPipeline parallelEnrichmentPipeline;
+    @Autowired
+    private TradeEnrichmentService tradeEnrichmentService;
+    @Autowired
+    private ResultStoreFactory resultStoreFactory;
+    @Autowired
+    private RejectReporter rejectReporter;
+    @Value("${tes.jobs.threads:2}")
+    private int threads;
+    @Value("${tes.jobs.ttl-seconds:3600}")
+    private long ttlSeconds;
+    // queued, running and retained jobs
+    @Value("${tes.jobs.max-jobs:256}")
+    private int maxJobs;
+    private final ConcurrentHashMap<String,Job> jobs = new ConcurrentHashMap<>();
+    private ExecutorService executor;
+    private ScheduledExecutorService sweeper;
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger sequence = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "enrich-job-"+sequence.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "job-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1, Math.min(ttlSeconds, 60));
+        sweeper.scheduleWithFixedDelay(this::expire, period, period, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+        sweeper.shutdownNow();
+        jobs.values().forEach(Job::discard);
+    }
+
+    /**
+     * Spools the input and queues the job, returns null when there are too many jobs.
+     * The job holds disk reservation (may be null) until it's discarded, it's resized to the input size.
+     */
+    public Job submit(InputStream in, int parallelism, TempStoreManager.Reservation reservation) throws IOException {
+        if (jobs.size() >= maxJobs) {
+            closeQuietly(reservation);
+            return null;
+        }
+        Path input = resultStoreFactory.newSpillPath();
+        long size;
+        try {
+            size = Files.copy(in, input, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (IOException e) {
+            Files.deleteIfExists(input);
+            closeQuietly(reservation);
+            throw e;
+        }
+        if (reservation!=null) {
+            reservation.resize(size);
+        }
+        Job job = new Job(UUID.randomUUID().toString(), input, size, parallelism, reservation);
+        jobs.put(job.id, job);
+        executor.execute(() -> run(job));
+        logger.info("Job {} queued, {} bytes", job.id, size);
+        return job;
+    }
+
+    public Job get(String id) {
+        return jobs.get(id);
+    }
+
+    /**
+     * Removes the job, a running job is discarded when it ends. Returns false for unknown job.
+     */
+    public boolean delete(String id) {
+        Job job = jobs.remove(id);
+        if (job==null) {
+            return false;
+        }
+        job.discard();
+        return true;
+    }
+
+    public int getJobCount() {
+        return jobs.size();
+    }
+
+    private void run(Job job) {
+        if (job.discarded) {
+            deleteQuietly(job.input);
+            return;
+        }
+        job.startedTime = System.currentTimeMillis();
+        job.state = State.RUNNING;
+        ProductDictionary dictionary = tradeEnrichmentService.snapshot();
+        job.catalogVersion = dictionary.getVersion();
+        // never compressed, byte ranges of the result are ranges of the CSV
+        ResultStore store = resultStoreFactory.newStore(false);
+        job.rejects = rejectReporter.newRejects();
+        try (InputStream in = new ProgressInputStream(Files.newInputStream(job.input), job);
+            RejectReporter.Rejects rejects = job.rejects)
+        {
+            job.records = parallelEnrichmentPipeline.enrich(in, store, job.parallelism, rejects, job.startedTime,
+                dictionary, ENDPOINT_JOBS, records -> job.records = records);
+            store.finish();
+            rejects.flush();
+            job.complete(store);
+        }
+        catch (Exception e) {
+            logger.error("Job "+job.id+" failed. Current records count="+job.records, e);
+            closeQuietly(store);
+            job.fail(e.getMessage()!=null ? e.getMessage() : e.getClass().getSimpleName());
+        }
+        finally {
+            deleteQuietly(job.input);
+            logger.info("Job {} processed {} records in {} ms, invalid count: {}", job.id, job.records,
+                job.finishedTime - job.startedTime, job.getInvalidCount());
+        }
+    }
+
+    private void expire() {
+        long now = System.currentTimeMillis();
+        jobs.values().removeIf(job -> {
+            if (job.getExpiresTime() > 0 && job.getExpiresTime() <= now) {
+                logger.info("Job {} expired", job.id);
+                job.discard();
+                return true;
+            }
+            return false;
+        });
+    }
+
+    private static void closeQuietly(ResultStore store) {
+        try {
+            store.close();
+        }
+        catch (IOException e) {
+            logger.warn("Can't discard result store: "+e.getMessage());
+        }
+    }
+
+    private static void closeQuietly(TempStoreManager.Reservation reservation) {
+        if (reservation!=null) {
+            reservation.close();
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        }
+        catch (IOException e) {
+            logger.warn("Can't delete job input {}: {}", path, e.getMessage());
+        }
+    }
+
+    public class Job {
+        private final String id;
+        private final Path input;
+        private final long inputBytes;
+        private final int parallelism;
+        private final TempStoreManager.Reservation reservation;
+        private final long createdTime = System.currentTimeMillis();
+        // written by the job thread, read by status requests
+        private volatile State state = State.QUEUED;
+        private volatile long bytesRead;
+        private volatile long records;
+        private volatile long catalogVersion;
+        private volatile long startedTime;
+        private volatile long finishedTime;
+        private volatile String error;
+        private volatile RejectReporter.Rejects rejects;
+        private ResultStore store;
+        private int readers;
+        private volatile boolean discarded;
+
+        private Job(String id, Path input, long inputBytes, int parallelism,
+            TempStoreManager.Reservation reservation)
+        {
+            this.id = id;
+            this.input = input;
+            this.inputBytes = inputBytes;
+            this.parallelism = parallelism;
+            this.reservation = reservation;
+        }
+
+        private synchronized void complete(ResultStore result) {
+            store = result;
+            finishedTime = System.currentTimeMillis();
+            state = State.DONE;
+            if (discarded) {
+                closeQuietly(store);
+            }
+        }
+
+        private synchronized void fail(String message) {
+            error = message;
+            finishedTime = System.currentTimeMillis();
+            state = State.FAILED;
+        }
+
+        /**
+         * Result of a finished job or null, to be released when it's sent. Result isn't discarded while it's sent.
+         */
+        public synchronized ResultStore acquireResult() {
+            if (store==null || discarded) {
+                return null;
+            }
+            readers++;
+            return store;
+        }
+
+        public synchronized void releaseResult() {
+            if (--readers==0 && discarded) {
+                closeQuietly(store);
+            }
+        }
+
+        private synchronized void discard() {
+            discarded = true;
+            closeQuietly(reservation);
+            if (store!=null && readers==0) {
+                closeQuietly(store);
+            }
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public int getParallelism() {
+            return parallelism;
+        }
+
+        public long getInputBytes() {
+            return inputBytes;
+        }
+
+        public long getBytesRead() {
+            return bytesRead;
+        }
+
+        public long getRecords() {
+            return records;
+        }
+
+        public long getInvalidCount() {
+            RejectReporter.Rejects r = rejects;
+            return r!=null ? r.getCount() : 0;
+        }
+
+        /**
+         * Name of rejects sidecar file or null.
+         */
+        public String getRejectsFile() {
+            RejectReporter.Rejects r = rejects;
+            return r!=null && r.getPath()!=null ? r.getPath().getFileName().toString() : null;
+        }
+
+        public synchronized long getResultBytes() {
+            return store!=null ? store.length() : -1;
+        }
+
+        public long getCatalogVersion() {
+            return catalogVersion;
+        }
+
+        public long getCreatedTime() {
+            return createdTime;
+        }
+
+        public long getStartedTime() {
+            return startedTime;
+        }
+
+        public long getFinishedTime() {
+            return finishedTime;
+        }
+
+        /**
+         * Time when the job and its result are discarded, 0 while the job runs.
+         */
+        public long getExpiresTime() {
+            long finished = finishedTime;
+            return finished > 0 ? finished + ttlSeconds*1000 : 0;
+        }
+
+        public String getError() {
+            return error;
+        }
+    }
+
+    private static class ProgressInputStream extends FilterInputStream {
+        private final Job job;
+        private long count = 0;
+
+        ProgressInputStream(InputStream in, Job job) {
+            super(in);
+            this.job = job;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                job.bytesRead = ++count;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                job.bytesRead = count += n;
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.verygoodbank.tes.service;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.verygoodbank.tes.model.ValidationException;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Enrichment counters and stage timers, tagged with endpoint.
+ * Hot path records to a per-request (or per-chunk) Recorder with plain fields, which is flushed
+ * to the registry every FLUSH_RECORDS records and when closed. Per-record stages are timed only
+ * for every SAMPLE_RATE-th record, so the remaining records pay a single branch.
+ */
+@Component
+public class EnrichmentMetrics {
+
+    public enum Stage {
+        PARSE("parse"), ENRICH("enrich"), SERIALIZE("serialize"), STORE_WRITE("store.write"),
+        STORE_FORCE("store.force"), TRANSFER("transfer");
+
+        private final String tag;
+
+        Stage(String tag) {
+            this.tag = tag;
+        }
+    }
+
+    public final static int SAMPLE_RATE = 64;
+    private final static long FLUSH_RECORDS = 64*1024;
+    private final static ValidationException.Reason[] REASONS = ValidationException.Reason.values();
+    private final static Stage[] STAGES = Stage.values();
+
+    @Autowired
+    private MeterRegistry registry;
+    private final ConcurrentHashMap<String,EndpointMeters> meters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<LaneScheduler.Lane,Timer> laneTimers = new ConcurrentHashMap<>();
+
+    /**
+     * Recorder for a single thread, to be closed when the request (chunk) is done.
+     */
+    public Recorder recorder(String endpoint) {
+        return new Recorder(meters(endpoint));
+    }
+
+    /**
+     * Records stage which runs once per request, like transfer of the response.
+     */
+    public void record(String endpoint, Stage stage, long nanos) {
+        meters(endpoint).stages[stage.ordinal()].record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Records time from admission of a request of the lane until its response was sent.
+     */
+    public void recordRequest(LaneScheduler.Lane lane, long nanos) {
+        laneTimers.computeIfAbsent(lane, l -> Timer.builder("tes.lanes.duration")
+            .description("Duration of admitted requests from admission until the response is sent")
+            .tag("lane", l.tag()).register(registry)).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    private EndpointMeters meters(String endpoint) {
+        return meters.computeIfAbsent(endpoint, e -> new EndpointMeters(registry, e));
+    }
+
+    private static class EndpointMeters {
+        final Counter records;
+        final Counter bytesIn;
+        final Counter bytesOut;
+        final Counter[] invalid = new Counter[REASONS.length];
+        final Timer[] stages = new Timer[STAGES.length];
+
+        EndpointMeters(MeterRegistry registry, String endpoint) {
+            records = Counter.builder("tes.enrich.records").description("Processed records")
+                .tag("endpoint", endpoint).register(registry);
+            bytesIn = Counter.builder("tes.enrich.bytes").baseUnit("bytes").description("Processed request bytes")
+                .tag("endpoint", endpoint).tag("direction", "in").register(registry);
+            bytesOut = Counter.builder("tes.enrich.bytes").baseUnit("bytes").description("Enriched response bytes")
+                .tag("endpoint", endpoint).tag("direction", "out").register(registry);
+            for (ValidationException.Reason reason : REASONS) {
+                invalid[reason.ordinal()] = Counter.builder("tes.enrich.invalid").description("Invalid records")
+                    .tag("endpoint", endpoint).tag("reason", reason.name().toLowerCase()).register(registry);
+            }
+            for (Stage stage : STAGES) {
+                stages[stage.ordinal()] = Timer.builder("tes.enrich.stage")
+                    .description("Duration of enrichment stage, sampled per record for parse/enrich/serialize")
+                    .tag("endpoint", endpoint).tag("stage", stage.tag).register(registry);
+            }
+        }
+    }
+
+    public static class Recorder implements AutoCloseable {
+        private final EndpointMeters meters;
+        private long records = 0;
+        private long flushedRecords = 0;
+        private long bytesIn = 0;
+        private long bytesOut = 0;
+        private final long[] invalid = new long[REASONS.length];
+
+        private Recorder(EndpointMeters meters) {
+            this.meters = meters;
+        }
+
+        /**
+         * Counts the record, returns start time when its stages are sampled, 0 otherwise.
+         */
+        public long startRecord() {
+            if (++records % SAMPLE_RATE!=0) {
+                return 0;
+            }
+            if (records - flushedRecords >= FLUSH_RECORDS) {
+                flush();
+            }
+            return System.nanoTime();
+        }
+
+        /**
+         * Ends stage started at start (0 when not sampled), returns start of the next stage.
+         */
+        public long stage(Stage stage, long start) {
+            if (start==0) {
+                return 0;
+            }
+            long now = System.nanoTime();
+            meters.stages[stage.ordinal()].record(now - start, TimeUnit.NANOSECONDS);
+            return now;
+        }
+
+        public void record(Stage stage, long nanos) {
+            meters.stages[stage.ordinal()].record(nanos, TimeUnit.NANOSECONDS);
+        }
+
+        public void invalid(ValidationException.Reason reason) {
+            invalid[reason.ordinal()]++;
+        }
+
+        public void bytesIn(long bytes) {
+            bytesIn += bytes;
+        }
+
+        public void bytesOut(long bytes) {
+            bytesOut += bytes;
+        }
+
+        public void flush() {
+            meters.records.increment(records - flushedRecords);
+            flushedRecords = records;
+            meters.bytesIn.increment(bytesIn);
+            meters.bytesOut.increment(bytesOut);
+            bytesIn = bytesOut = 0;
+            for (int i=0; i < invalid.length; i++) {
+                if (invalid[i] > 0) {
+                    meters.invalid[i].increment(invalid[i]);
+                    invalid[i] = 0;
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            flush();
+        }
+    }
+}
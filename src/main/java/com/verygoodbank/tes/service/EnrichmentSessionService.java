@@ -0,0 +1,441 @@
+package com.verygoodbank.tes.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.verygoodbank.tes.csv.CsvTokenizer;
+import com.verygoodbank.tes.output.BufferArena;
+import com.verygoodbank.tes.output.CsvTradeEncoder;
+import com.verygoodbank.tes.output.TradeEncoderFactory;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Append sessions: batches of CSV lines posted over time are enriched and appended to the session result,
+ * which can be read from any offset meanwhile. Line numbers of rejects continue across batches.
+ * Every session is a directory in tes.sessions.dir, a batch is committed by replacing session.properties
+ * with the new result length, so after restart sessions are recovered up to their last committed batch.
+ */
+@Service
+public class EnrichmentSessionService {
+
+    private final static Logger logger = LoggerFactory.getLogger(EnrichmentSessionService.class);
+    public final static String ENDPOINT_SESSIONS = "sessions";
+    private final static String RESULT_FILE = "result.csv";
+    private final static String STATE_FILE = "session.properties";
+
+    @Autowired
+    private TradeEnrichmentService tradeEnrichmentService;
+    @Autowired
+    private TradeEncoderFactory tradeEncoderFactory;
+    @Autowired
+    private BufferArena bufferArena;
+    @Autowired
+    private LaneScheduler laneScheduler;
+    @Autowired
+    private RejectReporter rejectReporter;
+    @Autowired
+    private EnrichmentMetrics metrics;
+    // Empty means trade-enrichment-sessions in java.io.tmpdir
+    @Value("${tes.sessions.dir:}")
+    private String dirProperty;
+    // sessions without batches or reads for this long are deleted
+    @Value("${tes.sessions.ttl-seconds:86400}")
+    private long ttlSeconds;
+    @Value("${tes.sessions.max-sessions:256}")
+    private int maxSessions;
+    // fsync result and state of every batch before it's acknowledged
+    @Value("${tes.sessions.force:true}")
+    private boolean force;
+    private Path dir;
+    private final ConcurrentHashMap<String,Session> sessions = new ConcurrentHashMap<>();
+    // sessions being created, counted against max-sessions, guarded by sessions
+    private int creating;
+    private ScheduledExecutorService sweeper;
+
+    @PostConstruct
+    public void init() throws IOException {
+        dir = Files.createDirectories(dirProperty.isBlank()
+            ? Path.of(System.getProperty("java.io.tmpdir"), "trade-enrichment-sessions")
+            : Path.of(dirProperty).toAbsolutePath());
+        recover();
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "session-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1, Math.min(ttlSeconds, 60));
+        sweeper.scheduleWithFixedDelay(this::expire, period, period, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        // sessions stay on disk for the next start
+        sweeper.shutdownNow();
+    }
+
+    private void recover() {
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(dir, Files::isDirectory)) {
+            for (Path path : dirs) {
+                try {
+                    Session session = new Session(path.getFileName().toString(), path);
+                    session.load();
+                    sessions.put(session.id, session);
+                }
+                catch (IOException | RuntimeException e) {
+                    logger.warn("Can't recover session {}: {}", path, e.getMessage());
+                }
+            }
+        }
+        catch (IOException e) {
+            logger.warn("Can't list sessions in {}: {}", dir, e.getMessage());
+        }
+        logger.info("Session directory {}, {} sessions recovered", dir, sessions.size());
+    }
+
+    /**
+     * Creates empty session, returns null when there are too many sessions.
+     */
+    public Session create() throws IOException {
+        // the slot is taken before the files are written, so concurrent creates don't exceed the limit
+        synchronized (sessions) {
+            if (sessions.size() + creating >= maxSessions) {
+                return null;
+            }
+            creating++;
+        }
+        try {
+            String id = UUID.randomUUID().toString();
+            Session session = new Session(id, Files.createDirectory(dir.resolve(id)));
+            Files.createFile(session.path.resolve(RESULT_FILE));
+            session.commit(0, 0, 0, 0, 0, session.createdTime);
+            synchronized (sessions) {
+                sessions.put(id, session);
+                creating--;
+            }
+            logger.info("Session {} created", id);
+            return session;
+        }
+        catch (IOException | RuntimeException e) {
+            synchronized (sessions) {
+                creating--;
+            }
+            throw e;
+        }
+    }
+
+    public Session get(String id) {
+        return sessions.get(id);
+    }
+
+    /**
+     * Removes the session without waiting for its running batch, its files are deleted when the batch and reads end.
+     * Returns false for unknown session.
+     */
+    public boolean delete(String id) {
+        Session session = sessions.remove(id);
+        if (session==null) {
+            return false;
+        }
+        session.discard();
+        return true;
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    private void expire() {
+        long now = System.currentTimeMillis();
+        for (Session session : sessions.values()) {
+            // discard doesn't wait for a running batch, the batch deletes the files when it ends
+            if (session.getExpiresTime() <= now && sessions.remove(session.id, session)) {
+                logger.info("Session {} expired", session.id);
+                session.discard();
+            }
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        try (Stream<Path> files = Files.walk(path)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(file);
+            }
+        }
+        catch (IOException e) {
+            logger.warn("Can't delete session {}: {}", path, e.getMessage());
+        }
+    }
+
+    /**
+     * Outcome of one batch, line numbers are numbers within the session.
+     */
+    public record Batch(long firstLine, long lines, long invalid, String rejectsFile, long catalogVersion) {}
+
+    public class Session {
+        private final String id;
+        private final Path path;
+        // batches are appended one at a time, reads don't wait for them
+        private final Object appendLock = new Object();
+        private volatile long createdTime = System.currentTimeMillis();
+        // committed state, written under appendLock
+        private volatile long lines;
+        private volatile long invalid;
+        private volatile long resultBytes;
+        private volatile long batches;
+        private volatile long catalogVersion;
+        private volatile long updatedTime = createdTime;
+        private int readers;
+        private boolean appending;
+        private boolean discarded;
+
+        private Session(String id, Path path) {
+            this.id = id;
+            this.path = path;
+        }
+
+        /**
+         * Enriches the batch in quanta of the lane and appends it to the result. A batch is appended whole or not
+         * at all, returns null when the session was deleted meanwhile.
+         */
+        public Batch append(InputStream in, LaneScheduler.Lane lane) throws IOException {
+            synchronized (appendLock) {
+                synchronized (this) {
+                    if (discarded) {
+                        return null;
+                    }
+                    appending = true;
+                }
+                try {
+                    return appendBatch(in, lane);
+                }
+                finally {
+                    boolean delete;
+                    synchronized (this) {
+                        appending = false;
+                        delete = discarded && readers==0;
+                    }
+                    if (delete) {
+                        // discarded while the batch was running
+                        deleteQuietly(path);
+                    }
+                }
+            }
+        }
+
+        private Batch appendBatch(InputStream in, LaneScheduler.Lane lane) throws IOException {
+            long startTime = System.currentTimeMillis();
+            ProductDictionary dictionary = tradeEnrichmentService.snapshot();
+            long line = lines;
+            long firstLine = line + 1;
+            try (FileChannel channel = FileChannel.open(path.resolve(RESULT_FILE), StandardOpenOption.WRITE);
+                RejectReporter.Rejects rejects = rejectReporter.newRejects();
+                EnrichmentMetrics.Recorder recorder = metrics.recorder(ENDPOINT_SESSIONS))
+            {
+                channel.position(resultBytes);
+                CsvTradeEncoder encoder = tradeEncoderFactory.newCsvEncoder(channel, dictionary);
+                ByteBuffer readBuffer = bufferArena.getInputPool().acquire();
+                CsvTokenizer tokenizer;
+                try (LaneScheduler.Task task = laneScheduler.start(lane)) {
+                    // the slot is given up while the batch is awaited
+                    tokenizer = new CsvTokenizer(task.reading(in), readBuffer.array(),
+                        tradeEnrichmentService.getMaxLineBytes());
+                    while (tokenizer.nextLine()) {
+                        if (++line==1) {
+                            // Always output the csv header.
+                            encoder.header();
+                        }
+                        // the first line of every batch may be a header
+                        tradeEnrichmentService.processSingleRecord(tokenizer, line, line==firstLine, rejects,
+                            encoder, startTime, dictionary, recorder);
+                        task.checkpoint(tokenizer.getBytesRead());
+                    }
+                    encoder.finish();
+                    if (force) {
+                        channel.force(false);
+                    }
+                    rejects.flush();
+                    commit(line, invalid + rejects.getCount(), resultBytes + encoder.getLength(), batches + 1,
+                        dictionary.getVersion(), System.currentTimeMillis());
+                }
+                catch (IOException | RuntimeException e) {
+                    // partial batch is dropped, the next one is appended after the last committed one
+                    channel.truncate(resultBytes);
+                    throw e;
+                }
+                finally {
+                    bufferArena.getInputPool().release(readBuffer);
+                    // buffers of a failed batch, nothing after finish
+                    encoder.discard();
+                }
+                recorder.bytesIn(tokenizer.getBytesRead());
+                recorder.bytesOut(encoder.getLength());
+                Batch batch = new Batch(firstLine, line - firstLine + 1, rejects.getCount(),
+                    rejects.getPath()!=null ? rejects.getPath().getFileName().toString() : null,
+                    dictionary.getVersion());
+                logger.info("Session {} appended {} records in {} ms, invalid count: {}", id, batch.lines(),
+                    System.currentTimeMillis() - startTime, batch.invalid());
+                return batch;
+            }
+        }
+
+        private void commit(long lines, long invalid, long resultBytes, long batches, long catalogVersion,
+            long updatedTime) throws IOException
+        {
+            Properties state = new Properties();
+            state.setProperty("createdTime", createdTime+"");
+            state.setProperty("updatedTime", updatedTime+"");
+            state.setProperty("lines", lines+"");
+            state.setProperty("invalid", invalid+"");
+            state.setProperty("resultBytes", resultBytes+"");
+            state.setProperty("batches", batches+"");
+            state.setProperty("catalogVersion", catalogVersion+"");
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            state.store(bytes, "enrichment session "+id);
+            Path tmp = path.resolve(STATE_FILE+".tmp");
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING))
+            {
+                ByteBuffer content = ByteBuffer.wrap(bytes.toByteArray());
+                while (content.hasRemaining()) {
+                    channel.write(content);
+                }
+                if (force) {
+                    channel.force(true);
+                }
+            }
+            Files.move(tmp, path.resolve(STATE_FILE), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+            this.lines = lines;
+            this.invalid = invalid;
+            this.resultBytes = resultBytes;
+            this.batches = batches;
+            this.catalogVersion = catalogVersion;
+            this.updatedTime = updatedTime;
+        }
+
+        private void load() throws IOException {
+            Properties state = new Properties();
+            try (InputStream in = Files.newInputStream(path.resolve(STATE_FILE))) {
+                state.load(in);
+            }
+            createdTime = Long.parseLong(state.getProperty("createdTime"));
+            updatedTime = Long.parseLong(state.getProperty("updatedTime"));
+            lines = Long.parseLong(state.getProperty("lines"));
+            invalid = Long.parseLong(state.getProperty("invalid"));
+            resultBytes = Long.parseLong(state.getProperty("resultBytes"));
+            batches = Long.parseLong(state.getProperty("batches"));
+            catalogVersion = Long.parseLong(state.getProperty("catalogVersion"));
+            try (FileChannel channel = FileChannel.open(path.resolve(RESULT_FILE), StandardOpenOption.WRITE)) {
+                if (channel.size() < resultBytes) {
+                    throw new IOException("Result is shorter than committed "+resultBytes+" bytes");
+                }
+                // drops the batch which was being appended when the process stopped
+                channel.truncate(resultBytes);
+            }
+        }
+
+        /**
+         * Channel of the result, to be released when it's read. Bytes up to getResultBytes() are never modified,
+         * returns null when the session was deleted.
+         */
+        public synchronized FileChannel acquireResult() throws IOException {
+            if (discarded) {
+                return null;
+            }
+            FileChannel channel = FileChannel.open(path.resolve(RESULT_FILE), StandardOpenOption.READ);
+            readers++;
+            updatedTime = Math.max(updatedTime, System.currentTimeMillis());
+            return channel;
+        }
+
+        public void releaseResult(FileChannel channel) {
+            try {
+                channel.close();
+            }
+            catch (IOException e) {
+                logger.warn("Can't close result of session {}: {}", id, e.getMessage());
+            }
+            boolean delete;
+            synchronized (this) {
+                delete = --readers==0 && discarded && !appending;
+            }
+            if (delete) {
+                deleteQuietly(path);
+            }
+        }
+
+        /**
+         * Doesn't wait for a running batch, the last of the batch and reads deletes the files.
+         */
+        private void discard() {
+            boolean delete;
+            synchronized (this) {
+                discarded = true;
+                delete = readers==0 && !appending;
+            }
+            if (delete) {
+                deleteQuietly(path);
+            }
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public long getLines() {
+            return lines;
+        }
+
+        public long getInvalidCount() {
+            return invalid;
+        }
+
+        public long getResultBytes() {
+            return resultBytes;
+        }
+
+        public long getBatches() {
+            return batches;
+        }
+
+        public long getCatalogVersion() {
+            return catalogVersion;
+        }
+
+        public long getCreatedTime() {
+            return createdTime;
+        }
+
+        public long getUpdatedTime() {
+            return updatedTime;
+        }
+
+        public long getExpiresTime() {
+            return updatedTime + ttlSeconds*1000;
+        }
+    }
+}
@@ -0,0 +1,411 @@
+package com.verygoodbank.tes.service;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import jakarta.annotation.PostConstruct;
+
+/**
+ * Weighted fair share of enrichment between the latency lane (small requests) and the bulk lane. Parsing, enrichment
+ * and writes to result stores run in quanta, each one holding one of tes.lanes.slots slots. A free slot is granted
+ * to the waiting lane with the lowest virtual time, which grows by 1/weight with every quantum, so while both lanes
+ * wait the latency lane gets tes.lanes.latency.weight quanta per tes.lanes.bulk.weight quanta of the bulk lane.
+ * Quanta of a lane are granted in arrival order. A lane alone uses all slots.
+ * Work longer than a quantum (tes.lanes.quantum-bytes or tes.lanes.quantum-ms) gives its slot up at the next
+ * checkpoint when others wait, small requests therefore wait at most one quantum for a slot.
+ * Reads of the request body don't hold the slot, a stalled upload doesn't keep others waiting.
+ */
+@Component
+public class LaneScheduler {
+
+    private final static Logger logger = LoggerFactory.getLogger(LaneScheduler.class);
+    private final static Lane[] LANES = Lane.values();
+    // checkpoints between reads of the clock
+    private final static int CLOCK_CHECKPOINTS = 256;
+
+    public enum Lane {
+        LATENCY("latency"), BULK("bulk");
+
+        private final String tag;
+
+        Lane(String tag) {
+            this.tag = tag;
+        }
+
+        public String tag() {
+            return tag;
+        }
+    }
+
+    // 0 means number of available processors
+    @Value("${tes.lanes.slots:0}")
+    private int slots;
+    @Value("${tes.lanes.latency.weight:4}")
+    private int latencyWeight;
+    @Value("${tes.lanes.bulk.weight:1}")
+    private int bulkWeight;
+    @Value("${tes.lanes.quantum-bytes:1048576}")
+    private long quantumBytes;
+    @Value("${tes.lanes.quantum-ms:50}")
+    private long quantumMillis;
+    // latency lane work which turns out bigger (e.g. decoded gzip body) continues in the bulk lane
+    @Value("${tes.lanes.latency-max-bytes:262144}")
+    private long latencyMaxBytes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition granted = lock.newCondition();
+    private final double[] virtualTime = new double[LANES.length];
+    private final double[] increment = new double[LANES.length];
+    private final int[] waiting = new int[LANES.length];
+    private final int[] running = new int[LANES.length];
+    private final long[] tickets = new long[LANES.length];
+    private final long[] serving = new long[LANES.length];
+    // tickets of interrupted waiters, not served any more
+    private final List<Set<Long>> skipped = Arrays.stream(LANES).map(lane -> (Set<Long>)new HashSet<Long>()).toList();
+    private final long[] quanta = new long[LANES.length];
+    private final long[] waitCount = new long[LANES.length];
+    private final long[] waitNanos = new long[LANES.length];
+    private int free;
+    private long quantumNanos;
+
+    public LaneScheduler() {
+    }
+
+    /**
+     * Scheduler outside of Spring context, e.g. for tests.
+     */
+    public LaneScheduler(int slots, int latencyWeight, int bulkWeight, long quantumBytes, long quantumMillis,
+        long latencyMaxBytes)
+    {
+        this.slots = slots;
+        this.latencyWeight = latencyWeight;
+        this.bulkWeight = bulkWeight;
+        this.quantumBytes = quantumBytes;
+        this.quantumMillis = quantumMillis;
+        this.latencyMaxBytes = latencyMaxBytes;
+        init();
+    }
+
+    @PostConstruct
+    public void init() {
+        slots = slots > 0 ? slots : Runtime.getRuntime().availableProcessors();
+        free = slots;
+        increment[Lane.LATENCY.ordinal()] = 1.0/Math.max(1, latencyWeight);
+        increment[Lane.BULK.ordinal()] = 1.0/Math.max(1, bulkWeight);
+        quantumNanos = TimeUnit.MILLISECONDS.toNanos(quantumMillis);
+        logger.info("Enrichment slots: {}, latency:bulk weights {}:{}, quantum {} bytes or {} ms", slots,
+            latencyWeight, bulkWeight, quantumBytes, quantumMillis);
+    }
+
+    /**
+     * Waits for a slot of the lane, the returned task is to be closed when the work is done.
+     * Throws CancellationException when the thread is interrupted while waiting, e.g. at shutdown.
+     */
+    public Task start(Lane lane) {
+        Task task = new Task(lane);
+        task.acquire();
+        return task;
+    }
+
+    /**
+     * Resumed work continues its quantum, it's not counted as a new one.
+     */
+    private void acquire(Lane lane, boolean resumed) {
+        int l = lane.ordinal();
+        lock.lock();
+        try {
+            if (waiting[l]==0 && running[l]==0) {
+                // an idle lane doesn't save quanta for later
+                for (Lane other : LANES) {
+                    int o = other.ordinal();
+                    if (o!=l && (waiting[o] > 0 || running[o] > 0)) {
+                        virtualTime[l] = Math.max(virtualTime[l], virtualTime[o]);
+                    }
+                }
+            }
+            long ticket = tickets[l]++;
+            waiting[l]++;
+            long start = 0;
+            try {
+                while (free==0 || serving[l]!=ticket || next()!=lane) {
+                    if (start==0) {
+                        start = System.nanoTime();
+                    }
+                    granted.await();
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                // the ticket is skipped, so the waiters behind it aren't stuck
+                skipped.get(l).add(ticket);
+                advance(l);
+                granted.signalAll();
+                throw new CancellationException("Interrupted while waiting for a slot");
+            }
+            finally {
+                waiting[l]--;
+            }
+            serving[l]++;
+            advance(l);
+            free--;
+            running[l]++;
+            if (!resumed) {
+                quanta[l]++;
+                virtualTime[l] += increment[l];
+            }
+            if (start!=0) {
+                waitCount[l]++;
+                waitNanos[l] += System.nanoTime() - start;
+            }
+            if (free > 0) {
+                granted.signalAll();
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Skips tickets of interrupted waiters. Called under the lock.
+     */
+    private void advance(int l) {
+        while (skipped.get(l).remove(serving[l])) {
+            serving[l]++;
+        }
+    }
+
+    private void release(Lane lane) {
+        lock.lock();
+        try {
+            running[lane.ordinal()]--;
+            free++;
+            granted.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waiting lane of the lowest virtual time, ties go to the latency lane. Called under the lock.
+     */
+    private Lane next() {
+        Lane next = null;
+        for (Lane lane : LANES) {
+            int l = lane.ordinal();
+            if (waiting[l] > 0 && (next==null || virtualTime[l] < virtualTime[next.ordinal()])) {
+                next = lane;
+            }
+        }
+        return next;
+    }
+
+    private boolean hasWaiting() {
+        lock.lock();
+        try {
+            for (int w : waiting) {
+                if (w > 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public int getSlots() {
+        return slots;
+    }
+
+    /**
+     * Quanta of the lane waiting for a slot.
+     */
+    public int getWaiting(Lane lane) {
+        lock.lock();
+        try {
+            return waiting[lane.ordinal()];
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public int getRunning(Lane lane) {
+        lock.lock();
+        try {
+            return running[lane.ordinal()];
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public long getQuanta(Lane lane) {
+        lock.lock();
+        try {
+            return quanta[lane.ordinal()];
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public long getWaitCount(Lane lane) {
+        lock.lock();
+        try {
+            return waitCount[lane.ordinal()];
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public double getWaitSeconds(Lane lane) {
+        lock.lock();
+        try {
+            return waitNanos[lane.ordinal()]/1e9;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Work of a single thread holding a slot, not thread safe.
+     */
+    public class Task implements AutoCloseable {
+        private Lane lane;
+        private boolean holding;
+        // progress when the current quantum started
+        private long quantumStart;
+        private long quantumStartNanos;
+        private int checkpoints;
+
+        private Task(Lane lane) {
+            this.lane = lane;
+        }
+
+        private void acquire() {
+            LaneScheduler.this.acquire(lane, false);
+            holding = true;
+            // quantumStart is kept, requeued work starts its quantum at the checkpoint which gave the slot up
+            quantumStartNanos = System.nanoTime();
+            checkpoints = 0;
+        }
+
+        /**
+         * To be called between records with bytes processed so far. When the quantum is used up and other work
+         * waits, the slot is given up and acquired again.
+         */
+        public void checkpoint(long bytes) {
+            if (lane==Lane.LATENCY && bytes > latencyMaxBytes) {
+                lane = Lane.BULK;
+                quantumStart = bytes;
+                requeue(Lane.LATENCY);
+                return;
+            }
+            if (bytes - quantumStart < quantumBytes) {
+                if (++checkpoints < CLOCK_CHECKPOINTS) {
+                    return;
+                }
+                checkpoints = 0;
+                if (System.nanoTime() - quantumStartNanos < quantumNanos) {
+                    return;
+                }
+            }
+            quantumStart = bytes;
+            if (hasWaiting()) {
+                requeue(lane);
+            }
+            else {
+                quantumStartNanos = System.nanoTime();
+                checkpoints = 0;
+            }
+        }
+
+        private void requeue(Lane held) {
+            holding = false;
+            release(held);
+            acquire();
+        }
+
+        /**
+         * Input whose reads give the slot up while they wait for data (and decode it), the slot is acquired again
+         * before a read returns. Time of the reads is not counted in the quantum.
+         */
+        public InputStream reading(InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    long pausedAt = pause();
+                    try {
+                        return super.read();
+                    }
+                    finally {
+                        resume(pausedAt);
+                    }
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    long pausedAt = pause();
+                    try {
+                        return super.read(b, off, len);
+                    }
+                    finally {
+                        resume(pausedAt);
+                    }
+                }
+            };
+        }
+
+        /**
+         * Releases the slot, returns the time it was released or -1 when the slot isn't held.
+         */
+        private long pause() {
+            if (!holding) {
+                return -1;
+            }
+            holding = false;
+            release(lane);
+            return System.nanoTime();
+        }
+
+        private void resume(long pausedAt) {
+            if (pausedAt < 0) {
+                return;
+            }
+            LaneScheduler.this.acquire(lane, true);
+            holding = true;
+            quantumStartNanos += System.nanoTime() - pausedAt;
+        }
+
+        public Lane getLane() {
+            return lane;
+        }
+
+        @Override
+        public void close() {
+            if (holding) {
+                holding = false;
+                release(lane);
+            }
+        }
+    }
+}
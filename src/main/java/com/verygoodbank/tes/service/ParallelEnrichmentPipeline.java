@@ -0,0 +1,395 @@
+package com.verygoodbank.tes.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.verygoodbank.tes.csv.CsvTokenizer;
+import com.verygoodbank.tes.model.Trade;
+import com.verygoodbank.tes.model.ValidationException;
+import com.verygoodbank.tes.output.BufferArena;
+import com.verygoodbank.tes.output.BufferPool;
+import com.verygoodbank.tes.output.CsvTradeEncoder;
+import com.verygoodbank.tes.output.TradeEncoder;
+import com.verygoodbank.tes.output.TradeEncoderFactory;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Pipeline mode of enrichment. The calling thread splits input into line-aligned chunks,
+ * chunks are parsed, validated and enriched in parallel on a shared pool and the calling thread
+ * writes results back in input order. Output is byte-identical to sequential processing.
+ * Every chunk and every write of its result is a quantum of LaneScheduler in the lane of the request.
+ */
+@Service
+public class ParallelEnrichmentPipeline {
+
+    private final static Logger logger = LoggerFactory.getLogger(ParallelEnrichmentPipeline.class);
+
+    @Autowired
+    private TradeEnrichmentService tradeEnrichmentService;
+    @Autowired
+    private EnrichmentMetrics metrics;
+    @Autowired
+    private TradeEncoderFactory tradeEncoderFactory;
+    @Value("${tes.enrich.pool-size:0}")
+    private int poolSize;
+    @Value("${tes.enrich.chunk-size:1048576}")
+    private int chunkSize;
+    @Value("${tes.buffers.max-pooled-chunks:32}")
+    private int maxPooledChunks;
+    @Autowired
+    private BufferArena bufferArena;
+    @Autowired
+    private LaneScheduler laneScheduler;
+    private ForkJoinPool pool;
+    private BufferPool chunkPool;
+
+    @PostConstruct
+    public void init() {
+        int size = poolSize > 0 ? poolSize : Runtime.getRuntime().availableProcessors();
+        pool = new ForkJoinPool(size);
+        chunkPool = bufferArena.newPool(chunkSize, maxPooledChunks, false);
+        logger.info("Enrichment pool size is {}, chunk size is {} bytes", size, chunkSize);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * Enriches the whole input, at most parallelism chunks are in flight at the same time.
+     * Returns number of processed records. Metrics are tagged with the endpoint.
+     */
+    public long enrich(InputStream in, WritableByteChannel channel, int parallelism, RejectReporter.Rejects rejects,
+        long startTime, ProductDictionary dictionary, String endpoint) throws IOException
+    {
+        return enrich(in, channel, parallelism, rejects, startTime, dictionary, endpoint, records -> {});
+    }
+
+    /**
+     * Same as above, progress receives number of records written so far after every chunk.
+     */
+    public long enrich(InputStream in, WritableByteChannel channel, int parallelism, RejectReporter.Rejects rejects,
+        long startTime, ProductDictionary dictionary, String endpoint, LongConsumer progress) throws IOException
+    {
+        return enrich(in, channel, null, parallelism, rejects, startTime, dictionary, endpoint, progress,
+            LaneScheduler.Lane.BULK);
+    }
+
+    /**
+     * Same as above, enriched trades are written in input order by the encoder (when not null) instead of CSV.
+     * Quanta of the work are scheduled in the lane.
+     */
+    public long enrich(InputStream in, WritableByteChannel channel, TradeEncoder encoder, int parallelism,
+        RejectReporter.Rejects rejects, long startTime, ProductDictionary dictionary, String endpoint,
+        LongConsumer progress, LaneScheduler.Lane lane) throws IOException
+    {
+        ArrayDeque<CompletableFuture<ChunkResult>> inFlight = new ArrayDeque<>();
+        AtomicBoolean abandoned = new AtomicBoolean();
+        long recordsCount = 0;
+        byte[] carry = new byte[0];
+        int carryLength = 0;
+        int chunkIndex = 0;
+        boolean eof = false;
+        try {
+            while (!eof) {
+                // chunks come from the buffer arena, so reading waits when its budget is exhausted;
+                // a longer line than a chunk is collected in a bigger array outside of the arena
+                ByteBuffer chunk = carryLength*2 > chunkSize ? null : chunkPool.acquire();
+                byte[] data = chunk!=null ? chunk.array() : new byte[carryLength*2];
+                System.arraycopy(carry, 0, data, 0, carryLength);
+                int length;
+                try {
+                    length = carryLength + in.readNBytes(data, carryLength, data.length - carryLength);
+                }
+                catch (IOException | RuntimeException e) {
+                    // not handed to a chunk future yet
+                    release(chunk);
+                    throw e;
+                }
+                eof = length < data.length;
+                int cut = eof ? length : lineAlignedCut(data, length);
+                if (cut < 0 && length >= tradeEnrichmentService.getMaxLineBytes()) {
+                    // the line is rejected like in sequential processing, its rest is skipped
+                    release(chunk);
+                    carry = skipLine(in);
+                    carryLength = carry.length;
+                    inFlight.add(CompletableFuture.completedFuture(tooLongLine(chunkIndex++, dictionary, endpoint,
+                        encoder!=null)));
+                }
+                else if (cut < 0) {
+                    // no line end in the whole chunk, collect more before cutting
+                    carry = Arrays.copyOf(data, length);
+                    carryLength = length;
+                    release(chunk);
+                    continue;
+                }
+                else {
+                    carryLength = length - cut;
+                    carry = new byte[Math.max(carryLength, 1)];
+                    System.arraycopy(data, cut, carry, 0, carryLength);
+                    if (cut > 0) {
+                        final int index = chunkIndex++;
+                        CompletableFuture<ChunkResult> future = CompletableFuture.supplyAsync(() -> {
+                            if (abandoned.get()) {
+                                // the request failed before the chunk started
+                                return null;
+                            }
+                            // output buffer is acquired before the slot, waiting for the arena doesn't hold it
+                            CsvTradeEncoder csv = encoder!=null ? null
+                                : tradeEncoderFactory.newCsvEncoder(null, dictionary);
+                            try (LaneScheduler.Task task = laneScheduler.start(lane)) {
+                                return processChunk(data, cut, index, csv, dictionary, endpoint);
+                            }
+                            catch (RuntimeException e) {
+                                if (csv!=null) {
+                                    csv.discard();
+                                }
+                                throw e;
+                            }
+                        }, pool);
+                        // trades and CSV of the chunk don't refer to its bytes, it's released however the chunk ends
+                        future.whenComplete((result, e) -> release(chunk));
+                        inFlight.add(future);
+                    }
+                    else {
+                        release(chunk);
+                    }
+                }
+                while (inFlight.size() >= parallelism) {
+                    recordsCount = writeChunk(inFlight.poll().join(), channel, encoder, recordsCount, rejects,
+                        startTime, endpoint, lane);
+                    progress.accept(recordsCount);
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                recordsCount = writeChunk(inFlight.poll().join(), channel, encoder, recordsCount, rejects,
+                    startTime, endpoint, lane);
+                progress.accept(recordsCount);
+            }
+        }
+        finally {
+            // chunks not started yet are skipped, output buffers of the others are released when they end
+            abandoned.set(true);
+            inFlight.forEach(future -> future.thenAccept(result -> {
+                if (result!=null) {
+                    result.discard();
+                }
+            }));
+        }
+        return recordsCount;
+    }
+
+    private void release(ByteBuffer chunk) {
+        if (chunk!=null) {
+            chunkPool.release(chunk);
+        }
+    }
+
+    /**
+     * Skips the rest of a line longer than max-line-bytes, returns bytes following its line end.
+     */
+    static byte[] skipLine(InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        boolean cr = false;
+        for (;;) {
+            int n = in.read(buffer);
+            if (n < 0) {
+                return new byte[0];
+            }
+            if (cr && n > 0) {
+                // LF of CRLF belongs to the skipped line
+                return Arrays.copyOfRange(buffer, buffer[0]=='\n' ? 1 : 0, n);
+            }
+            for (int i=0; i < n; i++) {
+                if (buffer[i]=='\n') {
+                    return Arrays.copyOfRange(buffer, i + 1, n);
+                }
+                if (buffer[i]=='\r') {
+                    if (i + 1 < n) {
+                        return Arrays.copyOfRange(buffer, buffer[i + 1]=='\n' ? i + 2 : i + 1, n);
+                    }
+                    cr = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Result of a single rejected line longer than max-line-bytes.
+     */
+    private ChunkResult tooLongLine(int chunkIndex, ProductDictionary dictionary, String endpoint,
+        boolean keepTrades)
+    {
+        ChunkResult result = new ChunkResult(keepTrades ? null : tradeEncoderFactory.newCsvEncoder(null, dictionary));
+        try (EnrichmentMetrics.Recorder recorder = metrics.recorder(endpoint)) {
+            if (chunkIndex==0 && !keepTrades) {
+                // Always output the csv header.
+                result.csv.header();
+            }
+            recorder.invalid(ValidationException.Reason.UNREADABLE);
+        }
+        catch (IOException e) {
+            // not possible for encoder without channel
+            throw new IllegalStateException(e);
+        }
+        result.reject(1, ValidationException.Reason.UNREADABLE, "Trade record longer than "
+            +tradeEnrichmentService.getMaxLineBytes()+" bytes", "");
+        result.lines = 1;
+        return result;
+    }
+
+    /**
+     * Position right after the last line end, never between CR and LF of the same line end.
+     */
+    static int lineAlignedCut(byte[] data, int length) {
+        for (int i=length-1; i >= 0; i--) {
+            if (data[i]=='\n') {
+                return i + 1;
+            }
+        }
+        // CR-only line ends: CR followed by a byte known not to be LF
+        for (int i=length-2; i >= 0; i--) {
+            if (data[i]=='\r') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Trades to be encoded are kept as they are (csv null), otherwise CSV is serialized in parallel.
+     */
+    private ChunkResult processChunk(byte[] data, int length, int chunkIndex, CsvTradeEncoder csv,
+        ProductDictionary dictionary, String endpoint)
+    {
+        boolean keepTrades = csv==null;
+        ChunkResult result = new ChunkResult(csv);
+        CsvTokenizer tokenizer = new CsvTokenizer(data, 0, length);
+        try (EnrichmentMetrics.Recorder recorder = metrics.recorder(endpoint)) {
+            while (tokenizer.nextLine()) {
+                long line = tokenizer.getLineNumber();
+                if (chunkIndex==0 && line==1 && !keepTrades) {
+                    // Always output the csv header.
+                    result.csv.header();
+                }
+                long sample = recorder.startRecord();
+                Trade trade = null;
+                try {
+                    trade = Trade.fromCsvRecord(tokenizer, chunkIndex==0 && line==1);
+                }
+                catch (ValidationException ve) {
+                    recorder.invalid(ve.getReason());
+                    result.reject(line, ve.getReason(), ve.getMessage(), ve.getContent());
+                    continue;
+                }
+                sample = recorder.stage(EnrichmentMetrics.Stage.PARSE, sample);
+                if (trade!=null && !trade.isLikelyHeader()) {
+                    tradeEnrichmentService.enrichTrade(trade, dictionary);
+                    sample = recorder.stage(EnrichmentMetrics.Stage.ENRICH, sample);
+                    if (keepTrades) {
+                        result.trades.add(trade);
+                    }
+                    else {
+                        result.csv.write(trade);
+                        recorder.stage(EnrichmentMetrics.Stage.SERIALIZE, sample);
+                    }
+                }
+                else {
+                    // header line as well, it has always been counted as an empty record
+                    recorder.invalid(ValidationException.Reason.EMPTY);
+                    result.reject(line, ValidationException.Reason.EMPTY, null, tokenizer.line());
+                }
+            }
+            recorder.bytesIn(length);
+            if (!keepTrades) {
+                recorder.bytesOut(result.csv.getLength());
+            }
+        }
+        catch (IOException e) {
+            // not possible for in-memory tokenizer and encoder without channel
+            throw new IllegalStateException(e);
+        }
+        result.lines = tokenizer.getLineNumber();
+        return result;
+    }
+
+    private long writeChunk(ChunkResult result, WritableByteChannel channel, TradeEncoder encoder, long recordsCount,
+        RejectReporter.Rejects rejects, long startTime, String endpoint, LaneScheduler.Lane lane) throws IOException
+    {
+        long writeNanos;
+        // spill I/O shares slots with enrichment, waiting for the slot is not a part of the stage
+        try (LaneScheduler.Task task = laneScheduler.start(lane)) {
+            long writeStart = System.nanoTime();
+            if (encoder!=null) {
+                if (recordsCount==0 && result.lines > 0) {
+                    // the first chunk, the input is not empty
+                    encoder.header();
+                }
+                for (Trade trade : result.trades) {
+                    encoder.write(trade);
+                }
+            }
+            else {
+                result.csv.drainTo(channel);
+            }
+            writeNanos = System.nanoTime() - writeStart;
+        }
+        metrics.record(endpoint, EnrichmentMetrics.Stage.STORE_WRITE, writeNanos);
+        for (Rejected r : result.rejected) {
+            rejects.reject(recordsCount + r.line, r.reason, r.message, r.content);
+        }
+        long mlnsBefore = recordsCount/1_000_000;
+        recordsCount += result.lines;
+        long mlns = recordsCount/1_000_000;
+        if (mlns > mlnsBefore) {
+            long seconds = Math.max(1, (System.currentTimeMillis()-startTime)/1000L);
+            double throughput = Math.round(100.0*mlns/seconds)/100.0;
+            logger.info("Currenly processed {} mln records, wall time is {}s, throughput {} mln/s",
+                mlns, seconds, throughput);
+        }
+        return recordsCount;
+    }
+
+    private static class ChunkResult {
+        // null when trades are kept for the encoder
+        final CsvTradeEncoder csv;
+        final List<Rejected> rejected = new ArrayList<>();
+        final List<Trade> trades = new ArrayList<>();
+        long lines;
+
+        ChunkResult(CsvTradeEncoder csv) {
+            this.csv = csv;
+        }
+
+        void reject(long line, ValidationException.Reason reason, String message, String content) {
+            rejected.add(new Rejected(line, reason, message, content));
+        }
+
+        void discard() {
+            if (csv!=null) {
+                csv.discard();
+            }
+        }
+    }
+
+    private record Rejected(long line, ValidationException.Reason reason, String message, String content) {}
+}
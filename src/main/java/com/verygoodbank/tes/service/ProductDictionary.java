@@ -0,0 +1,362 @@
+package com.verygoodbank.tes.service;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.function.Consumer;
+
+/**
+ * Read-optimised, immutable product id to name dictionary.
+ * Ids in canonical decimal form (no sign, no leading zeros) are kept in a dense array or an open-addressing
+ * long table, other ids in a regular map. Names are not copied, they are UTF-8 slices of the catalog
+ * content, which can be a memory-mapped file. Lookups by numeric id don't allocate.
+ */
+public class ProductDictionary {
+
+    public final static int NOT_FOUND = -1;
+    private final static int MAX_ID_DIGITS = 18;
+    private final static long EMPTY_KEY = -1L;
+
+    private final long version;
+    private final ByteBuffer data;
+    private final int size;
+    private final int[] nameOffsets;
+    private final int[] nameLengths;
+    private final String[] nameCache;
+    private final int[] dense;
+    private final long[] keys;
+    private final int[] values;
+    private final int mask;
+    private final HashMap<String,Integer> otherIds;
+
+    private ProductDictionary(Builder builder, long version) {
+        this.version = version;
+        this.data = builder.data;
+        this.size = builder.size;
+        this.nameOffsets = Arrays.copyOf(builder.nameOffsets, size);
+        this.nameLengths = Arrays.copyOf(builder.nameLengths, size);
+        this.nameCache = new String[size];
+        this.otherIds = builder.otherIds;
+        if (builder.maxId >= 0 && builder.maxId < Math.max(1024L, builder.keys.length)) {
+            // ids are compact enough, array is not bigger than the hash table
+            this.dense = new int[(int)builder.maxId + 1];
+            Arrays.fill(dense, NOT_FOUND);
+            for (int i=0; i < builder.keys.length; i++) {
+                if (builder.keys[i]!=EMPTY_KEY) {
+                    dense[(int)builder.keys[i]] = builder.values[i];
+                }
+            }
+            this.keys = null;
+            this.values = null;
+            this.mask = 0;
+        }
+        else {
+            this.dense = null;
+            this.keys = builder.keys;
+            this.values = builder.values;
+            this.mask = keys.length - 1;
+        }
+    }
+
+    public static ProductDictionary empty() {
+        return new Builder(ByteBuffer.allocate(0)).build(0);
+    }
+
+    /**
+     * Parses catalog content: product_id,product_name lines. Problems are reported as messages.
+     * Content must not be modified while the dictionary is in use.
+     */
+    public static ProductDictionary parse(ByteBuffer data, long version, Consumer<String> problems) {
+        Builder builder = new Builder(data);
+        int limit = data.limit();
+        int pos = data.position();
+        while (pos < limit) {
+            int end = pos;
+            while (end < limit && data.get(end)!='\n' && data.get(end)!='\r') {
+                end++;
+            }
+            builder.line(pos, end, problems);
+            pos = end + 1;
+            if (end + 1 < limit && data.get(end)=='\r' && data.get(end + 1)=='\n') {
+                pos++;
+            }
+        }
+        return builder.build(version);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String name(int index) {
+        String name = nameCache[index];
+        if (name==null) {
+            // racy but benign, String is immutable
+            byte[] bytes = new byte[nameLengths[index]];
+            data.get(nameOffsets[index], bytes);
+            name = new String(bytes, StandardCharsets.UTF_8);
+            nameCache[index] = name;
+        }
+        return name;
+    }
+
+    public int nameLength(int index) {
+        return nameLengths[index];
+    }
+
+    public void copyName(int index, byte[] dst, int offset) {
+        data.get(nameOffsets[index], dst, offset, nameLengths[index]);
+    }
+
+    /**
+     * Appends UTF-8 name at the position of dst, without intermediate copies.
+     */
+    public void copyName(int index, ByteBuffer dst) {
+        int position = dst.position();
+        dst.put(position, data, nameOffsets[index], nameLengths[index]);
+        dst.position(position + nameLengths[index]);
+    }
+
+    public int indexOf(String id) {
+        long numericId = parseCanonicalId(id);
+        if (numericId >= 0) {
+            return indexOf(numericId);
+        }
+        Integer index = otherIds.get(id);
+        return index!=null ? index : NOT_FOUND;
+    }
+
+    public int indexOf(byte[] buf, int offset, int length) {
+        long numericId = parseCanonicalId(buf, offset, length);
+        if (numericId >= 0) {
+            return indexOf(numericId);
+        }
+        if (otherIds.isEmpty()) {
+            return NOT_FOUND;
+        }
+        Integer index = otherIds.get(new String(buf, offset, length, StandardCharsets.UTF_8));
+        return index!=null ? index : NOT_FOUND;
+    }
+
+    private int indexOf(long id) {
+        if (dense!=null) {
+            return id < dense.length ? dense[(int)id] : NOT_FOUND;
+        }
+        for (int slot = slot(id, mask); ; slot = (slot + 1) & mask) {
+            long key = keys[slot];
+            if (key==id) {
+                return values[slot];
+            }
+            if (key==EMPTY_KEY) {
+                return NOT_FOUND;
+            }
+        }
+    }
+
+    private static int slot(long id, int mask) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32)) & mask;
+    }
+
+    /**
+     * Returns numeric value of id in canonical decimal form or -1.
+     */
+    static long parseCanonicalId(CharSequence id) {
+        int length = id.length();
+        if (length==0 || length > MAX_ID_DIGITS || (length > 1 && id.charAt(0)=='0')) {
+            return -1;
+        }
+        long value = 0;
+        for (int i=0; i < length; i++) {
+            char ch = id.charAt(i);
+            if (ch < '0' || ch > '9') {
+                return -1;
+            }
+            value = value*10 + (ch - '0');
+        }
+        return value;
+    }
+
+    static long parseCanonicalId(byte[] buf, int offset, int length) {
+        if (length==0 || length > MAX_ID_DIGITS || (length > 1 && buf[offset]=='0')) {
+            return -1;
+        }
+        long value = 0;
+        for (int i=offset; i < offset + length; i++) {
+            byte ch = buf[i];
+            if (ch < '0' || ch > '9') {
+                return -1;
+            }
+            value = value*10 + (ch - '0');
+        }
+        return value;
+    }
+
+    private static long parseCanonicalId(ByteBuffer buf, int offset, int length) {
+        if (length==0 || length > MAX_ID_DIGITS || (length > 1 && buf.get(offset)=='0')) {
+            return -1;
+        }
+        long value = 0;
+        for (int i=offset; i < offset + length; i++) {
+            byte ch = buf.get(i);
+            if (ch < '0' || ch > '9') {
+                return -1;
+            }
+            value = value*10 + (ch - '0');
+        }
+        return value;
+    }
+
+    private static class Builder {
+        private final ByteBuffer data;
+        private final HashMap<String,Integer> otherIds = new HashMap<>();
+        private int size = 0;
+        private int[] nameOffsets = new int[1024];
+        private int[] nameLengths = new int[1024];
+        private long[] keys = newKeys(1024);
+        private int[] values = new int[1024];
+        private int numericCount = 0;
+        private long maxId = -1;
+
+        private Builder(ByteBuffer data) {
+            this.data = data;
+        }
+
+        private static long[] newKeys(int capacity) {
+            long[] keys = new long[capacity];
+            Arrays.fill(keys, EMPTY_KEY);
+            return keys;
+        }
+
+        private String text(int start, int end) {
+            byte[] bytes = new byte[end - start];
+            data.get(start, bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private boolean isTrimmable(int pos) {
+            // same as String.trim(), UTF-8 multi-byte sequences are never trimmed
+            return (data.get(pos) & 0xff) <= ' ';
+        }
+
+        private void line(int start, int end, Consumer<String> problems) {
+            // same rules as String.split(","): exactly two fields, trailing empty fields are ignored
+            int firstComma = NOT_FOUND;
+            int secondComma = NOT_FOUND;
+            int field = 0;
+            int lastNonEmptyField = NOT_FOUND;
+            int fieldStart = start;
+            boolean blank = true;
+            for (int i=start; i <= end; i++) {
+                if (i==end || data.get(i)==',') {
+                    if (i > fieldStart) {
+                        lastNonEmptyField = field;
+                    }
+                    if (i < end) {
+                        if (firstComma==NOT_FOUND) {
+                            firstComma = i;
+                        }
+                        else if (secondComma==NOT_FOUND) {
+                            secondComma = i;
+                        }
+                    }
+                    field++;
+                    fieldStart = i + 1;
+                }
+                if (blank && i < end && !isTrimmable(i)) {
+                    blank = false;
+                }
+            }
+            if (blank) {
+                return;
+            }
+            if (lastNonEmptyField!=1) {
+                problems.accept("Invalid product line: "+text(start, end));
+                return;
+            }
+            int keyStart = start, keyEnd = firstComma;
+            int nameStart = firstComma + 1, nameEnd = secondComma!=NOT_FOUND ? secondComma : end;
+            while (keyStart < keyEnd && isTrimmable(keyStart)) keyStart++;
+            while (keyEnd > keyStart && isTrimmable(keyEnd - 1)) keyEnd--;
+            while (nameStart < nameEnd && isTrimmable(nameStart)) nameStart++;
+            while (nameEnd > nameStart && isTrimmable(nameEnd - 1)) nameEnd--;
+            if (keyStart==keyEnd || nameStart==nameEnd) {
+                problems.accept("Invalid product line: "+text(start, end));
+            }
+            else if (put(keyStart, keyEnd, nameStart, nameEnd)) {
+                problems.accept("Duplicated product line: "+text(start, end));
+            }
+        }
+
+        /**
+         * Adds product, returns true in case of duplicated id, the last name wins.
+         */
+        private boolean put(int keyStart, int keyEnd, int nameStart, int nameEnd) {
+            int index = size;
+            long numericId = parseCanonicalId(data, keyStart, keyEnd - keyStart);
+            if (numericId < 0) {
+                Integer prev = otherIds.putIfAbsent(text(keyStart, keyEnd), index);
+                if (prev!=null) {
+                    setName(prev, nameStart, nameEnd);
+                    return true;
+                }
+            }
+            else {
+                int mask = keys.length - 1;
+                int slot = slot(numericId, mask);
+                while (keys[slot]!=EMPTY_KEY) {
+                    if (keys[slot]==numericId) {
+                        setName(values[slot], nameStart, nameEnd);
+                        return true;
+                    }
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = numericId;
+                values[slot] = index;
+                maxId = Math.max(maxId, numericId);
+                if (++numericCount*2 > keys.length) {
+                    rehash();
+                }
+            }
+            if (size==nameOffsets.length) {
+                nameOffsets = Arrays.copyOf(nameOffsets, size*2);
+                nameLengths = Arrays.copyOf(nameLengths, size*2);
+            }
+            size++;
+            setName(index, nameStart, nameEnd);
+            return false;
+        }
+
+        private void setName(int index, int nameStart, int nameEnd) {
+            nameOffsets[index] = nameStart;
+            nameLengths[index] = nameEnd - nameStart;
+        }
+
+        private void rehash() {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = newKeys(oldKeys.length*2);
+            values = new int[oldKeys.length*2];
+            int mask = keys.length - 1;
+            for (int i=0; i < oldKeys.length; i++) {
+                if (oldKeys[i]!=EMPTY_KEY) {
+                    int slot = slot(oldKeys[i], mask);
+                    while (keys[slot]!=EMPTY_KEY) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+
+        private ProductDictionary build(long version) {
+            return new ProductDictionary(this, version);
+        }
+    }
+}
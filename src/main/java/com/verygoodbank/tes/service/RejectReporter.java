@@ -0,0 +1,128 @@
+package com.verygoodbank.tes.service;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.verygoodbank.tes.model.ValidationException;
+
+/**
+ * Reports invalid records. Log lines are limited per second for the whole service, full list of rejected
+ * records with line numbers can be written to a sidecar file per request (line,reason,content).
+ */
+@Component
+public class RejectReporter {
+
+    private final static Logger logger = LoggerFactory.getLogger(RejectReporter.class);
+    public final static String REJECTS_FILE_PREFIX = "rejects-";
+
+    // Empty means no sidecar files
+    @Value("${tes.rejects.dir:}")
+    private String rejectsDir;
+    @Value("${tes.rejects.log-per-second:10}")
+    private int logPerSecond;
+    private final AtomicLong logSecond = new AtomicLong();
+    private final AtomicLong loggedInSecond = new AtomicLong();
+    private final AtomicLong suppressed = new AtomicLong();
+
+    /**
+     * Rejects of a single request, to be written by a single thread at a time.
+     */
+    public Rejects newRejects() {
+        return new Rejects();
+    }
+
+    public boolean isSidecarEnabled() {
+        return !rejectsDir.isBlank();
+    }
+
+    private boolean tryLog() {
+        long second = System.currentTimeMillis()/1000;
+        long current = logSecond.get();
+        if (current!=second && logSecond.compareAndSet(current, second)) {
+            loggedInSecond.set(0);
+            long notLogged = suppressed.getAndSet(0);
+            if (notLogged > 0) {
+                logger.warn("{} invalid records were not logged, limit is {} per second", notLogged, logPerSecond);
+            }
+        }
+        if (loggedInSecond.incrementAndGet() <= logPerSecond) {
+            return true;
+        }
+        suppressed.incrementAndGet();
+        return false;
+    }
+
+    public class Rejects implements Closeable {
+        // read by status requests of jobs
+        private volatile long count = 0;
+        private Path path;
+        private BufferedWriter sidecar;
+
+        private Rejects() {
+        }
+
+        /**
+         * Records invalid record, message is null for empty records.
+         */
+        public void reject(long line, ValidationException.Reason reason, String message, String content)
+            throws IOException
+        {
+            count++;
+            if (tryLog()) {
+                if (message!=null) {
+                    logger.warn("Not processable record at line {} due to error: {}, content: \"{}\"",
+                        line, message, content);
+                }
+                else {
+                    logger.warn("Empty record at line {}", line);
+                }
+            }
+            if (isSidecarEnabled()) {
+                if (sidecar==null) {
+                    Path dir = Files.createDirectories(Path.of(rejectsDir));
+                    path = Files.createTempFile(dir, REJECTS_FILE_PREFIX, ".csv");
+                    sidecar = Files.newBufferedWriter(path, StandardCharsets.UTF_8);
+                }
+                sidecar.append(Long.toString(line)).append(',').append(reason.name().toLowerCase()).append(',')
+                    .append(content!=null ? content : "").append("\r\n");
+            }
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Sidecar file or null when there were no rejects or sidecar is disabled.
+         */
+        public Path getPath() {
+            return path;
+        }
+
+        /**
+         * Completes the sidecar file.
+         */
+        public void flush() throws IOException {
+            if (sidecar!=null) {
+                sidecar.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (sidecar!=null) {
+                sidecar.close();
+            }
+        }
+    }
+}
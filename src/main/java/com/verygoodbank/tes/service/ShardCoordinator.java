@@ -0,0 +1,294 @@
+package com.verygoodbank.tes.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.verygoodbank.tes.output.BufferArena;
+import com.verygoodbank.tes.output.BufferPool;
+import com.verygoodbank.tes.store.ResultStoreFactory;
+
+import jakarta.annotation.PostConstruct;
+
+/**
+ * Coordinator mode: the input is cut into line-aligned shards which are enriched by peer instances
+ * (their /api/v1/enrich), results are written back in input order. A shard failed on a peer is retried
+ * on the next one. Shards after the first are sent with the CSV header, so their first line is validated
+ * like any other line, and the enriched header of their result is skipped.
+ * Shard buffers come from the buffer arena and return to it when the shard is done on a peer.
+ */
+@Service
+public class ShardCoordinator {
+
+    private final static Logger logger = LoggerFactory.getLogger(ShardCoordinator.class);
+    public final static String ENDPOINT_SHARDED = "enrich-sharded";
+    // response headers of /enrich of the peers
+    private final static String RECORD_COUNT_HEADER = "X-Record-Count";
+    private final static String REJECTED_COUNT_HEADER = "X-Rejected-Count";
+    private final static byte[] SHARD_HEADER = "date,product_id,currency,price\r\n".getBytes(StandardCharsets.UTF_8);
+    private final static byte[] ENRICHED_HEADER = TradeEnrichmentService.ENRICHED_CSV_HEADER
+        .getBytes(StandardCharsets.UTF_8);
+
+    @Autowired
+    private ResultStoreFactory resultStoreFactory;
+    @Autowired
+    private BufferArena bufferArena;
+    // comma separated base URLs of peers, e.g. http://host1:8080, empty means coordinator mode is off
+    @Value("${tes.coordinator.peers:}")
+    private String peersProperty;
+    @Value("${tes.coordinator.shard-bytes:16777216}")
+    private int shardBytes;
+    // 0 means 2 per peer
+    @Value("${tes.coordinator.max-in-flight:0}")
+    private int maxInFlight;
+    @Value("${tes.coordinator.max-attempts:3}")
+    private int maxAttempts;
+    @Value("${tes.coordinator.timeout-seconds:600}")
+    private long timeoutSeconds;
+    private final List<URI> peers = new ArrayList<>();
+    private final AtomicLong retriedCount = new AtomicLong();
+    private HttpClient client;
+    private BufferPool shardPool;
+
+    @PostConstruct
+    public void init() {
+        for (String peer : peersProperty.split(",")) {
+            if (!peer.isBlank()) {
+                peers.add(URI.create(peer.trim().replaceAll("/+$", "")+"/api/v1/enrich"));
+            }
+        }
+        client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+        // shards in flight and the one being read
+        shardPool = bufferArena.newPool(shardBytes, (maxInFlight > 0 ? maxInFlight : 2*peers.size()) + 1, false);
+        if (!peers.isEmpty()) {
+            logger.info("Coordinator mode, peers {}, shard size {} bytes", peers, shardBytes);
+        }
+    }
+
+    public boolean isEnabled() {
+        return !peers.isEmpty();
+    }
+
+    public List<URI> getPeers() {
+        return List.copyOf(peers);
+    }
+
+    public long getRetriedCount() {
+        return retriedCount.get();
+    }
+
+    /**
+     * Totals of a sharded request, updated by the request thread, records and rejects are counted as if the whole input was enriched by one instance.
+     */
+    public static class Totals {
+        private volatile long records;
+        private volatile long rejected;
+        private volatile long bytesIn;
+        private volatile long bytesOut;
+        private volatile int shards;
+        private volatile int retries;
+
+        public long getRecords() {
+            return records;
+        }
+
+        public long getRejected() {
+            return rejected;
+        }
+
+        public long getBytesIn() {
+            return bytesIn;
+        }
+
+        public long getBytesOut() {
+            return bytesOut;
+        }
+
+        public int getShards() {
+            return shards;
+        }
+
+        public int getRetries() {
+            return retries;
+        }
+    }
+
+    private record Shard(int index, byte[] data, int length, String query) {}
+
+    private record ShardResult(Shard shard, Path path, long records, long rejected, int attempts) {}
+
+    /**
+     * Enriches the input on peers and writes the result to out, parallelism (may be null) is passed to peers.
+     * IOException is thrown when a shard fails on tes.coordinator.max-attempts peers.
+     */
+    public void enrich(InputStream in, OutputStream out, Integer parallelism, Totals totals) throws IOException {
+        String query = parallelism!=null ? "?parallelism="+parallelism : "";
+        int limit = maxInFlight > 0 ? maxInFlight : 2*peers.size();
+        ArrayDeque<CompletableFuture<ShardResult>> inFlight = new ArrayDeque<>();
+        // reading waits when the budget of the arena is exhausted
+        ByteBuffer chunk = shardPool.acquire();
+        byte[] data = chunk.array();
+        int length = 0;
+        int index = 0;
+        boolean eof = false;
+        try {
+            while (!eof) {
+                length += in.readNBytes(data, length, data.length - length);
+                eof = length < data.length;
+                int cut = eof ? length : ParallelEnrichmentPipeline.lineAlignedCut(data, length);
+                if (cut < 0) {
+                    // a longer line than a shard is collected in a bigger array outside of the arena
+                    data = Arrays.copyOf(data, data.length*2);
+                    release(chunk);
+                    chunk = null;
+                    continue;
+                }
+                // the rest after the last line end starts the next shard, copied before this one is sent
+                int carryLength = length - cut;
+                ByteBuffer nextChunk = null;
+                byte[] next = null;
+                if (!eof) {
+                    nextChunk = carryLength*2 > shardBytes ? null : shardPool.acquire();
+                    next = nextChunk!=null ? nextChunk.array() : new byte[carryLength*2];
+                    System.arraycopy(data, cut, next, 0, carryLength);
+                }
+                if (cut > 0) {
+                    ByteBuffer sent = chunk;
+                    inFlight.add(send(new Shard(index++, data, cut, query), 0)
+                        .whenComplete((result, error) -> release(sent)));
+                }
+                else {
+                    release(chunk);
+                }
+                chunk = nextChunk;
+                data = next;
+                length = carryLength;
+                while (inFlight.size() >= limit) {
+                    write(inFlight.poll(), out, totals);
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                write(inFlight.poll(), out, totals);
+            }
+        }
+        finally {
+            release(chunk);
+            // results of shards still in flight are not needed anymore
+            inFlight.forEach(future -> future.thenAccept(result -> deleteQuietly(result.path())));
+        }
+    }
+
+    private void release(ByteBuffer chunk) {
+        if (chunk!=null) {
+            shardPool.release(chunk);
+        }
+    }
+
+    private CompletableFuture<ShardResult> send(Shard shard, int attempt) {
+        URI peer = URI.create(peers.get((shard.index() + attempt) % peers.size())+shard.query());
+        Path path;
+        try {
+            path = resultStoreFactory.newSpillPath();
+        }
+        catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        HttpRequest.BodyPublisher body = HttpRequest.BodyPublishers.ofByteArray(shard.data(), 0, shard.length());
+        if (shard.index() > 0) {
+            body = HttpRequest.BodyPublishers.concat(HttpRequest.BodyPublishers.ofByteArray(SHARD_HEADER), body);
+        }
+        HttpRequest request = HttpRequest.newBuilder(peer)
+            .timeout(Duration.ofSeconds(timeoutSeconds))
+            .header("Content-Type", "text/csv")
+            .POST(body)
+            .build();
+        return client.sendAsync(request, HttpResponse.BodyHandlers.ofFile(path))
+            .handle((response, error) -> {
+                if (error==null && response.statusCode()==200) {
+                    // the header line sent with the shard is counted by the peer as a record and as an empty one
+                    long header = shard.index() > 0 ? 1 : 0;
+                    return CompletableFuture.completedFuture(new ShardResult(shard, path,
+                        count(response, RECORD_COUNT_HEADER) - header, count(response, REJECTED_COUNT_HEADER) - header,
+                        attempt + 1));
+                }
+                deleteQuietly(path);
+                String reason = error!=null ? error.toString() : "status "+response.statusCode();
+                if (attempt + 1 >= Math.min(maxAttempts, peers.size())) {
+                    return CompletableFuture.<ShardResult>failedFuture(new IOException("Shard "+shard.index()+
+                        " failed on "+(attempt + 1)+" peers, last "+peer+": "+reason));
+                }
+                logger.warn("Shard {} failed on {}: {}, retrying on the next peer", shard.index(), peer, reason);
+                retriedCount.incrementAndGet();
+                return send(shard, attempt + 1);
+            })
+            .thenCompose(future -> future);
+    }
+
+    private static long count(HttpResponse<?> response, String header) {
+        return response.headers().firstValueAsLong(header).orElse(0);
+    }
+
+    private void write(CompletableFuture<ShardResult> future, OutputStream out, Totals totals) throws IOException {
+        ShardResult result;
+        try {
+            result = future.join();
+        }
+        catch (CompletionException e) {
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+        }
+        try (FileChannel file = FileChannel.open(result.path(), StandardOpenOption.READ)) {
+            if (result.shard().index() > 0) {
+                ByteBuffer head = ByteBuffer.allocate(ENRICHED_HEADER.length);
+                file.read(head, 0);
+                file.position(Arrays.equals(head.array(), ENRICHED_HEADER) ? ENRICHED_HEADER.length : 0);
+            }
+            long sent = Channels.newInputStream(file).transferTo(out);
+            totals.records += result.records();
+            totals.rejected += result.rejected();
+            totals.bytesIn += result.shard().length();
+            totals.bytesOut += sent;
+            totals.shards++;
+            totals.retries += result.attempts() - 1;
+        }
+        finally {
+            deleteQuietly(result.path());
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        }
+        catch (IOException e) {
+            logger.warn("Can't delete shard result {}: {}", path, e.getMessage());
+        }
+    }
+}
@@ -1,59 +1,146 @@
 package com.verygoodbank.tes.service;
 
-import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.Optional;
-import java.util.concurrent.ConcurrentHashMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.stereotype.Service;
 
+import com.verygoodbank.tes.csv.CsvTokenizer;
 import com.verygoodbank.tes.model.Trade;
+import com.verygoodbank.tes.model.ValidationException;
+import com.verygoodbank.tes.output.TradeEncoder;
+import com.verygoodbank.tes.store.ResultCache;
 
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Enriches trades with product names of the current catalog version. The catalog can be loaded in background
+ * (tes.catalog.background-load), so the server starts meanwhile and requests wait only for the first version.
+ * Watching of the catalog file runs while the context is started, so it's stopped for a CRaC checkpoint.
+ */
 @Service
-public class TradeEnrichmentService {
+@Lazy(false)
+public class TradeEnrichmentService implements SmartLifecycle {
 
     public final static String ENRICHED_CSV_HEADER = "date,product_name,currency,price\r\n";
-    // Please note that this text is not compliant with requirements, but more sane
-    // when trying to reconcile product definitions between consumer and provider
-    public final static String TXT_ON_MISSING = "Missing Product Name for ID=";
+    public final static String TXT_ON_MISSING = Trade.TXT_ON_MISSING;
+    public final static byte[] TXT_ON_MISSING_UTF8 = TXT_ON_MISSING.getBytes(StandardCharsets.UTF_8);
     private final static Logger logger = LoggerFactory.getLogger(TradeEnrichmentService.class);
-    private ConcurrentHashMap<String,String> productIdToNameMap = new ConcurrentHashMap<>();
+    private volatile ProductDictionary productDictionary = ProductDictionary.empty();
+    private final AtomicLong versionSequence = new AtomicLong();
+    private volatile long lastReloadMillis = 0;
+    private volatile long lastReloadTime = 0;
+
+    @Autowired
+    private ResultCache resultCache;
+    // Empty path means the catalog bundled in classpath (products.csv)
+    @Value("${tes.catalog.path:}")
+    private String catalogPath;
+    @Value("${tes.catalog.watch:true}")
+    private boolean watchCatalog;
+    @Value("${tes.catalog.watch-delay-ms:500}")
+    private long watchDelayMillis;
+    @Value("${tes.catalog.background-load:false}")
+    private boolean backgroundLoad;
+    // longer lines are rejected instead of being collected in memory
+    @Value("${tes.enrich.max-line-bytes:1048576}")
+    private int maxLineBytes = CsvTokenizer.DEFAULT_MAX_LINE_BYTES;
+    private volatile Future<?> initialLoad;
+    private final ExecutorService reloadExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "catalog-reload");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile WatchService watchService;
 
-    public TradeEnrichmentService() {
-        readProductMap();
+    @PostConstruct
+    public void init() {
+        if (backgroundLoad) {
+            initialLoad = reloadProductMap();
+        }
+        else {
+            readProductMap();
+        }
     }
 
-    public void readProductMap() {
-        try {
-            ClassPathResource file = new ClassPathResource("products.csv");
-            ConcurrentHashMap<String,String> _productIdToNameMap = new ConcurrentHashMap<>();
-            try (InputStream fis = file.getInputStream(); InputStreamReader isr = new InputStreamReader(fis);
-                BufferedReader reader = new BufferedReader(isr)) {
-                String line = null;
-                while ((line = reader.readLine()) != null) {
-                    if (!line.isBlank()) {
-                        String map[] = line.split("\\,");
-                        if (map.length!=2 || map[0].isBlank() || map[1].isBlank()) {
-                            logger.warn("Invalid product line: "+line);
-                        }
-                        else {
-                            String prev = _productIdToNameMap.put(map[0].trim(), map[1].trim());
-                            if (prev!=null) {
-                                logger.warn("Duplicated product line: "+line);
-                            }
-                        }
-                    }
-                }
+    @PreDestroy
+    public void shutdown() throws IOException {
+        reloadExecutor.shutdownNow();
+        stop();
+    }
+
+    @Override
+    public void start() {
+        if (watchCatalog && !catalogPath.isBlank()) {
+            startWatching(Path.of(catalogPath).toAbsolutePath());
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (watchService!=null) {
+            try {
+                watchService.close();
             }
-            if (_productIdToNameMap.isEmpty()) {
+            catch (IOException e) {
+                logger.warn("Can't stop watching product catalog: "+e.getMessage());
+            }
+            watchService = null;
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return watchService!=null;
+    }
+
+    /**
+     * Builds new version of the product dictionary and makes it current.
+     * Readers that already took a snapshot keep using the previous version.
+     */
+    public synchronized void readProductMap() {
+        try {
+            long startTime = System.currentTimeMillis();
+            long version = versionSequence.get() + 1;
+            ProductDictionary _productDictionary = ProductDictionary.parse(readCatalog(), version,
+                problem -> logger.warn(problem));
+            if (_productDictionary.size()==0) {
                 logger.warn("ProductIdToNameMap is empty, not reloading");
             }
             else {
-                productIdToNameMap = _productIdToNameMap;
+                versionSequence.set(version);
+                productDictionary = _productDictionary;
+                resultCache.invalidate(version);
+                lastReloadTime = System.currentTimeMillis();
+                lastReloadMillis = lastReloadTime - startTime;
+                logger.info("Product catalog version {} with {} entries loaded in {} ms", version,
+                    _productDictionary.size(), lastReloadMillis);
             }
         }
         catch (Exception e) {
@@ -62,13 +149,198 @@ public class TradeEnrichmentService {
             throw new RuntimeException(msg, e);
         }
     }
-    
+
+    /**
+     * Reloads the catalog in background.
+     */
+    public Future<?> reloadProductMap() {
+        return reloadExecutor.submit(this::readProductMap);
+    }
+
+    private ByteBuffer readCatalog() throws IOException {
+        if (catalogPath.isBlank()) {
+            try (InputStream is = new ClassPathResource("products.csv").getInputStream()) {
+                return ByteBuffer.wrap(is.readAllBytes());
+            }
+        }
+        // The catalog can be rewritten in place while mapped, so a private copy is mapped.
+        // Unlinked copy stays valid until the mapping is garbage collected.
+        Path snapshot = Files.createTempFile("trade-enrichment-catalog-", ".csv");
+        try {
+            Files.copy(Path.of(catalogPath), snapshot, StandardCopyOption.REPLACE_EXISTING);
+            try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new IOException("Catalog bigger than 2GB is not supported: "+catalogPath);
+                }
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+        finally {
+            try {
+                Files.delete(snapshot);
+            }
+            catch (IOException e) {
+                // platforms without support for deletion of mapped files
+                snapshot.toFile().deleteOnExit();
+            }
+        }
+    }
+
+    private synchronized void startWatching(Path catalog) {
+        WatchService watchService;
+        try {
+            watchService = catalog.getFileSystem().newWatchService();
+            catalog.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        }
+        catch (IOException e) {
+            logger.error("Can't watch product catalog "+catalog+" for changes", e);
+            return;
+        }
+        Thread watcher = new Thread(() -> {
+            try {
+                for (;;) {
+                    WatchKey key = watchService.take();
+                    boolean changed = false;
+                    // let the writer finish, events of single update come in bursts
+                    do {
+                        for (WatchEvent<?> event : key.pollEvents()) {
+                            changed |= catalog.getFileName().equals(event.context());
+                        }
+                        key.reset();
+                    } while ((key = watchService.poll(watchDelayMillis, TimeUnit.MILLISECONDS))!=null);
+                    if (changed) {
+                        logger.info("Product catalog {} changed, reloading", catalog);
+                        reloadProductMap();
+                    }
+                }
+            }
+            catch (InterruptedException | ClosedWatchServiceException e) {
+                logger.info("Stopped watching product catalog");
+            }
+        }, "catalog-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+        this.watchService = watchService;
+    }
+
+    /**
+     * Current version of product dictionary, to be used for the whole request.
+     */
+    public ProductDictionary snapshot() {
+        ProductDictionary dictionary = productDictionary;
+        Future<?> load = initialLoad;
+        if (dictionary.getVersion()==0 && load!=null) {
+            // first version is still being loaded in background
+            try {
+                load.get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while product catalog is loaded");
+            }
+            catch (ExecutionException e) {
+                throw new IllegalStateException("Product catalog can't be loaded", e.getCause());
+            }
+            dictionary = productDictionary;
+        }
+        return dictionary;
+    }
+
     public Trade enrichTrade(Trade t) {
+        return enrichTrade(t, productDictionary);
+    }
+
+    public Trade enrichTrade(Trade t, ProductDictionary dictionary) {
         String productId = t.getProductId();
         if (productId!=null) {
-            String name = productIdToNameMap.get(productId);
-            t.setProductName(Optional.ofNullable(name).orElseGet( () -> TXT_ON_MISSING+productId ));
+            int index = dictionary.indexOf(productId);
+            t.setProductIndex(index);
+            if (index!=ProductDictionary.NOT_FOUND) {
+                t.setProductName(dictionary.name(index));
+            }
+            else {
+                // name is not built per trade, encoders write TXT_ON_MISSING_UTF8 and the id
+                t.setProductMissing();
+            }
         }
         return t;
     }
+
+    /**
+     * Parses, validates and enriches the current line of the tokenizer and writes it to the encoder.
+     * Invalid line is reported with recordsCount as its line number. Returns false when the line was rejected.
+     */
+    public boolean processSingleRecord(CsvTokenizer tokenizer, long recordsCount, RejectReporter.Rejects rejects,
+        TradeEncoder encoder, long startTime, ProductDictionary dictionary, EnrichmentMetrics.Recorder recorder)
+        throws IOException
+    {
+        return processSingleRecord(tokenizer, recordsCount, recordsCount==1, rejects, encoder, startTime, dictionary,
+            recorder);
+    }
+
+    /**
+     * Same as above, the line may be a header when firstLine is true.
+     */
+    public boolean processSingleRecord(CsvTokenizer tokenizer, long recordsCount, boolean firstLine,
+        RejectReporter.Rejects rejects, TradeEncoder encoder, long startTime, ProductDictionary dictionary,
+        EnrichmentMetrics.Recorder recorder) throws IOException
+    {
+        long sample = recorder.startRecord();
+        Trade trade = null;
+        try {
+            trade = Trade.fromCsvRecord(tokenizer, firstLine);
+        }
+        catch (ValidationException ve) {
+            recorder.invalid(ve.getReason());
+            rejects.reject(recordsCount, ve.getReason(), ve.getMessage(), ve.getContent());
+            return false;
+        }   
+        
+        sample = recorder.stage(EnrichmentMetrics.Stage.PARSE, sample);
+        if (trade!=null && !trade.isLikelyHeader()) {
+            enrichTrade(trade, dictionary);
+            sample = recorder.stage(EnrichmentMetrics.Stage.ENRICH, sample);
+            // lines are buffered, the time of writing buffers out is included
+            encoder.write(trade);
+            recorder.stage(EnrichmentMetrics.Stage.SERIALIZE, sample);
+        }
+        else {
+            // header line as well, it has always been counted as an empty record
+            recorder.invalid(ValidationException.Reason.EMPTY);
+            rejects.reject(recordsCount, ValidationException.Reason.EMPTY, null, tokenizer.line());
+        }  
+        if (recordsCount % 1_000_000 == 0) {
+            long mlns = recordsCount/1_000_000;
+            long seconds = (System.currentTimeMillis()-startTime)/1000L;
+            double throughput = Math.round(100.0*mlns/seconds)/100.0;
+            logger.info("Currenly processed {} mln records, wall time is {}s, throughput {} mln/s",
+                mlns, seconds, throughput);
+        }
+        return true;
+    }
+
+    public int getMaxLineBytes() {
+        return maxLineBytes;
+    }
+
+    public int getProductCount() {
+        return productDictionary.size();
+    }
+
+    public long getCatalogVersion() {
+        return productDictionary.getVersion();
+    }
+
+    public long getLastReloadMillis() {
+        return lastReloadMillis;
+    }
+
+    public long getLastReloadTime() {
+        return lastReloadTime;
+    }
+
+    public String getCatalogSource() {
+        return catalogPath.isBlank() ? "classpath:products.csv" : catalogPath;
+    }
 }
@@ -0,0 +1,228 @@
+package com.verygoodbank.tes.store;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decouples the producer from a possibly stalled consumer. Writes never block on the target,
+ * they go to a bounded in-memory ring and, when the ring is full, to a spill file.
+ * A drainer running on the given executor moves the backlog to the target in order,
+ * flushing the target whenever the backlog is empty, so a consumer that reads while writing gets data immediately.
+ * Closing waits until the whole backlog is delivered.
+ */
+public class BacklogOutputStream extends OutputStream {
+
+    private final static Logger logger = LoggerFactory.getLogger(BacklogOutputStream.class);
+    private final static int DRAIN_BUFFER_SIZE = 64*1024;
+
+    private final OutputStream target;
+    private final SpillPathSupplier spillPathSupplier;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final byte[] ring;
+    private int ringHead = 0;
+    private int ringSize = 0;
+    private Path spillPath;
+    private FileChannel spill;
+    private long spillReadPos = 0;
+    private long spillWritePos = 0;
+    private boolean spilling = false;
+    private long maxBacklog = 0;
+    private boolean closed = false;
+    private volatile IOException drainError;
+    private final CompletableFuture<Void> drained;
+
+    public BacklogOutputStream(OutputStream target, Executor executor, int memoryCapacity,
+        SpillPathSupplier spillPathSupplier)
+    {
+        this.target = target;
+        this.spillPathSupplier = spillPathSupplier;
+        this.ring = new byte[memoryCapacity];
+        this.drained = CompletableFuture.runAsync(this::drain, executor);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte)b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (drainError!=null) {
+            throw new IOException("Consumer failed: "+drainError.getMessage(), drainError);
+        }
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (!spilling && ring.length - ringSize >= len) {
+                int tail = (ringHead + ringSize) % ring.length;
+                int first = Math.min(len, ring.length - tail);
+                System.arraycopy(b, off, ring, tail, first);
+                System.arraycopy(b, off + first, ring, 0, len - first);
+                ringSize += len;
+            }
+            else {
+                // once spilling, everything goes to the file until the consumer catches up
+                if (spill==null) {
+                    spillPath = spillPathSupplier.newSpillPath();
+                    spill = FileChannel.open(spillPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    logger.info("Consumer is not reading, backlog spilled to {}", spillPath);
+                }
+                spilling = true;
+                ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+                while (bb.hasRemaining()) {
+                    spillWritePos += spill.write(bb, spillWritePos);
+                }
+            }
+            maxBacklog = Math.max(maxBacklog, ringSize + spillWritePos - spillReadPos);
+            notEmpty.signal();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private void drain() {
+        byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+        ByteBuffer bb = ByteBuffer.wrap(buffer);
+        boolean unflushed = false;
+        try {
+            for (;;) {
+                int n = 0;
+                long spillPos = -1;
+                lock.lock();
+                try {
+                    if (ringSize==0 && spillWritePos==spillReadPos) {
+                        if (unflushed) {
+                            // backlog is empty, deliver what was written so far
+                            lock.unlock();
+                            try {
+                                target.flush();
+                            }
+                            finally {
+                                lock.lock();
+                            }
+                            unflushed = false;
+                            continue;
+                        }
+                        if (closed) {
+                            return;
+                        }
+                        notEmpty.await();
+                        continue;
+                    }
+                    if (ringSize > 0) {
+                        n = Math.min(buffer.length, ringSize);
+                        int first = Math.min(n, ring.length - ringHead);
+                        System.arraycopy(ring, ringHead, buffer, 0, first);
+                        System.arraycopy(ring, 0, buffer, first, n - first);
+                        ringHead = (ringHead + n) % ring.length;
+                        ringSize -= n;
+                    }
+                    else {
+                        // written region of the file is not modified, it can be read without the lock
+                        n = (int)Math.min(buffer.length, spillWritePos - spillReadPos);
+                        spillPos = spillReadPos;
+                    }
+                }
+                finally {
+                    lock.unlock();
+                }
+                if (spillPos >= 0) {
+                    bb.clear().limit(n);
+                    while (bb.hasRemaining()) {
+                        if (spill.read(bb, spillPos + bb.position()) < 0) {
+                            throw new IOException("Truncated spill file "+spillPath);
+                        }
+                    }
+                }
+                target.write(buffer, 0, n);
+                unflushed = true;
+                if (spillPos >= 0) {
+                    lock.lock();
+                    try {
+                        spillReadPos += n;
+                        if (spillReadPos==spillWritePos) {
+                            // consumer caught up, back to memory
+                            spillReadPos = spillWritePos = 0;
+                            spilling = false;
+                        }
+                    }
+                    finally {
+                        lock.unlock();
+                    }
+                }
+            }
+        }
+        catch (IOException e) {
+            drainError = e;
+        }
+        catch (InterruptedException e) {
+            drainError = new InterruptedIOException("Backlog draining interrupted");
+        }
+    }
+
+    /**
+     * Highest number of bytes written but not delivered yet.
+     */
+    public long getMaxBacklog() {
+        lock.lock();
+        try {
+            return maxBacklog;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notEmpty.signal();
+        }
+        finally {
+            lock.unlock();
+        }
+        try {
+            drained.get();
+        }
+        catch (InterruptedException e) {
+            drained.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the consumer");
+        }
+        catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        finally {
+            if (spill!=null) {
+                spill.close();
+                Files.deleteIfExists(spillPath);
+            }
+        }
+        if (drainError!=null) {
+            throw drainError;
+        }
+    }
+}
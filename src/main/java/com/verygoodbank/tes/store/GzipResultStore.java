@@ -0,0 +1,127 @@
+package com.verygoodbank.tes.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses content on the fly before it reaches the underlying store,
+ * so spill files and their delivery take a fraction of plain CSV size.
+ */
+public class GzipResultStore implements ResultStore {
+
+    public final static String GZIP = "gzip";
+    private final static int BUFFER_SIZE = 64*1024;
+
+    private final ResultStore delegate;
+    private final GZIPOutputStream gzip;
+    private byte[] scratch;
+    private long decodedLength = 0;
+    private boolean finished = false;
+
+    public GzipResultStore(ResultStore delegate, int level) {
+        this.delegate = delegate;
+        try {
+            this.gzip = new GZIPOutputStream(Channels.newOutputStream(delegate), BUFFER_SIZE) {
+                {
+                    def.setLevel(level);
+                }
+            };
+        }
+        catch (IOException e) {
+            // header goes to the store, memory store doesn't fail
+            throw new IllegalStateException("Can't start gzip stream", e);
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (finished || !delegate.isOpen()) {
+            throw new ClosedChannelException();
+        }
+        int n = src.remaining();
+        if (src.hasArray()) {
+            gzip.write(src.array(), src.arrayOffset() + src.position(), n);
+            src.position(src.limit());
+        }
+        else {
+            if (scratch==null) {
+                scratch = new byte[BUFFER_SIZE];
+            }
+            while (src.hasRemaining()) {
+                int chunk = Math.min(scratch.length, src.remaining());
+                src.get(scratch, 0, chunk);
+                gzip.write(scratch, 0, chunk);
+            }
+        }
+        decodedLength += n;
+        return n;
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (!finished) {
+            gzip.finish();
+            finished = true;
+        }
+        delegate.finish();
+    }
+
+    @Override
+    public long length() {
+        return delegate.length();
+    }
+
+    @Override
+    public long decodedLength() {
+        return decodedLength;
+    }
+
+    @Override
+    public String contentEncoding() {
+        return GZIP;
+    }
+
+    @Override
+    public boolean isSpilled() {
+        return delegate.isSpilled();
+    }
+
+    @Override
+    public ByteBuffer memoryContent() {
+        return delegate.memoryContent();
+    }
+
+    @Override
+    public FileChannel fileContent() {
+        return delegate.fileContent();
+    }
+
+    @Override
+    public Path path() {
+        return delegate.path();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return delegate.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            // releases native deflater, trailer written to discarded store doesn't matter
+            gzip.close();
+        }
+        catch (IOException e) {
+            // store is discarded anyway
+        }
+        finally {
+            delegate.close();
+        }
+    }
+}
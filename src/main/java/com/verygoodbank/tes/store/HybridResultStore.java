@@ -0,0 +1,192 @@
+package com.verygoodbank.tes.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps content in memory up to the threshold, above it the content is spilled to a temporary file.
+ * Gathering writes of spilled content are passed to the file as one call.
+ */
+public class HybridResultStore implements ResultStore, GatheringByteChannel {
+
+    private final static Logger logger = LoggerFactory.getLogger(HybridResultStore.class);
+    private final static int INITIAL_CAPACITY = 8*1024;
+    private final static ByteBuffer ZEROS = ByteBuffer.allocateDirect(1024*1024).asReadOnlyBuffer();
+
+    private final SpillPathSupplier spillPathSupplier;
+    private final int memoryThreshold;
+    private final boolean force;
+    private final long preallocateBytes;
+    private long allocated = 0;
+    private byte[] memory;
+    private Path path;
+    private FileChannel channel;
+    private long length = 0;
+    private boolean open = true;
+
+    public HybridResultStore(SpillPathSupplier spillPathSupplier, int memoryThreshold, boolean force) {
+        this(spillPathSupplier, memoryThreshold, force, 0);
+    }
+
+    /**
+     * Spill file is preallocated in extents of preallocateBytes (0 means no preallocation), so a full disk
+     * is detected when the extent is allocated and the file is less fragmented. It's truncated when finished.
+     */
+    public HybridResultStore(SpillPathSupplier spillPathSupplier, int memoryThreshold, boolean force,
+        long preallocateBytes)
+    {
+        this.spillPathSupplier = spillPathSupplier;
+        this.memoryThreshold = memoryThreshold;
+        this.force = force;
+        this.preallocateBytes = preallocateBytes;
+        this.memory = new byte[Math.min(INITIAL_CAPACITY, Math.max(memoryThreshold, 0))];
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        int n = src.remaining();
+        if (channel==null && length + n <= memoryThreshold) {
+            if (length + n > memory.length) {
+                memory = Arrays.copyOf(memory, (int)Math.min(memoryThreshold, Math.max(length + n, memory.length*2L)));
+            }
+            src.get(memory, (int)length, n);
+        }
+        else {
+            if (channel==null) {
+                spill();
+            }
+            preallocate(length + n);
+            while (src.hasRemaining()) {
+                channel.write(src);
+            }
+        }
+        length += n;
+        return n;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int count) throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        long n = 0;
+        for (int i=offset; i < offset + count; i++) {
+            n += srcs[i].remaining();
+        }
+        if (channel==null && length + n <= memoryThreshold) {
+            for (int i=offset; i < offset + count; i++) {
+                write(srcs[i]);
+            }
+            return n;
+        }
+        if (channel==null) {
+            spill();
+        }
+        preallocate(length + n);
+        for (long written = 0; written < n; ) {
+            written += channel.write(srcs, offset, count);
+        }
+        length += n;
+        return n;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    private void spill() throws IOException {
+        path = spillPathSupplier.newSpillPath();
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer bb = ByteBuffer.wrap(memory, 0, (int)length);
+        while (bb.hasRemaining()) {
+            channel.write(bb);
+        }
+        memory = null;
+        logger.debug("Spilled {} bytes to {}", length, path);
+    }
+
+    private void preallocate(long end) throws IOException {
+        if (preallocateBytes <= 0 || end <= allocated) {
+            return;
+        }
+        long target = Math.max(end, allocated + preallocateBytes);
+        // positional writes, the channel position stays at the end of content
+        for (long pos = Math.max(allocated, length); pos < target; ) {
+            ByteBuffer zeros = ZEROS.duplicate();
+            zeros.limit((int)Math.min(zeros.capacity(), target - pos));
+            pos += channel.write(zeros, pos);
+        }
+        allocated = target;
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (channel!=null && allocated > length) {
+            channel.truncate(length);
+        }
+        if (channel!=null && force) {
+            channel.force(false);
+        }
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public boolean isSpilled() {
+        return channel!=null;
+    }
+
+    @Override
+    public ByteBuffer memoryContent() {
+        return channel==null ? ByteBuffer.wrap(memory, 0, (int)length).asReadOnlyBuffer() : null;
+    }
+
+    @Override
+    public FileChannel fileContent() {
+        return channel;
+    }
+
+    @Override
+    public Path path() {
+        return channel!=null ? path : null;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!open) {
+            return;
+        }
+        open = false;
+        memory = null;
+        if (channel!=null) {
+            try {
+                channel.close();
+            }
+            finally {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,442 @@
+package com.verygoodbank.tes.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Enriched results of recent requests kept in spill files, keyed by SHA-256 of the request body, catalog version
+ * and the form of the result. Bounded by total size of the files, least recently used entries are evicted first.
+ * Entries of previous catalog versions are dropped when a new version becomes current.
+ * The digest is computed while the body is read (BodyDigest): bodies up to spool-max-bytes are copied to a store
+ * and looked up when they ended, larger ones are enriched while hashed and their results can be looked up before
+ * the body is read only by the digest declared by the caller.
+ */
+@Component
+public class ResultCache {
+
+    private final static Logger logger = LoggerFactory.getLogger(ResultCache.class);
+    private final static int SHA256_BYTES = 32;
+    private final static int SPOOL_BUFFER_SIZE = 64*1024;
+
+    @Autowired
+    private TempStoreManager tempStoreManager;
+    // 0 means no cache
+    @Value("${tes.cache.max-bytes:0}")
+    private long maxBytes;
+    // bodies up to the size are kept until they're looked up, 0 means only declared digests are looked up
+    @Value("${tes.cache.spool-max-bytes:8388608}")
+    private long spoolMaxBytes;
+    private final LinkedHashMap<String,Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+    private long catalogVersion = 0;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong savedBytes = new AtomicLong();
+    private final AtomicLong evictedCount = new AtomicLong();
+
+    @PreDestroy
+    public void shutdown() {
+        // keys are valid only for catalog versions of this process
+        invalidate(Long.MAX_VALUE);
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    public long getSpoolMaxBytes() {
+        return spoolMaxBytes;
+    }
+
+    /**
+     * SHA-256 in hex (e.g. of X-Content-SHA256 header), throws IllegalArgumentException when it's not one.
+     */
+    public static byte[] parseDigest(String hex) {
+        byte[] digest = HexFormat.of().parseHex(hex.trim());
+        if (digest.length!=SHA256_BYTES) {
+            throw new IllegalArgumentException("Not a SHA-256 digest: "+hex);
+        }
+        return digest;
+    }
+
+    public static String key(byte[] digest, long catalogVersion, String variant) {
+        return HexFormat.of().formatHex(digest)+"-"+catalogVersion+"-"+variant;
+    }
+
+    /**
+     * Counts a request enriched without lookup, its digest wasn't known upfront.
+     */
+    public void countMiss() {
+        misses.incrementAndGet();
+    }
+
+    /**
+     * Cached result or null, counted as hit or miss. The result is read-only and is to be closed when it's sent,
+     * its file isn't deleted before.
+     */
+    public CachedResult acquire(String key) throws IOException {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry==null) {
+                misses.incrementAndGet();
+                return null;
+            }
+            entry.readers++;
+        }
+        try {
+            CachedResult result = new CachedResult(entry, FileChannel.open(entry.path, StandardOpenOption.READ));
+            hits.incrementAndGet();
+            savedBytes.addAndGet(entry.decodedLength);
+            return result;
+        }
+        catch (IOException e) {
+            release(entry);
+            throw e;
+        }
+    }
+
+    /**
+     * Keeps finished result of the catalog version under the key. Spilled content is linked, not copied.
+     * Results of a catalog version which isn't current anymore and results bigger than the cache are not kept.
+     */
+    public void put(String key, long catalogVersion, ResultStore store, long records, long rejected) {
+        synchronized (this) {
+            if (catalogVersion!=this.catalogVersion || store.length() > maxBytes || entries.containsKey(key)) {
+                return;
+            }
+        }
+        Path path = null;
+        try {
+            if (store.path()!=null) {
+                path = tempStoreManager.newLink(store.path());
+            }
+            else {
+                path = tempStoreManager.newSpillPath();
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                    ByteBuffer content = store.memoryContent();
+                    while (content.hasRemaining()) {
+                        channel.write(content);
+                    }
+                }
+            }
+        }
+        catch (IOException e) {
+            logger.warn("Can't cache result: {}", e.getMessage());
+            delete(path);
+            return;
+        }
+        Entry entry = new Entry(path, store.length(), store.decodedLength(), store.contentEncoding(), records,
+            rejected);
+        List<Entry> evicted = new ArrayList<>();
+        synchronized (this) {
+            if (catalogVersion!=this.catalogVersion || entries.containsKey(key)) {
+                evicted.add(entry);
+            }
+            else {
+                entries.put(key, entry);
+                bytes += entry.length;
+                for (Iterator<Entry> i = entries.values().iterator(); i.hasNext() && bytes > maxBytes; ) {
+                    Entry eldest = i.next();
+                    i.remove();
+                    bytes -= eldest.length;
+                    evictedCount.incrementAndGet();
+                    evicted.add(eldest);
+                }
+            }
+        }
+        evicted.forEach(this::evict);
+    }
+
+    /**
+     * Makes the catalog version current, entries of other versions are dropped.
+     */
+    public void invalidate(long catalogVersion) {
+        List<Entry> evicted;
+        synchronized (this) {
+            this.catalogVersion = catalogVersion;
+            evicted = new ArrayList<>(entries.values());
+            entries.clear();
+            bytes = 0;
+        }
+        if (!evicted.isEmpty()) {
+            logger.info("Dropped {} cached results of previous catalog versions", evicted.size());
+        }
+        evicted.forEach(this::evict);
+    }
+
+    private void evict(Entry entry) {
+        boolean unused;
+        synchronized (this) {
+            entry.evicted = true;
+            unused = entry.readers==0;
+        }
+        if (unused) {
+            delete(entry.path);
+        }
+    }
+
+    private void release(Entry entry) {
+        boolean delete;
+        synchronized (this) {
+            delete = --entry.readers==0 && entry.evicted;
+        }
+        if (delete) {
+            delete(entry.path);
+        }
+    }
+
+    private static void delete(Path path) {
+        if (path==null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(path);
+        }
+        catch (IOException e) {
+            logger.warn("Can't delete cached result {}: {}", path, e.getMessage());
+        }
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Share of lookups answered from the cache.
+     */
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total==0 ? 0.0 : (double)h/total;
+    }
+
+    /**
+     * Bytes of enriched results sent from the cache instead of being enriched again.
+     */
+    public long getSavedBytes() {
+        return savedBytes.get();
+    }
+
+    public long getEvictedCount() {
+        return evictedCount.get();
+    }
+
+    /**
+     * SHA-256 of a request body computed while the body is read through wrap(), with the digest the caller
+     * declared (null when not known upfront). Keys are valid when the body was read to its end.
+     */
+    public static class BodyDigest {
+        private final MessageDigest digest;
+        private final byte[] declared;
+        private final long catalogVersion;
+        private final String variant;
+        private byte[] value;
+
+        public BodyDigest(byte[] declared, long catalogVersion, String variant) {
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            }
+            catch (NoSuchAlgorithmException e) {
+                // every JDK has SHA-256
+                throw new IllegalStateException(e);
+            }
+            this.declared = declared;
+            this.catalogVersion = catalogVersion;
+            this.variant = variant;
+        }
+
+        public InputStream wrap(InputStream in) {
+            return new DigestInputStream(in, digest);
+        }
+
+        /**
+         * Copies the body read through the digest to the store until it ends or the store holds more than maxBytes,
+         * the store is finished. Returns true when the whole body was copied, its digest is known then, otherwise
+         * the rest of the body is to be read through wrap().
+         */
+        public boolean spool(InputStream in, ResultStore store, long maxBytes) throws IOException {
+            InputStream body = wrap(in);
+            byte[] buffer = new byte[SPOOL_BUFFER_SIZE];
+            boolean ended = false;
+            while (store.length() <= maxBytes) {
+                int n = body.read(buffer);
+                if (n < 0) {
+                    ended = true;
+                    break;
+                }
+                store.write(ByteBuffer.wrap(buffer, 0, n));
+            }
+            store.finish();
+            return ended;
+        }
+
+        /**
+         * Key of the declared digest to look up before the body is read, null when none was declared.
+         */
+        public String declaredKey() {
+            return declared!=null ? ResultCache.key(declared, catalogVersion, variant) : null;
+        }
+
+        /**
+         * Digest of the whole body, to be called when the body was read to its end.
+         */
+        public byte[] digest() {
+            if (value==null) {
+                value = digest.digest();
+            }
+            return value;
+        }
+
+        public boolean matchesDeclared() {
+            return declared==null || MessageDigest.isEqual(digest(), declared);
+        }
+
+        public String key() {
+            return ResultCache.key(digest(), catalogVersion, variant);
+        }
+    }
+
+    private static class Entry {
+        final Path path;
+        final long length;
+        final long decodedLength;
+        final String contentEncoding;
+        final long records;
+        final long rejected;
+        // guarded by the cache
+        int readers;
+        boolean evicted;
+
+        Entry(Path path, long length, long decodedLength, String contentEncoding, long records, long rejected) {
+            this.path = path;
+            this.length = length;
+            this.decodedLength = decodedLength;
+            this.contentEncoding = contentEncoding;
+            this.records = records;
+            this.rejected = rejected;
+        }
+    }
+
+    /**
+     * Read-only view of a cached result with its own channel, closing it releases the entry.
+     */
+    public class CachedResult implements ResultStore {
+        private final Entry entry;
+        private final FileChannel channel;
+        private boolean open = true;
+
+        private CachedResult(Entry entry, FileChannel channel) {
+            this.entry = entry;
+            this.channel = channel;
+        }
+
+        public long getRecords() {
+            return entry.records;
+        }
+
+        public long getRejected() {
+            return entry.rejected;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long length() {
+            return entry.length;
+        }
+
+        @Override
+        public long decodedLength() {
+            return entry.decodedLength;
+        }
+
+        @Override
+        public String contentEncoding() {
+            return entry.contentEncoding;
+        }
+
+        @Override
+        public void finish() {
+        }
+
+        @Override
+        public boolean isSpilled() {
+            return true;
+        }
+
+        @Override
+        public ByteBuffer memoryContent() {
+            return null;
+        }
+
+        @Override
+        public FileChannel fileContent() {
+            return channel;
+        }
+
+        @Override
+        public Path path() {
+            return entry.path;
+        }
+
+        @Override
+        public synchronized boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (this) {
+                if (!open) {
+                    return;
+                }
+                open = false;
+            }
+            try {
+                channel.close();
+            }
+            finally {
+                release(entry);
+            }
+        }
+    }
+}
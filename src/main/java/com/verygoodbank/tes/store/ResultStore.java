@@ -0,0 +1,72 @@
+package com.verygoodbank.tes.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+
+/**
+ * Holds enriched content until it is delivered to the caller.
+ * Closing the store discards its content.
+ */
+public interface ResultStore extends WritableByteChannel {
+
+    long length();
+
+    /**
+     * Completes writing, content is not modified afterwards.
+     */
+    void finish() throws IOException;
+
+    boolean isSpilled();
+
+    /**
+     * Read-only view of content kept in memory or null when store was spilled to disk.
+     */
+    ByteBuffer memoryContent();
+
+    /**
+     * Channel of spill file or null when content is kept in memory.
+     */
+    FileChannel fileContent();
+
+    /**
+     * Spill file or null when content is kept in memory.
+     */
+    default Path path() {
+        return null;
+    }
+
+    /**
+     * Reads finished content from the beginning, as stored. Closing the stream closes the spill channel.
+     */
+    default InputStream newInputStream() throws IOException {
+        ByteBuffer memory = memoryContent();
+        if (memory!=null) {
+            byte[] bytes = new byte[memory.remaining()];
+            memory.get(bytes);
+            return new ByteArrayInputStream(bytes);
+        }
+        FileChannel file = fileContent();
+        file.position(0);
+        return Channels.newInputStream(file);
+    }
+
+    /**
+     * Encoding of stored content (e.g. gzip) or null when content is stored as written.
+     */
+    default String contentEncoding() {
+        return null;
+    }
+
+    /**
+     * Length of content before encoding.
+     */
+    default long decodedLength() {
+        return length();
+    }
+}
@@ -0,0 +1,61 @@
+package com.verygoodbank.tes.store;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+@Component
+public class ResultStoreFactory {
+
+    public final static String SPILL_FILE_PREFIX = "trade-enrichment-svc-";
+    public final static String SPILL_FILE_SUFFIX = ".csv";
+
+    @Autowired
+    private TempStoreManager tempStoreManager;
+    @Value("${tes.store.memory-threshold:1048576}")
+    private int memoryThreshold;
+    @Value("${tes.store.force:false}")
+    private boolean force;
+    @Value("${tes.store.compress:false}")
+    private boolean compress;
+    @Value("${tes.compression.level:1}")
+    private int compressionLevel;
+    // spill files grow in extents of this size, 0 means no preallocation
+    @Value("${tes.store.preallocate-bytes:0}")
+    private long preallocateBytes;
+
+    public ResultStore newStore() {
+        return newStore(compress);
+    }
+
+    /**
+     * Creates store, compressed one keeps gzip stream ready to be sent with Content-Encoding: gzip.
+     */
+    public ResultStore newStore(boolean compressed) {
+        ResultStore store = new HybridResultStore(this::newSpillPath, memoryThreshold, force,
+            preallocateBytes);
+        return compressed ? new GzipResultStore(store, compressionLevel) : store;
+    }
+
+    /**
+     * Total size of spill files in spill directories, including backlogs of /enrich-bidi.
+     */
+    public long getSpillBytesOnDisk() {
+        return tempStoreManager.getSpillBytesOnDisk();
+    }
+
+    public boolean isCompressed() {
+        return compress;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public Path newSpillPath() throws IOException {
+        return tempStoreManager.newSpillPath();
+    }
+}
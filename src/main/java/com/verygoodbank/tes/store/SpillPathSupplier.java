@@ -0,0 +1,8 @@
+package com.verygoodbank.tes.store;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+public interface SpillPathSupplier {
+    Path newSpillPath() throws IOException;
+}
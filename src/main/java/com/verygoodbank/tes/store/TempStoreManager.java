@@ -0,0 +1,368 @@
+package com.verygoodbank.tes.store;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Owns the spill directories: places new spill files round-robin across them, accounts disk quota
+ * reserved by requests and deletes spill files left behind by crashed processes.
+ * Every process spills to its own subdirectory of each spill directory, holding a lock on its lock file
+ * while it runs. Only subdirectories of processes which don't hold the lock anymore are swept, other files
+ * in the spill directories (e.g. the shared java.io.tmpdir) are never touched.
+ */
+@Component
+public class TempStoreManager {
+
+    private final static Logger logger = LoggerFactory.getLogger(TempStoreManager.class);
+    private final static String SPILL_FILE_PATTERN = ResultStoreFactory.SPILL_FILE_PREFIX+"*"+
+        ResultStoreFactory.SPILL_FILE_SUFFIX;
+    private final static String INSTANCE_DIR_PREFIX = ResultStoreFactory.SPILL_FILE_PREFIX+"instance-";
+    private final static String LOCK_FILE = "instance.lock";
+
+    /**
+     * Thrown when a request outgrows its reservation over the quota, requests answer it with the reject status.
+     */
+    public static class QuotaExceededException extends IOException {
+        public QuotaExceededException(long quotaBytes) {
+            super("Disk quota of "+quotaBytes+" bytes exceeded");
+        }
+    }
+
+    // Comma separated, empty means java.io.tmpdir
+    @Value("${tes.store.dirs:}")
+    private String dirsProperty;
+    // 0 means no quota
+    @Value("${tes.store.quota-bytes:0}")
+    private long quotaBytes;
+    @Value("${tes.store.quota-wait-ms:5000}")
+    private long quotaWaitMillis;
+    @Value("${tes.store.orphan-age-seconds:86400}")
+    private long orphanAgeSeconds;
+    @Value("${tes.store.sweep-interval-seconds:3600}")
+    private long sweepIntervalSeconds;
+    private final List<Path> dirs = new ArrayList<>();
+    // subdirectories of this process, one per spill directory, locked until shutdown
+    private final List<Path> instanceDirs = new ArrayList<>();
+    private final List<FileChannel> locks = new ArrayList<>();
+    private final AtomicInteger nextDir = new AtomicInteger();
+    private long reservedBytes = 0;
+    private final ArrayDeque<Object> waiters = new ArrayDeque<>();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong sweptCount = new AtomicLong();
+    private ScheduledExecutorService sweeper;
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (dirsProperty.isBlank()) {
+            dirs.add(Path.of(System.getProperty("java.io.tmpdir")));
+        }
+        for (String dir : dirsProperty.split(",")) {
+            if (!dir.isBlank()) {
+                dirs.add(Files.createDirectories(Path.of(dir.trim()).toAbsolutePath()));
+            }
+        }
+        for (Path dir : dirs) {
+            Path instanceDir = Files.createTempDirectory(dir, INSTANCE_DIR_PREFIX);
+            FileChannel lock = FileChannel.open(instanceDir.resolve(LOCK_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+            lock.lock();
+            instanceDirs.add(instanceDir);
+            locks.add(lock);
+        }
+        logger.info("Spill directories {}, quota {} bytes", instanceDirs, quotaBytes > 0 ? quotaBytes : "unlimited");
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "spill-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        sweeper.scheduleWithFixedDelay(this::sweep, 0, Math.max(1, sweepIntervalSeconds), TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        sweeper.shutdownNow();
+        for (int i=0; i < instanceDirs.size(); i++) {
+            try {
+                locks.get(i).close();
+                Files.deleteIfExists(instanceDirs.get(i).resolve(LOCK_FILE));
+                Files.deleteIfExists(instanceDirs.get(i));
+            }
+            catch (DirectoryNotEmptyException e) {
+                // spill files still in use, swept by a later process
+                logger.debug("Spill directory {} is not empty at shutdown", instanceDirs.get(i));
+            }
+            catch (IOException e) {
+                logger.warn("Can't remove spill directory {}: {}", instanceDirs.get(i), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Creates empty spill file in the next spill directory.
+     */
+    public Path newSpillPath() throws IOException {
+        Path dir = instanceDirs.get(Math.floorMod(nextDir.getAndIncrement(), instanceDirs.size()));
+        return Files.createTempFile(dir, ResultStoreFactory.SPILL_FILE_PREFIX, ResultStoreFactory.SPILL_FILE_SUFFIX);
+    }
+
+    /**
+     * New spill file in the directory of an existing one, sharing its content by a hard link (a copy when
+     * the file system doesn't support links), so it outlives deletion of the existing file.
+     */
+    public Path newLink(Path existing) throws IOException {
+        Path path = Files.createTempFile(existing.getParent(), ResultStoreFactory.SPILL_FILE_PREFIX,
+            ResultStoreFactory.SPILL_FILE_SUFFIX);
+        // the link replaces the placeholder at once
+        Path link = path.resolveSibling(path.getFileName()+".link");
+        try {
+            Files.createLink(link, existing);
+            Files.move(link, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (UnsupportedOperationException | IOException e) {
+            logger.debug("Can't link {}, copying: {}", existing, e.getMessage());
+            Files.deleteIfExists(link);
+            Files.copy(existing, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return path;
+    }
+
+    public class Reservation implements AutoCloseable {
+        private long bytes;
+        private boolean released = false;
+        // owner the reservation was detached to
+        private Reservation successor;
+
+        private Reservation(long bytes) {
+            this.bytes = bytes;
+        }
+
+        /**
+         * Grows the reservation to at least the bytes, e.g. read so far of a request without Content-Length.
+         * Doesn't wait, the request already holds its part of the quota; growth of a detached reservation
+         * is charged to its new owner.
+         */
+        public void grow(long newBytes) throws QuotaExceededException {
+            synchronized (TempStoreManager.this) {
+                if (released) {
+                    if (successor!=null) {
+                        successor.grow(newBytes);
+                    }
+                    return;
+                }
+                if (newBytes <= bytes) {
+                    return;
+                }
+                // like in reserve(), a request which is the only one reserved may outgrow the quota
+                if (quotaBytes > 0 && reservedBytes > bytes && reservedBytes + newBytes - bytes > quotaBytes) {
+                    rejectedCount.incrementAndGet();
+                    throw new QuotaExceededException(quotaBytes);
+                }
+                reservedBytes += newBytes - bytes;
+                bytes = newBytes;
+            }
+        }
+
+        /**
+         * Changes size of the reservation, e.g. to the actual size of a request without Content-Length.
+         * It's not checked against the quota, the bytes are already on disk.
+         */
+        public void resize(long newBytes) {
+            synchronized (TempStoreManager.this) {
+                if (!released) {
+                    reservedBytes += newBytes - bytes;
+                    bytes = newBytes;
+                    TempStoreManager.this.notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Moves the reservation to a new owner which outlives the current one (e.g. job after its upload),
+         * closing this instance doesn't release the bytes anymore.
+         */
+        public Reservation detach() {
+            synchronized (TempStoreManager.this) {
+                if (released) {
+                    return new Reservation(0);
+                }
+                released = true;
+                successor = new Reservation(bytes);
+                return successor;
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (TempStoreManager.this) {
+                if (!released) {
+                    released = true;
+                    reservedBytes -= bytes;
+                    TempStoreManager.this.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reserves disk quota for a request of declared size, waits up to tes.store.quota-wait-ms in order
+     * of arrival (admission runs on worker threads, which may block). Returns null when the quota is not
+     * available in time.
+     */
+    public Reservation reserve(long bytes) throws InterruptedException {
+        if (quotaBytes <= 0) {
+            synchronized (this) {
+                reservedBytes += bytes;
+                return new Reservation(bytes);
+            }
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(quotaWaitMillis);
+        Object ticket = new Object();
+        synchronized (this) {
+            waiters.add(ticket);
+            try {
+                // a request bigger than the whole quota is admitted only when nothing else is reserved
+                while (waiters.peek()!=ticket || (reservedBytes > 0 && reservedBytes + bytes > quotaBytes)) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        rejectedCount.incrementAndGet();
+                        return null;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+                reservedBytes += bytes;
+                return new Reservation(bytes);
+            }
+            finally {
+                waiters.remove(ticket);
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Deletes spill files of processes which don't hold the lock of their subdirectory anymore and were not
+     * modified for tes.store.orphan-age-seconds, emptied subdirectories are removed.
+     */
+    public void sweep() {
+        long threshold = System.currentTimeMillis() - orphanAgeSeconds*1000;
+        for (Path dir : dirs) {
+            try (DirectoryStream<Path> subdirs = Files.newDirectoryStream(dir, INSTANCE_DIR_PREFIX+"*")) {
+                for (Path subdir : subdirs) {
+                    if (Files.isDirectory(subdir) && !instanceDirs.contains(subdir)) {
+                        sweep(subdir, threshold);
+                    }
+                }
+            }
+            catch (IOException e) {
+                logger.warn("Can't sweep spill directory {}: {}", dir, e.getMessage());
+            }
+        }
+    }
+
+    private void sweep(Path subdir, long threshold) {
+        try (FileChannel channel = FileChannel.open(subdir.resolve(LOCK_FILE), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE))
+        {
+            FileLock lock = channel.tryLock();
+            if (lock==null) {
+                // the process is running
+                return;
+            }
+            boolean empty = true;
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(subdir, SPILL_FILE_PATTERN)) {
+                for (Path file : files) {
+                    try {
+                        if (Files.getLastModifiedTime(file).toMillis() < threshold) {
+                            long size = Files.size(file);
+                            Files.delete(file);
+                            sweptCount.incrementAndGet();
+                            logger.info("Deleted orphaned spill file {} of {} bytes", file, size);
+                        }
+                        else {
+                            empty = false;
+                        }
+                    }
+                    catch (IOException e) {
+                        // deleted meanwhile or not ours to delete
+                        empty = false;
+                        logger.debug("Can't sweep {}: {}", file, e.getMessage());
+                    }
+                }
+            }
+            if (empty) {
+                Files.delete(subdir.resolve(LOCK_FILE));
+                lock.release();
+                Files.delete(subdir);
+            }
+        }
+        catch (OverlappingFileLockException e) {
+            // locked by another instance in this JVM
+        }
+        catch (IOException e) {
+            logger.debug("Can't sweep {}: {}", subdir, e.getMessage());
+        }
+    }
+
+    /**
+     * Total size of spill files of this process, including backlogs of /enrich-bidi and job results.
+     */
+    public long getSpillBytesOnDisk() {
+        long total = 0;
+        for (Path dir : instanceDirs) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, SPILL_FILE_PATTERN)) {
+                for (Path file : files) {
+                    try {
+                        total += Files.size(file);
+                    }
+                    catch (IOException e) {
+                        // deleted meanwhile
+                    }
+                }
+            }
+            catch (IOException e) {
+                return -1;
+            }
+        }
+        return total;
+    }
+
+    public List<Path> getDirs() {
+        return List.copyOf(dirs);
+    }
+
+    public synchronized long getReservedBytes() {
+        return reservedBytes;
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public long getSweptCount() {
+        return sweptCount.get();
+    }
+}
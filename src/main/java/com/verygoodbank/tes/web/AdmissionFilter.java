@@ -0,0 +1,126 @@
+package com.verygoodbank.tes.web;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import com.verygoodbank.tes.service.EnrichmentMetrics;
+import com.verygoodbank.tes.service.LaneScheduler;
+import com.verygoodbank.tes.store.TempStoreManager;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Rejects enrichment requests, job uploads and session batches quickly when RequestAdmission limits are exhausted.
+ * Disk quota of TempStoreManager is reserved for the declared size of admitted requests, the request is rejected when
+ * it isn't available in time. The reservation of a request without Content-Length grows while its body is read.
+ * Permit is held until the last async dispatch of the request, i.e. until response is sent.
+ * Lane of the admitted request is kept in request attribute LANE_ATTRIBUTE for LaneScheduler.
+ */
+@Component
+public class AdmissionFilter extends OncePerRequestFilter {
+
+    private final static Logger logger = LoggerFactory.getLogger(AdmissionFilter.class);
+    private final static String PERMIT_ATTRIBUTE = AdmissionFilter.class.getName() + ".permit";
+    // disk quota reserved for the request, a job takes it over with Reservation.detach()
+    public final static String RESERVATION_ATTRIBUTE = AdmissionFilter.class.getName() + ".reservation";
+    public final static String LANE_ATTRIBUTE = AdmissionFilter.class.getName() + ".lane";
+
+    @Autowired
+    private RequestAdmission requestAdmission;
+    @Autowired
+    private TempStoreManager tempStoreManager;
+    @Autowired
+    private EnrichmentMetrics metrics;
+    @Value("${tes.admission.reject-status:503}")
+    private int rejectStatus;
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        // job uploads and session batches are admitted like enrichment requests, running jobs are limited by tes.jobs.*
+        String uri = request.getRequestURI();
+        return !uri.startsWith("/api/v1/enrich")
+            && !("POST".equals(request.getMethod()) && (uri.equals("/api/v1/jobs")
+                || (uri.startsWith("/api/v1/sessions/") && uri.endsWith("/batches"))));
+    }
+
+    @Override
+    protected boolean shouldNotFilterAsyncDispatch() {
+        return false;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+        throws ServletException, IOException
+    {
+        RequestAdmission.Permit permit = (RequestAdmission.Permit)request.getAttribute(PERMIT_ATTRIBUTE);
+        TempStoreManager.Reservation reservation = (TempStoreManager.Reservation)request.getAttribute(
+            RESERVATION_ATTRIBUTE);
+        if (permit==null) {
+            try {
+                permit = requestAdmission.tryAcquire(request.getContentLengthLong());
+                if (permit!=null) {
+                    // waits for disk quota up to tes.store.quota-wait-ms, the filter runs on a worker thread
+                    reservation = tempStoreManager.reserve(requestAdmission.bytesOf(request.getContentLengthLong()));
+                    if (reservation==null) {
+                        permit.close();
+                        logger.warn("Request rejected, reserved disk bytes: {}", tempStoreManager.getReservedBytes());
+                        response.setHeader("Retry-After", "1");
+                        response.sendError(rejectStatus, "Disk quota exhausted");
+                        return;
+                    }
+                }
+            }
+            catch (InterruptedException e) {
+                if (permit!=null) {
+                    permit.close();
+                    permit = null;
+                }
+                Thread.currentThread().interrupt();
+            }
+            if (permit==null) {
+                LaneScheduler.Lane lane = requestAdmission.laneOf(request.getContentLengthLong());
+                logger.warn("Request rejected, in-flight bytes: {}, available requests: {}, in-flight {} requests: {}",
+                    requestAdmission.getBytesInFlight(), requestAdmission.getAvailableRequests(), lane.tag(),
+                    requestAdmission.getInFlightRequests(lane));
+                response.setHeader("Retry-After", "1");
+                response.sendError(rejectStatus, "Too many requests in progress");
+                return;
+            }
+            if (request.getContentLengthLong() < 0) {
+                // reserved for the assumed size, grown while the body is read
+                request = new QuotaChargingRequest(request, reservation);
+            }
+            request.setAttribute(PERMIT_ATTRIBUTE, permit);
+            request.setAttribute(RESERVATION_ATTRIBUTE, reservation);
+            request.setAttribute(LANE_ATTRIBUTE, permit.getLane());
+        }
+        try {
+            chain.doFilter(request, response);
+        }
+        finally {
+            if (!request.isAsyncStarted()) {
+                permit.close();
+                reservation.close();
+                metrics.recordRequest(permit.getLane(), System.nanoTime() - permit.getAdmittedNanos());
+            }
+        }
+    }
+
+    /**
+     * Lane of the request admitted by the filter, bulk for requests the filter doesn't apply to.
+     */
+    public static LaneScheduler.Lane laneOf(ServletRequest request) {
+        LaneScheduler.Lane lane = (LaneScheduler.Lane)request.getAttribute(LANE_ATTRIBUTE);
+        return lane!=null ? lane : LaneScheduler.Lane.BULK;
+    }
+}
@@ -0,0 +1,87 @@
+package com.verygoodbank.tes.web;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+/**
+ * Content-Encoding of request bodies and Accept-Encoding negotiation of responses.
+ * Only gzip is supported, it's available in every JVM and fast enough at low levels.
+ */
+public class ContentCoding {
+
+    public final static String GZIP = "gzip";
+    private final static int BUFFER_SIZE = 64*1024;
+
+    private ContentCoding() {
+    }
+
+    /**
+     * Returns stream of decoded request body, fails with 415 for unsupported encodings.
+     */
+    public static InputStream decode(InputStream body, String contentEncoding) throws IOException {
+        if (contentEncoding==null || contentEncoding.isBlank() || contentEncoding.trim().equalsIgnoreCase("identity")) {
+            return body;
+        }
+        String coding = contentEncoding.trim();
+        if (coding.equalsIgnoreCase(GZIP) || coding.equalsIgnoreCase("x-gzip")) {
+            try {
+                return new GZIPInputStream(body, BUFFER_SIZE);
+            }
+            catch (ZipException e) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Body is not in gzip format", e);
+            }
+        }
+        throw new ResponseStatusException(HttpStatus.UNSUPPORTED_MEDIA_TYPE, "Unsupported Content-Encoding: "+coding);
+    }
+
+    /**
+     * Gzip stream of given compression level, level 1 is usually enough for repetitive CSV.
+     */
+    public static OutputStream encodeGzip(OutputStream output, int level) throws IOException {
+        return new GZIPOutputStream(output, BUFFER_SIZE) {
+            {
+                def.setLevel(level);
+            }
+        };
+    }
+
+    /**
+     * True when Accept-Encoding allows gzip, directly or by wildcard, with non-zero quality.
+     */
+    public static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding==null) {
+            return false;
+        }
+        Boolean wildcard = null;
+        for (String item : acceptEncoding.split(",")) {
+            String[] params = item.split(";");
+            String coding = params[0].trim();
+            boolean accepted = true;
+            for (int i=1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=") || param.startsWith("Q=")) {
+                    try {
+                        accepted = Double.parseDouble(param.substring(2).trim()) > 0;
+                    }
+                    catch (NumberFormatException e) {
+                        accepted = false;
+                    }
+                }
+            }
+            if (coding.equalsIgnoreCase(GZIP) || coding.equalsIgnoreCase("x-gzip")) {
+                return accepted;
+            }
+            if (coding.equals("*")) {
+                wildcard = accepted;
+            }
+        }
+        return wildcard!=null && wildcard;
+    }
+}
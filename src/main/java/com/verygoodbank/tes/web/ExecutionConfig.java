@@ -0,0 +1,73 @@
+package com.verygoodbank.tes.web;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+/**
+ * Enrichment endpoints return Callable, so parsing, enrichment, spilling and response streaming
+ * run on this executor instead of Undertow worker threads.
+ */
+@Configuration
+public class ExecutionConfig {
+
+    private final static Logger logger = LoggerFactory.getLogger(ExecutionConfig.class);
+
+    // Spring MVC uses executor of this name for Callable and StreamingResponseBody
+    @Bean(name = "applicationTaskExecutor", destroyMethod = "shutdown")
+    public AsyncTaskExecutor applicationTaskExecutor(@Value("${tes.exec.virtual-threads:false}") boolean virtual,
+        @Value("${tes.exec.threads:64}") int threads)
+    {
+        if (virtual) {
+            try {
+                ExecutorService executor = (ExecutorService)Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                logger.info("Enrichment requests run on virtual threads");
+                return new ShutdownableTaskExecutorAdapter(executor);
+            }
+            catch (ReflectiveOperationException e) {
+                logger.warn("Virtual threads are not supported by this JVM, using {} platform threads", threads);
+            }
+        }
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(threads);
+        executor.setMaxPoolSize(threads);
+        executor.setThreadNamePrefix("enrich-");
+        executor.setDaemon(true);
+        executor.initialize();
+        return executor;
+    }
+
+    // Delivers /enrich-bidi backlog to slow clients, separate pool so draining never waits for a request thread
+    @Bean(name = "bidiDrainExecutor", destroyMethod = "shutdownNow")
+    public ExecutorService bidiDrainExecutor() {
+        AtomicInteger sequence = new AtomicInteger();
+        return Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "bidi-drain-"+sequence.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private static class ShutdownableTaskExecutorAdapter extends TaskExecutorAdapter {
+        private final ExecutorService executor;
+
+        ShutdownableTaskExecutorAdapter(ExecutorService executor) {
+            super(executor);
+            this.executor = executor;
+        }
+
+        public void shutdown() {
+            executor.shutdownNow();
+        }
+    }
+}
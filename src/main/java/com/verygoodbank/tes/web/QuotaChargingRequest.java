@@ -0,0 +1,121 @@
+package com.verygoodbank.tes.web;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+import com.verygoodbank.tes.store.TempStoreManager;
+
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.Part;
+
+/**
+ * Request without Content-Length whose body grows its disk reservation as it's read, so spilled uploads are charged
+ * by their actual size. Reading fails with TempStoreManager.QuotaExceededException when the quota is exceeded.
+ * Multipart bodies are parsed by the container from the wrapped request, their parts are charged once they're parsed.
+ */
+class QuotaChargingRequest extends HttpServletRequestWrapper {
+
+    private final TempStoreManager.Reservation reservation;
+    private ServletInputStream input;
+    private boolean partsCharged = false;
+
+    QuotaChargingRequest(HttpServletRequest request, TempStoreManager.Reservation reservation) {
+        super(request);
+        this.reservation = reservation;
+    }
+
+    @Override
+    public ServletInputStream getInputStream() throws IOException {
+        if (input==null) {
+            input = new ChargingInputStream(super.getInputStream());
+        }
+        return input;
+    }
+
+    @Override
+    public BufferedReader getReader() throws IOException {
+        String encoding = getCharacterEncoding();
+        Charset charset = encoding!=null ? Charset.forName(encoding) : StandardCharsets.ISO_8859_1;
+        return new BufferedReader(new InputStreamReader(getInputStream(), charset));
+    }
+
+    @Override
+    public Collection<Part> getParts() throws IOException, ServletException {
+        Collection<Part> parts = super.getParts();
+        if (!partsCharged) {
+            long bytes = 0;
+            for (Part part : parts) {
+                bytes += part.getSize();
+            }
+            reservation.grow(bytes);
+            partsCharged = true;
+        }
+        return parts;
+    }
+
+    @Override
+    public Part getPart(String name) throws IOException, ServletException {
+        getParts();
+        return super.getPart(name);
+    }
+
+    private class ChargingInputStream extends ServletInputStream {
+        private final ServletInputStream in;
+        private long count = 0;
+
+        ChargingInputStream(ServletInputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                charge(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                charge(n);
+            }
+            return n;
+        }
+
+        private void charge(int n) throws IOException {
+            count += n;
+            reservation.grow(count);
+        }
+
+        @Override
+        public boolean isFinished() {
+            return in.isFinished();
+        }
+
+        @Override
+        public boolean isReady() {
+            return in.isReady();
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+            in.setReadListener(readListener);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
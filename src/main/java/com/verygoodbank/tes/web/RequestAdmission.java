@@ -0,0 +1,191 @@
+package com.verygoodbank.tes.web;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.verygoodbank.tes.service.LaneScheduler.Lane;
+
+/**
+ * Caps number of in-flight enrichment requests and their declared size.
+ * Requests declaring up to latency-max-bytes are in the latency lane, the others (and those without
+ * Content-Length) in the bulk lane. Each lane has its own limit of in-flight requests, so bulk uploads can't take
+ * the requests of small ones. Latency lane requests are not rejected by the byte limit.
+ */
+@Component
+public class RequestAdmission {
+
+    private final int maxRequests;
+    private final Semaphore requests;
+    private final long maxBytes;
+    private final long unknownLengthBytes;
+    private final long waitMillis;
+    private final AtomicLong bytesInFlight = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final long latencyMaxBytes;
+    private final LaneLimit[] lanes = new LaneLimit[Lane.values().length];
+
+    /**
+     * Admission without lanes, every request is in the bulk lane.
+     */
+    public RequestAdmission(int maxRequests, long maxBytes, long unknownLengthBytes, long waitMillis) {
+        this(maxRequests, maxBytes, unknownLengthBytes, waitMillis, -1, maxRequests, maxRequests);
+    }
+
+    @Autowired
+    public RequestAdmission(@Value("${tes.admission.max-requests:64}") int maxRequests,
+        @Value("${tes.admission.max-bytes:4294967296}") long maxBytes,
+        @Value("${tes.admission.unknown-length-bytes:1048576}") long unknownLengthBytes,
+        @Value("${tes.admission.wait-ms:0}") long waitMillis,
+        @Value("${tes.lanes.latency-max-bytes:262144}") long latencyMaxBytes,
+        @Value("${tes.lanes.latency.max-requests:48}") int latencyMaxRequests,
+        @Value("${tes.lanes.bulk.max-requests:16}") int bulkMaxRequests)
+    {
+        this.maxRequests = maxRequests;
+        this.requests = new Semaphore(maxRequests);
+        this.maxBytes = maxBytes;
+        this.unknownLengthBytes = unknownLengthBytes;
+        this.waitMillis = waitMillis;
+        this.latencyMaxBytes = latencyMaxBytes;
+        lanes[Lane.LATENCY.ordinal()] = new LaneLimit(latencyMaxRequests);
+        lanes[Lane.BULK.ordinal()] = new LaneLimit(bulkMaxRequests);
+    }
+
+    private static class LaneLimit {
+        final int maxRequests;
+        final Semaphore requests;
+        final AtomicInteger queued = new AtomicInteger();
+        final AtomicLong rejectedCount = new AtomicLong();
+
+        LaneLimit(int maxRequests) {
+            this.maxRequests = maxRequests;
+            this.requests = new Semaphore(maxRequests);
+        }
+    }
+
+    public class Permit implements AutoCloseable {
+        private final long bytes;
+        private final Lane lane;
+        private final long admittedNanos = System.nanoTime();
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(long bytes, Lane lane) {
+            this.bytes = bytes;
+            this.lane = lane;
+        }
+
+        public Lane getLane() {
+            return lane;
+        }
+
+        /**
+         * System.nanoTime() when the request was admitted.
+         */
+        public long getAdmittedNanos() {
+            return admittedNanos;
+        }
+
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) {
+                bytesInFlight.addAndGet(-bytes);
+                requests.release();
+                lanes[lane.ordinal()].requests.release();
+            }
+        }
+    }
+
+    /**
+     * Returns permit to be closed when request is done or null when limits are exhausted.
+     * Negative content length means it's not known upfront.
+     */
+    public Permit tryAcquire(long contentLength) throws InterruptedException {
+        long bytes = bytesOf(contentLength);
+        Lane lane = laneOf(contentLength);
+        LaneLimit limit = lanes[lane.ordinal()];
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+        limit.queued.incrementAndGet();
+        try {
+            if (!limit.requests.tryAcquire(waitMillis, TimeUnit.MILLISECONDS)) {
+                return reject(limit);
+            }
+            if (!requests.tryAcquire(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                limit.requests.release();
+                return reject(limit);
+            }
+        }
+        finally {
+            limit.queued.decrementAndGet();
+        }
+        for (;;) {
+            long current = bytesInFlight.get();
+            // a request bigger than the whole budget is admitted only when it is alone
+            if (lane==Lane.BULK && current > 0 && current + bytes > maxBytes) {
+                requests.release();
+                limit.requests.release();
+                return reject(limit);
+            }
+            if (bytesInFlight.compareAndSet(current, current + bytes)) {
+                return new Permit(bytes, lane);
+            }
+        }
+    }
+
+    private Permit reject(LaneLimit limit) {
+        limit.rejectedCount.incrementAndGet();
+        rejectedCount.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Lane of request of the content length, negative means it's not known upfront.
+     */
+    public Lane laneOf(long contentLength) {
+        return contentLength >= 0 && contentLength <= latencyMaxBytes ? Lane.LATENCY : Lane.BULK;
+    }
+
+    /**
+     * Size accounted for request of the content length, negative means it's not known upfront.
+     */
+    public long bytesOf(long contentLength) {
+        return contentLength < 0 ? unknownLengthBytes : contentLength;
+    }
+
+    public int getAvailableRequests() {
+        return requests.availablePermits();
+    }
+
+    public int getInFlightRequests() {
+        return maxRequests - requests.availablePermits();
+    }
+
+    public long getBytesInFlight() {
+        return bytesInFlight.get();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public int getInFlightRequests(Lane lane) {
+        LaneLimit limit = lanes[lane.ordinal()];
+        return limit.maxRequests - limit.requests.availablePermits();
+    }
+
+    /**
+     * Requests of the lane waiting for admission (tes.admission.wait-ms).
+     */
+    public int getQueuedRequests(Lane lane) {
+        return lanes[lane.ordinal()].queued.get();
+    }
+
+    public long getRejectedCount(Lane lane) {
+        return lanes[lane.ordinal()].rejectedCount.get();
+    }
+}
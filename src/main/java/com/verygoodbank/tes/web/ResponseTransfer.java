@@ -0,0 +1,350 @@
+package com.verygoodbank.tes.web;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import com.verygoodbank.tes.store.ResultStore;
+
+import io.undertow.io.BufferWritableOutputStream;
+
+/**
+ * Delivers prepared result to the response. On Undertow a spill file is handed over to the connection
+ * (FileChannel.transferTo, no copy in the JVM), memory content and ranges are written as ByteBuffers.
+ * Other streams receive memory-mapped regions of the file through Channels.newChannel, which copies them
+ * in 8 KB heap chunks. Decoded content of compressed stores goes through the buffers of the inflater.
+ */
+@Component
+public class ResponseTransfer {
+
+    private final static Logger logger = LoggerFactory.getLogger(ResponseTransfer.class);
+    private final static long MAPPED_REGION_SIZE = 64L*1024*1024;
+    private final static int DECODE_BUFFER_SIZE = 64*1024;
+
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong transferNanos = new AtomicLong();
+    private final AtomicLong transfersCount = new AtomicLong();
+
+    /**
+     * Sends whole content of the store, returns number of bytes sent.
+     */
+    public long transfer(ResultStore store, OutputStream output) throws IOException {
+        ByteBuffer memory = store.memoryContent();
+        if (memory==null) {
+            return transfer(store.fileContent(), store.length(), output);
+        }
+        long startTime = System.nanoTime();
+        long sent = memory.remaining();
+        if (output instanceof BufferWritableOutputStream undertowOutput) {
+            undertowOutput.write(memory);
+        }
+        else {
+            WritableByteChannel target = Channels.newChannel(output);
+            while (memory.hasRemaining()) {
+                target.write(memory);
+            }
+        }
+        record(sent, System.nanoTime() - startTime, "memory");
+        return sent;
+    }
+
+    /**
+     * Sends decoded content of a compressed store, for callers that don't accept its encoding.
+     * Returns number of decoded bytes sent.
+     */
+    public long transferDecoded(ResultStore store, OutputStream output) throws IOException {
+        long startTime = System.nanoTime();
+        ByteBuffer memory = store.memoryContent();
+        InputStream source;
+        if (memory!=null) {
+            source = new ByteBufferInputStream(memory);
+        }
+        else {
+            FileChannel file = store.fileContent();
+            file.position(0);
+            source = Channels.newInputStream(file);
+        }
+        long sent;
+        // closing releases the inflater and the spill channel, store is discarded after delivery anyway
+        try (InputStream decoded = new GZIPInputStream(source, DECODE_BUFFER_SIZE)) {
+            sent = decoded.transferTo(output);
+        }
+        record(sent, System.nanoTime() - startTime, "decoded "+store.contentEncoding());
+        return sent;
+    }
+
+    /**
+     * Sends exactly length bytes from the beginning of source, returns number of bytes sent.
+     */
+    public long transfer(FileChannel source, long length, OutputStream output) throws IOException {
+        long startTime = System.nanoTime();
+        long size = source.size();
+        if (size < length) {
+            throw new IOException("Truncated store, actual="+size+", expected="+length);
+        }
+        long sent = 0;
+        boolean zeroCopy = false;
+        if (output instanceof BufferWritableOutputStream undertowOutput && size==length) {
+            // Undertow transfers from current position till the end of file, the bytes it takes are counted
+            source.position(0);
+            CountingFileChannel counting = new CountingFileChannel(source);
+            undertowOutput.transferFrom(counting);
+            sent = counting.count;
+            zeroCopy = true;
+        }
+        else {
+            WritableByteChannel target = Channels.newChannel(output);
+            while (sent < length) {
+                MappedByteBuffer region = source.map(FileChannel.MapMode.READ_ONLY, sent,
+                    Math.min(MAPPED_REGION_SIZE, length - sent));
+                while (region.hasRemaining()) {
+                    sent += target.write(region);
+                }
+            }
+        }
+        record(sent, System.nanoTime() - startTime, zeroCopy ? "transferTo" : "mapped");
+        return sent;
+    }
+
+    /**
+     * Sends length bytes of the store starting at offset, returns number of bytes sent.
+     * Reads are positional, so the same store can be sent to several callers at the same time.
+     */
+    public long transferRange(ResultStore store, long offset, long length, OutputStream output) throws IOException {
+        long startTime = System.nanoTime();
+        ByteBuffer memory = store.memoryContent();
+        long sent = 0;
+        if (memory!=null) {
+            memory.position((int)offset).limit((int)(offset + length));
+            sent = write(memory, output);
+        }
+        else {
+            sent = transferMapped(store.fileContent(), offset, length, output);
+        }
+        record(sent, System.nanoTime() - startTime, "range from "+offset);
+        return sent;
+    }
+
+    /**
+     * Sends length bytes of the file starting at offset, returns number of bytes sent.
+     */
+    public long transferRange(FileChannel source, long offset, long length, OutputStream output) throws IOException {
+        long startTime = System.nanoTime();
+        long sent = transferMapped(source, offset, length, output);
+        record(sent, System.nanoTime() - startTime, "range from "+offset);
+        return sent;
+    }
+
+    private long transferMapped(FileChannel source, long offset, long length, OutputStream output)
+        throws IOException
+    {
+        if (source.size() < offset + length) {
+            throw new IOException("Truncated store, actual="+source.size()+", expected="+(offset + length));
+        }
+        long sent = 0;
+        while (sent < length) {
+            sent += write(source.map(FileChannel.MapMode.READ_ONLY, offset + sent,
+                Math.min(MAPPED_REGION_SIZE, length - sent)), output);
+        }
+        return sent;
+    }
+
+    private long write(ByteBuffer content, OutputStream output) throws IOException {
+        long n = content.remaining();
+        if (output instanceof BufferWritableOutputStream undertowOutput) {
+            undertowOutput.write(content);
+        }
+        else {
+            WritableByteChannel target = Channels.newChannel(output);
+            while (content.hasRemaining()) {
+                target.write(content);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Reads the buffer in place, without a copy of the in-memory store.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len==0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    /**
+     * Read-only view of the spill file counting the bytes taken by transferTo and reads, so a short transfer isn't
+     * reported as a full one. Closing the view doesn't close the file, it belongs to the store.
+     */
+    private static class CountingFileChannel extends FileChannel {
+        private final FileChannel delegate;
+        private long count;
+
+        CountingFileChannel(FileChannel delegate) {
+            this.delegate = delegate;
+        }
+
+        private int counted(int n) {
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        private long counted(long n) {
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return counted(delegate.read(dst));
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return counted(delegate.read(dsts, offset, length));
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return counted(delegate.read(dst, position));
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return counted(delegate.transferTo(position, count, target));
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public FileChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long position() throws IOException {
+            return delegate.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            delegate.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return delegate.size();
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            delegate.force(metaData);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) {
+            // mapped bytes couldn't be counted
+            throw new UnsupportedOperationException("Counted transfer can't be mapped");
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) {
+            throw new UnsupportedOperationException("Counted transfer can't be locked");
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) {
+            throw new UnsupportedOperationException("Counted transfer can't be locked");
+        }
+
+        @Override
+        protected void implCloseChannel() {
+        }
+    }
+
+    private void record(long sent, long nanos, String method) {
+        bytesSent.addAndGet(sent);
+        transferNanos.addAndGet(nanos);
+        transfersCount.incrementAndGet();
+        logger.info("Sent {} bytes in {} ms, {} MB/s, {}", sent, nanos/1_000_000,
+            Math.round(100.0*sent*1000/Math.max(nanos, 1))/100.0, method);
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public long getTransfersCount() {
+        return transfersCount.get();
+    }
+
+    /**
+     * Average delivery speed of all transfers so far.
+     */
+    public double getBytesPerSecond() {
+        long nanos = transferNanos.get();
+        return nanos==0 ? 0.0 : bytesSent.get()*1_000_000_000.0/nanos;
+    }
+}
@@ -0,0 +1,119 @@
+package com.verygoodbank.tes.web;
+
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.verygoodbank.tes.output.BufferArena;
+import com.verygoodbank.tes.service.EnrichmentJobService;
+import com.verygoodbank.tes.service.LaneScheduler;
+import com.verygoodbank.tes.service.TradeEnrichmentService;
+import com.verygoodbank.tes.store.ResultCache;
+import com.verygoodbank.tes.store.ResultStoreFactory;
+import com.verygoodbank.tes.store.TempStoreManager;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Exposes state the components already track: admission, lanes, delivery, spill files, buffers, catalog and jobs.
+ * Values are read when metrics are scraped, nothing is added to the request path.
+ */
+@Component
+public class ServiceMetricsBinder implements MeterBinder {
+
+    @Autowired
+    private RequestAdmission requestAdmission;
+    @Autowired
+    private ResponseTransfer responseTransfer;
+    @Autowired
+    private ResultStoreFactory resultStoreFactory;
+    @Autowired
+    private TempStoreManager tempStoreManager;
+    @Autowired
+    private TradeEnrichmentService tradeEnrichmentService;
+    @Autowired
+    private EnrichmentJobService enrichmentJobService;
+    @Autowired
+    private ResultCache resultCache;
+    @Autowired
+    private BufferArena bufferArena;
+    @Autowired
+    private LaneScheduler laneScheduler;
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("tes.requests.in-flight", requestAdmission, RequestAdmission::getInFlightRequests)
+            .description("Admitted enrichment requests in progress").register(registry);
+        Gauge.builder("tes.requests.bytes-in-flight", requestAdmission, RequestAdmission::getBytesInFlight)
+            .baseUnit("bytes").description("Declared size of admitted requests in progress").register(registry);
+        FunctionCounter.builder("tes.requests.rejected", requestAdmission, RequestAdmission::getRejectedCount)
+            .description("Requests rejected by admission control").register(registry);
+        for (LaneScheduler.Lane lane : LaneScheduler.Lane.values()) {
+            Gauge.builder("tes.lanes.in-flight", requestAdmission, a -> a.getInFlightRequests(lane))
+                .tag("lane", lane.tag()).description("Admitted requests of the lane in progress").register(registry);
+            Gauge.builder("tes.lanes.queued",
+                () -> requestAdmission.getQueuedRequests(lane) + laneScheduler.getWaiting(lane))
+                .tag("lane", lane.tag()).description("Requests and quanta of the lane waiting for admission or slot")
+                .register(registry);
+            Gauge.builder("tes.lanes.running", laneScheduler, s -> s.getRunning(lane))
+                .tag("lane", lane.tag()).description("Quanta of the lane holding a slot").register(registry);
+            FunctionCounter.builder("tes.lanes.rejected", requestAdmission, a -> a.getRejectedCount(lane))
+                .tag("lane", lane.tag()).description("Requests of the lane rejected by admission control")
+                .register(registry);
+            FunctionCounter.builder("tes.lanes.quanta", laneScheduler, s -> s.getQuanta(lane))
+                .tag("lane", lane.tag()).description("Quanta of the lane granted a slot").register(registry);
+            FunctionTimer.builder("tes.lanes.wait", laneScheduler, s -> s.getWaitCount(lane),
+                s -> s.getWaitSeconds(lane), TimeUnit.SECONDS)
+                .tag("lane", lane.tag()).description("Waits of quanta of the lane for a slot").register(registry);
+        }
+        FunctionCounter.builder("tes.transfer.bytes", responseTransfer, ResponseTransfer::getBytesSent)
+            .baseUnit("bytes").description("Bytes of prepared results delivered").register(registry);
+        FunctionCounter.builder("tes.transfer.count", responseTransfer, ResponseTransfer::getTransfersCount)
+            .description("Prepared results delivered").register(registry);
+        Gauge.builder("tes.store.spill-bytes", resultStoreFactory, ResultStoreFactory::getSpillBytesOnDisk)
+            .baseUnit("bytes").description("Size of spill files in spill directories").register(registry);
+        Gauge.builder("tes.store.reserved-bytes", tempStoreManager, TempStoreManager::getReservedBytes)
+            .baseUnit("bytes").description("Disk quota reserved by admitted requests and jobs").register(registry);
+        FunctionCounter.builder("tes.store.quota-rejected", tempStoreManager, TempStoreManager::getRejectedCount)
+            .description("Requests rejected when disk quota wasn't available in time").register(registry);
+        FunctionCounter.builder("tes.store.swept", tempStoreManager, TempStoreManager::getSweptCount)
+            .description("Orphaned spill files deleted").register(registry);
+        FunctionCounter.builder("tes.cache.hits", resultCache, ResultCache::getHits)
+            .description("Requests answered from the result cache").register(registry);
+        FunctionCounter.builder("tes.cache.misses", resultCache, ResultCache::getMisses)
+            .description("Requests not found in the result cache").register(registry);
+        Gauge.builder("tes.cache.hit-ratio", resultCache, ResultCache::getHitRatio)
+            .description("Share of requests answered from the result cache").register(registry);
+        FunctionCounter.builder("tes.cache.saved-bytes", resultCache, ResultCache::getSavedBytes)
+            .baseUnit("bytes").description("Enriched bytes sent from the result cache instead of enrichment")
+            .register(registry);
+        Gauge.builder("tes.cache.bytes", resultCache, ResultCache::getBytes)
+            .baseUnit("bytes").description("Size of cached results").register(registry);
+        FunctionCounter.builder("tes.cache.evicted", resultCache, ResultCache::getEvictedCount)
+            .description("Cached results evicted to stay within tes.cache.max-bytes").register(registry);
+        Gauge.builder("tes.buffers.budget", bufferArena, BufferArena::getBudgetBytes)
+            .baseUnit("bytes").description("Budget of pooled buffers, 0 means unlimited").register(registry);
+        Gauge.builder("tes.buffers.reserved", bufferArena, BufferArena::getReservedBytes)
+            .baseUnit("bytes").description("Pooled buffers in use and free").register(registry);
+        Gauge.builder("tes.buffers.pooled", bufferArena, BufferArena::getPooledBytes)
+            .baseUnit("bytes").description("Free pooled buffers").register(registry);
+        Gauge.builder("tes.buffers.occupancy", bufferArena, BufferArena::getOccupancy)
+            .description("Share of the buffer budget reserved").register(registry);
+        FunctionTimer.builder("tes.buffers.wait", bufferArena, BufferArena::getWaitCount,
+            BufferArena::getWaitSeconds, TimeUnit.SECONDS)
+            .description("Waits for buffers when the budget was exhausted").register(registry);
+        FunctionCounter.builder("tes.buffers.exhausted", bufferArena, BufferArena::getExhaustedCount)
+            .description("Requests rejected when no buffer was released in time").register(registry);
+        Gauge.builder("tes.catalog.products", tradeEnrichmentService, TradeEnrichmentService::getProductCount)
+            .description("Entries of current product catalog").register(registry);
+        Gauge.builder("tes.catalog.version", tradeEnrichmentService, TradeEnrichmentService::getCatalogVersion)
+            .description("Version of current product catalog").register(registry);
+        Gauge.builder("tes.jobs", enrichmentJobService, EnrichmentJobService::getJobCount)
+            .description("Queued, running and retained enrichment jobs").register(registry);
+    }
+}
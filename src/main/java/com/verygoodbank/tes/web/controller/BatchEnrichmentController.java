@@ -0,0 +1,87 @@
+package com.verygoodbank.tes.web.controller;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.multipart.MultipartHttpServletRequest;
+
+import com.verygoodbank.tes.service.BatchEnrichmentService;
+
+import io.swagger.v3.oas.annotations.Operation;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+@RestController
+@RequestMapping("/api/v1")
+public class BatchEnrichmentController {
+
+    private final static Logger logger = LoggerFactory.getLogger(BatchEnrichmentController.class);
+    public final static String ZIP_MEDIA_TYPE = "application/zip";
+    @Autowired
+    private BatchEnrichmentService batchEnrichmentService;
+
+    @Operation(summary = "Accepts many csv files as parts of multipart/form-data, enriches them concurrently and "+
+        "streams a ZIP back with an enriched CSV entry per file in the order they finish. The last entry is "+
+        BatchEnrichmentService.MANIFEST_ENTRY+" with record and invalid counts (or the error) of every file.")
+    @RequestMapping(value = "/enrich-batch", method = RequestMethod.POST,
+        consumes = MediaType.MULTIPART_FORM_DATA_VALUE, produces = ZIP_MEDIA_TYPE)
+    public Callable<Void> enrich(ServletRequest req, HttpServletResponse response) throws Exception {
+        List<BatchEnrichmentService.Part> parts = new ArrayList<>();
+        if (req instanceof MultipartHttpServletRequest multi) {
+            // parts are kept by the container (on disk above spring.servlet.multipart.file-size-threshold)
+            for (List<MultipartFile> files : multi.getMultiFileMap().values()) {
+                for (MultipartFile file : files) {
+                    String name = file.getOriginalFilename();
+                    parts.add(new BatchEnrichmentService.Part(name!=null && !name.isBlank() ? name : file.getName(),
+                        file));
+                }
+            }
+        }
+        return () -> {
+            enrich(parts, response);
+            return null;
+        };
+    }
+
+    private void enrich(List<BatchEnrichmentService.Part> parts, HttpServletResponse response) throws IOException {
+        if (parts.isEmpty()) {
+            response.sendError(HttpStatus.BAD_REQUEST.value(), "No files in the request");
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+        BatchEnrichmentService.Totals totals = new BatchEnrichmentService.Totals();
+        response.setHeader("Content-Type", ZIP_MEDIA_TYPE);
+        response.setHeader("Content-Disposition", "attachment; filename=\"enriched.zip\"");
+        response.setStatus(200);
+        try {
+            OutputStream output = response.getOutputStream();
+            batchEnrichmentService.enrich(parts, output, totals);
+            output.close();
+        }
+        catch (IOException e) {
+            // the client sees a truncated ZIP when the response was already started
+            logger.error("Batch enrichment failed after {} files: {}", totals.getFiles(), e.getMessage());
+            if (!response.isCommitted()) {
+                response.reset();
+                response.setStatus(HttpStatus.INTERNAL_SERVER_ERROR.value());
+            }
+        }
+        finally {
+            logger.info("Processed {} files ({} failed) with {} records in {} ms, invalid count: {}",
+                totals.getFiles(), totals.getFailed(), totals.getRecords(), System.currentTimeMillis() - startTime,
+                totals.getRejected());
+        }
+    }
+}
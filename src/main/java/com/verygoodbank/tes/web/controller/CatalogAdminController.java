@@ -0,0 +1,52 @@
+package com.verygoodbank.tes.web.controller;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.verygoodbank.tes.service.TradeEnrichmentService;
+
+import io.swagger.v3.oas.annotations.Operation;
+
+@RestController
+@RequestMapping("/api/v1/admin/catalog")
+public class CatalogAdminController {
+
+    private final static Logger logger = LoggerFactory.getLogger(CatalogAdminController.class);
+    @Autowired
+    private TradeEnrichmentService tradeEnrichmentService;
+
+    @Operation(summary = "Returns version, entry count and last reload time of the product catalog.")
+    @RequestMapping(value = "", method = RequestMethod.GET, produces = "application/json")
+    public Map<String,Object> status() {
+        Map<String,Object> status = new LinkedHashMap<>();
+        status.put("source", tradeEnrichmentService.getCatalogSource());
+        status.put("version", tradeEnrichmentService.getCatalogVersion());
+        status.put("entries", tradeEnrichmentService.getProductCount());
+        status.put("lastReloadTime", tradeEnrichmentService.getLastReloadTime());
+        status.put("lastReloadMillis", tradeEnrichmentService.getLastReloadMillis());
+        return status;
+    }
+
+    @Operation(summary = "Reloads the product catalog. In-flight requests finish with the previous version.")
+    @RequestMapping(value = "/reload", method = RequestMethod.POST, produces = "application/json")
+    public ResponseEntity<Map<String,Object>> reload() throws InterruptedException {
+        try {
+            tradeEnrichmentService.reloadProductMap().get();
+            return new ResponseEntity<>(status(), HttpStatus.OK);
+        }
+        catch (ExecutionException e) {
+            logger.error("Product catalog reload failed", e.getCause());
+            return new ResponseEntity<>(status(), HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+    }
+}
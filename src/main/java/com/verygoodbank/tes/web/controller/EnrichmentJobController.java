@@ -0,0 +1,216 @@
+package com.verygoodbank.tes.web.controller;
+
+import java.io.InputStream;
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.multipart.MultipartHttpServletRequest;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import com.verygoodbank.tes.service.EnrichmentJobService;
+import com.verygoodbank.tes.service.EnrichmentMetrics;
+import com.verygoodbank.tes.store.ResultStore;
+import com.verygoodbank.tes.store.TempStoreManager;
+import com.verygoodbank.tes.web.AdmissionFilter;
+import com.verygoodbank.tes.web.ContentCoding;
+import com.verygoodbank.tes.web.ResponseTransfer;
+
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.Parameter;
+import io.swagger.v3.oas.annotations.parameters.RequestBody;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.http.HttpServletRequest;
+
+@RestController
+@RequestMapping("/api/v1/jobs")
+public class EnrichmentJobController {
+
+    private final static Logger logger = LoggerFactory.getLogger(EnrichmentJobController.class);
+    @Autowired
+    private EnrichmentJobService jobService;
+    @Autowired
+    private ResponseTransfer responseTransfer;
+    @Autowired
+    private EnrichmentMetrics metrics;
+    @Value("${tes.enrich.parallelism:1}")
+    private int defaultParallelism;
+    @Value("${tes.enrich.max-parallelism:32}")
+    private int maxParallelism;
+    @Value("${tes.admission.reject-status:503}")
+    private int rejectStatus;
+
+    @Operation(summary = "Accepts csv content like /enrich and returns id of the enrichment job. "+
+        "Status is available at Location, the result at Location/result.")
+    @RequestMapping(value = "", method = RequestMethod.POST, produces = "application/json")
+    public Callable<ResponseEntity<Map<String,Object>>> submit(ServletRequest req,
+        @RequestBody String csv, InputStream file,
+        @Parameter(description = "Number of chunks enriched in parallel, 1 means sequential processing")
+        @RequestParam(value = "parallelism", required = false) Integer parallelism) throws Exception
+    {
+        // please note that "String csv" above is a workaround for Swagger UI
+        HttpServletRequest request = (HttpServletRequest)req;
+        if (req instanceof MultipartHttpServletRequest) {
+            MultipartHttpServletRequest multi = (MultipartHttpServletRequest)req;
+            MultipartFile multipartFile = multi.getFile("file");
+            file = multipartFile.getInputStream();
+        }
+        else {
+            file = ContentCoding.decode(file, request.getHeader(HttpHeaders.CONTENT_ENCODING));
+        }
+        InputStream input = file;
+        // disk quota reserved by AdmissionFilter is kept by the job until it's discarded
+        TempStoreManager.Reservation reservation = (TempStoreManager.Reservation)request.getAttribute(
+            AdmissionFilter.RESERVATION_ATTRIBUTE);
+        int effectiveParallelism = Math.max(1, Math.min(parallelism!=null ? parallelism : defaultParallelism,
+            maxParallelism));
+        return () -> {
+            try (InputStream autoClosable = input) {
+                EnrichmentJobService.Job job = jobService.submit(input, effectiveParallelism,
+                    reservation!=null ? reservation.detach() : null);
+                if (job==null) {
+                    logger.warn("Job rejected, {} jobs are queued, running or retained", jobService.getJobCount());
+                    return ResponseEntity.status(rejectStatus).header("Retry-After", "1").build();
+                }
+                return ResponseEntity.accepted().location(URI.create("/api/v1/jobs/"+job.getId())).body(status(job));
+            }
+            catch (TempStoreManager.QuotaExceededException e) {
+                // upload without Content-Length outgrew the disk quota
+                logger.warn("Job rejected: {}", e.getMessage());
+                return ResponseEntity.status(rejectStatus).header("Retry-After", "1").build();
+            }
+        };
+    }
+
+    @Operation(summary = "Returns state and progress of the enrichment job.")
+    @RequestMapping(value = "/{id}", method = RequestMethod.GET, produces = "application/json")
+    public ResponseEntity<Map<String,Object>> status(@PathVariable("id") String id) {
+        EnrichmentJobService.Job job = jobService.get(id);
+        if (job==null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(status(job));
+    }
+
+    @Operation(summary = "Discards the enrichment job and its result.")
+    @RequestMapping(value = "/{id}", method = RequestMethod.DELETE)
+    public ResponseEntity<Void> delete(@PathVariable("id") String id) {
+        return jobService.delete(id) ? ResponseEntity.noContent().build() : ResponseEntity.notFound().build();
+    }
+
+    @Operation(summary = "Returns enriched CSV of a finished job. Single byte range (Range: bytes=from-) is supported "+
+        "to resume interrupted downloads.")
+    @RequestMapping(value = "/{id}/result", method = RequestMethod.GET, produces = "text/csv")
+    public ResponseEntity<StreamingResponseBody> result(@PathVariable("id") String id,
+        @RequestHeader HttpHeaders headers)
+    {
+        EnrichmentJobService.Job job = jobService.get(id);
+        if (job==null) {
+            return ResponseEntity.notFound().build();
+        }
+        if (job.getState()!=EnrichmentJobService.State.DONE) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).build();
+        }
+        ResultStore store = job.acquireResult();
+        if (store==null) {
+            return ResponseEntity.notFound().build();
+        }
+        long length = store.length();
+        String etag = "\""+job.getId()+"\"";
+        HttpHeaders responseHeaders = new HttpHeaders();
+        responseHeaders.add(HttpHeaders.ACCEPT_RANGES, "bytes");
+        responseHeaders.add(HttpHeaders.ETAG, etag);
+        responseHeaders.add(HttpHeaders.CONTENT_TYPE, "text/csv");
+        long offset = 0;
+        long count = length;
+        HttpStatus status = HttpStatus.OK;
+        // several ranges, malformed Range and stale If-Range are answered with the whole content
+        List<HttpRange> ranges = parseRanges(headers);
+        String ifRange = headers.getFirst(HttpHeaders.IF_RANGE);
+        if (ranges.size()==1 && (ifRange==null || ifRange.equals(etag))) {
+            offset = ranges.get(0).getRangeStart(length);
+            count = ranges.get(0).getRangeEnd(length) - offset + 1;
+            if (offset >= length || count <= 0) {
+                job.releaseResult();
+                return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                    .header(HttpHeaders.CONTENT_RANGE, "bytes */"+length).build();
+            }
+            status = HttpStatus.PARTIAL_CONTENT;
+            responseHeaders.add(HttpHeaders.CONTENT_RANGE, "bytes "+offset+"-"+(offset + count - 1)+"/"+length);
+        }
+        responseHeaders.add(HttpHeaders.CONTENT_LENGTH, count+"");
+        long from = offset;
+        long expected = count;
+        StreamingResponseBody stream = output -> {
+            try {
+                long transferStart = System.nanoTime();
+                long sent = responseTransfer.transferRange(store, from, expected, output);
+                metrics.record(EnrichmentJobService.ENDPOINT_JOBS, EnrichmentMetrics.Stage.TRANSFER,
+                    System.nanoTime() - transferStart);
+                if (sent != expected) {
+                    throw new RuntimeException("Truncated read, actual="+sent+", expected="+expected);
+                }
+                output.flush();
+            }
+            catch (Throwable e) {
+                logger.error("Job {} result transfer error: {}", id, e.getMessage());
+            }
+            finally {
+                job.releaseResult();
+            }
+        };
+        return new ResponseEntity<>(stream, responseHeaders, status);
+    }
+
+    private static List<HttpRange> parseRanges(HttpHeaders headers) {
+        try {
+            return headers.getRange();
+        }
+        catch (IllegalArgumentException e) {
+            return List.of();
+        }
+    }
+
+    private static Map<String,Object> status(EnrichmentJobService.Job job) {
+        Map<String,Object> status = new LinkedHashMap<>();
+        status.put("id", job.getId());
+        status.put("state", job.getState());
+        status.put("parallelism", job.getParallelism());
+        status.put("catalogVersion", job.getCatalogVersion());
+        status.put("inputBytes", job.getInputBytes());
+        status.put("bytesRead", job.getBytesRead());
+        status.put("progress", job.getInputBytes()==0 ? 1.0 : (double)job.getBytesRead()/job.getInputBytes());
+        status.put("records", job.getRecords());
+        status.put("invalid", job.getInvalidCount());
+        status.put("rejectsFile", job.getRejectsFile());
+        status.put("resultBytes", job.getResultBytes());
+        long started = job.getStartedTime();
+        long elapsed = started==0 ? 0
+            : (job.getFinishedTime() > 0 ? job.getFinishedTime() : System.currentTimeMillis()) - started;
+        status.put("elapsedMillis", elapsed);
+        status.put("recordsPerSecond", elapsed==0 ? 0 : job.getRecords()*1000/elapsed);
+        status.put("createdTime", job.getCreatedTime());
+        status.put("startedTime", started);
+        status.put("finishedTime", job.getFinishedTime());
+        status.put("expiresTime", job.getExpiresTime());
+        status.put("error", job.getError());
+        return status;
+    }
+}
@@ -0,0 +1,191 @@
+package com.verygoodbank.tes.web.controller;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.multipart.MultipartHttpServletRequest;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import com.verygoodbank.tes.service.EnrichmentMetrics;
+import com.verygoodbank.tes.service.EnrichmentSessionService;
+import com.verygoodbank.tes.service.LaneScheduler;
+import com.verygoodbank.tes.store.TempStoreManager;
+import com.verygoodbank.tes.web.AdmissionFilter;
+import com.verygoodbank.tes.web.ContentCoding;
+import com.verygoodbank.tes.web.ResponseTransfer;
+
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.Parameter;
+import io.swagger.v3.oas.annotations.parameters.RequestBody;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.http.HttpServletRequest;
+
+@RestController
+@RequestMapping("/api/v1/sessions")
+public class EnrichmentSessionController {
+
+    private final static Logger logger = LoggerFactory.getLogger(EnrichmentSessionController.class);
+    public final static String NEXT_OFFSET_HEADER = "X-Next-Offset";
+    @Autowired
+    private EnrichmentSessionService sessionService;
+    @Autowired
+    private ResponseTransfer responseTransfer;
+    @Autowired
+    private EnrichmentMetrics metrics;
+    @Value("${tes.admission.reject-status:503}")
+    private int rejectStatus;
+
+    @Operation(summary = "Opens an append session. Batches are posted to Location/batches, "+
+        "enriched output is read from Location/result.")
+    @RequestMapping(value = "", method = RequestMethod.POST, produces = "application/json")
+    public ResponseEntity<Map<String,Object>> create() throws IOException {
+        EnrichmentSessionService.Session session = sessionService.create();
+        if (session==null) {
+            logger.warn("Session rejected, {} sessions are open", sessionService.getSessionCount());
+            return ResponseEntity.status(rejectStatus).header("Retry-After", "1").build();
+        }
+        return ResponseEntity.created(URI.create("/api/v1/sessions/"+session.getId())).body(status(session));
+    }
+
+    @Operation(summary = "Returns line count, invalid count and result length of the session.")
+    @RequestMapping(value = "/{id}", method = RequestMethod.GET, produces = "application/json")
+    public ResponseEntity<Map<String,Object>> status(@PathVariable("id") String id) {
+        EnrichmentSessionService.Session session = sessionService.get(id);
+        if (session==null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(status(session));
+    }
+
+    @Operation(summary = "Deletes the session and its result.")
+    @RequestMapping(value = "/{id}", method = RequestMethod.DELETE)
+    public ResponseEntity<Void> delete(@PathVariable("id") String id) {
+        return sessionService.delete(id) ? ResponseEntity.noContent().build() : ResponseEntity.notFound().build();
+    }
+
+    @Operation(summary = "Accepts csv lines like /enrich, enriches them and appends them to the session result. "+
+        "The batch is appended whole or not at all, line numbers of invalid lines continue from previous batches.")
+    @RequestMapping(value = "/{id}/batches", method = RequestMethod.POST, produces = "application/json")
+    public Callable<ResponseEntity<Map<String,Object>>> append(@PathVariable("id") String id, ServletRequest req,
+        @RequestBody String csv, InputStream file) throws Exception
+    {
+        // please note that "String csv" above is a workaround for Swagger UI
+        HttpServletRequest request = (HttpServletRequest)req;
+        if (req instanceof MultipartHttpServletRequest) {
+            MultipartHttpServletRequest multi = (MultipartHttpServletRequest)req;
+            MultipartFile multipartFile = multi.getFile("file");
+            if (multipartFile==null) {
+                return () -> ResponseEntity.badRequest().build();
+            }
+            file = multipartFile.getInputStream();
+        }
+        else {
+            file = ContentCoding.decode(file, request.getHeader(HttpHeaders.CONTENT_ENCODING));
+        }
+        InputStream input = file;
+        LaneScheduler.Lane lane = AdmissionFilter.laneOf(request);
+        return () -> {
+            try (InputStream autoClosable = input) {
+                EnrichmentSessionService.Session session = sessionService.get(id);
+                EnrichmentSessionService.Batch batch = session!=null ? session.append(input, lane) : null;
+                if (batch==null) {
+                    return ResponseEntity.notFound().build();
+                }
+                Map<String,Object> status = status(session);
+                Map<String,Object> batchStatus = new LinkedHashMap<>();
+                batchStatus.put("firstLine", batch.firstLine());
+                batchStatus.put("lines", batch.lines());
+                batchStatus.put("invalid", batch.invalid());
+                batchStatus.put("rejectsFile", batch.rejectsFile());
+                batchStatus.put("catalogVersion", batch.catalogVersion());
+                status.put("batch", batchStatus);
+                return ResponseEntity.ok(status);
+            }
+            catch (TempStoreManager.QuotaExceededException e) {
+                // batch without Content-Length outgrew the disk quota
+                logger.warn("Session {} batch rejected: {}", id, e.getMessage());
+                return ResponseEntity.status(rejectStatus).header("Retry-After", "1").build();
+            }
+            catch (IOException e) {
+                logger.error("Session {} batch failed: {}", id, e.getMessage());
+                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+            }
+        };
+    }
+
+    @Operation(summary = "Returns enriched CSV of the session from the offset to the end of the last batch, "+
+        "the offset to continue from is in X-Next-Offset.")
+    @RequestMapping(value = "/{id}/result", method = RequestMethod.GET, produces = "text/csv")
+    public ResponseEntity<StreamingResponseBody> result(@PathVariable("id") String id,
+        @Parameter(description = "Byte offset of the result, e.g. X-Next-Offset of the previous read")
+        @RequestParam(value = "offset", required = false, defaultValue = "0") long offset) throws IOException
+    {
+        EnrichmentSessionService.Session session = sessionService.get(id);
+        FileChannel channel = session!=null ? session.acquireResult() : null;
+        if (channel==null) {
+            return ResponseEntity.notFound().build();
+        }
+        long length = session.getResultBytes();
+        if (offset < 0 || offset > length) {
+            session.releaseResult(channel);
+            return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                .header(HttpHeaders.CONTENT_RANGE, "bytes */"+length).build();
+        }
+        long expected = length - offset;
+        HttpHeaders responseHeaders = new HttpHeaders();
+        responseHeaders.add(HttpHeaders.CONTENT_TYPE, "text/csv");
+        responseHeaders.add(HttpHeaders.CONTENT_LENGTH, expected+"");
+        responseHeaders.add(NEXT_OFFSET_HEADER, length+"");
+        StreamingResponseBody stream = output -> {
+            try {
+                long transferStart = System.nanoTime();
+                long sent = responseTransfer.transferRange(channel, offset, expected, output);
+                metrics.record(EnrichmentSessionService.ENDPOINT_SESSIONS, EnrichmentMetrics.Stage.TRANSFER,
+                    System.nanoTime() - transferStart);
+                if (sent != expected) {
+                    throw new RuntimeException("Truncated read, actual="+sent+", expected="+expected);
+                }
+                output.flush();
+            }
+            catch (Throwable e) {
+                logger.error("Session {} result transfer error: {}", id, e.getMessage());
+            }
+            finally {
+                session.releaseResult(channel);
+            }
+        };
+        return new ResponseEntity<>(stream, responseHeaders, HttpStatus.OK);
+    }
+
+    private static Map<String,Object> status(EnrichmentSessionService.Session session) {
+        Map<String,Object> status = new LinkedHashMap<>();
+        status.put("id", session.getId());
+        status.put("lines", session.getLines());
+        status.put("invalid", session.getInvalidCount());
+        status.put("batches", session.getBatches());
+        status.put("resultBytes", session.getResultBytes());
+        status.put("catalogVersion", session.getCatalogVersion());
+        status.put("createdTime", session.getCreatedTime());
+        status.put("updatedTime", session.getUpdatedTime());
+        status.put("expiresTime", session.getExpiresTime());
+        return status;
+    }
+}
@@ -0,0 +1,136 @@
+package com.verygoodbank.tes.web.controller;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.multipart.MultipartHttpServletRequest;
+
+import com.verygoodbank.tes.output.BufferArena;
+import com.verygoodbank.tes.service.EnrichmentMetrics;
+import com.verygoodbank.tes.service.ShardCoordinator;
+import com.verygoodbank.tes.web.ContentCoding;
+
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.Parameter;
+import io.swagger.v3.oas.annotations.parameters.RequestBody;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+@RestController
+@RequestMapping("/api/v1")
+public class ShardedEnrichmentController {
+
+    private final static Logger logger = LoggerFactory.getLogger(ShardedEnrichmentController.class);
+    public final static String ERROR_HEADER = "X-Enrich-Error";
+    @Autowired
+    private ShardCoordinator shardCoordinator;
+    @Autowired
+    private EnrichmentMetrics metrics;
+    @Value("${tes.admission.reject-status:503}")
+    private int rejectStatus;
+
+    @Operation(summary = "Accepts csv content like /enrich, enriches its shards on peer instances "+
+        "(tes.coordinator.peers) and streams enriched CSV back in input order. Counts of records and rejects "+
+        "are sent in trailer, also an error when a shard failed after the response was started.")
+    @RequestMapping(value = "/enrich-sharded", method = RequestMethod.POST, produces = "text/csv")
+    public Callable<Void> enrich(ServletRequest req, @RequestBody String csv, InputStream file,
+        HttpServletResponse response,
+        @Parameter(description = "Passed to the peers")
+        @RequestParam(value = "parallelism", required = false) Integer parallelism) throws Exception
+    {
+        // please note that "String csv" above is a workaround for Swagger UI
+        HttpServletRequest request = (HttpServletRequest)req;
+        if (req instanceof MultipartHttpServletRequest) {
+            MultipartHttpServletRequest multi = (MultipartHttpServletRequest)req;
+            MultipartFile multipartFile = multi.getFile("file");
+            if (multipartFile==null) {
+                response.sendError(HttpStatus.BAD_REQUEST.value(), "Multipart request without \"file\" part");
+                return null;
+            }
+            file = multipartFile.getInputStream();
+        }
+        else {
+            file = ContentCoding.decode(file, request.getHeader(HttpHeaders.CONTENT_ENCODING));
+        }
+        InputStream input = file;
+        return () -> {
+            enrich(input, response, parallelism);
+            return null;
+        };
+    }
+
+    private void enrich(InputStream file, HttpServletResponse response, Integer parallelism) throws IOException {
+        if (!shardCoordinator.isEnabled()) {
+            file.close();
+            response.setStatus(HttpStatus.NOT_FOUND.value());
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+        ShardCoordinator.Totals totals = new ShardCoordinator.Totals();
+        String[] error = new String[1];
+        response.setHeader(HttpHeaders.TRAILER, TradeEnrichmentController.RECORD_COUNT_HEADER+", "+
+            TradeEnrichmentController.REJECTED_COUNT_HEADER+", "+ERROR_HEADER);
+        response.setTrailerFields(() -> {
+            Map<String,String> trailer = new HashMap<>();
+            trailer.put(TradeEnrichmentController.RECORD_COUNT_HEADER, totals.getRecords()+"");
+            trailer.put(TradeEnrichmentController.REJECTED_COUNT_HEADER, totals.getRejected()+"");
+            if (error[0]!=null) {
+                trailer.put(ERROR_HEADER, error[0]);
+            }
+            return trailer;
+        });
+        response.setHeader("Content-Type", "text/csv");
+        response.setStatus(200);
+        try (InputStream autoClosable = file;
+            EnrichmentMetrics.Recorder recorder = metrics.recorder(ShardCoordinator.ENDPOINT_SHARDED))
+        {
+            OutputStream output = response.getOutputStream();
+            try {
+                shardCoordinator.enrich(file, output, parallelism, totals);
+            }
+            catch (BufferArena.ExhaustedException e) {
+                logger.warn("Sharded enrichment rejected after {} shards, buffer budget exhausted", totals.getShards());
+                if (!response.isCommitted()) {
+                    response.reset();
+                    response.setHeader("Retry-After", "1");
+                    response.setStatus(rejectStatus);
+                    return;
+                }
+                error[0] = e.getMessage();
+            }
+            catch (IOException e) {
+                logger.error("Sharded enrichment failed after {} shards: {}", totals.getShards(), e.getMessage());
+                if (!response.isCommitted()) {
+                    response.reset();
+                    response.setStatus(HttpStatus.BAD_GATEWAY.value());
+                    return;
+                }
+                error[0] = e.getMessage();
+            }
+            recorder.bytesIn(totals.getBytesIn());
+            recorder.bytesOut(totals.getBytesOut());
+            output.close();
+        }
+        finally {
+            logger.info("Processed {} records in {} shards ({} retried) in {} ms, invalid count: {}",
+                totals.getRecords(), totals.getShards(), totals.getRetries(),
+                System.currentTimeMillis() - startTime, totals.getRejected());
+        }
+    }
+}
@@ -1,37 +1,61 @@
 package com.verygoodbank.tes.web.controller;
 
-import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.SequenceInputStream;
 import java.io.OutputStream;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.file.Files;
+import java.nio.channels.Channels;
 import java.nio.file.Path;
-import java.util.Scanner;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.multipart.MultipartHttpServletRequest;
 import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
-import com.verygoodbank.tes.model.Trade;
-import com.verygoodbank.tes.model.ValidationException;
+import com.verygoodbank.tes.csv.CsvTokenizer;
+import com.verygoodbank.tes.output.AggregatingTradeEncoder;
+import com.verygoodbank.tes.output.BufferArena;
+import com.verygoodbank.tes.output.CsvTradeEncoder;
+import com.verygoodbank.tes.output.OutputFormat;
+import com.verygoodbank.tes.output.TradeEncoder;
+import com.verygoodbank.tes.output.TradeEncoderFactory;
+import com.verygoodbank.tes.output.TradeFilter;
+import com.verygoodbank.tes.service.EnrichmentMetrics;
+import com.verygoodbank.tes.service.LaneScheduler;
+import com.verygoodbank.tes.service.ParallelEnrichmentPipeline;
+import com.verygoodbank.tes.service.ProductDictionary;
+import com.verygoodbank.tes.service.RejectReporter;
 import com.verygoodbank.tes.service.TradeEnrichmentService;
+import com.verygoodbank.tes.store.BacklogOutputStream;
+import com.verygoodbank.tes.store.ResultCache;
+import com.verygoodbank.tes.store.ResultStore;
+import com.verygoodbank.tes.store.ResultStoreFactory;
+import com.verygoodbank.tes.store.TempStoreManager;
+import com.verygoodbank.tes.web.AdmissionFilter;
+import com.verygoodbank.tes.web.ContentCoding;
+import com.verygoodbank.tes.web.ResponseTransfer;
 
 import io.swagger.v3.oas.annotations.OpenAPIDefinition;
 import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.Parameter;
 import io.swagger.v3.oas.annotations.info.Info;
 import io.swagger.v3.oas.annotations.media.Content;
 import io.swagger.v3.oas.annotations.media.Schema;
@@ -39,6 +63,7 @@ import io.swagger.v3.oas.annotations.parameters.RequestBody;
 import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.responses.ApiResponses;
 import jakarta.servlet.ServletRequest;
+import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 
 @RestController
@@ -52,69 +77,350 @@ import jakarta.servlet.http.HttpServletResponse;
 public class TradeEnrichmentController {
 
     private final static Logger logger = LoggerFactory.getLogger(TradeEnrichmentController.class);
+    private final static String ENDPOINT_ENRICH = "enrich";
+    private final static String ENDPOINT_BIDI = "enrich-bidi";
+    public final static String REJECTED_COUNT_HEADER = "X-Rejected-Count";
+    public final static String REJECTS_FILE_HEADER = "X-Rejects-File";
+    public final static String RECORD_COUNT_HEADER = "X-Record-Count";
+    public final static String CACHE_HEADER = "X-Cache";
+    public final static String CACHE_HIT = "HIT";
+    public final static String CACHE_MISS = "MISS";
+    // hex SHA-256 of the (decoded) request body, declared by callers to be answered from the result cache
+    public final static String CONTENT_SHA256_HEADER = "X-Content-SHA256";
     @Autowired
     private TradeEnrichmentService tradeEnrichmentService;
+    @Autowired
+    private ParallelEnrichmentPipeline parallelEnrichmentPipeline;
+    @Autowired
+    private ResponseTransfer responseTransfer;
+    @Autowired
+    private ResultStoreFactory resultStoreFactory;
+    @Autowired
+    private EnrichmentMetrics metrics;
+    @Autowired
+    private RejectReporter rejectReporter;
+    @Autowired
+    private TradeEncoderFactory tradeEncoderFactory;
+    @Autowired
+    private ResultCache resultCache;
+    @Value("${tes.enrich.parallelism:1}")
+    private int defaultParallelism;
+    @Value("${tes.enrich.max-parallelism:32}")
+    private int maxParallelism;
+    @Autowired
+    @Qualifier("bidiDrainExecutor")
+    private ExecutorService bidiDrainExecutor;
+    @Value("${tes.bidi.memory-buffer:4194304}")
+    private int bidiMemoryBuffer;
+    @Value("${tes.compression.response:true}")
+    private boolean compressResponse;
+    @Autowired
+    private BufferArena bufferArena;
+    @Value("${tes.admission.reject-status:503}")
+    private int rejectStatus;
+    @Autowired
+    private LaneScheduler laneScheduler;
        
     @Operation(summary = "This operation accepts csv content with product lines: "+
         "date,product_id,currency,price - to be enriched. Product Id is replaced with product description. "+
         "Input content is validated. Wrong records are not enriched.")
     @ApiResponses(value = { 
-	    @ApiResponse(responseCode = "200", description = "Enriched CSV file",
+	    @ApiResponse(responseCode = "200", description = "Enriched CSV file, or binary rows or Arrow stream "+
+            "when requested by Accept header",
 	        content = { 
-                @Content(mediaType = "text/csv", schema = @Schema(defaultValue = "20240101,1,EUR,10.0"))
+                @Content(mediaType = "text/csv", schema = @Schema(defaultValue = "20240101,1,EUR,10.0")),
+                @Content(mediaType = OutputFormat.ROWS_MEDIA_TYPE),
+                @Content(mediaType = OutputFormat.ARROW_MEDIA_TYPE)
             }
         )
     })
-    @RequestMapping(value = "/enrich", method = RequestMethod.POST, produces = "text/csv")
-	public ResponseEntity<StreamingResponseBody> enrichProduct(ServletRequest req,
-        @RequestBody String csv, InputStream file, HttpServletResponse response) throws Exception 
+    @RequestMapping(value = "/enrich", method = RequestMethod.POST, produces = { OutputFormat.CSV_MEDIA_TYPE,
+        OutputFormat.ROWS_MEDIA_TYPE, OutputFormat.ARROW_MEDIA_TYPE })
+	public Callable<ResponseEntity<StreamingResponseBody>> enrichProduct(ServletRequest req,
+        @RequestBody String csv, InputStream file, HttpServletResponse response,
+        @Parameter(description = "Number of chunks enriched in parallel, 1 means sequential processing")
+        @RequestParam(value = "parallelism", required = false) Integer parallelism,
+        @Parameter(description = "Only trades on or after the date (yyyymmdd)")
+        @RequestParam(value = "dateFrom", required = false) String dateFrom,
+        @Parameter(description = "Only trades on or before the date (yyyymmdd)")
+        @RequestParam(value = "dateTo", required = false) String dateTo,
+        @Parameter(description = "Only trades in the currencies (comma separated)")
+        @RequestParam(value = "currency", required = false) String currency,
+        @Parameter(description = "Only trades of the product ids (comma separated)")
+        @RequestParam(value = "productId", required = false) String productId,
+        @Parameter(description = "CSV of count, sum, min and max price grouped by product, currency and/or date "+
+            "(comma separated, empty means a single total) instead of trades")
+        @RequestParam(value = "aggregate", required = false) String aggregate) throws Exception 
     {
         // please note that "String csv" above is a workaround for Swagger UI
+        HttpServletRequest request = (HttpServletRequest)req;
 		if (req instanceof MultipartHttpServletRequest) {
 			MultipartHttpServletRequest multi = (MultipartHttpServletRequest)req;
 			MultipartFile multipartFile = multi.getFile("file");
 			file = multipartFile.getInputStream();			
 		}
+        else {
+            file = ContentCoding.decode(file, request.getHeader(HttpHeaders.CONTENT_ENCODING));
+        }
+        boolean gzipResponse = compressResponse && ContentCoding.acceptsGzip(request.getHeader(HttpHeaders.ACCEPT_ENCODING));
+        // produces above already answered 406 to callers accepting none of the formats
+        OutputFormat format = OutputFormat.negotiate(request.getHeader(HttpHeaders.ACCEPT));
+        TradeFilter filter;
+        Set<AggregatingTradeEncoder.GroupBy> groupBy;
+        byte[] declaredDigest;
+        try {
+            filter = TradeFilter.of(dateFrom, dateTo, currency, productId);
+            groupBy = aggregate!=null ? AggregatingTradeEncoder.GroupBy.parse(aggregate) : null;
+            // digest of a multipart request isn't the digest of its file
+            String sha256 = req instanceof MultipartHttpServletRequest ? null
+                : request.getHeader(CONTENT_SHA256_HEADER);
+            declaredDigest = sha256!=null ? ResultCache.parseDigest(sha256) : null;
+        }
+        catch (IllegalArgumentException e) {
+            logger.warn("Invalid filter, aggregate or {}: {}", CONTENT_SHA256_HEADER, e.getMessage());
+            file.close();
+            return () -> ResponseEntity.badRequest().build();
+        }
+        // blocking work is done by applicationTaskExecutor, not by Undertow worker
+        InputStream input = file;
+        // aggregates are CSV only
+        OutputFormat outputFormat = groupBy!=null || format==null ? OutputFormat.CSV : format;
+        LaneScheduler.Lane lane = AdmissionFilter.laneOf(request);
+        return () -> enrichProduct(input, response, parallelism, gzipResponse, outputFormat, filter, groupBy,
+            declaredDigest, lane);
+    }
+
+    private ResponseEntity<StreamingResponseBody> enrichProduct(InputStream file, HttpServletResponse response,
+        Integer parallelism, boolean gzipResponse, OutputFormat format, TradeFilter filter,
+        Set<AggregatingTradeEncoder.GroupBy> groupBy, byte[] declaredDigest, LaneScheduler.Lane lane)
+    {
+        ProductDictionary dictionary = tradeEnrichmentService.snapshot();
+        if (!resultCache.isEnabled()) {
+            return enrichProduct(file, response, parallelism, gzipResponse, format, filter, groupBy, dictionary,
+                null, lane);
+        }
+        boolean compressed = gzipResponse || resultStoreFactory.isCompressed();
+        ResultCache.BodyDigest digest = new ResultCache.BodyDigest(declaredDigest, dictionary.getVersion(),
+            format.name()+(compressed ? "-gzip" : "")+(filter.isEmpty() ? "" : ";"+filter)
+            +(groupBy!=null ? ";aggregate="+groupBy : ""));
+        if (declaredDigest==null && resultCache.getSpoolMaxBytes() > 0) {
+            return enrichUndeclared(file, response, parallelism, gzipResponse, format, filter, groupBy, dictionary,
+                digest, lane);
+        }
+        if (declaredDigest==null) {
+            // the body is hashed while it's enriched, the result is cached under its digest when the body ends
+            resultCache.countMiss();
+            return enrichProduct(digest.wrap(file), response, parallelism, gzipResponse, format, filter, groupBy,
+                dictionary, digest, lane);
+        }
+        ResultCache.CachedResult cached;
+        try {
+            cached = resultCache.acquire(digest.declaredKey());
+        }
+        catch (IOException e) {
+            logger.warn("Can't read cached result: {}", e.getMessage());
+            cached = null;
+        }
+        if (cached==null) {
+            return enrichProduct(digest.wrap(file), response, parallelism, gzipResponse, format, filter, groupBy,
+                dictionary, digest, lane);
+        }
+        // a cached result is sent only for the body it was computed from, the body is hashed, not enriched
+        try (InputStream body = digest.wrap(file)) {
+            body.transferTo(OutputStream.nullOutputStream());
+        }
+        catch (IOException e) {
+            closeQuietly(cached);
+            logger.error("Can't read request: "+e.getMessage());
+            return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+        if (!digest.matchesDeclared()) {
+            closeQuietly(cached);
+            logger.warn("Request body doesn't match its {}", CONTENT_SHA256_HEADER);
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+        logger.info("Sent cached result of {} records, invalid count: {}", cached.getRecords(), cached.getRejected());
+        return newResponse(cached, gzipResponse, format, cached.getRecords(), cached.getRejected(), null,
+            CACHE_HIT, digest.digest());
+    }
+
+    /**
+     * Body without declared digest is kept up to spool-max-bytes, a body which ended within it is looked up by its
+     * digest. A larger one is enriched from the kept part and the rest of the stream, hashed while it's read.
+     */
+    private ResponseEntity<StreamingResponseBody> enrichUndeclared(InputStream file, HttpServletResponse response,
+        Integer parallelism, boolean gzipResponse, OutputFormat format, TradeFilter filter,
+        Set<AggregatingTradeEncoder.GroupBy> groupBy, ProductDictionary dictionary, ResultCache.BodyDigest digest,
+        LaneScheduler.Lane lane)
+    {
+        try (ResultStore body = resultStoreFactory.newStore(false)) {
+            if (!digest.spool(file, body, resultCache.getSpoolMaxBytes())) {
+                // the result is cached under the digest when the rest of the body ends
+                resultCache.countMiss();
+                return enrichProduct(new SequenceInputStream(body.newInputStream(), digest.wrap(file)), response,
+                    parallelism, gzipResponse, format, filter, groupBy, dictionary, digest, lane);
+            }
+            file.close();
+            ResultCache.CachedResult cached;
+            try {
+                cached = resultCache.acquire(digest.key());
+            }
+            catch (IOException e) {
+                logger.warn("Can't read cached result: {}", e.getMessage());
+                cached = null;
+            }
+            if (cached!=null) {
+                logger.info("Sent cached result of {} records, invalid count: {}", cached.getRecords(),
+                    cached.getRejected());
+                return newResponse(cached, gzipResponse, format, cached.getRecords(), cached.getRejected(), null,
+                    CACHE_HIT, digest.digest());
+            }
+            return enrichProduct(body.newInputStream(), response, parallelism, gzipResponse, format, filter, groupBy,
+                dictionary, digest, lane);
+        }
+        catch (IOException e) {
+            try {
+                file.close();
+            }
+            catch (IOException closeFailure) {
+                e.addSuppressed(closeFailure);
+            }
+            if (isExhausted(e)) {
+                logger.warn("Request rejected while it was read: {}", e.getMessage());
+                return ResponseEntity.status(rejectStatus).header("Retry-After", "1").build();
+            }
+            logger.error("Can't read request to be cached: "+e.getMessage());
+            return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    /**
+     * Enriches the request in quanta of the lane. With digest (file is read through it) the result is cached
+     * under the digest of the whole body.
+     */
+    private ResponseEntity<StreamingResponseBody> enrichProduct(InputStream file, HttpServletResponse response,
+        Integer parallelism, boolean gzipResponse, OutputFormat format, TradeFilter filter,
+        Set<AggregatingTradeEncoder.GroupBy> groupBy, ProductDictionary dictionary, ResultCache.BodyDigest digest,
+        LaneScheduler.Lane lane)
+    {
         long startTime = System.currentTimeMillis();
         long recordsCount = 0;
-        AtomicLong wrongRecordsCount = new AtomicLong();
-        Path tempStorePath = newTemporaryStorePath();
+        // compressed store is sent as is when caller accepts gzip, otherwise decoded while sending
+        ResultStore channel = resultStoreFactory.newStore(gzipResponse || resultStoreFactory.isCompressed());
+        RejectReporter.Rejects rejects = rejectReporter.newRejects();
+        int effectiveParallelism = Math.min(parallelism!=null ? parallelism : defaultParallelism, maxParallelism);
+        TradeEncoder encoder = null;
         
         try (InputStream autoClosable = file;
-            InputStreamReader isr = new InputStreamReader(file);
-            Scanner scanner = new Scanner(isr);            
-            RandomAccessFile store = newTemporaryStore(tempStorePath);
-            FileChannel channel = store.getChannel()) 
+            RejectReporter.Rejects autoClosableRejects = rejects;
+            EnrichmentMetrics.Recorder recorder = metrics.recorder(ENDPOINT_ENRICH)) 
         {
-            scanner.useDelimiter("[\\r]*[\\n]+");
-            StringBuilder sb = new StringBuilder(4096);
-            response.setHeader("Content-Type", "text/csv");
+            // parallel pipeline serializes CSV in its chunks, filtered and aggregated trades go through the encoder
+            encoder = effectiveParallelism > 1 && format==OutputFormat.CSV && filter.isEmpty()
+                && groupBy==null ? null : tradeEncoderFactory.newEncoder(format, channel, dictionary, filter, groupBy);
+            response.setHeader("Content-Type", format.mediaType());
             response.setStatus(200);
-            while (scanner.hasNextLine()) {
-                String line = scanner.nextLine();
-                if (++recordsCount==1) {
-                    // Always output the csv header.
-                    write(channel, TradeEnrichmentService.ENRICHED_CSV_HEADER);
+            if (effectiveParallelism > 1) {
+                recordsCount = parallelEnrichmentPipeline.enrich(file, channel, encoder, effectiveParallelism,
+                    rejects, startTime, dictionary, ENDPOINT_ENRICH, records -> {}, lane);
+            }
+            else {
+                ByteBuffer readBuffer = bufferArena.getInputPool().acquire();
+                try (LaneScheduler.Task task = laneScheduler.start(lane)) {
+                    // the slot is given up while the body is awaited
+                    CsvTokenizer tokenizer = new CsvTokenizer(task.reading(file), readBuffer.array(),
+                        tradeEnrichmentService.getMaxLineBytes());
+                    while (tokenizer.nextLine()) {
+                        if (++recordsCount==1) {
+                            // Always output the csv header.
+                            encoder.header();
+                        }
+                        tradeEnrichmentService.processSingleRecord(tokenizer, recordsCount, rejects, encoder,
+                            startTime, dictionary, recorder);
+                        // bulk requests give the slot to waiting ones after every quantum
+                        task.checkpoint(tokenizer.getBytesRead());
+                    }
+                    recorder.bytesIn(tokenizer.getBytesRead());
                 }
-                processSingleRecord(line, recordsCount, wrongRecordsCount, channel, startTime, sb); 
+                finally {
+                    bufferArena.getInputPool().release(readBuffer);
+                }
+            }
+            long finishStart = System.nanoTime();
+            if (encoder!=null) {
+                encoder.finish();
+            }
+            channel.finish();
+            recorder.record(EnrichmentMetrics.Stage.STORE_FORCE, System.nanoTime() - finishStart);
+            if (encoder!=null) {
+                // encoders write whole buffers, so the output is counted once
+                recorder.bytesOut(channel.decodedLength());
             }
-            long length = channel.position();
-            channel.force(false);
-            StreamingResponseBody stream = newResponseStreaming(tempStorePath, length);
-            HttpHeaders responseHeaders = new HttpHeaders();
-            responseHeaders.add("Content-Length", length+"");
-            responseHeaders.add("Content-Type", "text/csv");
-            return new ResponseEntity<>(stream, responseHeaders, HttpStatus.OK);
+            rejects.flush();
+            if (digest!=null && !digest.matchesDeclared()) {
+                logger.warn("Request body doesn't match its {}", CONTENT_SHA256_HEADER);
+                closeQuietly(channel);
+                return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+            }
+            // the whole body was read, so its digest is known; a cached result couldn't return the sidecar file
+            if (digest!=null && rejects.getPath()==null) {
+                resultCache.put(digest.key(), dictionary.getVersion(), channel, recordsCount, rejects.getCount());
+            }
+            return newResponse(channel, gzipResponse, format, recordsCount, rejects.getCount(), rejects.getPath(),
+                digest!=null ? CACHE_MISS : null, digest!=null ? digest.digest() : null);
+        }
+        catch (AggregatingTradeEncoder.GroupLimitException e) {
+            logger.warn("Aggregation stopped after {} records: {}", recordsCount, e.getMessage());
+            closeQuietly(channel);
+            return new ResponseEntity<>(HttpStatus.UNPROCESSABLE_ENTITY);
         }
         catch (Exception e) {
+            closeQuietly(channel);
+            if (isExhausted(e)) {
+                logger.warn("Enrichment rejected after {} records: {}", recordsCount, e.getMessage());
+                return ResponseEntity.status(rejectStatus).header("Retry-After", "1").build();
+            }
             logger.error("Enrichment failed. Current records count="+recordsCount, e);
             return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
         }
         finally {        
+            if (encoder!=null) {
+                // buffers of a failed request, nothing after finish
+                encoder.discard();
+            }
             long endTime = System.currentTimeMillis();
             logger.info("Processed {} records in {} ms, invalid count: {}", 
-                recordsCount, (endTime-startTime), wrongRecordsCount);
+                recordsCount, (endTime-startTime), rejects.getCount());
+        }
+    }
+
+    private ResponseEntity<StreamingResponseBody> newResponse(ResultStore channel, boolean gzipResponse,
+        OutputFormat format, long recordsCount, long rejectedCount, Path rejectsFile, String cacheStatus,
+        byte[] bodyDigest)
+    {
+        boolean decode = channel.contentEncoding()!=null && !gzipResponse;
+        long length = decode ? channel.decodedLength() : channel.length();
+        StreamingResponseBody stream = newResponseStreaming(channel, decode);
+        HttpHeaders responseHeaders = new HttpHeaders();
+        responseHeaders.add("Content-Length", length+"");
+        responseHeaders.add("Content-Type", format.mediaType());
+        responseHeaders.add(HttpHeaders.VARY, HttpHeaders.ACCEPT+", "+HttpHeaders.ACCEPT_ENCODING);
+        if (!decode && channel.contentEncoding()!=null) {
+            responseHeaders.add(HttpHeaders.CONTENT_ENCODING, channel.contentEncoding());
+        }
+        responseHeaders.add(RECORD_COUNT_HEADER, recordsCount+"");
+        responseHeaders.add(REJECTED_COUNT_HEADER, rejectedCount+"");
+        if (rejectsFile!=null) {
+            responseHeaders.add(REJECTS_FILE_HEADER, rejectsFile.getFileName().toString());
         }
+        if (cacheStatus!=null) {
+            responseHeaders.add(CACHE_HEADER, cacheStatus);
+        }
+        if (bodyDigest!=null) {
+            // to be declared by a caller sending the same body again
+            responseHeaders.add(CONTENT_SHA256_HEADER, HexFormat.of().formatHex(bodyDigest));
+        }
+        return new ResponseEntity<>(stream, responseHeaders, HttpStatus.OK);
     }
 
     @Operation(summary = "This operation accepts csv content with product lines: "+
@@ -128,10 +434,11 @@ public class TradeEnrichmentController {
         )
     })
     @RequestMapping(value = "/enrich-bidi", method = RequestMethod.POST, produces = "text/csv")
-    public  void enrichProductBidi(ServletRequest req,
+    public  Callable<Void> enrichProductBidi(ServletRequest req,
         @RequestBody String csv, InputStream file, HttpServletResponse response) throws Exception 
     {
         // please note that "String csv" above is a workaround for Swagger UI
+        HttpServletRequest request = (HttpServletRequest)req;
         if (req instanceof MultipartHttpServletRequest) {
             MultipartHttpServletRequest multi = (MultipartHttpServletRequest)req;
             MultipartFile multipartFile = multi.getFile("file");
@@ -139,146 +446,135 @@ public class TradeEnrichmentController {
                 file = multipartFile.getInputStream();
             }	
         }
+        else {
+            file = ContentCoding.decode(file, request.getHeader(HttpHeaders.CONTENT_ENCODING));
+        }
+        boolean gzipResponse = compressResponse && ContentCoding.acceptsGzip(request.getHeader(HttpHeaders.ACCEPT_ENCODING));
+        InputStream input = file;
+        LaneScheduler.Lane lane = AdmissionFilter.laneOf(request);
+        return () -> {
+            enrichProductBidi(input, response, gzipResponse, lane);
+            return null;
+        };
+    }
+
+    private void enrichProductBidi(InputStream file, HttpServletResponse response, boolean gzipResponse,
+        LaneScheduler.Lane lane)
+    {
         long startTime = System.currentTimeMillis();
         long recordsCount = 0;
-        AtomicLong wrongRecordsCount = new AtomicLong();
+        ProductDictionary dictionary = tradeEnrichmentService.snapshot();
+        RejectReporter.Rejects rejects = rejectReporter.newRejects();
+        // response is streamed, so the count of rejects (and sidecar name) is sent in trailer
+        response.setHeader(HttpHeaders.TRAILER, REJECTED_COUNT_HEADER+", "+REJECTS_FILE_HEADER);
+        response.setTrailerFields(() -> rejects.getPath()==null
+            ? Map.of(REJECTED_COUNT_HEADER, rejects.getCount()+"")
+            : Map.of(REJECTED_COUNT_HEADER, rejects.getCount()+"", REJECTS_FILE_HEADER,
+                rejects.getPath().getFileName().toString()));
+        // headers go first, the drainer may commit the response as soon as gzip header is written
+        response.setHeader("Content-Type", "text/csv");
+        response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (gzipResponse) {
+            response.setHeader(HttpHeaders.CONTENT_ENCODING, ContentCoding.GZIP);
+        }
+        response.setStatus(200);
                 
+        ByteBuffer readBuffer = null;
+        // client may send whole request before reading response, backlog is kept in memory and spilled to disk
+        // instead of blocking on the socket; it's closed first, so the backlog is delivered before the response ends
         try (InputStream autoClosable = file;
-            InputStreamReader isr = new InputStreamReader(file);
-            Scanner scanner = new Scanner(isr);            
-            OutputStream channel = response.getOutputStream())        
+            RejectReporter.Rejects autoClosableRejects = rejects;
+            EnrichmentMetrics.Recorder recorder = metrics.recorder(ENDPOINT_BIDI);
+            OutputStream output = response.getOutputStream();
+            BacklogOutputStream backlog = new BacklogOutputStream(output, bidiDrainExecutor, bidiMemoryBuffer,
+                resultStoreFactory::newSpillPath);
+            OutputStream channel = gzipResponse
+                ? ContentCoding.encodeGzip(backlog, resultStoreFactory.getCompressionLevel()) : backlog;
+            LaneScheduler.Task task = laneScheduler.start(lane))
         {
-            scanner.useDelimiter("[\\r]*[\\n]+");
-            StringBuilder sb = new StringBuilder(4096);
-            response.setHeader("Content-Type", "text/csv");
-            response.setStatus(200);
-            while (scanner.hasNextLine()) {
-                String line = scanner.nextLine();
-                if (++recordsCount==1) {
-                    // Always output the csv header.
-                    write(channel, TradeEnrichmentService.ENRICHED_CSV_HEADER);
-                }
-                processSingleRecord(line, recordsCount, wrongRecordsCount, channel, startTime, sb); 
-            }        
+            CsvTradeEncoder encoder = tradeEncoderFactory.newCsvEncoder(Channels.newChannel(channel), dictionary);
+            try {
+                readBuffer = bufferArena.getInputPool().acquire();
+                // lines enriched so far are sent before waiting for more input, the slot is given up while waiting
+                CsvTokenizer tokenizer = new CsvTokenizer(new FilterInputStream(task.reading(file)) {
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        encoder.flush();
+                        return super.read(b, off, len);
+                    }
+                }, readBuffer.array(), tradeEnrichmentService.getMaxLineBytes());
+                while (tokenizer.nextLine()) {
+                    if (++recordsCount==1) {
+                        // Always output the csv header.
+                        encoder.header();
+                    }
+                    tradeEnrichmentService.processSingleRecord(tokenizer, recordsCount, rejects, encoder, startTime,
+                        dictionary, recorder);
+                    task.checkpoint(tokenizer.getBytesRead());
+                }        
+                encoder.finish();
+                recorder.bytesIn(tokenizer.getBytesRead());
+                recorder.bytesOut(encoder.getLength());
+            }
+            finally {
+                // buffers of a failed request, nothing after finish
+                encoder.discard();
+            }
+        }
+        catch (BufferArena.ExhaustedException e) {
+            logger.warn("Enrichment rejected after {} records, buffer budget exhausted", recordsCount);
+            if (!response.isCommitted()) {
+                response.setHeader("Retry-After", "1");
+                response.setStatus(rejectStatus);
+            }
         }
         catch (Exception e) {
             logger.error("Enrichment failed. Current records count="+recordsCount, e);
             response.setStatus(500);
         }
         finally {        
+            if (readBuffer!=null) {
+                bufferArena.getInputPool().release(readBuffer);
+            }
             long endTime = System.currentTimeMillis();
             logger.info("Processed {} records in {} ms, invalid count: {}", 
-                recordsCount, (endTime-startTime), wrongRecordsCount);
-        }
-    }
-
-    private boolean processSingleRecord(String line, long recordsCount, AtomicLong wrongRecordsCount,
-        OutputStream channel, long startTime, StringBuilder sb) throws IOException
-    {
-        Trade trade = null;
-        try {
-            trade = Trade.fromCsvLine(line, recordsCount==1);
-        }
-        catch (ValidationException ve) {
-            wrongRecordsCount.incrementAndGet();
-            logger.warn("Not processable record at line {} due to error: {}, content: \"{}\"",
-                recordsCount, ve.getMessage(), ve.getContent());
-            return false;
-        }   
-        
-        if (trade!=null && !trade.isLikelyHeader()) {
-            //logger.info(recordsCount+"|->");
-            write(channel, tradeEnrichmentService.enrichTrade(trade).toCsvEnrichedLine(sb));
-        }
-        else {
-            wrongRecordsCount.incrementAndGet();
-            logger.warn("Empty record at line {}", recordsCount);
-        }  
-        if (recordsCount % 1_000_000 == 0) {
-            long mlns = recordsCount/1_000_000;
-            long seconds = (System.currentTimeMillis()-startTime)/1000L;
-            double throughput = Math.round(100.0*mlns/seconds)/100.0;
-            logger.info("Currenly processed {} mln records, wall time is {}s, throughput {} mln/s",
-                mlns, seconds, throughput);
+                recordsCount, (endTime-startTime), rejects.getCount());
         }
-        //logger.info(recordsCount+"->|");
-        return true;
     }
 
-    private boolean processSingleRecord(String line, long recordsCount, AtomicLong wrongRecordsCount,
-        FileChannel channel, long startTime, StringBuilder sb) throws IOException
-    {
-        Trade trade = null;
-        try {
-            trade = Trade.fromCsvLine(line, recordsCount==1);
-        }
-        catch (ValidationException ve) {
-            wrongRecordsCount.incrementAndGet();
-            logger.warn("Not processable record at line {} due to error: {}, content: \"{}\"",
-                recordsCount, ve.getMessage(), ve.getContent());
-            return false;
-        }   
-        
-        if (trade!=null && !trade.isLikelyHeader()) {
-            write(channel, tradeEnrichmentService.enrichTrade(trade).toCsvEnrichedLine(sb));
-        }
-        else {
-            wrongRecordsCount.incrementAndGet();
-            logger.warn("Empty record at line {}", recordsCount);
-        }  
-        if (recordsCount % 1_000_000 == 0) {
-            long mlns = recordsCount/1_000_000;
-            long seconds = (System.currentTimeMillis()-startTime)/1000L;
-            double throughput = Math.round(100.0*mlns/seconds)/100.0;
-            logger.info("Currenly processed {} mln records, wall time is {}s, throughput {} mln/s",
-                mlns, seconds, throughput);
-        }
-        return true;
-    }
-
-    private StreamingResponseBody  newResponseStreaming(Path tempStorePath, long length) {
+    private StreamingResponseBody  newResponseStreaming(ResultStore store, boolean decode) {
         StreamingResponseBody stream = output -> {
-            byte[] buffer = new byte[1024*1024];
-            try (RandomAccessFile raf = new RandomAccessFile(tempStorePath.toFile(), "r")) {
-                long pos = 0;
-                raf.seek(pos);
-                while (pos < length - 1) {                            
-                    int n = raf.read(buffer);
-                    if (n>0) {
-                        output.write(buffer, 0, n);
-                        pos += n;
-                    }
-                    else {
-                        break;
-                    }                    
-                }
-                if (pos != length) {
-                    throw new RuntimeException("Truncated read, actual="+pos+", expected="+length);
+            try (ResultStore autoClosable = store) {
+                long length = decode ? store.decodedLength() : store.length();
+                long transferStart = System.nanoTime();
+                long sent = decode ? responseTransfer.transferDecoded(store, output)
+                    : responseTransfer.transfer(store, output);
+                metrics.record(ENDPOINT_ENRICH, EnrichmentMetrics.Stage.TRANSFER, System.nanoTime() - transferStart);
+                if (sent != length) {
+                    throw new RuntimeException("Truncated read, actual="+sent+", expected="+length);
                 }
                 output.flush();                    
             }
             catch (Throwable e) {
                 logger.error("Response transfer error: " + e.getMessage());                    
             }
-            finally {
-                Files.delete(tempStorePath);
-            }
         };
         return stream;
     }
 
-    private void write(OutputStream channel, String s) throws IOException {
-        channel.write(s.getBytes());        
+    // parallel chunks fail with the exception as the cause
+    private static boolean isExhausted(Throwable e) {
+        return e instanceof BufferArena.ExhaustedException || e.getCause() instanceof BufferArena.ExhaustedException
+            || e instanceof TempStoreManager.QuotaExceededException
+            || e.getCause() instanceof TempStoreManager.QuotaExceededException;
     }
 
-    private void write(FileChannel channel, String s) throws IOException {
-        channel.write(ByteBuffer.wrap(s.getBytes()));        
-    }
-
-    private Path newTemporaryStorePath() throws IOException {
-        return Files.createTempFile("trade-enrichment-svc-", ".csv");
-    }
-    private RandomAccessFile newTemporaryStore(Path path) throws FileNotFoundException, IOException {
-        return new RandomAccessFile(path.toFile(), "rw");
+    private void closeQuietly(ResultStore store) {
+        try {
+            store.close();
+        }
+        catch (IOException e) {
+            logger.warn("Can't discard result store: "+e.getMessage());
+        }
     }
-}
\ No newline at end of file
+}
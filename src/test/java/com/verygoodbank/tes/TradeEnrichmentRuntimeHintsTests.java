@@ -0,0 +1,22 @@
+package com.verygoodbank.tes;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.aot.hint.RuntimeHints;
+import org.springframework.aot.hint.predicate.RuntimeHintsPredicates;
+
+class TradeEnrichmentRuntimeHintsTests {
+
+    @Test
+    public void testHintsCoverCatalogAndVirtualThreads() throws Exception {
+        RuntimeHints hints = new RuntimeHints();
+        new TradeEnrichmentRuntimeHints().registerHints(hints, getClass().getClassLoader());
+        assertTrue(RuntimeHintsPredicates.resource().forResource("products.csv").test(hints));
+        // the method exists only on Java 21+, so the hint is looked up by name
+        assertTrue(hints.reflection().getTypeHint(Executors.class).methods()
+            .anyMatch(method -> method.getName().equals("newVirtualThreadPerTaskExecutor")));
+    }
+}
@@ -2,35 +2,59 @@ package com.verygoodbank.tes;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
 import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.core.io.ByteArrayResource;
 import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatusCode;
+import org.springframework.http.MediaType;
+import org.springframework.util.LinkedMultiValueMap;
 
+import com.verygoodbank.tes.output.OutputFormat;
+import com.verygoodbank.tes.service.BatchEnrichmentService;
+import com.verygoodbank.tes.service.ShardCoordinator;
 import com.verygoodbank.tes.service.TradeEnrichmentService;
+import com.verygoodbank.tes.web.controller.EnrichmentSessionController;
+import com.verygoodbank.tes.web.controller.TradeEnrichmentController;
 
-@SpringBootTest(webEnvironment=WebEnvironment.DEFINED_PORT)  
+// the instance is its own peer in coordinator mode, next to a peer that refuses connections
+@SpringBootTest(webEnvironment=WebEnvironment.DEFINED_PORT, properties = {
+    "tes.coordinator.peers=http://localhost:1,http://localhost:8080", "tes.coordinator.shard-bytes=65536",
+    "tes.cache.max-bytes=67108864" })
 class TradeEnrichmentServiceApplicationTests {
 
     @Autowired
     TestRestTemplate rest;
+    @Autowired
+    ShardCoordinator shardCoordinator;
 
     private static boolean isBidi = System.getProperty("commMode", "").equalsIgnoreCase("bidi");
     private static volatile String lastTestName = "";
@@ -166,6 +190,10 @@ class TradeEnrichmentServiceApplicationTests {
         List<String> filteredRequest = Arrays.asList(request.split("[\r]*\n")).stream().
             filter( val -> val.contains("," )).map(line -> line.split("\\,")[0]).toList();
         assertEquals(response, filteredRequest);
+        if (!isBidi) {
+            // header, wrong and empty line
+            assertEquals("3", resp.getHeaders().getFirst(TradeEnrichmentController.REJECTED_COUNT_HEADER));
+        }
     }
 
     @Test
@@ -194,6 +222,335 @@ class TradeEnrichmentServiceApplicationTests {
         assertTrue(endTime - startTime <= 91000);
     }
 
+    @Test
+    public void testParallelOutputIsIdenticalToSequential() throws Exception {
+        enter("testParallelOutputIsIdenticalToSequential");
+        String[] lines = { "20240229,1,EUR,10\r\n", "20240230,2,EUR,10\n", "wrong-record\r\n", "\r\n",
+            "20240101,3,USD,10.5,,\n", "20240101,11,PLN,1e3\r", "20240101,5,EUR,abc\r\n" };
+        StringBuilder sb = new StringBuilder(4*1024*1024);
+        sb.append(TradeEnrichmentService.ENRICHED_CSV_HEADER);
+        for (int i=0; i < 200_000; i++) {
+            sb.append(lines[i % lines.length]);
+        }
+        String request = sb.toString();
+        var sequential = rest.exchange(new URI("/api/v1/enrich?parallelism=1"), HttpMethod.POST,
+            new HttpEntity<>(request), String.class);
+        var parallel = rest.exchange(new URI("/api/v1/enrich?parallelism=4"), HttpMethod.POST,
+            new HttpEntity<>(request), String.class);
+        assertEquals(200, parallel.getStatusCode().value());
+        assertEquals(sequential.getBody(), parallel.getBody());
+    }
+
+    @Test
+    public void testBinaryOutputFormats() throws Exception {
+        enter("testBinaryOutputFormats");
+        if (isBidi) {
+            // /enrich-bidi answers only CSV
+            return;
+        }
+        String request = "20160101,1,EUR,10.0\r\n20160101,2,EUR,wrong\r\n";
+        for (String format : List.of(OutputFormat.ROWS_MEDIA_TYPE, OutputFormat.ARROW_MEDIA_TYPE)) {
+            for (String parallelism : List.of("1", "4")) {
+                HttpHeaders headers = new HttpHeaders();
+                headers.add(HttpHeaders.ACCEPT, format);
+                var resp = rest.exchange(new URI("/api/v1/enrich?parallelism="+parallelism), HttpMethod.POST,
+                    new HttpEntity<>(request, headers), byte[].class);
+                assertEquals(200, resp.getStatusCode().value());
+                assertEquals(format, resp.getHeaders().getFirst(HttpHeaders.CONTENT_TYPE));
+                assertEquals("1", resp.getHeaders().getFirst(TradeEnrichmentController.REJECTED_COUNT_HEADER));
+                byte[] body = resp.getBody();
+                if (format.equals(OutputFormat.ROWS_MEDIA_TYPE)) {
+                    assertEquals("TESR", new String(body, 0, 4, StandardCharsets.US_ASCII));
+                    assertTrue(new String(body, StandardCharsets.UTF_8).contains("Treasury Bills Domestic"));
+                }
+                else {
+                    assertArrayEquals(new byte[] { -1, -1, -1, -1, 0, 0, 0, 0 },
+                        Arrays.copyOfRange(body, body.length - 8, body.length));
+                }
+            }
+        }
+        HttpHeaders headers = new HttpHeaders();
+        headers.add(HttpHeaders.ACCEPT, "application/json");
+        var resp = rest.exchange(uri(), HttpMethod.POST, new HttpEntity<>(request, headers), String.class);
+        assertEquals(406, resp.getStatusCode().value());
+    }
+
+    @Test
+    public void testShardedOutputIsIdenticalToSingleInstance() throws Exception {
+        enter("testShardedOutputIsIdenticalToSingleInstance");
+        String[] lines = { "20240229,1,EUR,10\r\n", "20240230,2,EUR,10\n", "date,product_id,currency,price\r\n",
+            "\r\n", "20240101,3,USD,10.5,,\n", "20240101,11,PLN,1e3\r", "20240101,5,EUR,abc\r\n" };
+        StringBuilder sb = new StringBuilder(TradeEnrichmentService.ENRICHED_CSV_HEADER);
+        for (int i=0; i < 50_000; i++) {
+            sb.append(lines[i % lines.length]);
+        }
+        String request = sb.toString();
+        var single = rest.exchange(new URI("/api/v1/enrich"), HttpMethod.POST, new HttpEntity<>(request), String.class);
+        var sharded = rest.exchange(new URI("/api/v1/enrich-sharded?parallelism=2"), HttpMethod.POST,
+            new HttpEntity<>(request), String.class);
+        assertEquals(200, sharded.getStatusCode().value());
+        assertEquals(single.getBody(), sharded.getBody());
+
+        long retried = shardCoordinator.getRetriedCount();
+        ShardCoordinator.Totals totals = new ShardCoordinator.Totals();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        shardCoordinator.enrich(new ByteArrayInputStream(request.getBytes(StandardCharsets.UTF_8)), out, null, totals);
+        assertEquals(single.getBody(), out.toString(StandardCharsets.UTF_8));
+        assertTrue(totals.getShards() > 2);
+        assertEquals((totals.getShards()+1)/2, shardCoordinator.getRetriedCount() - retried);
+        assertEquals(single.getHeaders().getFirst(TradeEnrichmentController.RECORD_COUNT_HEADER),
+            totals.getRecords()+"");
+        assertEquals(single.getHeaders().getFirst(TradeEnrichmentController.REJECTED_COUNT_HEADER),
+            totals.getRejected()+"");
+
+        LinkedMultiValueMap<String,Object> parts = new LinkedMultiValueMap<>();
+        parts.add("other", request);
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.MULTIPART_FORM_DATA);
+        var missing = rest.exchange(new URI("/api/v1/enrich-sharded"), HttpMethod.POST, new HttpEntity<>(parts, headers),
+            String.class);
+        assertEquals(400, missing.getStatusCode().value());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testCatalogReload() throws Exception {
+        enter("testCatalogReload");
+        Map<String,Object> before = rest.getForObject("/api/v1/admin/catalog", Map.class);
+        var resp = rest.exchange(new URI("/api/v1/admin/catalog/reload"), HttpMethod.POST, null, Map.class);
+        assertEquals(200, resp.getStatusCode().value());
+        Map<String,Object> after = resp.getBody();
+        assertEquals(before.get("entries"), after.get("entries"));
+        assertEquals(((Number)before.get("version")).longValue() + 1, ((Number)after.get("version")).longValue());
+        testOneLine();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testResultCache() throws Exception {
+        enter("testResultCache");
+        if (isBidi) {
+            return;
+        }
+        String request = "20160101,1,EUR,"+System.nanoTime()+"\n20160101,2,EUR,abc\n";
+        var first = rest.exchange(uri(), HttpMethod.POST, new HttpEntity<>(request), String.class);
+        assertEquals(TradeEnrichmentController.CACHE_MISS, first.getHeaders().getFirst(TradeEnrichmentController.CACHE_HEADER));
+        // the same body sent again is answered from the cache
+        var second = rest.exchange(uri(), HttpMethod.POST, new HttpEntity<>(request), String.class);
+        assertEquals(TradeEnrichmentController.CACHE_HIT, second.getHeaders().getFirst(TradeEnrichmentController.CACHE_HEADER));
+        assertEquals(first.getBody(), second.getBody());
+        assertEquals("2", second.getHeaders().getFirst(TradeEnrichmentController.RECORD_COUNT_HEADER));
+        assertEquals("1", second.getHeaders().getFirst(TradeEnrichmentController.REJECTED_COUNT_HEADER));
+        // so is a body declaring its digest
+        String sha256 = first.getHeaders().getFirst(TradeEnrichmentController.CONTENT_SHA256_HEADER);
+        HttpHeaders declared = new HttpHeaders();
+        declared.add(TradeEnrichmentController.CONTENT_SHA256_HEADER, sha256);
+        var third = rest.exchange(uri(), HttpMethod.POST, new HttpEntity<>(request, declared), String.class);
+        assertEquals(TradeEnrichmentController.CACHE_HIT, third.getHeaders().getFirst(TradeEnrichmentController.CACHE_HEADER));
+        assertEquals(first.getBody(), third.getBody());
+        // a cached result isn't sent for another body
+        var other = rest.exchange(uri(), HttpMethod.POST, new HttpEntity<>(request+"20160101,1,EUR,1\n", declared),
+            String.class);
+        assertEquals(400, other.getStatusCode().value());
+        // other format is another result
+        HttpHeaders headers = new HttpHeaders();
+        headers.add(HttpHeaders.ACCEPT, OutputFormat.ROWS_MEDIA_TYPE);
+        headers.add(TradeEnrichmentController.CONTENT_SHA256_HEADER, sha256);
+        var rows = rest.exchange(uri(), HttpMethod.POST, new HttpEntity<>(request, headers), byte[].class);
+        assertEquals(TradeEnrichmentController.CACHE_MISS, rows.getHeaders().getFirst(TradeEnrichmentController.CACHE_HEADER));
+        // new catalog version drops cached results
+        rest.exchange(new URI("/api/v1/admin/catalog/reload"), HttpMethod.POST, null, Map.class);
+        var reloaded = rest.exchange(uri(), HttpMethod.POST, new HttpEntity<>(request, declared), String.class);
+        assertEquals(TradeEnrichmentController.CACHE_MISS, reloaded.getHeaders().getFirst(TradeEnrichmentController.CACHE_HEADER));
+        assertEquals(first.getBody(), reloaded.getBody());
+        Map<String,Object> hits = rest.getForObject("/actuator/metrics/tes.cache.hits", Map.class);
+        assertTrue(((Number)((List<Map<String,Object>>)hits.get("measurements")).get(0).get("value")).doubleValue() >= 1);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testAppendSession() throws Exception {
+        enter("testAppendSession");
+        var created = rest.exchange(new URI("/api/v1/sessions"), HttpMethod.POST, null, Map.class);
+        assertEquals(201, created.getStatusCode().value());
+        URI location = created.getHeaders().getLocation();
+        var first = rest.exchange(new URI(location+"/batches"), HttpMethod.POST,
+            new HttpEntity<>("20160101,1,EUR,10.0\n"), Map.class);
+        assertEquals(200, first.getStatusCode().value());
+        var read = rest.getForEntity(location+"/result", String.class);
+        assertEquals(TradeEnrichmentService.ENRICHED_CSV_HEADER+"20160101,Treasury Bills Domestic,EUR,10.0\r\n",
+            read.getBody());
+        String next = read.getHeaders().getFirst(EnrichmentSessionController.NEXT_OFFSET_HEADER);
+        var second = rest.exchange(new URI(location+"/batches"), HttpMethod.POST,
+            new HttpEntity<>("20160101,2,EUR,abc\n20160101,2,EUR,20.0\n"), Map.class);
+        Map<String,Object> batch = (Map<String,Object>)second.getBody().get("batch");
+        assertEquals(2, ((Number)batch.get("firstLine")).intValue());
+        assertEquals(1, ((Number)batch.get("invalid")).intValue());
+        assertEquals(3, ((Number)second.getBody().get("lines")).intValue());
+        // only the new output is read from the previous offset
+        read = rest.getForEntity(location+"/result?offset="+next, String.class);
+        assertEquals("20160101,Corporate Bonds Domestic,EUR,20.0\r\n", read.getBody());
+        rest.delete(location);
+        assertEquals(404, rest.getForEntity(location+"/result", String.class).getStatusCode().value());
+    }
+
+    @Test
+    public void testAdmissionPermitsAreReleased() throws Exception {
+        enter("testAdmissionPermitsAreReleased");
+        // more requests than tes.admission.max-requests
+        for (int i=0; i < 100; i++) {
+            var resp = rest.exchange(uri(), HttpMethod.POST, new HttpEntity<>("20160101,1,EUR,10.0"), String.class);
+            assertEquals(200, resp.getStatusCode().value());
+        }
+    }
+
+    @Test
+    public void testGzipRequestAndResponse() throws Exception {
+        enter("testGzipRequestAndResponse");
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i < 100_000; i++) {
+            sb.append("20160101,").append(i % 12).append(",EUR,10.0\r\n");
+        }
+        String request = sb.toString();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(request.getBytes(StandardCharsets.UTF_8));
+        }
+        HttpHeaders headers = new HttpHeaders();
+        headers.add(HttpHeaders.CONTENT_ENCODING, "gzip");
+        headers.add(HttpHeaders.ACCEPT_ENCODING, "gzip");
+        var plain = rest.exchange(uri(), HttpMethod.POST, new HttpEntity<>(request), String.class);
+        var resp = rest.exchange(uri(), HttpMethod.POST, new HttpEntity<>(compressed.toByteArray(), headers),
+            byte[].class);
+        assertEquals(200, resp.getStatusCode().value());
+        assertEquals("gzip", resp.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+        assertTrue(resp.getBody().length*5 < plain.getBody().length());
+        try (GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(resp.getBody()))) {
+            assertEquals(plain.getBody(), new String(gzip.readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testJobWithRangeDownload() throws Exception {
+        enter("testJobWithRangeDownload");
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i < 50_000; i++) {
+            sb.append("20160101,").append(i % 12).append(",EUR,10.0\r\n");
+        }
+        sb.append("wrong-record\r\n");
+        String request = sb.toString();
+        var plain = rest.exchange(new URI("/api/v1/enrich"), HttpMethod.POST, new HttpEntity<>(request), String.class);
+        var submitted = rest.exchange(new URI("/api/v1/jobs?parallelism=2"), HttpMethod.POST,
+            new HttpEntity<>(request), Map.class);
+        assertEquals(202, submitted.getStatusCode().value());
+        URI location = submitted.getHeaders().getLocation();
+        Map<String,Object> status = submitted.getBody();
+        for (int i=0; i < 100 && !"DONE".equals(status.get("state")); i++) {
+            Thread.sleep(100);
+            status = rest.getForObject(location, Map.class);
+        }
+        assertEquals("DONE", status.get("state"));
+        assertEquals(1, ((Number)status.get("invalid")).intValue());
+        String result = rest.getForObject(location+"/result", String.class);
+        assertEquals(plain.getBody(), result);
+        HttpHeaders headers = new HttpHeaders();
+        headers.add(HttpHeaders.RANGE, "bytes=1000-");
+        var rest1000 = rest.exchange(new URI(location+"/result"), HttpMethod.GET, new HttpEntity<>(headers),
+            String.class);
+        assertEquals(206, rest1000.getStatusCode().value());
+        byte[] resultBytes = result.getBytes(StandardCharsets.UTF_8);
+        assertEquals(new String(resultBytes, 1000, resultBytes.length - 1000, StandardCharsets.UTF_8),
+            rest1000.getBody());
+        headers.set(HttpHeaders.RANGE, "bytes="+result.getBytes(StandardCharsets.UTF_8).length+"-");
+        var beyond = rest.exchange(new URI(location+"/result"), HttpMethod.GET, new HttpEntity<>(headers),
+            String.class);
+        assertEquals(416, beyond.getStatusCode().value());
+        rest.delete(location);
+        assertEquals(404, rest.exchange(location, HttpMethod.GET, null, String.class).getStatusCode().value());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testMetrics() throws Exception {
+        enter("testMetrics");
+        String endpoint = isBidi ? "enrich-bidi" : "enrich";
+        String request = "20160101,1,EUR,10.0\n20161301,1,EUR,10.0\n20160101,1,EUR,abc\n20160101,1,EUR\n";
+        var resp = rest.exchange(uri(), HttpMethod.POST, new HttpEntity<>(request), String.class);
+        assertEquals(200, resp.getStatusCode().value());
+        for (String reason : new String[] { "date", "price", "field_count" }) {
+            Map<String,Object> metric = rest.getForObject("/actuator/metrics/tes.enrich.invalid?tag=endpoint:"+endpoint+
+                "&tag=reason:"+reason, Map.class);
+            var measurements = (List<Map<String,Object>>)metric.get("measurements");
+            assertTrue(((Number)measurements.get(0).get("value")).doubleValue() >= 1, reason);
+        }
+        Map<String,Object> records = rest.getForObject("/actuator/metrics/tes.enrich.records?tag=endpoint:"+endpoint,
+            Map.class);
+        assertNotNull(records);
+        Map<String,Object> products = rest.getForObject("/actuator/metrics/tes.catalog.products", Map.class);
+        assertTrue(((Number)((List<Map<String,Object>>)products.get("measurements")).get(0).get("value")).doubleValue() > 0);
+        Map<String,Object> stage = rest.getForObject("/actuator/metrics/tes.enrich.stage?tag=endpoint:"+endpoint+
+            "&tag=stage:parse", Map.class);
+        assertEquals("tes.enrich.stage", stage.get("name"));
+        Map<String,Object> queued = rest.getForObject("/actuator/metrics/tes.lanes.queued?tag=lane:latency", Map.class);
+        assertEquals("tes.lanes.queued", queued.get("name"));
+    }
+
+    @Test
+    public void testFiltersAndAggregates() throws Exception {
+        enter("testFiltersAndAggregates");
+        String request = "20160101,1,EUR,10.0\n20160102,2,PLN,20.0\n20160103,1,EUR,abc\n20160104,1,EUR,5\n";
+        var filtered = rest.exchange(new URI("/api/v1/enrich?currency=EUR&dateFrom=20160102"), HttpMethod.POST,
+            new HttpEntity<>(request), String.class);
+        assertEquals(TradeEnrichmentService.ENRICHED_CSV_HEADER+"20160104,Treasury Bills Domestic,EUR,5\r\n",
+            filtered.getBody());
+        assertEquals("1", filtered.getHeaders().getFirst(TradeEnrichmentController.REJECTED_COUNT_HEADER));
+        var aggregated = rest.exchange(new URI("/api/v1/enrich?aggregate=currency&parallelism=2"), HttpMethod.POST,
+            new HttpEntity<>(request), String.class);
+        assertEquals("currency,count,sum_price,min_price,max_price\r\n"
+            +"EUR,2,15.0,5,10.0\r\nPLN,1,20.0,20.0,20.0\r\n", aggregated.getBody());
+        var invalid = rest.exchange(new URI("/api/v1/enrich?aggregate=desk"), HttpMethod.POST,
+            new HttpEntity<>(request), String.class);
+        assertEquals(400, invalid.getStatusCode().value());
+    }
+
+    @Test
+    public void testBatchOfFiles() throws Exception {
+        enter("testBatchOfFiles");
+        LinkedMultiValueMap<String,Object> parts = new LinkedMultiValueMap<>();
+        String[] files = { "20160101,1,EUR,10.0\n", "20160101,2,EUR,abc\n20160101,2,EUR,20.0\n", "" };
+        for (int i=0; i < files.length; i++) {
+            String name = "desk"+i+".csv";
+            parts.add("file", new ByteArrayResource(files[i].getBytes(StandardCharsets.UTF_8)) {
+                @Override
+                public String getFilename() {
+                    return name;
+                }
+            });
+        }
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.MULTIPART_FORM_DATA);
+        var resp = rest.exchange(new URI("/api/v1/enrich-batch"), HttpMethod.POST, new HttpEntity<>(parts, headers),
+            byte[].class);
+        assertEquals(200, resp.getStatusCode().value());
+        Map<String,String> entries = new HashMap<>();
+        List<String> order = new ArrayList<>();
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(resp.getBody()))) {
+            for (ZipEntry entry; (entry = zip.getNextEntry())!=null; ) {
+                order.add(entry.getName());
+                entries.put(entry.getName(), new String(zip.readAllBytes(), StandardCharsets.UTF_8));
+            }
+        }
+        assertEquals(BatchEnrichmentService.MANIFEST_ENTRY, order.get(order.size() - 1));
+        assertEquals(TradeEnrichmentService.ENRICHED_CSV_HEADER+"20160101,Treasury Bills Domestic,EUR,10.0\r\n",
+            entries.get("desk0.csv"));
+        assertEquals(TradeEnrichmentService.ENRICHED_CSV_HEADER+"20160101,Corporate Bonds Domestic,EUR,20.0\r\n",
+            entries.get("desk1.csv"));
+        assertEquals(BatchEnrichmentService.MANIFEST_HEADER+"0,desk0.csv,desk0.csv,1,0,,\r\n"
+            +"1,desk1.csv,desk1.csv,2,1,,\r\n2,desk2.csv,desk2.csv,0,0,,\r\n",
+            entries.get(BatchEnrichmentService.MANIFEST_ENTRY));
+    }
+
     @Test
     public void testEndsHere() throws Exception {
         enter(null);
@@ -0,0 +1,101 @@
+package com.verygoodbank.tes.csv;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+
+import org.junit.jupiter.api.Test;
+
+class CsvTokenizerTests {
+
+    private static List<String> tokenize(String content, int bufferSize) throws Exception {
+        CsvTokenizer tokenizer = new CsvTokenizer(
+            new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)), bufferSize);
+        List<String> lines = new ArrayList<>();
+        while (tokenizer.nextLine()) {
+            StringBuilder sb = new StringBuilder(tokenizer.line()).append('|').append(tokenizer.fieldCount());
+            for (int i=0; i < Math.min(tokenizer.fieldCount(), CsvTokenizer.MAX_TRACKED_FIELDS); i++) {
+                sb.append('|').append(tokenizer.field(i));
+            }
+            lines.add(sb.toString());
+        }
+        return lines;
+    }
+
+    private static List<String> reference(String content) {
+        List<String> lines = new ArrayList<>();
+        try (Scanner scanner = new Scanner(new StringReader(content))) {
+            while (scanner.hasNextLine()) {
+                String line = scanner.nextLine();
+                String[] values = line.split("\\,");
+                StringBuilder sb = new StringBuilder(line).append('|').append(line.isEmpty() ? 0 : values.length);
+                for (int i=0; i < Math.min(values.length, CsvTokenizer.MAX_TRACKED_FIELDS) && !line.isEmpty(); i++) {
+                    sb.append('|').append(values[i]);
+                }
+                lines.add(sb.toString());
+            }
+        }
+        return lines;
+    }
+
+    @Test
+    public void testLinesAndFieldsMatchScannerAndSplit() throws Exception {
+        String[] inputs = {
+            "20160101,1,EUR,10.0",
+            "20160101,1,EUR,10.0\n",
+            "a,b\r\nc,d\r\n\r\ne,f,,,\n,,,\n,x",
+            "a\r\rb\n\nc\r",
+            "20240229,1,EUR,10,11,12,13,14,15,16\r\n",
+            "zażółć,gęślą,jaźń,1\n",
+            "",
+            "\n"
+        };
+        for (String input : inputs) {
+            for (int bufferSize : new int[] { 1, 3, 7, 64*1024 }) {
+                assertEquals(reference(input), tokenize(input, bufferSize), "input: "+input+", buffer: "+bufferSize);
+            }
+        }
+    }
+
+    @Test
+    public void testHeaderAndBlankDetection() throws Exception {
+        CsvTokenizer tokenizer = new CsvTokenizer(new ByteArrayInputStream(
+            "date,product_id,currency,price\n \t\n20160101,1,EUR,10.0".getBytes(StandardCharsets.UTF_8)));
+        assertTrue(tokenizer.nextLine());
+        assertFalse(tokenizer.hasDigit());
+        assertFalse(tokenizer.isBlank());
+        assertTrue(tokenizer.nextLine());
+        assertTrue(tokenizer.isBlank());
+        assertTrue(tokenizer.nextLine());
+        assertTrue(tokenizer.hasDigit());
+        assertEquals(3, tokenizer.getLineNumber());
+        assertFalse(tokenizer.nextLine());
+    }
+
+    @Test
+    public void testTooLongLine() throws Exception {
+        String content = "20160101,1,EUR,10.0\r\n"+"x".repeat(1000)+"\r\n20160102,2,EUR,20.0\n"+"y".repeat(100);
+        CsvTokenizer tokenizer = new CsvTokenizer(new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)),
+            new byte[16], 64);
+        assertTrue(tokenizer.nextLine());
+        assertFalse(tokenizer.isTooLong());
+        assertEquals("20160101,1,EUR,10.0", tokenizer.line());
+        assertTrue(tokenizer.nextLine());
+        assertTrue(tokenizer.isTooLong());
+        assertEquals("", tokenizer.line());
+        assertTrue(tokenizer.nextLine());
+        assertFalse(tokenizer.isTooLong());
+        assertEquals("20160102,2,EUR,20.0", tokenizer.line());
+        // the last line without line end
+        assertTrue(tokenizer.nextLine());
+        assertTrue(tokenizer.isTooLong());
+        assertFalse(tokenizer.nextLine());
+        assertEquals(4, tokenizer.getLineNumber());
+        assertTrue(tokenizer.buffer().length <= 128, "buffer grows up to twice the line limit");
+    }
+}
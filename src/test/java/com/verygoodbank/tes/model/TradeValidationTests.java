@@ -0,0 +1,73 @@
+package com.verygoodbank.tes.model;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class TradeValidationTests {
+
+    private static boolean referenceDate(String dt) {
+        if (dt.length()!=8) {
+            return false;
+        }
+        try {
+            LocalDate.of(Integer.parseInt(dt.substring(0, 4)), Integer.parseInt(dt.substring(4, 6)),
+                Integer.parseInt(dt.substring(6, 8)));
+            return true;
+        }
+        catch (NumberFormatException | DateTimeException e) {
+            return false;
+        }
+    }
+
+    private static boolean referencePrice(String number) {
+        try {
+            Double.parseDouble(number);
+            return true;
+        }
+        catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    @Test
+    public void testDatesMatchLocalDate() {
+        for (int year=0; year <= 2400; year++) {
+            for (int month=0; month <= 13; month++) {
+                for (int day=0; day <= 32; day++) {
+                    String dt = Integer.toString(100_000_000 + year*10_000 + month*100 + day).substring(1);
+                    assertEquals(referenceDate(dt), Trade.validateDate(dt), dt);
+                }
+            }
+        }
+        String[] inputs = { "+0160101", "-0160101", "2016+1+1", "2016-1-1", "2016010", "201601011", "2016010a",
+            " 2016010", "２０１６０１０１", "20160229", "21000229", "20000229", "19000229", "", "+", "++++++++" };
+        for (String dt : inputs) {
+            assertEquals(referenceDate(dt), Trade.validateDate(dt), dt);
+        }
+    }
+
+    @Test
+    public void testPricesMatchParseDouble() {
+        String[] inputs = { "10", "10.0", "-10.5", "+.5", "5.", ".", "", "-", "1e5", "1E-5", "1e", "1e+", "e5", "1.5f",
+            "1.5D", "1.5x", "1,5", " 10.0", "10.0 ", "1 0", "NaN", "-Infinity", "Infinity1", "0x1.8p3", "0X10P0",
+            "1.0.0", "abc", "１０", "1e5d", "1dd", "\t7\u0000", "0x", "1_000" };
+        for (String price : inputs) {
+            assertEquals(referencePrice(price), Trade.validatePrice(price), price);
+        }
+        char[] alphabet = { '0', '1', '9', '.', '-', '+', 'e', 'E', 'f', 'd', 'D', ' ', 'x', 'p', 'N', 'a', 'I', ',' };
+        Random random = new Random(12);
+        for (int i=0; i < 300_000; i++) {
+            char[] chars = new char[1 + random.nextInt(7)];
+            for (int j=0; j < chars.length; j++) {
+                chars[j] = alphabet[random.nextInt(alphabet.length)];
+            }
+            String price = new String(chars);
+            assertEquals(referencePrice(price), Trade.validatePrice(price), price);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.verygoodbank.tes.output;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class BufferArenaTests {
+
+    @Test
+    public void testBudgetIsSharedByPools() {
+        BufferArena arena = new BufferArena(16384, 0);
+        BufferPool direct = arena.newPool(4096, 2, true);
+        BufferPool heap = arena.newPool(4096, 2, false);
+        List<ByteBuffer> buffers = new ArrayList<>();
+        for (int i=0; i < 4; i++) {
+            buffers.add(direct.acquire());
+        }
+        assertEquals(16384, arena.getReservedBytes());
+        assertThrows(BufferArena.ExhaustedException.class, heap::acquire);
+        assertEquals(1, arena.getExhaustedCount());
+        direct.release(buffers.remove(0));
+        direct.release(buffers.remove(0));
+        // released twice and foreign buffers are ignored
+        direct.release(ByteBuffer.allocateDirect(4096));
+        assertEquals(2, direct.getPooledCount());
+        assertEquals(8192, arena.getPooledBytes());
+        assertEquals(16384, arena.getReservedBytes());
+        // free buffers of the other pool are kept
+        assertThrows(BufferArena.ExhaustedException.class, heap::acquire);
+        assertEquals(2, direct.getPooledCount());
+        direct.trim();
+        ByteBuffer array = heap.acquire();
+        assertTrue(array.hasArray());
+        assertEquals(12288, arena.getReservedBytes());
+        heap.release(array);
+        heap.release(array);
+        assertEquals(1, heap.getPooledCount());
+        assertSame(array, heap.acquire());
+        assertEquals(1.0*12288/16384, arena.getOccupancy());
+    }
+
+    @Test
+    public void testWaitForReleasedBuffer() throws Exception {
+        BufferArena arena = new BufferArena(8192, 5000);
+        BufferPool pool = arena.newPool(4096, 0, true);
+        ByteBuffer first = pool.acquire();
+        pool.acquire();
+        Thread releaser = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+            pool.release(first);
+        });
+        releaser.start();
+        assertNotNull(pool.acquire());
+        releaser.join();
+        assertEquals(1, arena.getWaitCount());
+        assertTrue(arena.getWaitSeconds() > 0);
+        assertEquals(0, arena.getExhaustedCount());
+    }
+}
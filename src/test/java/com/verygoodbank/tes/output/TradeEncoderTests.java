@@ -0,0 +1,292 @@
+package com.verygoodbank.tes.output;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.arrow.flatbuf.DictionaryBatch;
+import org.apache.arrow.flatbuf.Message;
+import org.apache.arrow.flatbuf.MessageHeader;
+import org.apache.arrow.flatbuf.RecordBatch;
+import org.apache.arrow.flatbuf.Schema;
+import org.junit.jupiter.api.Test;
+
+import com.verygoodbank.tes.model.Trade;
+import com.verygoodbank.tes.service.ProductDictionary;
+import com.verygoodbank.tes.service.TradeEnrichmentService;
+import com.verygoodbank.tes.store.HybridResultStore;
+import com.verygoodbank.tes.store.ResultStoreFactory;
+
+class TradeEncoderTests {
+
+    private final static ProductDictionary CATALOG = ProductDictionary.parse(ByteBuffer.wrap(
+        "product_id,product_name\n1,Treasury Bills Domestic\n2,Corporate Bonds €\n".getBytes(StandardCharsets.UTF_8)),
+        1, problem -> {});
+
+    private static Trade trade(String line) throws Exception {
+        Trade trade = Trade.fromCsvLine(line, false);
+        int index = CATALOG.indexOf(trade.getProductId());
+        trade.setProductIndex(index);
+        if (index!=ProductDictionary.NOT_FOUND) {
+            trade.setProductName(CATALOG.name(index));
+        }
+        else {
+            trade.setProductMissing();
+        }
+        return trade;
+    }
+
+    private static int varint(ByteBuffer in) {
+        int value = 0;
+        for (int shift=0; ; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private static String string(ByteBuffer in) {
+        byte[] bytes = new byte[varint(in)];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testNegotiation() {
+        assertEquals(OutputFormat.CSV, OutputFormat.negotiate(null));
+        assertEquals(OutputFormat.CSV, OutputFormat.negotiate("*/*"));
+        assertEquals(OutputFormat.CSV, OutputFormat.negotiate("not a media type;;"));
+        assertEquals(OutputFormat.ROWS, OutputFormat.negotiate("application/x-tes-rows"));
+        assertEquals(OutputFormat.ARROW, OutputFormat.negotiate("text/csv;q=0.5, application/vnd.apache.arrow.stream"));
+        assertEquals(OutputFormat.ROWS, OutputFormat.negotiate("application/*, text/csv;q=0.1"));
+        assertNull(OutputFormat.negotiate("application/json"));
+    }
+
+    @Test
+    public void testCsvIsIdenticalToEnrichedLines() throws Exception {
+        List<Trade> trades = new ArrayList<>();
+        StringBuilder expected = new StringBuilder(TradeEnrichmentService.ENRICHED_CSV_HEADER);
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i < 1000; i++) {
+            Trade trade = trade("2016010"+(i % 9 + 1)+","+(i % 3)+","+(i % 7==0 ? "zł" : "EUR")+","+i+".5");
+            if (i==500) {
+                trade.setProductName("Long name ".repeat(20));
+                trade.setProductIndex(ProductDictionary.NOT_FOUND);
+            }
+            trades.add(trade);
+            expected.append(trade.toCsvEnrichedLine(sb));
+        }
+        byte[] content = expected.toString().getBytes(StandardCharsets.UTF_8);
+        // buffers smaller than the long line
+        BufferPool pool = new BufferPool(128, 2);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CsvTradeEncoder encoder = new CsvTradeEncoder(Channels.newChannel(out), CATALOG, pool);
+        encoder.header();
+        for (Trade trade : trades) {
+            encoder.write(trade);
+        }
+        encoder.finish();
+        assertArrayEquals(content, out.toByteArray());
+        assertEquals(content.length, encoder.getLength());
+
+        HybridResultStore store = new HybridResultStore(() -> Files.createTempFile(
+            ResultStoreFactory.SPILL_FILE_PREFIX, ResultStoreFactory.SPILL_FILE_SUFFIX), 1024, false);
+        CsvTradeEncoder chunk = new CsvTradeEncoder(null, CATALOG, pool);
+        chunk.header();
+        for (Trade trade : trades) {
+            chunk.write(trade);
+        }
+        chunk.drainTo(store);
+        store.finish();
+        assertTrue(store.isSpilled());
+        assertEquals(content.length, store.length());
+        ByteBuffer stored = ByteBuffer.allocate(content.length);
+        store.fileContent().read(stored, 0);
+        assertArrayEquals(content, stored.array());
+        assertEquals(2, pool.getPooledCount());
+        store.close();
+    }
+
+    @Test
+    public void testRows() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RowsTradeEncoder encoder = new RowsTradeEncoder(Channels.newChannel(out), CATALOG);
+        encoder.write(trade("20160101,2,EUR,10.5"));
+        encoder.write(trade("20240229,7,PLN,1e3"));
+        encoder.finish();
+        ByteBuffer in = ByteBuffer.wrap(out.toByteArray());
+        byte[] magic = new byte[4];
+        in.get(magic);
+        assertArrayEquals(RowsTradeEncoder.MAGIC, magic);
+        assertEquals(RowsTradeEncoder.VERSION, in.get());
+        int length = varint(in);
+        int start = in.position();
+        assertEquals(20160101, in.getInt());
+        assertEquals(10.5, in.getDouble());
+        assertEquals("EUR", string(in));
+        assertEquals("Corporate Bonds €", string(in));
+        assertEquals(length, in.position() - start);
+        varint(in);
+        assertEquals(20240229, in.getInt());
+        assertEquals(1000.0, in.getDouble());
+        assertEquals("PLN", string(in));
+        assertEquals(TradeEnrichmentService.TXT_ON_MISSING+"7", string(in));
+        assertFalse(in.hasRemaining());
+    }
+
+    @Test
+    public void testArrowMessages() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ArrowTradeEncoder encoder = new ArrowTradeEncoder(Channels.newChannel(out), CATALOG, 2);
+        encoder.write(trade("20160101,1,EUR,10.5"));
+        encoder.write(trade("20160102,1,EUR,11"));
+        encoder.write(trade("20160103,2,USD,12"));
+        encoder.finish();
+        ByteBuffer in = ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        // schema, both dictionaries, batch of 2, delta of both dictionaries, batch of 1
+        byte[] expected = { MessageHeader.Schema, MessageHeader.DictionaryBatch, MessageHeader.DictionaryBatch,
+            MessageHeader.RecordBatch, MessageHeader.DictionaryBatch, MessageHeader.DictionaryBatch,
+            MessageHeader.RecordBatch };
+        for (int i=0; i < expected.length; i++) {
+            assertEquals(0xFFFFFFFF, in.getInt());
+            int metadataLength = in.getInt();
+            assertEquals(0, (in.position() + metadataLength) % 8);
+            Message message = Message.getRootAsMessage(in.slice(in.position(), metadataLength)
+                .order(ByteOrder.LITTLE_ENDIAN));
+            assertEquals(expected[i], message.headerType());
+            in.position(in.position() + metadataLength);
+            ByteBuffer body = in.slice(in.position(), (int)message.bodyLength()).order(ByteOrder.LITTLE_ENDIAN);
+            if (i==0) {
+                Schema schema = (Schema)message.header(new Schema());
+                assertEquals(4, schema.fieldsLength());
+                assertEquals("product_name", schema.fields(1).name());
+                assertEquals(0, schema.fields(1).dictionary().id());
+            }
+            else if (i==3) {
+                RecordBatch batch = (RecordBatch)message.header(new RecordBatch());
+                assertEquals(2, batch.length());
+                assertEquals(LocalDate.of(2016, 1, 1).toEpochDay(), body.getInt((int)batch.buffers(1).offset()));
+                assertEquals(12.0 - 1, body.getDouble((int)batch.buffers(7).offset() + 8));
+            }
+            else if (i==4) {
+                DictionaryBatch dictionary = (DictionaryBatch)message.header(new DictionaryBatch());
+                assertTrue(dictionary.isDelta());
+                assertEquals(1, dictionary.data().length());
+                byte[] name = new byte[(int)dictionary.data().buffers(2).length()];
+                body.get((int)dictionary.data().buffers(2).offset(), name);
+                assertEquals("Corporate Bonds €", new String(name, StandardCharsets.UTF_8));
+            }
+            in.position(in.position() + (int)message.bodyLength());
+        }
+        assertEquals(0xFFFFFFFF, in.getInt());
+        assertEquals(0, in.getInt());
+        assertFalse(in.hasRemaining());
+    }
+
+    @Test
+    public void testBuffersOfFailedOutputAreReleased() throws Exception {
+        BufferArena arena = new BufferArena(0, 0);
+        BufferPool pool = arena.newPool(4096, 0, true);
+        CsvTradeEncoder failing = new CsvTradeEncoder(Channels.newChannel(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("Broken pipe");
+            }
+        }), CATALOG, pool);
+        failing.write(trade("20160101,1,EUR,10.0"));
+        assertThrows(IOException.class, failing::finish);
+        assertEquals(0, arena.getReservedBytes());
+
+        // the request failed before the output was finished
+        TradeEncoder filtered = new FilteringTradeEncoder(TradeFilter.of(null, null, "EUR", null),
+            new CsvTradeEncoder(Channels.newChannel(new ByteArrayOutputStream()), CATALOG, pool));
+        filtered.write(trade("20160101,1,EUR,10.0"));
+        assertEquals(4096, arena.getReservedBytes());
+        filtered.discard();
+        assertEquals(0, arena.getReservedBytes());
+    }
+
+    @Test
+    public void testFilter() throws Exception {
+        TradeFilter filter = TradeFilter.of("20160102", "20160131", "EUR, PLN", null);
+        assertTrue(filter.matches(trade("20160102,1,EUR,1")));
+        assertTrue(filter.matches(trade("20160131,2,PLN,1")));
+        assertFalse(filter.matches(trade("20160101,1,EUR,1")));
+        assertFalse(filter.matches(trade("20160201,1,EUR,1")));
+        assertFalse(filter.matches(trade("20160110,1,USD,1")));
+        assertFalse(TradeFilter.of(null, null, null, "2").matches(trade("20160110,1,USD,1")));
+        // ids are matched by the product they resolve to, missing products by the id as it is
+        TradeFilter products = TradeFilter.of(null, null, null, "1, 7,9").resolve(CATALOG);
+        assertTrue(products.matches(trade("20160110,1,USD,1")));
+        assertTrue(products.matches(trade("20160110,7,USD,1")));
+        assertFalse(products.matches(trade("20160110,2,USD,1")));
+        assertFalse(products.matches(trade("20160110,8,USD,1")));
+        assertTrue(TradeFilter.of(" ", null, "", null).isEmpty());
+        assertEquals(TradeFilter.of(null, null, "PLN,EUR", null).toString(),
+            TradeFilter.of(null, null, "EUR,PLN", null).toString());
+        assertThrows(IllegalArgumentException.class, () -> TradeFilter.of("20161301", null, null, null));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FilteringTradeEncoder encoder = new FilteringTradeEncoder(TradeFilter.of(null, null, "PLN", null),
+            new CsvTradeEncoder(Channels.newChannel(out), CATALOG, new BufferPool(4096, 1)));
+        encoder.header();
+        encoder.write(trade("20160101,1,EUR,10.0"));
+        encoder.write(trade("20160101,2,PLN,20.0"));
+        encoder.finish();
+        assertEquals(TradeEnrichmentService.ENRICHED_CSV_HEADER+"20160101,Corporate Bonds €,PLN,20.0\r\n",
+            out.toString(StandardCharsets.UTF_8));
+        assertEquals(1, encoder.getMatched());
+    }
+
+    @Test
+    public void testAggregates() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AggregatingTradeEncoder encoder = new AggregatingTradeEncoder(Channels.newChannel(out), CATALOG,
+            AggregatingTradeEncoder.GroupBy.parse("currency,product"), 10);
+        encoder.header();
+        encoder.write(trade("20160101,2,EUR,10.5"));
+        encoder.write(trade("20160102,1,EUR,1e1"));
+        encoder.write(trade("20160103,2,EUR,2"));
+        encoder.write(trade("20160103,2,PLN,3"));
+        encoder.write(trade("20160103,7,PLN,4"));
+        assertEquals(4, encoder.getGroupCount());
+        encoder.finish();
+        assertEquals("product_name,currency,count,sum_price,min_price,max_price\r\n"
+            +"Corporate Bonds €,EUR,2,12.5,2,10.5\r\n"
+            +"Corporate Bonds €,PLN,1,3.0,3,3\r\n"
+            +TradeEnrichmentService.TXT_ON_MISSING+"7,PLN,1,4.0,4,4\r\n"
+            +"Treasury Bills Domestic,EUR,1,10.0,1e1,1e1\r\n", out.toString(StandardCharsets.UTF_8));
+
+        out.reset();
+        encoder = new AggregatingTradeEncoder(Channels.newChannel(out), CATALOG, AggregatingTradeEncoder.GroupBy.parse(""),
+            10);
+        encoder.header();
+        encoder.write(trade("20160101,2,EUR,10.5"));
+        encoder.write(trade("20160102,1,PLN,-1"));
+        encoder.finish();
+        assertEquals("count,sum_price,min_price,max_price\r\n2,9.5,-1,10.5\r\n", out.toString(StandardCharsets.UTF_8));
+
+        AggregatingTradeEncoder limited = new AggregatingTradeEncoder(Channels.newChannel(out), CATALOG,
+            AggregatingTradeEncoder.GroupBy.parse("date"), 1);
+        limited.write(trade("20160101,2,EUR,10.5"));
+        limited.write(trade("20160101,1,EUR,1"));
+        assertThrows(AggregatingTradeEncoder.GroupLimitException.class,
+            () -> limited.write(trade("20160102,1,EUR,1")));
+        assertThrows(IllegalArgumentException.class, () -> AggregatingTradeEncoder.GroupBy.parse("product,desk"));
+        assertEquals("Bills", AggregatingTradeEncoder.quote("Bills"));
+        assertEquals("\"Bills \"\"A\"\", Domestic\"", AggregatingTradeEncoder.quote("Bills \"A\", Domestic"));
+    }
+}
@@ -0,0 +1,174 @@
+package com.verygoodbank.tes.service;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.verygoodbank.tes.output.BufferArena;
+import com.verygoodbank.tes.output.TradeEncoderFactory;
+import com.verygoodbank.tes.store.ResultCache;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class EnrichmentSessionServiceTests {
+
+    private static EnrichmentSessionService service(Path dir) throws Exception {
+        TradeEnrichmentService tradeEnrichmentService = new TradeEnrichmentService();
+        ReflectionTestUtils.setField(tradeEnrichmentService, "catalogPath", "");
+        ReflectionTestUtils.setField(tradeEnrichmentService, "resultCache", new ResultCache());
+        tradeEnrichmentService.readProductMap();
+        BufferArena bufferArena = new BufferArena(1024*1024, 0);
+        TradeEncoderFactory tradeEncoderFactory = new TradeEncoderFactory();
+        ReflectionTestUtils.setField(tradeEncoderFactory, "bufferArena", bufferArena);
+        ReflectionTestUtils.setField(tradeEncoderFactory, "bufferBytes", 4096);
+        ReflectionTestUtils.setField(tradeEncoderFactory, "maxPooledBuffers", 4);
+        tradeEncoderFactory.init();
+        RejectReporter rejectReporter = new RejectReporter();
+        ReflectionTestUtils.setField(rejectReporter, "rejectsDir", "");
+        EnrichmentMetrics metrics = new EnrichmentMetrics();
+        ReflectionTestUtils.setField(metrics, "registry", new SimpleMeterRegistry());
+        EnrichmentSessionService service = new EnrichmentSessionService();
+        ReflectionTestUtils.setField(service, "tradeEnrichmentService", tradeEnrichmentService);
+        ReflectionTestUtils.setField(service, "tradeEncoderFactory", tradeEncoderFactory);
+        ReflectionTestUtils.setField(service, "bufferArena", bufferArena);
+        ReflectionTestUtils.setField(service, "laneScheduler", new LaneScheduler(1, 4, 1, 1 << 20, 50, 1 << 18));
+        ReflectionTestUtils.setField(service, "rejectReporter", rejectReporter);
+        ReflectionTestUtils.setField(service, "metrics", metrics);
+        ReflectionTestUtils.setField(service, "dirProperty", dir.toString());
+        ReflectionTestUtils.setField(service, "ttlSeconds", 3600L);
+        ReflectionTestUtils.setField(service, "maxSessions", 2);
+        ReflectionTestUtils.setField(service, "force", false);
+        service.init();
+        return service;
+    }
+
+    private static EnrichmentSessionService.Batch append(EnrichmentSessionService.Session session, String csv)
+        throws Exception
+    {
+        return session.append(new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8)), LaneScheduler.Lane.BULK);
+    }
+
+    private static String result(EnrichmentSessionService.Session session) throws Exception {
+        return Files.readString(resultPath(session)).substring(0, (int)session.getResultBytes());
+    }
+
+    private static Path resultPath(EnrichmentSessionService.Session session) {
+        return ((Path)ReflectionTestUtils.getField(session, "path")).resolve("result.csv");
+    }
+
+    @Test
+    public void testBatchesAreNumberedAcrossSession(@TempDir Path dir) throws Exception {
+        EnrichmentSessionService service = service(dir);
+        try {
+            EnrichmentSessionService.Session session = service.create();
+            EnrichmentSessionService.Batch first = append(session,
+                "date,product_id,currency,price\n20160101,1,EUR,10\n");
+            assertEquals(1, first.firstLine());
+            assertEquals(2, first.lines());
+            // header of a later batch is skipped and counted as empty, invalid line keeps its number within the session
+            EnrichmentSessionService.Batch second = append(session, "date,product_id,currency,price\r\n"+
+                "20160101,2,EUR,abc\r\n20160101,2,EUR,20\r\n");
+            assertEquals(3, second.firstLine());
+            assertEquals(3, second.lines());
+            assertEquals(2, second.invalid());
+            assertEquals(5, session.getLines());
+            assertEquals(2, session.getBatches());
+            assertEquals(TradeEnrichmentService.ENRICHED_CSV_HEADER+"20160101,Treasury Bills Domestic,EUR,10\r\n"+
+                "20160101,Corporate Bonds Domestic,EUR,20\r\n", result(session));
+            service.create();
+            assertNull(service.create());
+            assertTrue(service.delete(session.getId()));
+            assertNull(append(session, "20160101,1,EUR,10\n"));
+        }
+        finally {
+            service.shutdown();
+        }
+    }
+
+    @Test
+    public void testSessionIsRecoveredUpToLastBatch(@TempDir Path dir) throws Exception {
+        EnrichmentSessionService service = service(dir);
+        EnrichmentSessionService.Session session = service.create();
+        append(session, "20160101,1,EUR,10\n20160101,1,EUR,x\n");
+        String committed = result(session);
+        service.shutdown();
+        // bytes of a batch interrupted by a crash
+        Files.writeString(resultPath(session), "20160101,Treasury", StandardOpenOption.APPEND);
+
+        EnrichmentSessionService restarted = service(dir);
+        try {
+            EnrichmentSessionService.Session recovered = restarted.get(session.getId());
+            assertEquals(2, recovered.getLines());
+            assertEquals(1, recovered.getInvalidCount());
+            assertEquals(committed.length(), Files.size(resultPath(recovered)));
+            EnrichmentSessionService.Batch batch = append(recovered, "20160101,3,EUR,30\n");
+            assertEquals(3, batch.firstLine());
+            assertEquals(committed+"20160101,REPO Domestic,EUR,30\r\n", result(recovered));
+        }
+        finally {
+            restarted.shutdown();
+        }
+    }
+
+    @Test
+    public void testDeleteDoesNotWaitForRunningBatch(@TempDir Path dir) throws Exception {
+        EnrichmentSessionService service = service(dir);
+        try {
+            EnrichmentSessionService.Session session = service.create();
+            Path path = (Path)ReflectionTestUtils.getField(session, "path");
+            CountDownLatch reading = new CountDownLatch(1);
+            CountDownLatch stalled = new CountDownLatch(1);
+            // upload which stalls after its first line
+            InputStream upload = new SequenceInputStream(
+                new ByteArrayInputStream("20160101,1,EUR,10\n".getBytes(StandardCharsets.UTF_8)),
+                new InputStream() {
+                    @Override
+                    public int read() throws IOException {
+                        reading.countDown();
+                        try {
+                            stalled.await();
+                        }
+                        catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        return -1;
+                    }
+                });
+            CompletableFuture<EnrichmentSessionService.Batch> batch =
+                CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return session.append(upload, LaneScheduler.Lane.BULK);
+                    }
+                    catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                });
+            assertTrue(reading.await(10, TimeUnit.SECONDS));
+            // delete doesn't wait for the stalled batch, its files are deleted when the batch ends
+            assertTrue(CompletableFuture.supplyAsync(() -> service.delete(session.getId()))
+                .get(10, TimeUnit.SECONDS));
+            assertNull(service.get(session.getId()));
+            assertTrue(Files.exists(path));
+            stalled.countDown();
+            batch.get(10, TimeUnit.SECONDS);
+            assertFalse(Files.exists(path));
+        }
+        finally {
+            service.shutdown();
+        }
+    }
+}
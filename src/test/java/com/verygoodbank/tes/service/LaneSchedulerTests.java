@@ -0,0 +1,208 @@
+package com.verygoodbank.tes.service;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import com.verygoodbank.tes.service.LaneScheduler.Lane;
+
+class LaneSchedulerTests {
+
+    @Test
+    public void testWeightedShare() throws Exception {
+        LaneScheduler scheduler = new LaneScheduler(1, 4, 1, 1024, 60000, 1024);
+        List<Lane> granted = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        try (LaneScheduler.Task holder = scheduler.start(Lane.BULK)) {
+            for (int i=0; i < 7; i++) {
+                Lane lane = i < 2 ? Lane.BULK : Lane.LATENCY;
+                Thread t = new Thread(() -> {
+                    try (LaneScheduler.Task task = scheduler.start(lane)) {
+                        granted.add(task.getLane());
+                    }
+                });
+                t.start();
+                threads.add(t);
+            }
+            awaitWaiting(scheduler, Lane.BULK, 2);
+            awaitWaiting(scheduler, Lane.LATENCY, 5);
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        // bulk lane used the first quantum, then latency gets 4 quanta per quantum of bulk
+        assertEquals(List.of(Lane.LATENCY, Lane.BULK, Lane.LATENCY, Lane.LATENCY, Lane.LATENCY, Lane.LATENCY,
+            Lane.BULK), granted);
+        assertEquals(3, scheduler.getQuanta(Lane.BULK));
+        assertEquals(5, scheduler.getQuanta(Lane.LATENCY));
+        assertEquals(7, scheduler.getWaitCount(Lane.BULK) + scheduler.getWaitCount(Lane.LATENCY));
+    }
+
+    @Test
+    public void testQuantumYieldsToWaiting() throws Exception {
+        LaneScheduler scheduler = new LaneScheduler(1, 4, 1, 100, 60000, 1024);
+        List<Lane> granted = Collections.synchronizedList(new ArrayList<>());
+        try (LaneScheduler.Task bulk = scheduler.start(Lane.BULK)) {
+            bulk.checkpoint(100);
+            assertEquals(1, scheduler.getQuanta(Lane.BULK), "nobody waits, the slot is kept");
+            Thread small = new Thread(() -> {
+                try (LaneScheduler.Task task = scheduler.start(Lane.LATENCY)) {
+                    granted.add(task.getLane());
+                }
+            });
+            small.start();
+            awaitWaiting(scheduler, Lane.LATENCY, 1);
+            bulk.checkpoint(150);
+            assertTrue(granted.isEmpty(), "quantum isn't used up");
+            bulk.checkpoint(200);
+            assertEquals(List.of(Lane.LATENCY), granted);
+            assertEquals(2, scheduler.getQuanta(Lane.BULK));
+            assertEquals(1, scheduler.getRunning(Lane.BULK));
+            small.join();
+        }
+        assertEquals(0, scheduler.getRunning(Lane.BULK));
+    }
+
+    @Test
+    public void testLatencyWorkTurningBulk() {
+        LaneScheduler scheduler = new LaneScheduler(2, 4, 1, 1000, 60000, 10);
+        try (LaneScheduler.Task task = scheduler.start(Lane.LATENCY)) {
+            task.checkpoint(10);
+            assertEquals(Lane.LATENCY, task.getLane());
+            task.checkpoint(11);
+            assertEquals(Lane.BULK, task.getLane());
+            assertEquals(0, scheduler.getRunning(Lane.LATENCY));
+            assertEquals(1, scheduler.getRunning(Lane.BULK));
+        }
+        assertEquals(0, scheduler.getRunning(Lane.BULK));
+    }
+
+    @Test
+    public void testStalledUploadDoesNotHoldSlot() throws Exception {
+        LaneScheduler scheduler = new LaneScheduler(1, 4, 1, 1024, 60000, 1024);
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch stalled = new CountDownLatch(1);
+        InputStream upload = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                reading.countDown();
+                try {
+                    stalled.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return -1;
+            }
+        };
+        // own threads, the bulk one blocks
+        Executor threads = command -> new Thread(command).start();
+        CompletableFuture<Void> bulk = CompletableFuture.runAsync(() -> {
+            try (LaneScheduler.Task task = scheduler.start(Lane.BULK)) {
+                assertEquals(-1, task.reading(upload).read(new byte[16]));
+                assertEquals(1, scheduler.getRunning(Lane.BULK), "the slot is held again after the read");
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, threads);
+        try {
+            assertTrue(reading.await(10, TimeUnit.SECONDS));
+            // the only slot is free while the bulk request waits for its body
+            CompletableFuture.runAsync(() -> {
+                try (LaneScheduler.Task task = scheduler.start(Lane.LATENCY)) {
+                    assertEquals(0, scheduler.getRunning(Lane.BULK));
+                }
+            }, threads).get(10, TimeUnit.SECONDS);
+        }
+        finally {
+            stalled.countDown();
+        }
+        bulk.get(10, TimeUnit.SECONDS);
+        assertEquals(1, scheduler.getQuanta(Lane.BULK), "resumed read continues the quantum");
+        assertEquals(0, scheduler.getRunning(Lane.BULK));
+    }
+
+    @Test
+    public void testQuantumPerQuantumBytes() throws Exception {
+        LaneScheduler scheduler = new LaneScheduler(1, 4, 1, 100, 60000, 1024);
+        Thread other;
+        try (LaneScheduler.Task first = scheduler.start(Lane.BULK)) {
+            other = new Thread(() -> {
+                try (LaneScheduler.Task second = scheduler.start(Lane.BULK)) {
+                    process(second);
+                }
+            });
+            other.start();
+            awaitWaiting(scheduler, Lane.BULK, 1);
+            process(first);
+        }
+        other.join();
+        // a new quantum every 100 bytes of each task, not at every checkpoint after the first one
+        long quanta = scheduler.getQuanta(Lane.BULK);
+        assertTrue(quanta >= 11 && quanta <= 22, "quanta: "+quanta);
+    }
+
+    @Test
+    public void testInterruptedWaitGivesTicketUp() throws Exception {
+        LaneScheduler scheduler = new LaneScheduler(1, 4, 1, 1024, 60000, 1024);
+        List<Lane> granted = Collections.synchronizedList(new ArrayList<>());
+        Thread interrupted;
+        Thread next;
+        try (LaneScheduler.Task holder = scheduler.start(Lane.BULK)) {
+            interrupted = new Thread(() -> assertThrows(CancellationException.class,
+                () -> scheduler.start(Lane.BULK)));
+            interrupted.start();
+            awaitWaiting(scheduler, Lane.BULK, 1);
+            next = new Thread(() -> {
+                try (LaneScheduler.Task task = scheduler.start(Lane.BULK)) {
+                    granted.add(task.getLane());
+                }
+            });
+            next.start();
+            awaitWaiting(scheduler, Lane.BULK, 2);
+            interrupted.interrupt();
+            interrupted.join(10000);
+            assertFalse(interrupted.isAlive());
+            assertEquals(1, scheduler.getWaiting(Lane.BULK));
+        }
+        // the ticket after the interrupted one is served
+        next.join(10000);
+        assertEquals(List.of(Lane.BULK), granted);
+        assertEquals(0, scheduler.getRunning(Lane.BULK));
+    }
+
+    /**
+     * 1000 bytes in records of 10 bytes, slow enough for the other task to wait for the slot meanwhile.
+     */
+    private static void process(LaneScheduler.Task task) {
+        for (long bytes=10; bytes <= 1000; bytes += 10) {
+            try {
+                Thread.sleep(1);
+            }
+            catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            task.checkpoint(bytes);
+        }
+    }
+
+    private static void awaitWaiting(LaneScheduler scheduler, Lane lane, int count) throws InterruptedException {
+        for (int i=0; i < 500 && scheduler.getWaiting(lane) < count; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, scheduler.getWaiting(lane));
+    }
+}
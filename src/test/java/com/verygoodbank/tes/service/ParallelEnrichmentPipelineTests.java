@@ -0,0 +1,125 @@
+package com.verygoodbank.tes.service;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.verygoodbank.tes.output.BufferArena;
+import com.verygoodbank.tes.output.TradeEncoderFactory;
+import com.verygoodbank.tes.store.ResultCache;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class ParallelEnrichmentPipelineTests {
+
+    private static ParallelEnrichmentPipeline pipeline(BufferArena bufferArena) throws Exception {
+        TradeEnrichmentService tradeEnrichmentService = new TradeEnrichmentService();
+        ReflectionTestUtils.setField(tradeEnrichmentService, "catalogPath", "");
+        ReflectionTestUtils.setField(tradeEnrichmentService, "resultCache", new ResultCache());
+        tradeEnrichmentService.readProductMap();
+        TradeEncoderFactory tradeEncoderFactory = new TradeEncoderFactory();
+        ReflectionTestUtils.setField(tradeEncoderFactory, "bufferArena", bufferArena);
+        ReflectionTestUtils.setField(tradeEncoderFactory, "bufferBytes", 4096);
+        // nothing is pooled, so reserved bytes are bytes of buffers in use
+        ReflectionTestUtils.setField(tradeEncoderFactory, "maxPooledBuffers", 0);
+        tradeEncoderFactory.init();
+        EnrichmentMetrics metrics = new EnrichmentMetrics();
+        ReflectionTestUtils.setField(metrics, "registry", new SimpleMeterRegistry());
+        ParallelEnrichmentPipeline pipeline = new ParallelEnrichmentPipeline();
+        ReflectionTestUtils.setField(pipeline, "tradeEnrichmentService", tradeEnrichmentService);
+        ReflectionTestUtils.setField(pipeline, "metrics", metrics);
+        ReflectionTestUtils.setField(pipeline, "tradeEncoderFactory", tradeEncoderFactory);
+        ReflectionTestUtils.setField(pipeline, "bufferArena", bufferArena);
+        ReflectionTestUtils.setField(pipeline, "laneScheduler", new LaneScheduler(2, 4, 1, 1 << 20, 50, 1 << 18));
+        ReflectionTestUtils.setField(pipeline, "poolSize", 4);
+        ReflectionTestUtils.setField(pipeline, "chunkSize", 8192);
+        ReflectionTestUtils.setField(pipeline, "maxPooledChunks", 0);
+        pipeline.init();
+        return pipeline;
+    }
+
+    private static byte[] trades(int count) {
+        StringBuilder sb = new StringBuilder("date,product_id,currency,price\n");
+        for (int i=0; i < count; i++) {
+            sb.append("20160101,").append(i % 4 + 1).append(",EUR,").append(i).append(".5\n");
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void awaitReleased(BufferArena bufferArena) throws InterruptedException {
+        // chunks in flight when the request failed end on the pool
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (bufferArena.getReservedBytes() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, bufferArena.getReservedBytes());
+    }
+
+    @Test
+    public void testBuffersAreReleasedWhenRequestFails() throws Exception {
+        BufferArena bufferArena = new BufferArena(0, 0);
+        ParallelEnrichmentPipeline pipeline = pipeline(bufferArena);
+        RejectReporter rejectReporter = new RejectReporter();
+        ReflectionTestUtils.setField(rejectReporter, "rejectsDir", "");
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            long records = pipeline.enrich(new ByteArrayInputStream(trades(10000)), Channels.newChannel(out), 4,
+                rejectReporter.newRejects(), System.currentTimeMillis(), ProductDictionary.empty(), "test");
+            assertEquals(10001, records);
+            awaitReleased(bufferArena);
+
+            // input fails in the middle of the stream
+            InputStream failing = new SequenceInputStream(new ByteArrayInputStream(trades(10000)),
+                new InputStream() {
+                    @Override
+                    public int read() throws IOException {
+                        throw new IOException("Connection reset");
+                    }
+                });
+            assertThrows(IOException.class, () -> pipeline.enrich(failing, Channels.newChannel(out), 4,
+                rejectReporter.newRejects(), System.currentTimeMillis(), ProductDictionary.empty(), "test"));
+            awaitReleased(bufferArena);
+
+            // response fails after the first write
+            WritableByteChannel broken = new WritableByteChannel() {
+                private int writes = 0;
+
+                @Override
+                public int write(ByteBuffer src) throws IOException {
+                    if (++writes > 1) {
+                        throw new IOException("Broken pipe");
+                    }
+                    int n = src.remaining();
+                    src.position(src.limit());
+                    return n;
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return true;
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+            assertThrows(IOException.class, () -> pipeline.enrich(new ByteArrayInputStream(trades(10000)), broken,
+                4, rejectReporter.newRejects(), System.currentTimeMillis(), ProductDictionary.empty(), "test"));
+            awaitReleased(bufferArena);
+        }
+        finally {
+            pipeline.shutdown();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.verygoodbank.tes.service;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class ProductDictionaryTests {
+
+    private static String lookup(ProductDictionary dictionary, String id) {
+        byte[] bytes = ("x," + id + ",y").getBytes(StandardCharsets.UTF_8);
+        int byBytes = dictionary.indexOf(bytes, 2, bytes.length - 4);
+        int byString = dictionary.indexOf(id);
+        assertEquals(byString, byBytes, "id: "+id);
+        if (byString==ProductDictionary.NOT_FOUND) {
+            return null;
+        }
+        byte[] name = new byte[dictionary.nameLength(byString)];
+        dictionary.copyName(byString, name, 0);
+        assertEquals(dictionary.name(byString), new String(name, StandardCharsets.UTF_8));
+        return dictionary.name(byString);
+    }
+
+    /**
+     * Rules of the catalog reader before the dictionary was introduced.
+     */
+    private static Map<String,String> reference(String catalog, List<String> problems) {
+        Map<String,String> map = new LinkedHashMap<>();
+        for (String line : catalog.split("\r\n|\r|\n")) {
+            if (!line.isBlank()) {
+                String values[] = line.split("\\,");
+                if (values.length!=2 || values[0].isBlank() || values[1].isBlank()) {
+                    problems.add("Invalid product line: "+line);
+                }
+                else if (map.put(values[0].trim(), values[1].trim())!=null) {
+                    problems.add("Duplicated product line: "+line);
+                }
+            }
+        }
+        return map;
+    }
+
+    @Test
+    public void testLookupMatchesStringMap() {
+        for (long idRange : new long[] { 1000, 1L << 40 }) {
+            Random random = new Random(idRange);
+            StringBuilder catalog = new StringBuilder("product_id,product_name\r\n");
+            for (int i=0; i < 5000; i++) {
+                catalog.append(Math.floorMod(random.nextLong(), idRange)).append(", Product ").append(i)
+                    .append(" ąę ").append(i % 3==0 ? "\r\n" : "\n");
+            }
+            catalog.append("01,Zero one\n A-1 ,Other\n+7,Plus\n\n  \n,,,\n8\n9,\n10,a,b\n11,b,,\n,12\n");
+            List<String> expectedProblems = new ArrayList<>();
+            Map<String,String> expected = reference(catalog.toString(), expectedProblems);
+            List<String> problems = new ArrayList<>();
+            ProductDictionary dictionary = ProductDictionary.parse(
+                ByteBuffer.wrap(catalog.toString().getBytes(StandardCharsets.UTF_8)), 1, problems::add);
+            assertEquals(expectedProblems, problems);
+            assertEquals(expected.size(), dictionary.size());
+            for (Map.Entry<String,String> e : expected.entrySet()) {
+                assertEquals(e.getValue(), lookup(dictionary, e.getKey()));
+            }
+            for (String id : new String[] { "001", "-1", "1a", "999999999999999999999", Long.toString(idRange) }) {
+                assertEquals(expected.get(id), lookup(dictionary, id));
+            }
+        }
+    }
+}
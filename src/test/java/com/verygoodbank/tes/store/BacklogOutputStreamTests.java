@@ -0,0 +1,81 @@
+package com.verygoodbank.tes.store;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class BacklogOutputStreamTests {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @AfterEach
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testWriterIsNotBlockedByStalledConsumer() throws Exception {
+        CountDownLatch consumerStalled = new CountDownLatch(1);
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        OutputStream target = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte)b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    consumerStalled.await();
+                }
+                catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                received.write(b, off, len);
+            }
+        };
+        AtomicReference<Path> spillPath = new AtomicReference<>();
+        BacklogOutputStream backlog = new BacklogOutputStream(target, executor, 100, () -> {
+            spillPath.set(Files.createTempFile(ResultStoreFactory.SPILL_FILE_PREFIX, ResultStoreFactory.SPILL_FILE_SUFFIX));
+            return spillPath.get();
+        });
+        StringBuilder expected = new StringBuilder();
+        for (int i=0; i < 10_000; i++) {
+            String line = "line "+i+"\r\n";
+            expected.append(line);
+            backlog.write(line.getBytes());
+        }
+        assertNotNull(spillPath.get());
+        assertTrue(backlog.getMaxBacklog() > 100);
+        consumerStalled.countDown();
+        backlog.close();
+        assertEquals(expected.toString(), received.toString());
+        assertFalse(Files.exists(spillPath.get()));
+    }
+
+    @Test
+    public void testConsumerFailureIsReportedToWriter() throws Exception {
+        OutputStream target = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("Connection reset");
+            }
+        };
+        BacklogOutputStream backlog = new BacklogOutputStream(target, executor, 16, () -> {
+            throw new AssertionError("spilled");
+        });
+        backlog.write("0123456789".getBytes());
+        assertThrows(IOException.class, () -> backlog.close());
+    }
+}
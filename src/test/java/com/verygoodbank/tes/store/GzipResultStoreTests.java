@@ -0,0 +1,37 @@
+package com.verygoodbank.tes.store;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.Test;
+
+class GzipResultStoreTests {
+
+    @Test
+    public void testSpilledContentIsCompressed() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i < 100_000; i++) {
+            sb.append("20160101,Treasury Bills Domestic,EUR,10.0\r\n");
+        }
+        byte[] content = sb.toString().getBytes();
+        GzipResultStore store = new GzipResultStore(new HybridResultStore(() -> Files.createTempFile(
+            ResultStoreFactory.SPILL_FILE_PREFIX, ResultStoreFactory.SPILL_FILE_SUFFIX), 1024, false), 1);
+        ByteBuffer direct = ByteBuffer.allocateDirect(content.length/2);
+        direct.put(content, 0, content.length/2).flip();
+        store.write(direct);
+        store.write(ByteBuffer.wrap(content, content.length/2, content.length - content.length/2));
+        store.finish();
+        assertTrue(store.isSpilled());
+        assertEquals(content.length, store.decodedLength());
+        assertTrue(store.length()*20 < content.length);
+        assertEquals(store.length(), store.fileContent().size());
+        store.fileContent().position(0);
+        GZIPInputStream gzip = new GZIPInputStream(Channels.newInputStream(store.fileContent()));
+        assertArrayEquals(content, gzip.readAllBytes());
+        store.close();
+    }
+}
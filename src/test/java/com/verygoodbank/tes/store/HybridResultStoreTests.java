@@ -0,0 +1,65 @@
+package com.verygoodbank.tes.store;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+class HybridResultStoreTests {
+
+    @Test
+    public void testSmallContentStaysInMemory() throws Exception {
+        HybridResultStore store = new HybridResultStore(() -> { throw new AssertionError("spilled"); }, 16, true);
+        store.write(ByteBuffer.wrap("0123456789".getBytes()));
+        store.write(ByteBuffer.wrap("012345".getBytes()));
+        store.finish();
+        assertFalse(store.isSpilled());
+        assertEquals(16, store.length());
+        ByteBuffer content = store.memoryContent();
+        byte[] bytes = new byte[content.remaining()];
+        content.get(bytes);
+        assertEquals("0123456789012345", new String(bytes));
+        store.close();
+    }
+
+    @Test
+    public void testBigContentIsSpilledAndDeletedOnClose() throws Exception {
+        AtomicReference<Path> spillPath = new AtomicReference<>();
+        HybridResultStore store = new HybridResultStore(() -> {
+            spillPath.set(Files.createTempFile(ResultStoreFactory.SPILL_FILE_PREFIX, ResultStoreFactory.SPILL_FILE_SUFFIX));
+            return spillPath.get();
+        }, 16, false);
+        store.write(ByteBuffer.wrap("0123456789".getBytes()));
+        store.write(ByteBuffer.wrap("0123456789".getBytes()));
+        store.finish();
+        assertTrue(store.isSpilled());
+        assertNull(store.memoryContent());
+        assertEquals(20, store.length());
+        assertEquals("01234567890123456789", Files.readString(spillPath.get()));
+        store.close();
+        assertFalse(Files.exists(spillPath.get()));
+    }
+
+    @Test
+    public void testPreallocatedSpillFileIsTruncated() throws Exception {
+        AtomicReference<Path> spillPath = new AtomicReference<>();
+        HybridResultStore store = new HybridResultStore(() -> {
+            spillPath.set(Files.createTempFile(ResultStoreFactory.SPILL_FILE_PREFIX, ResultStoreFactory.SPILL_FILE_SUFFIX));
+            return spillPath.get();
+        }, 4, false, 1000);
+        store.write(ByteBuffer.wrap("0123456789".getBytes()));
+        assertEquals(1000, Files.size(spillPath.get()));
+        store.write(ByteBuffer.wrap(new byte[1500]));
+        store.write(ByteBuffer.wrap("end".getBytes()));
+        store.finish();
+        assertEquals(1513, store.length());
+        assertEquals(1513, Files.size(spillPath.get()));
+        assertTrue(Files.readString(spillPath.get()).startsWith("0123456789"));
+        assertTrue(Files.readString(spillPath.get()).endsWith("end"));
+        store.close();
+    }
+}
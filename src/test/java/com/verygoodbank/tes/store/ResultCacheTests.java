@@ -0,0 +1,160 @@
+package com.verygoodbank.tes.store;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class ResultCacheTests {
+
+    private static TempStoreManager manager(Path dir) throws Exception {
+        TempStoreManager manager = new TempStoreManager();
+        ReflectionTestUtils.setField(manager, "dirsProperty", dir.toString());
+        ReflectionTestUtils.setField(manager, "orphanAgeSeconds", 60L);
+        ReflectionTestUtils.setField(manager, "sweepIntervalSeconds", 3600L);
+        manager.init();
+        return manager;
+    }
+
+    private static ResultCache cache(TempStoreManager manager, long maxBytes) {
+        ResultCache cache = new ResultCache();
+        ReflectionTestUtils.setField(cache, "tempStoreManager", manager);
+        ReflectionTestUtils.setField(cache, "maxBytes", maxBytes);
+        cache.invalidate(1);
+        return cache;
+    }
+
+    private static ResultStore store(TempStoreManager manager, String content, int memoryThreshold) throws Exception {
+        ResultStore store = new HybridResultStore(manager::newSpillPath, memoryThreshold, false);
+        store.write(ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8)));
+        store.finish();
+        return store;
+    }
+
+    private static String read(ResultStore store) throws Exception {
+        return new String(store.newInputStream().readAllBytes(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testBodyDigestAndKey() throws Exception {
+        byte[] declared = ResultCache.parseDigest("BA7816BF8F01CFEA414140DE5DAE2223B00361A396177A9CB410FF61F20015AD");
+        ResultCache.BodyDigest digest = new ResultCache.BodyDigest(declared, 3, "CSV");
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad-3-CSV", digest.declaredKey());
+        try (InputStream body = digest.wrap(new ByteArrayInputStream("abc".getBytes(StandardCharsets.UTF_8)))) {
+            assertEquals("abc", new String(body.readAllBytes(), StandardCharsets.UTF_8));
+        }
+        assertTrue(digest.matchesDeclared());
+        assertEquals(digest.declaredKey(), digest.key());
+
+        ResultCache.BodyDigest other = new ResultCache.BodyDigest(declared, 3, "CSV");
+        other.wrap(new ByteArrayInputStream("abd".getBytes(StandardCharsets.UTF_8))).readAllBytes();
+        assertFalse(other.matchesDeclared());
+        assertNull(new ResultCache.BodyDigest(null, 3, "CSV").declaredKey());
+        assertThrows(IllegalArgumentException.class, () -> ResultCache.parseDigest("abc"));
+    }
+
+    @Test
+    public void testBodySpooledUpToMaxBytes(@TempDir Path dir) throws Exception {
+        TempStoreManager manager = manager(dir);
+        try {
+            byte[] small = "20160101,1,EUR,10\n".getBytes(StandardCharsets.UTF_8);
+            ResultCache.BodyDigest expected = new ResultCache.BodyDigest(null, 3, "CSV");
+            expected.wrap(new ByteArrayInputStream(small)).readAllBytes();
+            ResultCache.BodyDigest digest = new ResultCache.BodyDigest(null, 3, "CSV");
+            try (ResultStore body = new HybridResultStore(manager::newSpillPath, 1024, false)) {
+                assertTrue(digest.spool(new ByteArrayInputStream(small), body, small.length));
+                assertEquals(small.length, body.length());
+                assertEquals(expected.key(), digest.key());
+            }
+
+            // a larger body is read from the kept part and the rest of the stream
+            byte[] large = new byte[100_000];
+            Arrays.fill(large, (byte)'1');
+            expected = new ResultCache.BodyDigest(null, 3, "CSV");
+            expected.wrap(new ByteArrayInputStream(large)).readAllBytes();
+            digest = new ResultCache.BodyDigest(null, 3, "CSV");
+            InputStream in = new ByteArrayInputStream(large);
+            try (ResultStore body = new HybridResultStore(manager::newSpillPath, 1024, false)) {
+                assertFalse(digest.spool(in, body, 10));
+                assertTrue(body.length() < large.length);
+                try (InputStream all = new SequenceInputStream(body.newInputStream(), digest.wrap(in))) {
+                    assertArrayEquals(large, all.readAllBytes());
+                }
+            }
+            assertEquals(expected.key(), digest.key());
+        }
+        finally {
+            manager.shutdown();
+        }
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvictedBySize(@TempDir Path dir) throws Exception {
+        TempStoreManager manager = manager(dir);
+        try {
+            ResultCache cache = cache(manager, 20);
+            // memory content is written to a file, spilled one is linked and outlives its store
+            try (ResultStore a = store(manager, "aaaaaaaa", 1024); ResultStore b = store(manager, "bbbbbbbb", 0)) {
+                cache.put("a", 1, a, 1, 0);
+                cache.put("b", 1, b, 2, 1);
+            }
+            try (ResultCache.CachedResult a = cache.acquire("a")) {
+                assertEquals("aaaaaaaa", read(a));
+                assertEquals(1, a.getRecords());
+            }
+            try (ResultStore c = store(manager, "cccccccc", 1024)) {
+                cache.put("c", 1, c, 3, 0);
+            }
+            assertNull(cache.acquire("b"));
+            try (ResultCache.CachedResult a = cache.acquire("a"); ResultCache.CachedResult c = cache.acquire("c")) {
+                assertEquals("aaaaaaaa", read(a));
+                assertEquals("cccccccc", read(c));
+            }
+            assertEquals(16, cache.getBytes());
+            assertEquals(1, cache.getEvictedCount());
+            assertEquals(3, cache.getHits());
+            assertEquals(1, cache.getMisses());
+            assertEquals(24, cache.getSavedBytes());
+            assertEquals(2, cache.getEntryCount());
+            assertEquals(16, manager.getSpillBytesOnDisk());
+        }
+        finally {
+            manager.shutdown();
+        }
+    }
+
+    @Test
+    public void testInvalidatedEntryKeptWhileRead(@TempDir Path dir) throws Exception {
+        TempStoreManager manager = manager(dir);
+        try {
+            ResultCache cache = cache(manager, 1024);
+            try (ResultStore a = store(manager, "aaaa", 0)) {
+                cache.put("a", 1, a, 1, 0);
+                // result of a previous catalog version isn't kept
+                cache.put("old", 0, a, 1, 0);
+            }
+            assertNull(cache.acquire("old"));
+            ResultCache.CachedResult reading = cache.acquire("a");
+            cache.invalidate(2);
+            assertNull(cache.acquire("a"));
+            assertTrue(Files.exists(reading.path()));
+            assertEquals("aaaa", read(reading));
+            reading.close();
+            assertFalse(Files.exists(reading.path()));
+            assertEquals(0, manager.getSpillBytesOnDisk());
+        }
+        finally {
+            manager.shutdown();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.verygoodbank.tes.store;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class TempStoreManagerTests {
+
+    private static TempStoreManager manager(String dirs, long quotaBytes) throws Exception {
+        TempStoreManager manager = new TempStoreManager();
+        ReflectionTestUtils.setField(manager, "dirsProperty", dirs);
+        ReflectionTestUtils.setField(manager, "quotaBytes", quotaBytes);
+        ReflectionTestUtils.setField(manager, "orphanAgeSeconds", 60L);
+        ReflectionTestUtils.setField(manager, "sweepIntervalSeconds", 3600L);
+        manager.init();
+        return manager;
+    }
+
+    private static Path old(Path file) throws Exception {
+        Files.writeString(file, "spilled");
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() - 120_000));
+        return file;
+    }
+
+    @Test
+    public void testSpillFilesAreSpreadAndOrphansSwept(@TempDir Path root) throws Exception {
+        Path a = root.resolve("a");
+        Path b = root.resolve("b");
+        // left by a crashed process, its directory is not locked
+        Path crashed = Files.createDirectories(a.resolve(ResultStoreFactory.SPILL_FILE_PREFIX+"instance-1"));
+        Path orphan = old(crashed.resolve(ResultStoreFactory.SPILL_FILE_PREFIX+"1"+
+            ResultStoreFactory.SPILL_FILE_SUFFIX));
+        // other files in the shared directory are not ours
+        Path shared = old(a.resolve(ResultStoreFactory.SPILL_FILE_PREFIX+"2"+ResultStoreFactory.SPILL_FILE_SUFFIX));
+        TempStoreManager other = manager(a.toString(), 0);
+        TempStoreManager manager = manager(a+","+b, 0);
+        try {
+            Path running = old(other.newSpillPath());
+            Path first = manager.newSpillPath();
+            Path second = manager.newSpillPath();
+            assertNotEquals(first.getParent(), second.getParent());
+            old(first);
+            manager.sweep();
+            assertFalse(Files.exists(orphan));
+            assertFalse(Files.exists(crashed));
+            assertTrue(Files.exists(shared));
+            assertTrue(Files.exists(running));
+            assertTrue(Files.exists(first));
+            assertEquals(7, manager.getSpillBytesOnDisk());
+            other.shutdown();
+            manager.sweep();
+            assertFalse(Files.exists(running));
+        }
+        finally {
+            other.shutdown();
+            manager.shutdown();
+        }
+    }
+
+    @Test
+    public void testQuotaQueuesAndRejects(@TempDir Path root) throws Exception {
+        TempStoreManager manager = manager(root.toString(), 100);
+        ReflectionTestUtils.setField(manager, "quotaWaitMillis", 2000L);
+        try {
+            TempStoreManager.Reservation first = manager.reserve(80);
+            CompletableFuture<TempStoreManager.Reservation> queued = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return manager.reserve(50);
+                }
+                catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            Thread.sleep(100);
+            assertFalse(queued.isDone());
+            first.close();
+            TempStoreManager.Reservation second = queued.get(1, TimeUnit.SECONDS);
+            assertNotNull(second);
+            assertEquals(50, manager.getReservedBytes());
+            ReflectionTestUtils.setField(manager, "quotaWaitMillis", 10L);
+            assertNull(manager.reserve(60));
+            assertEquals(1, manager.getRejectedCount());
+            TempStoreManager.Reservation detached = second.detach();
+            second.close();
+            assertEquals(50, manager.getReservedBytes());
+            detached.close();
+            // bigger than the whole quota, admitted when nothing else is reserved
+            try (TempStoreManager.Reservation big = manager.reserve(500)) {
+                assertEquals(500, manager.getReservedBytes());
+            }
+            assertEquals(0, manager.getReservedBytes());
+        }
+        finally {
+            manager.shutdown();
+        }
+    }
+}
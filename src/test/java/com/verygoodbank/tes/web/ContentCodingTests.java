@@ -0,0 +1,21 @@
+package com.verygoodbank.tes.web;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class ContentCodingTests {
+
+    @Test
+    public void testAcceptEncodingNegotiation() {
+        assertTrue(ContentCoding.acceptsGzip("gzip"));
+        assertTrue(ContentCoding.acceptsGzip("deflate, gzip;q=1.0, *;q=0.5"));
+        assertTrue(ContentCoding.acceptsGzip("br, *"));
+        assertTrue(ContentCoding.acceptsGzip("X-GZIP"));
+        assertFalse(ContentCoding.acceptsGzip(null));
+        assertFalse(ContentCoding.acceptsGzip("identity"));
+        assertFalse(ContentCoding.acceptsGzip("gzip;q=0"));
+        assertFalse(ContentCoding.acceptsGzip("gzip;q=0, *"));
+        assertFalse(ContentCoding.acceptsGzip("*;q=0"));
+    }
+}
@@ -0,0 +1,100 @@
+package com.verygoodbank.tes.web;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.InputStream;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.verygoodbank.tes.service.LaneScheduler.Lane;
+import com.verygoodbank.tes.store.TempStoreManager;
+
+class RequestAdmissionTests {
+
+    @Test
+    public void testRequestAndByteLimits() throws Exception {
+        RequestAdmission admission = new RequestAdmission(2, 100, 10, 0);
+        RequestAdmission.Permit first = admission.tryAcquire(60);
+        assertNotNull(first);
+        assertNull(admission.tryAcquire(50), "byte budget exhausted");
+        RequestAdmission.Permit second = admission.tryAcquire(-1);
+        assertNotNull(second);
+        assertEquals(70, admission.getBytesInFlight());
+        assertNull(admission.tryAcquire(1), "request limit exhausted");
+        first.close();
+        first.close();
+        assertEquals(10, admission.getBytesInFlight());
+        assertEquals(1, admission.getAvailableRequests());
+        second.close();
+        try (RequestAdmission.Permit alone = admission.tryAcquire(1000)) {
+            assertNotNull(alone, "request bigger than budget is admitted when alone");
+        }
+        assertEquals(2, admission.getRejectedCount());
+    }
+
+    @Test
+    public void testLanes() throws Exception {
+        RequestAdmission admission = new RequestAdmission(3, 100, 10, 0, 20, 2, 2);
+        assertEquals(Lane.LATENCY, admission.laneOf(20));
+        assertEquals(Lane.BULK, admission.laneOf(21));
+        assertEquals(Lane.BULK, admission.laneOf(-1));
+        RequestAdmission.Permit bulk = admission.tryAcquire(90);
+        assertEquals(Lane.BULK, bulk.getLane());
+        assertNull(admission.tryAcquire(21), "byte budget exhausted");
+        RequestAdmission.Permit small = admission.tryAcquire(15);
+        assertNotNull(small, "latency lane isn't limited by bytes");
+        assertEquals(Lane.LATENCY, small.getLane());
+        RequestAdmission.Permit tiny = admission.tryAcquire(5);
+        assertNotNull(tiny);
+        assertNull(admission.tryAcquire(5), "latency lane limit exhausted");
+        assertEquals(110, admission.getBytesInFlight());
+        assertEquals(2, admission.getInFlightRequests(Lane.LATENCY));
+        assertEquals(1, admission.getInFlightRequests(Lane.BULK));
+        RequestAdmission.Permit unknown = admission.tryAcquire(-1);
+        assertNull(unknown, "request limit exhausted");
+        bulk.close();
+        unknown = admission.tryAcquire(-1);
+        assertNotNull(unknown);
+        assertNull(admission.tryAcquire(-1), "request limit exhausted");
+        assertEquals(3, admission.getRejectedCount(Lane.BULK));
+        assertEquals(1, admission.getRejectedCount(Lane.LATENCY));
+        small.close();
+        tiny.close();
+        unknown.close();
+        assertEquals(0, admission.getInFlightRequests(Lane.LATENCY));
+        assertEquals(0, admission.getInFlightRequests(Lane.BULK));
+        assertEquals(0, admission.getBytesInFlight());
+    }
+
+    @Test
+    public void testUnknownLengthBodyIsChargedAsRead(@TempDir Path root) throws Exception {
+        TempStoreManager manager = new TempStoreManager();
+        ReflectionTestUtils.setField(manager, "dirsProperty", root.toString());
+        ReflectionTestUtils.setField(manager, "quotaBytes", 100L);
+        ReflectionTestUtils.setField(manager, "orphanAgeSeconds", 60L);
+        ReflectionTestUtils.setField(manager, "sweepIntervalSeconds", 3600L);
+        manager.init();
+        try (TempStoreManager.Reservation other = manager.reserve(40);
+            TempStoreManager.Reservation reservation = manager.reserve(10))
+        {
+            MockHttpServletRequest request = new MockHttpServletRequest("POST", "/api/v1/jobs");
+            request.setContent(new byte[80]);
+            InputStream in = new QuotaChargingRequest(request, reservation).getInputStream();
+            assertEquals(50, in.readNBytes(50).length);
+            assertEquals(90, manager.getReservedBytes());
+            // a detached reservation is grown for its new owner
+            TempStoreManager.Reservation job = reservation.detach();
+            assertThrows(TempStoreManager.QuotaExceededException.class, () -> in.readNBytes(30));
+            assertEquals(90, manager.getReservedBytes());
+            job.close();
+            assertEquals(40, manager.getReservedBytes());
+        }
+        finally {
+            manager.shutdown();
+        }
+    }
+}